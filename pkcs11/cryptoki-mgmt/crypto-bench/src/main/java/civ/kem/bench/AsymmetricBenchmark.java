@@ -0,0 +1,71 @@
+package civ.kem.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import civ.kem.algo.Asymmetric;
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+import sun.security.pkcs11.wrapper.PKCS11;
+
+/**
+ * Signature generation and verification, and key pair generation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class AsymmetricBenchmark {
+
+    @Param({"EC_P256", "RSA_2048"})
+    public String keyType;
+
+    private PKCS11 p11;
+    private CK_MECHANISM signMech;
+    private long hPublicKey;
+    private long hPrivateKey;
+    private byte[] hash;
+    private byte[] signature;
+
+    @Setup(Level.Trial)
+    public void setup(TokenState token) throws Exception {
+        p11 = token.p11;
+        signMech = Keys.signMechanism(keyType);
+        long[] keys = token.pool.execute(hSession -> Asymmetric.generateKeyPair(p11, hSession, Keys.keyPairMechanism(keyType),
+                Keys.publicTemplate(keyType), Keys.privateTemplate()));
+        hPublicKey = keys[0];
+        hPrivateKey = keys[1];
+
+        hash = new byte[32];
+        new java.util.Random(42).nextBytes(hash);
+        signature = token.pool.execute(hSession -> Asymmetric.sign(p11, hSession, signMech, hPrivateKey, hash, hash.length));
+    }
+
+    @Benchmark
+    public byte[] sign(SessionState session) throws Exception {
+        return Asymmetric.sign(p11, session.hSession, signMech, hPrivateKey, hash, hash.length);
+    }
+
+    @Benchmark
+    public void verifySignature(SessionState session) throws Exception {
+        Asymmetric.verifySignature(p11, session.hSession, signMech, hPublicKey, hash, signature);
+    }
+
+    /* includes the destruction of the pair, to keep the token memory flat */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void generateKeyPair(SessionState session) throws Exception {
+        long[] keys = Asymmetric.generateKeyPair(p11, session.hSession, Keys.keyPairMechanism(keyType),
+                Keys.publicTemplate(keyType), Keys.privateTemplate());
+        p11.C_DestroyObject(session.hSession, keys[0]);
+        p11.C_DestroyObject(session.hSession, keys[1]);
+    }
+}
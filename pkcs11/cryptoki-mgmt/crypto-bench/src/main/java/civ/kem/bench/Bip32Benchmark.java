@@ -0,0 +1,94 @@
+package civ.kem.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import civ.kem.algo.CryptokiMetrics;
+import civ.kem.algo.ManageObjects;
+import civ.kem.algo.ptk.BIP32KeyDerivation;
+import civ.kem.algo.ptk.CK_BIP32_CHILD_DERIVE_PARAMS;
+import civ.kem.algo.ptk.CK_BIP32_MASTER_DERIVE_PARAMS;
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+
+/**
+ * BIP32 master and child derivation, as
+ * {@link BIP32KeyDerivation#runDerivationTests} runs it. Requires a
+ * ProtectToolkit token: the BIP32 mechanisms are vendor defined. The master
+ * derivation only creates token objects, so the keys derived by each call
+ * are destroyed after it, outside of the measured time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class Bip32Benchmark {
+
+    /**
+     * The key pairs derived by the last call of a thread.
+     */
+    @State(Scope.Thread)
+    public static class DerivedKeys {
+
+        final long[] handles = new long[4];
+        int count;
+
+        void add(long hPublicKey, long hPrivateKey) {
+            handles[count++] = hPublicKey;
+            handles[count++] = hPrivateKey;
+        }
+
+        @TearDown(Level.Invocation)
+        public void destroy(TokenState token, SessionState session) throws Exception {
+            try {
+                for (int i = 0; i < count; i++) {
+                    ManageObjects.delete(token.p11, session.hSession, handles[i]);
+                }
+            } finally {
+                count = 0;
+            }
+        }
+    }
+
+    private TokenState token;
+    private PKCS11 p11;
+    private long hSeed;
+
+    @Setup(Level.Trial)
+    public void setup(TokenState token) throws Exception {
+        this.token = token;
+        p11 = token.p11;
+        hSeed = token.pool.execute(hSession -> BIP32KeyDerivation.generateSecretKey(p11, hSession, "bench-bip32-seed"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        token.pool.execute(hSession -> {
+            ManageObjects.delete(p11, hSession, hSeed);
+            return null;
+        });
+    }
+
+    @Benchmark
+    public byte[] runDerivationTests(SessionState session, DerivedKeys derived) throws Exception {
+        long hSession = session.hSession;
+        CK_BIP32_MASTER_DERIVE_PARAMS master = BIP32KeyDerivation.generateMasterKeyPair(p11, hSession, hSeed);
+        derived.add(master.hPublicKey, master.hPrivateKey);
+        CK_BIP32_CHILD_DERIVE_PARAMS child = BIP32KeyDerivation.generateChildKeyPair(p11, hSession, master.hPrivateKey);
+        derived.add(child.hPublicKey, child.hPrivateKey);
+
+        byte[] derivedKey = new byte[33];
+        CK_ATTRIBUTE[] template = {new CK_ATTRIBUTE(PKCS11Constants.CKA_VALUE, derivedKey)};
+        CryptokiMetrics.run("C_GetAttributeValue", null, hSession, () -> p11.C_GetAttributeValue(hSession, child.hPublicKey, template));
+        return derivedKey;
+    }
+}
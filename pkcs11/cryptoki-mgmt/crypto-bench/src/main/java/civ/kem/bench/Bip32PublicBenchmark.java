@@ -0,0 +1,45 @@
+package civ.kem.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import civ.kem.algo.ptk.ExtendedPublicKey;
+
+/**
+ * Public BIP32 child derivation in software, per child and as P2PKH
+ * addresses. Runs without a token, from the m/0H key of the BIP32 test
+ * vector 1.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class Bip32PublicBenchmark {
+
+    private static final String XPUB = "xpub68Gmy5EdvgibQVfPdqkBBCHxA5htiqg55crXYuXoQRKfDBFA1WEjWgP6LHhwBZeNK1VTsfTFUHCdrfp1bgwQ9xv5ski8PX9rL2dZXvgGDnw";
+
+    private ExtendedPublicKey account;
+    private long index;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        account = ExtendedPublicKey.parse(XPUB);
+    }
+
+    @Benchmark
+    public ExtendedPublicKey deriveChild() {
+        return account.derive(index++ & 0x7FFFFFFFL);
+    }
+
+    @Benchmark
+    public String p2pkhAddress() {
+        return ExtendedPublicKey.p2pkhAddress((byte) 0x00, account.derive(index++ & 0x7FFFFFFFL).getPublicKey());
+    }
+}
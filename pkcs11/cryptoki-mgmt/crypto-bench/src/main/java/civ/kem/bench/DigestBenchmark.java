@@ -0,0 +1,50 @@
+package civ.kem.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import civ.kem.algo.Symmetric;
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+
+/**
+ * Single-part digest on the token.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class DigestBenchmark {
+
+    @Param({"16", "1024", "65536"})
+    public int payloadSize;
+
+    @Param({"SHA256", "SHA512"})
+    public String digest;
+
+    private PKCS11 p11;
+    private CK_MECHANISM hashMech;
+    private byte[] data;
+
+    @Setup(Level.Trial)
+    public void setup(TokenState token) {
+        p11 = token.p11;
+        hashMech = new CK_MECHANISM(digest.equals("SHA256") ? PKCS11Constants.CKM_SHA256 : PKCS11Constants.CKM_SHA512);
+        data = new byte[payloadSize];
+        new java.util.Random(42).nextBytes(data);
+    }
+
+    @Benchmark
+    public byte[] hashData(SessionState session) throws Exception {
+        return Symmetric.hashData(p11, session.hSession, hashMech, data);
+    }
+}
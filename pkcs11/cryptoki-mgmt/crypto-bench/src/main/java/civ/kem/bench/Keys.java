@@ -0,0 +1,71 @@
+package civ.kem.bench;
+
+import java.nio.charset.StandardCharsets;
+
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+
+/**
+ * Session keys used by the benchmarks.
+ */
+final class Keys {
+
+    /* DER encoded OID of the NIST P-256 curve */
+    static final byte[] P256 = {0x06, 0x08, 0x2A, (byte) 0x86, 0x48, (byte) 0xCE, 0x3D, 0x03, 0x01, 0x07};
+
+    private Keys() {
+    }
+
+    static long aes(PKCS11 p11, long hSession, String label, boolean extractable) throws Exception {
+        CK_ATTRIBUTE[] template = {
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_TOKEN, PKCS11Constants.FALSE),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_LABEL, label.getBytes(StandardCharsets.US_ASCII)),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_CLASS, PKCS11Constants.CKO_SECRET_KEY),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_KEY_TYPE, PKCS11Constants.CKK_AES),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_VALUE_LEN, 32),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_ENCRYPT, PKCS11Constants.TRUE),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_DECRYPT, PKCS11Constants.TRUE),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_WRAP, PKCS11Constants.TRUE),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_UNWRAP, PKCS11Constants.TRUE),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_EXTRACTABLE, extractable),};
+        return p11.C_GenerateKey(hSession, new CK_MECHANISM(PKCS11Constants.CKM_AES_KEY_GEN), template);
+    }
+
+    static CK_ATTRIBUTE[] byLabel(String label) {
+        return new CK_ATTRIBUTE[]{
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_LABEL, label.getBytes(StandardCharsets.US_ASCII)),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_CLASS, PKCS11Constants.CKO_SECRET_KEY),};
+    }
+
+    static CK_MECHANISM keyPairMechanism(String keyType) {
+        return new CK_MECHANISM(keyType.startsWith("EC") ? PKCS11Constants.CKM_EC_KEY_PAIR_GEN : PKCS11Constants.CKM_RSA_PKCS_KEY_PAIR_GEN);
+    }
+
+    static CK_ATTRIBUTE[] publicTemplate(String keyType) {
+        if (keyType.startsWith("EC")) {
+            return new CK_ATTRIBUTE[]{
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_TOKEN, PKCS11Constants.FALSE),
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_VERIFY, PKCS11Constants.TRUE),
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_EC_PARAMS, P256),};
+        }
+        return new CK_ATTRIBUTE[]{
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_TOKEN, PKCS11Constants.FALSE),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_VERIFY, PKCS11Constants.TRUE),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_MODULUS_BITS, 2048),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_PUBLIC_EXPONENT, new byte[]{0x01, 0x00, 0x01}),};
+    }
+
+    static CK_ATTRIBUTE[] privateTemplate() {
+        return new CK_ATTRIBUTE[]{
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_TOKEN, PKCS11Constants.FALSE),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_PRIVATE, PKCS11Constants.TRUE),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_SENSITIVE, PKCS11Constants.TRUE),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_SIGN, PKCS11Constants.TRUE),};
+    }
+
+    static CK_MECHANISM signMechanism(String keyType) {
+        return new CK_MECHANISM(keyType.startsWith("EC") ? PKCS11Constants.CKM_ECDSA : PKCS11Constants.CKM_RSA_PKCS);
+    }
+}
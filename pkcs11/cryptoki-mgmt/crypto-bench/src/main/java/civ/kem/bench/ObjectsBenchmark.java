@@ -0,0 +1,77 @@
+package civ.kem.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import civ.kem.algo.ManageObjects;
+import civ.kem.algo.ObjectHandleCache;
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+
+/**
+ * Object search and key wrapping, with and without the handle cache.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class ObjectsBenchmark {
+
+    @Param({"false", "true"})
+    public boolean cached;
+
+    private static final CK_MECHANISM WRAP_MECH = new CK_MECHANISM(PKCS11Constants.CKM_AES_KEY_WRAP);
+
+    private PKCS11 p11;
+    private ObjectHandleCache cache;
+    private CK_ATTRIBUTE[] kekTemplate;
+    private CK_ATTRIBUTE[] dekTemplate;
+    private CK_ATTRIBUTE[] unwrapTemplate;
+    private byte[] wrappedKey;
+
+    @Setup(Level.Trial)
+    public void setup(TokenState token) throws Exception {
+        p11 = token.p11;
+        cache = cached ? token.pool.getHandleCache() : null;
+        kekTemplate = Keys.byLabel("bench-kek");
+        dekTemplate = Keys.byLabel("bench-dek");
+        unwrapTemplate = new CK_ATTRIBUTE[]{
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_TOKEN, PKCS11Constants.FALSE),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_CLASS, PKCS11Constants.CKO_SECRET_KEY),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_KEY_TYPE, PKCS11Constants.CKK_AES),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_ENCRYPT, PKCS11Constants.TRUE),};
+
+        wrappedKey = token.pool.execute(hSession -> {
+            Keys.aes(p11, hSession, "bench-kek", false);
+            Keys.aes(p11, hSession, "bench-dek", true);
+            return ManageObjects.wrapKey(p11, hSession, WRAP_MECH, kekTemplate, dekTemplate);
+        });
+    }
+
+    @Benchmark
+    public long find(SessionState session) throws Exception {
+        return ManageObjects.find(p11, session.hSession, kekTemplate, cache);
+    }
+
+    @Benchmark
+    public byte[] wrapKey(SessionState session) throws Exception {
+        return ManageObjects.wrapKey(p11, session.hSession, WRAP_MECH, kekTemplate, dekTemplate, cache);
+    }
+
+    /* includes the destruction of the unwrapped key, to keep the token memory flat */
+    @Benchmark
+    public void unWrapKey(SessionState session) throws Exception {
+        long hKey = ManageObjects.unWrapKey(p11, session.hSession, WRAP_MECH, kekTemplate, wrappedKey, unwrapTemplate, cache);
+        ManageObjects.delete(p11, session.hSession, hKey, cache);
+    }
+}
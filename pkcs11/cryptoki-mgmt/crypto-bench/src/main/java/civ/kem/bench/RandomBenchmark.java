@@ -0,0 +1,65 @@
+package civ.kem.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import civ.kem.algo.Random;
+import civ.kem.algo.RandomPool;
+
+/**
+ * Random generation on the token, for nonce sized and bulk requests, with
+ * one call per request or through a {@link RandomPool}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class RandomBenchmark {
+
+    @Param({"16", "32", "1024"})
+    public int size;
+
+    private byte[] randomData;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        randomData = new byte[size];
+    }
+
+    @State(Scope.Benchmark)
+    public static class PoolState {
+
+        public RandomPool randomPool;
+
+        @Setup(Level.Trial)
+        public void open(TokenState token) {
+            randomPool = new RandomPool(token.pool);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws Exception {
+            randomPool.close();
+        }
+    }
+
+    @Benchmark
+    public byte[] pooled(PoolState state) throws Exception {
+        state.randomPool.nextBytes(randomData);
+        return randomData;
+    }
+
+    @Benchmark
+    public byte[] generateRandomData(TokenState token, SessionState session) throws Exception {
+        Random.generateRandomData(token.p11, session.hSession, randomData, randomData.length);
+        return randomData;
+    }
+}
@@ -0,0 +1,38 @@
+package civ.kem.bench;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * Session held by one benchmark thread for the whole trial, with an output
+ * buffer of its own. The number of threads ({@code -t}) must not exceed the
+ * sessions the slot allows, otherwise the extra threads would wait for a
+ * session until the end of the trial.
+ */
+@State(Scope.Thread)
+public class SessionState {
+
+    public long hSession;
+    public byte[] scratch = new byte[1024 * 1024];
+
+    private TokenState token;
+
+    @Setup(Level.Trial)
+    public void borrow(TokenState token, BenchmarkParams params) throws Exception {
+        if (params.getThreads() > token.pool.getMaxSize()) {
+            throw new IllegalStateException("Cannot run " + params.getThreads() + " threads with "
+                    + token.pool.getMaxSize() + " sessions on slot " + token.slot);
+        }
+        this.token = token;
+        hSession = token.pool.borrow();
+    }
+
+    @TearDown(Level.Trial)
+    public void release() {
+        token.pool.release(hSession);
+    }
+}
@@ -0,0 +1,70 @@
+package civ.kem.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import civ.kem.algo.Symmetric;
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+
+/**
+ * Single-part encryption and decryption on the token. Digests are measured
+ * by {@link DigestBenchmark}, so that neither runs for parameters it ignores.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class SymmetricBenchmark {
+
+    @Param({"16", "1024", "65536"})
+    public int payloadSize;
+
+    @Param({"AES_ECB", "AES_CBC_PAD"})
+    public String mechanism;
+
+    private PKCS11 p11;
+    private CK_MECHANISM cipherMech;
+    private long hKey;
+    private byte[] plaintext;
+    private byte[] ciphertext;
+
+    @Setup(Level.Trial)
+    public void setup(TokenState token) throws Exception {
+        p11 = token.p11;
+        cipherMech = mechanism.equals("AES_ECB")
+                ? new CK_MECHANISM(PKCS11Constants.CKM_AES_ECB)
+                : new CK_MECHANISM(PKCS11Constants.CKM_AES_CBC_PAD, new byte[16]);
+        hKey = token.pool.execute(hSession -> Keys.aes(p11, hSession, "bench-aes", false));
+
+        plaintext = new byte[payloadSize];
+        new java.util.Random(42).nextBytes(plaintext);
+        int padding = mechanism.equals("AES_ECB") ? 0 : 16;
+        ciphertext = new byte[payloadSize + padding];
+        token.pool.execute(hSession -> {
+            Symmetric.encrypt(p11, hSession, cipherMech, hKey, plaintext, ciphertext);
+            return null;
+        });
+    }
+
+    @Benchmark
+    public byte[] encrypt(SessionState session) throws Exception {
+        Symmetric.encrypt(p11, session.hSession, cipherMech, hKey, plaintext, session.scratch);
+        return session.scratch;
+    }
+
+    @Benchmark
+    public byte[] decrypt(SessionState session) throws Exception {
+        Symmetric.decrypt(p11, session.hSession, cipherMech, hKey, ciphertext, session.scratch);
+        return session.scratch;
+    }
+}
@@ -0,0 +1,50 @@
+package civ.kem.bench;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import civ.kem.algo.SessionPool;
+import civ.kem.algo.Utils;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+
+/**
+ * Library and session pool shared by every benchmark thread.
+ *
+ * <p>
+ * The library path is taken from the {@code cryptoki.library} system property
+ * when set, e.g. {@code -jvmArgsAppend -Dcryptoki.library=/usr/lib/softhsm/libsofthsm2.so}.
+ * Sessions are never evicted during a trial, so the session objects created by
+ * the benchmark setups stay valid until the pool is closed.</p>
+ */
+@State(Scope.Benchmark)
+public class TokenState {
+
+    @Param("0")
+    public long slot;
+
+    /* empty for tokens that do not require a login */
+    @Param("1234")
+    public String pin;
+
+    public PKCS11 p11;
+    public SessionPool pool;
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        p11 = Utils.setMultiThreadedCryptokiFunctions();
+        pool = SessionPool.forSlot(p11, slot, PKCS11Constants.CKF_RW_SESSION | PKCS11Constants.CKF_SERIAL_SESSION, Long.MAX_VALUE);
+        if (!pin.isEmpty()) {
+            pool.login(PKCS11Constants.CKU_USER, pin.toCharArray());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        pool.close();
+    }
+}
@@ -1,10 +1,22 @@
 package civ.kem.algo;
 
+import java.lang.ref.Reference;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
 import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
 import sun.security.pkcs11.wrapper.CK_MECHANISM;
 import sun.security.pkcs11.wrapper.PKCS11;
 import sun.security.pkcs11.wrapper.PKCS11Exception;
 
+/**
+ * Helpers for asymmetric cryptographic operations on a PKCS#11 token.
+ * <p>
+ * The methods keep no state: with a library obtained through
+ * {@link Utils#setMultiThreadedCryptokiFunctions()} they can be called from
+ * several threads at once, each thread working on its own session (see
+ * {@link SessionPool}).
+ */
 public class Asymmetric {
     /**
      * Encrypts data using the specified asymmetric encryption mechanism.
@@ -18,8 +30,10 @@ public class Asymmetric {
      * @throws Exception If an error occurs during the encryption process.
      */
     public static void encrypt(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hKey, byte[] plaintext, byte[] ciphertext) throws Exception {
-        p11.C_EncryptInit(hSession, mechanism, hKey);
-        p11.C_Encrypt(hSession, 0L, plaintext, 0, plaintext.length, 0L, ciphertext, 0, ciphertext.length);
+        CryptokiMetrics.call("C_Encrypt", mechanism, hSession, () -> {
+            p11.C_EncryptInit(hSession, mechanism, hKey);
+            return p11.C_Encrypt(hSession, 0L, plaintext, 0, plaintext.length, 0L, ciphertext, 0, ciphertext.length);
+        });
     }
 
     /**
@@ -34,8 +48,84 @@ public class Asymmetric {
      * @throws Exception If an error occurs during the decryption process.
      */
     public static void decrypt(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hKey, byte[] ciphertext, byte[] plaintext) throws Exception {
-        p11.C_DecryptInit(hSession, mechanism, hKey);
-        p11.C_Decrypt(hSession, 0L, ciphertext, 0, ciphertext.length, 0L, plaintext, 0, plaintext.length);
+        CryptokiMetrics.call("C_Decrypt", mechanism, hSession, () -> {
+            p11.C_DecryptInit(hSession, mechanism, hKey);
+            return p11.C_Decrypt(hSession, 0L, ciphertext, 0, ciphertext.length, 0L, plaintext, 0, plaintext.length);
+        });
+    }
+
+    /**
+     * Encrypts the remaining content of a buffer into another buffer. Direct
+     * buffers are passed to the token by address, without intermediate
+     * copies.
+     *
+     * <p>
+     * On return the position of {@code plaintext} is at its limit and the
+     * position of {@code ciphertext} is moved past the produced data.</p>
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param hSession Handle to the active PKCS#11 session.
+     * @param mechanism The encryption mechanism to use (e.g., RSA PKCS1, OAEP).
+     * @param hKey Handle to the public key used for encryption.
+     * @param plaintext The data to be encrypted.
+     * @param ciphertext The buffer to store the resulting encrypted data.
+     * @return The number of bytes written to {@code ciphertext}.
+     * @throws ReadOnlyBufferException If {@code ciphertext} is read-only.
+     * @throws PKCS11Exception If an error occurs during encryption.
+     */
+    public static int encrypt(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hKey, ByteBuffer plaintext, ByteBuffer ciphertext) throws PKCS11Exception {
+        Utils.checkWritable(ciphertext);
+        return CryptokiMetrics.call("C_Encrypt", mechanism, hSession, () -> {
+            p11.C_EncryptInit(hSession, mechanism, hKey);
+            try {
+                int n = p11.C_Encrypt(hSession,
+                        Utils.address(plaintext), Utils.array(plaintext), Utils.arrayOffset(plaintext), plaintext.remaining(),
+                        Utils.address(ciphertext), Utils.array(ciphertext), Utils.arrayOffset(ciphertext), ciphertext.remaining());
+                plaintext.position(plaintext.limit());
+                ciphertext.position(ciphertext.position() + n);
+                return n;
+            } finally {
+                Reference.reachabilityFence(plaintext);
+                Reference.reachabilityFence(ciphertext);
+            }
+        });
+    }
+
+    /**
+     * Decrypts the remaining content of a buffer into another buffer. Direct
+     * buffers are passed to the token by address, without intermediate
+     * copies.
+     *
+     * <p>
+     * On return the position of {@code ciphertext} is at its limit and the
+     * position of {@code plaintext} is moved past the produced data.</p>
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param hSession Handle to the active PKCS#11 session.
+     * @param mechanism The decryption mechanism to use (e.g., RSA PKCS1, OAEP).
+     * @param hKey Handle to the private key used for decryption.
+     * @param ciphertext The data to be decrypted.
+     * @param plaintext The buffer to store the resulting decrypted data.
+     * @return The number of bytes written to {@code plaintext}.
+     * @throws ReadOnlyBufferException If {@code plaintext} is read-only.
+     * @throws PKCS11Exception If an error occurs during decryption.
+     */
+    public static int decrypt(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hKey, ByteBuffer ciphertext, ByteBuffer plaintext) throws PKCS11Exception {
+        Utils.checkWritable(plaintext);
+        return CryptokiMetrics.call("C_Decrypt", mechanism, hSession, () -> {
+            p11.C_DecryptInit(hSession, mechanism, hKey);
+            try {
+                int n = p11.C_Decrypt(hSession,
+                        Utils.address(ciphertext), Utils.array(ciphertext), Utils.arrayOffset(ciphertext), ciphertext.remaining(),
+                        Utils.address(plaintext), Utils.array(plaintext), Utils.arrayOffset(plaintext), plaintext.remaining());
+                ciphertext.position(ciphertext.limit());
+                plaintext.position(plaintext.position() + n);
+                return n;
+            } finally {
+                Reference.reachabilityFence(ciphertext);
+                Reference.reachabilityFence(plaintext);
+            }
+        });
     }
 
     /**
@@ -51,8 +141,41 @@ public class Asymmetric {
      * @throws PKCS11Exception If an error occurs during signing.
      */
     public static byte[] sign(PKCS11 p11, long hSession, CK_MECHANISM signMech, long hPrivateKey, byte[] hash, long hashLen) throws PKCS11Exception {
-        p11.C_SignInit(hSession, signMech, hPrivateKey);
-        return p11.C_Sign(hSession, hash);
+        return CryptokiMetrics.call("C_Sign", signMech, hSession, () -> {
+            p11.C_SignInit(hSession, signMech, hPrivateKey);
+            return p11.C_Sign(hSession, hash);
+        });
+    }
+
+    /**
+     * Signs the remaining content of a buffer into a caller-supplied buffer.
+     *
+     * <p>
+     * {@code C_Sign} has no direct variant in the JDK wrapper: a hash held in
+     * a direct buffer is copied, which is cheap for the short values signed
+     * here, and the signature is copied into {@code signature}.</p>
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param hSession Handle to an open PKCS#11 session.
+     * @param signMech The signing mechanism to use (e.g., ECDSA, RSA PKCS1).
+     * @param hPrivateKey Handle of the private key used for signing.
+     * @param hash The hash value to sign.
+     * @param signature The buffer to store the generated signature.
+     * @return The number of bytes written to {@code signature}.
+     * @throws PKCS11Exception If an error occurs during signing.
+     */
+    public static int sign(PKCS11 p11, long hSession, CK_MECHANISM signMech, long hPrivateKey, ByteBuffer hash, ByteBuffer signature) throws PKCS11Exception {
+        byte[] data;
+        if (hash.hasArray() && hash.arrayOffset() == 0 && hash.position() == 0 && hash.limit() == hash.array().length) {
+            data = hash.array();
+        } else {
+            data = new byte[hash.remaining()];
+            hash.duplicate().get(data);
+        }
+        byte[] result = sign(p11, hSession, signMech, hPrivateKey, data, data.length);
+        hash.position(hash.limit());
+        signature.put(result);
+        return result.length;
     }
 
     /**
@@ -67,8 +190,36 @@ public class Asymmetric {
      * @throws PKCS11Exception If the verification fails or an error occurs.
      */
     public static void verifySignature(PKCS11 p11, long hSession, CK_MECHANISM verifyMech, long hPublicKey, byte[] data, byte[] signature) throws PKCS11Exception {
-        p11.C_VerifyInit(hSession, verifyMech, hPublicKey);
-        p11.C_Verify(hSession, data, signature);
+        CryptokiMetrics.run("C_Verify", verifyMech, hSession, () -> {
+            p11.C_VerifyInit(hSession, verifyMech, hPublicKey);
+            p11.C_Verify(hSession, data, signature);
+        });
+    }
+
+    /**
+     * Verifies a signature and reports an invalid signature as a result
+     * rather than as an exception.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param hSession Handle to an open PKCS#11 session.
+     * @param verifyMech The verification mechanism to use (e.g., ECDSA, RSA PKCS1).
+     * @param hPublicKey Handle of the public key used for verification.
+     * @param data The original data that was signed.
+     * @param signature The signature to verify.
+     * @return {@code true} if the signature is valid.
+     * @throws PKCS11Exception If an error other than an invalid signature occurs.
+     */
+    public static boolean isSignatureValid(PKCS11 p11, long hSession, CK_MECHANISM verifyMech, long hPublicKey, byte[] data, byte[] signature) throws PKCS11Exception {
+        try {
+            verifySignature(p11, hSession, verifyMech, hPublicKey, data, signature);
+            return true;
+        } catch (PKCS11Exception ex) {
+            long rv = ex.getErrorCode();
+            if (rv == ReturnCodes.CKR_SIGNATURE_INVALID || rv == ReturnCodes.CKR_SIGNATURE_LEN_RANGE) {
+                return false;
+            }
+            throw ex;
+        }
     }
 
     /**
@@ -82,14 +233,33 @@ public class Asymmetric {
      * @param keyGenMech The key generation mechanism to use (e.g., RSA, EC).
      * @param publicTemplate Attribute template for the public key.
      * @param privateTemplate Attribute template for the private key.
-     * @param hPublicKey Output parameter to store the generated public key handle.
-     * @param hPrivateKey Output parameter to store the generated private key handle.
+     * @return The handles of the public key and of the private key, in that order.
+     * @throws PKCS11Exception If an error occurs during key pair generation.
+     */
+    public static long[] generateKeyPair(PKCS11 p11, long hSession, CK_MECHANISM keyGenMech, CK_ATTRIBUTE[] publicTemplate, CK_ATTRIBUTE[] privateTemplate) throws PKCS11Exception {
+        return CryptokiMetrics.call("C_GenerateKeyPair", keyGenMech, hSession,
+                () -> p11.C_GenerateKeyPair(hSession, keyGenMech, publicTemplate, privateTemplate));
+    }
+
+    /**
+     * Generates an asymmetric key pair.
+     *
+     * @param p11 PKCS#11 wrapper instance used to interact with the token.
+     * @param hSession Handle to an open PKCS#11 session associated with the token.
+     * @param keyGenMech The key generation mechanism to use (e.g., RSA, EC).
+     * @param publicTemplate Attribute template for the public key.
+     * @param privateTemplate Attribute template for the private key.
+     * @param hPublicKey Ignored, Java passes the handle by value.
+     * @param hPrivateKey Ignored, Java passes the handle by value.
+     * @return The handles of the public key and of the private key, in that order.
      * @throws PKCS11Exception If an error occurs during key pair generation.
+     * @deprecated The handles cannot be returned through {@code long}
+     * parameters, use
+     * {@link #generateKeyPair(PKCS11, long, CK_MECHANISM, CK_ATTRIBUTE[], CK_ATTRIBUTE[])}.
      */
-    public static void generateKeyPair(PKCS11 p11, long hSession, CK_MECHANISM keyGenMech, CK_ATTRIBUTE[] publicTemplate, CK_ATTRIBUTE[] privateTemplate,
-                                       long hPublicKey, long hPrivateKey) throws PKCS11Exception {
-        long[] keys = p11.C_GenerateKeyPair(hSession, keyGenMech, publicTemplate, privateTemplate);
-        hPublicKey = keys[0];
-        hPrivateKey = keys[1];
+    @Deprecated
+    public static long[] generateKeyPair(PKCS11 p11, long hSession, CK_MECHANISM keyGenMech, CK_ATTRIBUTE[] publicTemplate, CK_ATTRIBUTE[] privateTemplate,
+                                         long hPublicKey, long hPrivateKey) throws PKCS11Exception {
+        return generateKeyPair(p11, hSession, keyGenMech, publicTemplate, privateTemplate);
     }
 }
@@ -0,0 +1,410 @@
+package civ.kem.algo;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+import sun.security.pkcs11.wrapper.PKCS11;
+
+/**
+ * Non-blocking facade over the Cryptoki helpers: every operation returns a
+ * {@link CompletableFuture} completed by a worker thread.
+ *
+ * <p>
+ * On JDK 21 and later the workers are virtual threads, so requests waiting
+ * for a session or a slot permit do not hold an OS thread; the call into the
+ * token itself still occupies a carrier thread while it runs. On older JDKs
+ * a fixed pool of platform threads is used.</p>
+ *
+ * <p>
+ * Two limits apply. The number of requests in flight over the whole facade is
+ * bounded: beyond it, new requests fail immediately with a
+ * {@link RejectedExecutionException}, which callers such as network front
+ * ends can turn into a "busy" answer. Each slot also has its own concurrency
+ * limit, by default the size of its {@link SessionPool}; requests above it
+ * are queued for the slot and only handed to a worker when a running
+ * request of that slot completes, so they never hold a worker thread while
+ * they wait. Requests on a {@link SlotGroup} are queued for the slot the
+ * group selects; only the retries on another slot after a failure bypass
+ * its limit.</p>
+ *
+ * <p>
+ * Once the facade is closed, the queued requests fail with a
+ * {@link RejectedExecutionException} instead of being run.</p>
+ */
+public class AsyncCryptoki implements AutoCloseable {
+
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private final Map<Long, SlotQueue> slotQueues = new ConcurrentHashMap<>();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Creates a facade using virtual threads when the JDK supports them, and
+     * a pool of {@code fallbackThreads} platform threads otherwise.
+     *
+     * @param maxInFlight Largest number of requests submitted and not
+     * completed yet.
+     * @param fallbackThreads Number of platform threads without virtual
+     * thread support.
+     */
+    public AsyncCryptoki(int maxInFlight, int fallbackThreads) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("In-flight limit must be positive: " + maxInFlight);
+        }
+        ExecutorService virtual = newVirtualThreadExecutor();
+        this.virtualThreads = virtual != null;
+        this.executor = virtual != null ? virtual : ParallelSessions.newDaemonPool(fallbackThreads, "async-cryptoki");
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            /* JDK 20 or older */
+            return null;
+        }
+    }
+
+    /**
+     * Sets the number of concurrent requests sent to a slot, instead of the
+     * size of its session pool.
+     *
+     * @param slotId Identifier of the slot.
+     * @param limit Largest number of concurrent requests.
+     */
+    public void setSlotLimit(long slotId, int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Slot limit must be positive: " + limit);
+        }
+        /* the queue is kept so that the requests running now stay counted */
+        slotQueues.computeIfAbsent(slotId, id -> new SlotQueue(limit)).setLimit(limit);
+    }
+
+    /**
+     * A request, completed by its run or by its rejection.
+     */
+    private interface Request extends Runnable {
+
+        void reject(RejectedExecutionException ex);
+    }
+
+    /**
+     * Requests of one slot: at most {@code limit} run at once, the others
+     * wait in arrival order.
+     */
+    private final class SlotQueue {
+
+        private final ArrayDeque<Request> waiting = new ArrayDeque<>();
+        private int limit;
+        private int running;
+
+        SlotQueue(int limit) {
+            this.limit = limit;
+        }
+
+        void submit(Request request) {
+            synchronized (this) {
+                if (running >= limit) {
+                    waiting.add(request);
+                    return;
+                }
+                running++;
+            }
+            try {
+                executor.execute(new SlotTask(this, request));
+            } catch (RejectedExecutionException ex) {
+                synchronized (this) {
+                    running--;
+                }
+                throw ex;
+            }
+        }
+
+        void setLimit(int limit) {
+            List<Request> refused;
+            synchronized (this) {
+                this.limit = limit;
+                refused = startWaiting();
+            }
+            rejectAll(refused);
+        }
+
+        void finished() {
+            List<Request> refused;
+            synchronized (this) {
+                running--;
+                refused = startWaiting();
+            }
+            rejectAll(refused);
+        }
+
+        /* called with the lock held; returns the requests refused by a closed executor */
+        private List<Request> startWaiting() {
+            while (running < limit && !waiting.isEmpty()) {
+                Request request = waiting.peek();
+                try {
+                    executor.execute(new SlotTask(this, request));
+                } catch (RejectedExecutionException ex) {
+                    /* closed: the whole backlog is refused, outside the lock */
+                    List<Request> refused = new ArrayList<>(waiting);
+                    waiting.clear();
+                    return refused;
+                }
+                waiting.poll();
+                running++;
+            }
+            return List.of();
+        }
+    }
+
+    /* a request of a slot queue handed to the executor */
+    private static final class SlotTask implements Runnable {
+
+        final SlotQueue queue;
+        final Request request;
+
+        SlotTask(SlotQueue queue, Request request) {
+            this.queue = queue;
+            this.request = request;
+        }
+
+        @Override
+        public void run() {
+            try {
+                request.run();
+            } finally {
+                queue.finished();
+            }
+        }
+    }
+
+    private static void rejectAll(List<Request> refused) {
+        for (Request request : refused) {
+            request.reject(new RejectedExecutionException("Closed"));
+        }
+    }
+
+    private SlotQueue queue(SessionPool pool) {
+        return slotQueues.computeIfAbsent(pool.getSlotId(), slotId -> new SlotQueue(pool.getMaxSize()));
+    }
+
+    /**
+     * Runs a task asynchronously on a session of a pool.
+     *
+     * @param <T> type of the result.
+     * @param pool Pool of sessions on the target slot.
+     * @param task The work to run.
+     * @return The future result; it fails with a
+     * {@link RejectedExecutionException} when too many requests are in flight.
+     */
+    public <T> CompletableFuture<T> submit(SessionPool pool, SessionPool.SessionTask<T> task) {
+        return dispatch(queue(pool), () -> pool.execute(task));
+    }
+
+    /**
+     * Runs a task asynchronously on a slot of a group.
+     *
+     * @param <T> type of the result.
+     * @param group The slot group.
+     * @param task The work to run.
+     * @return The future result; it fails with a
+     * {@link RejectedExecutionException} when too many requests are in flight.
+     */
+    public <T> CompletableFuture<T> submit(SlotGroup group, SlotGroup.SlotTask<T> task) {
+        SessionPool pool = group.select();
+        if (pool == null) {
+            /* every slot is down: let the group report it */
+            return dispatch(null, () -> group.execute(task));
+        }
+        return dispatch(queue(pool), () -> group.execute(pool, task));
+    }
+
+    @FunctionalInterface
+    private interface Call<T> {
+
+        T call() throws Exception;
+    }
+
+    private <T> CompletableFuture<T> dispatch(SlotQueue queue, Call<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if (!inFlight.tryAcquire()) {
+            rejected.incrementAndGet();
+            future.completeExceptionally(new RejectedExecutionException("Too many requests in flight: " + maxInFlight));
+            return future;
+        }
+        Request request = new Request() {
+            @Override
+            public void run() {
+                /* released before completing, so that a continuation can submit the next request */
+                T result;
+                try {
+                    result = call.call();
+                } catch (Throwable ex) {
+                    inFlight.release();
+                    future.completeExceptionally(ex);
+                    return;
+                }
+                inFlight.release();
+                future.complete(result);
+            }
+
+            @Override
+            public void reject(RejectedExecutionException ex) {
+                inFlight.release();
+                rejected.incrementAndGet();
+                future.completeExceptionally(ex);
+            }
+        };
+        try {
+            if (queue != null) {
+                queue.submit(request);
+            } else {
+                executor.execute(request);
+            }
+        } catch (RejectedExecutionException ex) {
+            request.reject(ex);
+        }
+        return future;
+    }
+
+    /**
+     * Encrypts data, see {@link Symmetric#encrypt(PKCS11, long, CK_MECHANISM, long, byte[], byte[])}.
+     *
+     * @return The future {@code ciphertext} buffer.
+     */
+    public CompletableFuture<byte[]> encrypt(SessionPool pool, CK_MECHANISM mechanism, long hKey, byte[] plaintext, byte[] ciphertext) {
+        return submit(pool, hSession -> {
+            Symmetric.encrypt(pool.getP11(), hSession, mechanism, hKey, plaintext, ciphertext);
+            return ciphertext;
+        });
+    }
+
+    /**
+     * Decrypts data, see {@link Symmetric#decrypt(PKCS11, long, CK_MECHANISM, long, byte[], byte[])}.
+     *
+     * @return The future {@code plaintext} buffer.
+     */
+    public CompletableFuture<byte[]> decrypt(SessionPool pool, CK_MECHANISM mechanism, long hKey, byte[] ciphertext, byte[] plaintext) {
+        return submit(pool, hSession -> {
+            Symmetric.decrypt(pool.getP11(), hSession, mechanism, hKey, ciphertext, plaintext);
+            return plaintext;
+        });
+    }
+
+    /**
+     * Hashes data, see {@link Symmetric#hashData(PKCS11, long, CK_MECHANISM, byte[])}.
+     */
+    public CompletableFuture<byte[]> hashData(SessionPool pool, CK_MECHANISM hashMech, byte[] data) {
+        return submit(pool, hSession -> Symmetric.hashData(pool.getP11(), hSession, hashMech, data));
+    }
+
+    /**
+     * Signs a hash, see {@link Asymmetric#sign(PKCS11, long, CK_MECHANISM, long, byte[], long)}.
+     */
+    public CompletableFuture<byte[]> sign(SessionPool pool, CK_MECHANISM signMech, long hPrivateKey, byte[] hash) {
+        return submit(pool, hSession -> Asymmetric.sign(pool.getP11(), hSession, signMech, hPrivateKey, hash, hash.length));
+    }
+
+    /**
+     * Checks a signature, see {@link Asymmetric#isSignatureValid}.
+     */
+    public CompletableFuture<Boolean> isSignatureValid(SessionPool pool, CK_MECHANISM verifyMech, long hPublicKey, byte[] data, byte[] signature) {
+        return submit(pool, hSession -> Asymmetric.isSignatureValid(pool.getP11(), hSession, verifyMech, hPublicKey, data, signature));
+    }
+
+    /**
+     * Generates random bytes, see {@link Random#generateRandomData}.
+     */
+    public CompletableFuture<byte[]> generateRandomData(SessionPool pool, int length) {
+        return submit(pool, hSession -> {
+            byte[] randomData = new byte[length];
+            Random.generateRandomData(pool.getP11(), hSession, randomData, length);
+            return randomData;
+        });
+    }
+
+    /**
+     * Finds an object, see {@link ManageObjects#find(PKCS11, long, CK_ATTRIBUTE[], ObjectHandleCache)}.
+     */
+    public CompletableFuture<Long> find(SessionPool pool, CK_ATTRIBUTE[] template) {
+        return submit(pool, hSession -> ManageObjects.find(pool.getP11(), hSession, template, pool.getHandleCache()));
+    }
+
+    /**
+     * Wraps a key, see {@link ManageObjects#wrapKey(PKCS11, long, CK_MECHANISM, CK_ATTRIBUTE[], CK_ATTRIBUTE[], ObjectHandleCache)}.
+     */
+    public CompletableFuture<byte[]> wrapKey(SessionPool pool, CK_MECHANISM mechanism, CK_ATTRIBUTE[] wrappingKeyTemplate, CK_ATTRIBUTE[] keyToWrapTemplate) {
+        return submit(pool, hSession -> ManageObjects.wrapKey(pool.getP11(), hSession, mechanism, wrappingKeyTemplate, keyToWrapTemplate, pool.getHandleCache()));
+    }
+
+    /**
+     * Unwraps a key, see {@link ManageObjects#unWrapKey(PKCS11, long, CK_MECHANISM, CK_ATTRIBUTE[], byte[], CK_ATTRIBUTE[], ObjectHandleCache)}.
+     */
+    public CompletableFuture<Long> unWrapKey(SessionPool pool, CK_MECHANISM mechanism, CK_ATTRIBUTE[] unWrappingKeyTemplate, byte[] wrappedKey, CK_ATTRIBUTE[] newKeyTemplate) {
+        return submit(pool, hSession -> ManageObjects.unWrapKey(pool.getP11(), hSession, mechanism, unWrappingKeyTemplate, wrappedKey, newKeyTemplate, pool.getHandleCache()));
+    }
+
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Number of requests submitted and not completed yet.
+     */
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Stops accepting requests and waits up to a minute for those running;
+     * the queued requests fail. Past the minute, the workers are interrupted,
+     * the requests not started yet fail and the timeout is reported. The
+     * pools are left open.
+     *
+     * @return {@code true} if every worker stopped in time.
+     */
+    public boolean shutdown() throws InterruptedException {
+        executor.shutdown();
+        if (executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            return true;
+        }
+        for (Runnable task : executor.shutdownNow()) {
+            Request request = task instanceof SlotTask ? ((SlotTask) task).request : task instanceof Request ? (Request) task : null;
+            if (request != null) {
+                request.reject(new RejectedExecutionException("Closed"));
+            }
+        }
+        Utils.println("Async Cryptoki requests still running after 1 minute: " + getInFlight());
+        return false;
+    }
+
+    /**
+     * Same as {@link #shutdown()}.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        shutdown();
+    }
+}
@@ -0,0 +1,274 @@
+package civ.kem.algo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Signs many digests with one private key, spreading them over the sessions
+ * of a {@link SessionPool}.
+ *
+ * <p>
+ * {@link #signAll(List)} signs a list at once and returns the signatures in
+ * the same order. {@link #submit(byte[])} queues single digests instead: the
+ * requests arriving within the batching window are coalesced into one batch,
+ * so callers signing one value at a time still share the sessions
+ * efficiently. Each batch is cut into contiguous slices, one per session,
+ * and each slice is signed on a single borrowed session with
+ * {@link Asymmetric#sign}.</p>
+ *
+ * <p>
+ * The pool should come from a library initialized with
+ * {@link Utils#setMultiThreadedCryptokiFunctions()}, otherwise the slices are
+ * serialized by the JDK wrapper.</p>
+ */
+public class BatchSigner implements AutoCloseable {
+
+    /**
+     * Receives the size and latency of every completed batch.
+     */
+    @FunctionalInterface
+    public interface BatchListener {
+
+        void onBatch(int size, long latencyNanos);
+    }
+
+    private static class Request {
+
+        final byte[] digest;
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+
+        Request(byte[] digest) {
+            this.digest = digest;
+        }
+    }
+
+    private final SessionPool pool;
+    private final CK_MECHANISM signMech;
+    private final long hPrivateKey;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+
+    private final ExecutorService workers;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread dispatcher;
+    private volatile boolean closed;
+    private volatile BatchListener listener;
+
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong signedCount = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private volatile long lastLatencyNanos;
+
+    /**
+     * Creates a signer.
+     *
+     * @param pool Pool of sessions on the slot holding the key.
+     * @param signMech The signing mechanism to use (e.g., ECDSA, RSA PKCS1).
+     * @param hPrivateKey Handle of the private key used for signing.
+     * @param maxBatchSize Largest number of queued digests signed as a batch.
+     * @param maxDelayMicros Longest time a queued digest waits for others
+     * before its batch is started.
+     */
+    public BatchSigner(SessionPool pool, CK_MECHANISM signMech, long hPrivateKey, int maxBatchSize, long maxDelayMicros) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive: " + maxBatchSize);
+        }
+        this.pool = pool;
+        this.signMech = signMech;
+        this.hPrivateKey = hPrivateKey;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        this.workers = ParallelSessions.newDaemonPool(pool.getMaxSize(), "batch-signer-" + pool.getSlotId());
+        this.dispatcher = new Thread(this::dispatch, "batch-signer-dispatch-" + pool.getSlotId());
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    public void setListener(BatchListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Signs a list of digests.
+     *
+     * @param digests The hash values to sign.
+     * @return The signatures, in the order of {@code digests}.
+     * @throws Exception If one of the signatures cannot be generated.
+     */
+    public List<byte[]> signAll(List<byte[]> digests) throws Exception {
+        List<Request> batch = new ArrayList<>(digests.size());
+        for (byte[] digest : digests) {
+            batch.add(new Request(digest));
+        }
+        run(batch);
+
+        List<byte[]> signatures = new ArrayList<>(batch.size());
+        try {
+            for (Request request : batch) {
+                signatures.add(request.result.get());
+            }
+        } catch (ExecutionException ex) {
+            throw ParallelSessions.unwrap(ex);
+        }
+        return signatures;
+    }
+
+    /**
+     * Queues a digest to be signed with the next batch.
+     *
+     * @param digest The hash value to sign.
+     * @return The future signature.
+     */
+    public CompletableFuture<byte[]> submit(byte[] digest) {
+        Request request = new Request(digest);
+        /* same lock as close(), so nothing is queued after the dispatcher's last drain */
+        synchronized (this) {
+            if (!closed) {
+                queue.add(request);
+                return request.result;
+            }
+        }
+        request.result.completeExceptionally(new IllegalStateException("Batch signer is closed"));
+        return request.result;
+    }
+
+    private void dispatch() {
+        List<Request> batch = new ArrayList<>();
+        try {
+            while (!closed) {
+                Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatchSize) {
+                    long wait = deadline - System.nanoTime();
+                    Request next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                run(batch);
+                batch = new ArrayList<>();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        fail(batch);
+        List<Request> pending = new ArrayList<>();
+        queue.drainTo(pending);
+        fail(pending);
+    }
+
+    private static void fail(List<Request> requests) {
+        for (Request request : requests) {
+            request.result.completeExceptionally(new IllegalStateException("Batch signer is closed"));
+        }
+    }
+
+    private void run(List<Request> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        int slices = Math.min(pool.getMaxSize(), batch.size());
+        int sliceSize = (batch.size() + slices - 1) / slices;
+        AtomicInteger remaining = new AtomicInteger((batch.size() + sliceSize - 1) / sliceSize);
+
+        AtomicInteger signed = new AtomicInteger();
+
+        for (int from = 0; from < batch.size(); from += sliceSize) {
+            List<Request> slice = batch.subList(from, Math.min(from + sliceSize, batch.size()));
+            workers.execute(() -> {
+                signed.addAndGet(signSlice(slice));
+                if (remaining.decrementAndGet() == 0) {
+                    completed(batch.size(), signed.get(), System.nanoTime() - start);
+                }
+            });
+        }
+    }
+
+    private int signSlice(List<Request> slice) {
+        int[] signed = new int[1];
+        try {
+            pool.execute(hSession -> {
+                for (Request request : slice) {
+                    try {
+                        request.result.complete(Asymmetric.sign(pool.getP11(), hSession, signMech, hPrivateKey,
+                                request.digest, request.digest.length));
+                        signed[0]++;
+                    } catch (PKCS11Exception ex) {
+                        if (SessionPool.isSessionLost(ex)) {
+                            /* let the pool discard the session; the rest of the slice fails below */
+                            throw ex;
+                        }
+                        request.result.completeExceptionally(ex);
+                    } catch (Exception ex) {
+                        request.result.completeExceptionally(ex);
+                    }
+                }
+                return null;
+            });
+        } catch (Exception ex) {
+            for (Request request : slice) {
+                request.result.completeExceptionally(ex);
+            }
+        }
+        return signed[0];
+    }
+
+    private void completed(int size, int signed, long latencyNanos) {
+        batchCount.incrementAndGet();
+        signedCount.addAndGet(signed);
+        totalLatencyNanos.addAndGet(latencyNanos);
+        lastLatencyNanos = latencyNanos;
+        BatchListener current = listener;
+        if (current != null) {
+            current.onBatch(size, latencyNanos);
+        }
+    }
+
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    public long getSignedCount() {
+        return signedCount.get();
+    }
+
+    public long getLastBatchLatencyNanos() {
+        return lastLatencyNanos;
+    }
+
+    public long getMeanBatchLatencyNanos() {
+        long batches = batchCount.get();
+        return batches == 0 ? 0 : totalLatencyNanos.get() / batches;
+    }
+
+    /**
+     * Stops batching. Queued digests that were not dispatched yet fail; the
+     * pool is left open.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        synchronized (this) {
+            closed = true;
+        }
+        dispatcher.join();
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.MINUTES);
+    }
+}
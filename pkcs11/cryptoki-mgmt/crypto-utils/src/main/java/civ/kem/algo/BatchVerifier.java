@@ -0,0 +1,166 @@
+package civ.kem.algo;
+
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+
+/**
+ * Verifies many signatures made with one key, in parallel.
+ *
+ * <p>
+ * Results are returned as a {@link BitSet} where bit {@code i} is set when
+ * signature {@code i} is valid; invalid signatures are not reported as
+ * exceptions. By default every signature is checked on the token with
+ * {@link Asymmetric#isSignatureValid}, each worker using its own pooled
+ * session. With the software fast path the public key is read once with
+ * {@link PublicKeys#export} and the signatures are checked by the JCA, which
+ * leaves the token free for operations needing the private half.</p>
+ */
+public class BatchVerifier implements AutoCloseable {
+
+    private final SessionPool pool;
+    private final CK_MECHANISM verifyMech;
+    private final long hPublicKey;
+    private final PublicKey publicKey;
+    private final String algorithm;
+    private final int parallelism;
+    private final ExecutorService workers;
+
+    /**
+     * Creates a verifier working on the token.
+     *
+     * @param pool Pool of sessions on the slot holding the key.
+     * @param verifyMech The verification mechanism to use (e.g., ECDSA, RSA PKCS1).
+     * @param hPublicKey Handle of the public key used for verification.
+     */
+    public BatchVerifier(SessionPool pool, CK_MECHANISM verifyMech, long hPublicKey) {
+        this(pool, verifyMech, hPublicKey, null, null);
+    }
+
+    private BatchVerifier(SessionPool pool, CK_MECHANISM verifyMech, long hPublicKey, PublicKey publicKey, String algorithm) {
+        this.pool = pool;
+        this.verifyMech = verifyMech;
+        this.hPublicKey = hPublicKey;
+        this.publicKey = publicKey;
+        this.algorithm = algorithm;
+        this.parallelism = publicKey != null ? Runtime.getRuntime().availableProcessors() : pool.getMaxSize();
+        this.workers = ParallelSessions.newDaemonPool(parallelism, "batch-verifier-" + pool.getSlotId());
+    }
+
+    /**
+     * Creates a verifier that checks the signatures in software when the
+     * public key can be exported and the mechanism has a JCA equivalent, and
+     * on the token otherwise.
+     *
+     * @param pool Pool of sessions on the slot holding the key.
+     * @param verifyMech The verification mechanism to use (e.g., ECDSA, RSA PKCS1).
+     * @param hPublicKey Handle of the public key used for verification.
+     * @return A new verifier.
+     * @throws Exception If no session can be obtained.
+     */
+    public static BatchVerifier withSoftwareFastPath(SessionPool pool, CK_MECHANISM verifyMech, long hPublicKey) throws Exception {
+        String algorithm = PublicKeys.signatureAlgorithm(verifyMech.mechanism);
+        PublicKey publicKey = null;
+        if (algorithm != null) {
+            try {
+                publicKey = pool.execute(hSession -> PublicKeys.export(pool.getP11(), hSession, hPublicKey));
+            } catch (Exception ex) {
+                /* the key cannot leave the token, verify there */
+            }
+        }
+        return new BatchVerifier(pool, verifyMech, hPublicKey, publicKey, publicKey != null ? algorithm : null);
+    }
+
+    /**
+     * Tells whether the signatures are checked by the JCA.
+     */
+    public boolean isSoftware() {
+        return publicKey != null;
+    }
+
+    /**
+     * Verifies signatures.
+     *
+     * @param data The signed values.
+     * @param signatures The signatures, in the order of {@code data}.
+     * @return The set of indexes of the valid signatures.
+     * @throws Exception If an error other than an invalid signature occurs.
+     */
+    public BitSet verifyAll(List<byte[]> data, List<byte[]> signatures) throws Exception {
+        if (data.size() != signatures.size()) {
+            throw new IllegalArgumentException("Got " + data.size() + " values for " + signatures.size() + " signatures");
+        }
+        int count = data.size();
+        BitSet valid = new BitSet(count);
+        if (count == 0) {
+            return valid;
+        }
+
+        int slices = Math.min(parallelism, count);
+        int sliceSize = (count + slices - 1) / slices;
+        List<Future<BitSet>> results = new ArrayList<>();
+        for (int from = 0; from < count; from += sliceSize) {
+            int start = from;
+            int end = Math.min(from + sliceSize, count);
+            results.add(workers.submit(() -> isSoftware()
+                    ? verifyInSoftware(data, signatures, start, end)
+                    : verifyOnToken(data, signatures, start, end)));
+        }
+
+        try {
+            for (Future<BitSet> result : results) {
+                valid.or(result.get());
+            }
+        } catch (ExecutionException ex) {
+            throw ParallelSessions.unwrap(ex);
+        }
+        return valid;
+    }
+
+    private BitSet verifyOnToken(List<byte[]> data, List<byte[]> signatures, int start, int end) throws Exception {
+        return pool.execute(hSession -> {
+            BitSet valid = new BitSet(end);
+            for (int i = start; i < end; i++) {
+                if (Asymmetric.isSignatureValid(pool.getP11(), hSession, verifyMech, hPublicKey, data.get(i), signatures.get(i))) {
+                    valid.set(i);
+                }
+            }
+            return valid;
+        });
+    }
+
+    private BitSet verifyInSoftware(List<byte[]> data, List<byte[]> signatures, int start, int end) throws Exception {
+        Signature verifier = Signature.getInstance(algorithm);
+        BitSet valid = new BitSet(end);
+        for (int i = start; i < end; i++) {
+            verifier.initVerify(publicKey);
+            verifier.update(data.get(i));
+            try {
+                if (verifier.verify(signatures.get(i))) {
+                    valid.set(i);
+                }
+            } catch (SignatureException ex) {
+                /* malformed signature */
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Stops the worker threads; the pool is left open.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.MINUTES);
+    }
+}
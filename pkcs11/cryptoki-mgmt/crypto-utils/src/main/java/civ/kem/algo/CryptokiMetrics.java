@@ -0,0 +1,360 @@
+package civ.kem.algo;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+import sun.security.pkcs11.wrapper.Functions;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Process-wide metrics of the Cryptoki calls made by the helpers of this
+ * package.
+ *
+ * <p>
+ * The helpers run their calls through {@link #call}, which records the call
+ * count, the latency histogram and the CKR_* error codes three times: per
+ * function (e.g. {@code C_Sign}), per function and mechanism (e.g.
+ * {@code C_Sign CKM_ECDSA}) and per slot. The slot of a session is known when
+ * the session was opened with {@link Utils#openSession}. Session pools are
+ * tracked from their creation to their closing.</p>
+ *
+ * <p>
+ * The statistics of a call are found without lock and without boxing the
+ * session, slot or mechanism id; the call itself is passed as a lambda,
+ * which the caller usually allocates.</p>
+ *
+ * <p>
+ * The metrics can be read with {@link #snapshot()}, or through JMX once
+ * {@link #registerMBeans()} has been called: every statistic is published as
+ * an {@link OperationStatsMBean} under the {@code civ.kem.algo} domain and
+ * every pool as a {@link SessionPoolMBean}.</p>
+ */
+public class CryptokiMetrics {
+
+    public static final String DOMAIN = "civ.kem.algo";
+
+    /**
+     * A Cryptoki call returning a value.
+     *
+     * @param <T> type of the result.
+     * @param <E> type of the exception thrown.
+     */
+    @FunctionalInterface
+    public interface Call<T, E extends Exception> {
+
+        T call() throws E;
+    }
+
+    /**
+     * A Cryptoki call without result.
+     *
+     * @param <E> type of the exception thrown.
+     */
+    @FunctionalInterface
+    public interface VoidCall<E extends Exception> {
+
+        void call() throws E;
+    }
+
+    /**
+     * The statistics of one function and of its mechanisms, keyed by
+     * mechanism id so that recording a call builds no name and boxes no key.
+     */
+    private static final class FunctionStats {
+
+        final String function;
+        final OperationStats stats;
+        final LongMap<OperationStats> mechanisms = new LongMap<>();
+
+        FunctionStats(String function) {
+            this.function = function;
+            this.stats = register("function", function, new OperationStats(function));
+        }
+
+        OperationStats mechanism(long mechanism) {
+            /* the factory captures this, look up first */
+            OperationStats mechanismStats = mechanisms.get(mechanism);
+            return mechanismStats != null ? mechanismStats : mechanisms.computeIfAbsent(mechanism, id -> {
+                String name = function + " " + mechanismName(id);
+                OperationStats created = register("mechanism", name, new OperationStats(name));
+                MECHANISMS.put(name, created);
+                return created;
+            });
+        }
+    }
+
+    private static final Map<String, FunctionStats> FUNCTIONS = new ConcurrentHashMap<>();
+    /* the mechanism statistics by display name, for the snapshot and JMX */
+    private static final Map<String, OperationStats> MECHANISMS = new ConcurrentHashMap<>();
+    private static final LongMap<OperationStats> SLOTS = new LongMap<>();
+    /* the slot of every session, boxed once when the session is opened */
+    private static final LongMap<Long> SESSION_SLOTS = new LongMap<>();
+    private static final Set<SessionPool> POOLS = ConcurrentHashMap.newKeySet();
+    private static final Map<Long, String> MECHANISM_NAMES = new ConcurrentHashMap<>();
+
+    private static volatile boolean enabled = true;
+    private static volatile MBeanServer mbeanServer;
+
+    private CryptokiMetrics() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns the recording on or off; when off {@link #call} only runs the call.
+     */
+    public static void setEnabled(boolean enabled) {
+        CryptokiMetrics.enabled = enabled;
+    }
+
+    /**
+     * Runs and records a call made on a session.
+     *
+     * @param <T> type of the result.
+     * @param <E> type of the exception thrown.
+     * @param function Name of the Cryptoki function, e.g. {@code C_Sign}.
+     * @param mechanism The mechanism used, or {@code null}.
+     * @param hSession The session of the call.
+     * @param call The call.
+     * @return The result of the call.
+     * @throws E If the call fails.
+     */
+    public static <T, E extends Exception> T call(String function, CK_MECHANISM mechanism, long hSession, Call<T, E> call) throws E {
+        if (!enabled) {
+            return call.call();
+        }
+        Long slotId = SESSION_SLOTS.get(hSession);
+        return record(function, mechanism, slotId != null ? slotId : -1L, call);
+    }
+
+    /**
+     * Runs and records a call made on a session, without result.
+     *
+     * @param <E> type of the exception thrown.
+     * @param function Name of the Cryptoki function, e.g. {@code C_Verify}.
+     * @param mechanism The mechanism used, or {@code null}.
+     * @param hSession The session of the call.
+     * @param call The call.
+     * @throws E If the call fails.
+     */
+    public static <E extends Exception> void run(String function, CK_MECHANISM mechanism, long hSession, VoidCall<E> call) throws E {
+        call(function, mechanism, hSession, () -> {
+            call.call();
+            return null;
+        });
+    }
+
+    /**
+     * Runs and records a call made on a slot rather than a session, such as
+     * {@code C_OpenSession}.
+     *
+     * @param <T> type of the result.
+     * @param <E> type of the exception thrown.
+     * @param function Name of the Cryptoki function.
+     * @param slotId The slot of the call.
+     * @param call The call.
+     * @return The result of the call.
+     * @throws E If the call fails.
+     */
+    public static <T, E extends Exception> T callOnSlot(String function, long slotId, Call<T, E> call) throws E {
+        if (!enabled) {
+            return call.call();
+        }
+        return record(function, null, slotId, call);
+    }
+
+    private static <T, E extends Exception> T record(String function, CK_MECHANISM mechanism, long slotId, Call<T, E> call) throws E {
+        /* looked up before the call so that the latency covers the call alone */
+        FunctionStats functionStats = functionStats(function);
+        OperationStats mechanismStats = mechanism == null ? null : functionStats.mechanism(mechanism.mechanism);
+        OperationStats slotStats = slotId < 0 ? null : slotStats(slotId);
+        long start = System.nanoTime();
+        try {
+            T result = call.call();
+            long nanos = System.nanoTime() - start;
+            functionStats.stats.record(nanos);
+            if (mechanismStats != null) {
+                mechanismStats.record(nanos);
+            }
+            if (slotStats != null) {
+                slotStats.record(nanos);
+            }
+            return result;
+        } catch (Exception | Error ex) {
+            long nanos = System.nanoTime() - start;
+            long code = ex instanceof PKCS11Exception ? ((PKCS11Exception) ex).getErrorCode() : -1L;
+            String name = ex instanceof PKCS11Exception ? ex.getMessage() : null;
+            functionStats.stats.recordError(nanos, code, name);
+            if (mechanismStats != null) {
+                mechanismStats.recordError(nanos, code, name);
+            }
+            if (slotStats != null) {
+                slotStats.recordError(nanos, code, name);
+            }
+            throw ex;
+        }
+    }
+
+    private static FunctionStats functionStats(String function) {
+        FunctionStats stats = FUNCTIONS.get(function);
+        return stats != null ? stats : FUNCTIONS.computeIfAbsent(function, FunctionStats::new);
+    }
+
+    private static OperationStats slotStats(long slotId) {
+        return SLOTS.computeIfAbsent(slotId, id -> register("slot", Long.toString(id), new OperationStats("slot " + id)));
+    }
+
+    private static String mechanismName(long mechanism) {
+        return MECHANISM_NAMES.computeIfAbsent(mechanism, id -> {
+            String name = Functions.getMechanismName(id);
+            return name != null ? name : String.format("0x%08X", id);
+        });
+    }
+
+    /**
+     * Remembers the slot of a new session.
+     */
+    public static void sessionOpened(long hSession, long slotId) {
+        SESSION_SLOTS.put(hSession, slotId);
+    }
+
+    /**
+     * Forgets the slot of a closed session.
+     */
+    public static void sessionClosed(long hSession) {
+        SESSION_SLOTS.remove(hSession);
+    }
+
+    static void poolOpened(SessionPool pool) {
+        POOLS.add(pool);
+        MBeanServer server = mbeanServer;
+        if (server != null) {
+            registerPool(server, pool);
+        }
+    }
+
+    static void poolClosed(SessionPool pool) {
+        if (POOLS.remove(pool)) {
+            MBeanServer server = mbeanServer;
+            if (server != null) {
+                try {
+                    server.unregisterMBean(poolName(pool));
+                } catch (Exception ex) {
+                    /* not registered */
+                }
+            }
+        }
+    }
+
+    /**
+     * Publishes the existing and future statistics and pools in the platform
+     * MBean server.
+     */
+    public static synchronized void registerMBeans() {
+        if (mbeanServer != null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        mbeanServer = server;
+        FUNCTIONS.forEach((name, stats) -> registerStats(server, "function", name, stats.stats));
+        MECHANISMS.forEach((name, stats) -> registerStats(server, "mechanism", name, stats));
+        SLOTS.forEach((id, stats) -> registerStats(server, "slot", Long.toString(id), stats));
+        for (SessionPool pool : POOLS) {
+            registerPool(server, pool);
+        }
+    }
+
+    private static OperationStats register(String scope, String name, OperationStats stats) {
+        MBeanServer server = mbeanServer;
+        if (server != null) {
+            registerStats(server, scope, name, stats);
+        }
+        return stats;
+    }
+
+    private static void registerStats(MBeanServer server, String scope, String name, OperationStats stats) {
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=CryptokiMetrics,scope=" + scope + ",name=" + ObjectName.quote(name));
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(stats, objectName);
+            }
+        } catch (Exception ex) {
+            Utils.println("Cannot register metrics " + name + ": " + ex.getMessage());
+        }
+    }
+
+    private static ObjectName poolName(SessionPool pool) throws Exception {
+        return new ObjectName(DOMAIN + ":type=SessionPool,slot=" + pool.getSlotId() + ",id=" + System.identityHashCode(pool));
+    }
+
+    private static void registerPool(MBeanServer server, SessionPool pool) {
+        try {
+            ObjectName objectName = poolName(pool);
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(pool, objectName);
+            }
+        } catch (Exception ex) {
+            Utils.println("Cannot register session pool of slot " + pool.getSlotId() + ": " + ex.getMessage());
+        }
+    }
+
+    public static OperationStats getFunctionStats(String function) {
+        FunctionStats stats = FUNCTIONS.get(function);
+        return stats != null ? stats.stats : null;
+    }
+
+    public static OperationStats getSlotStats(long slotId) {
+        return SLOTS.get(slotId);
+    }
+
+    /**
+     * Clears every statistic; pools and sessions stay tracked.
+     */
+    public static void reset() {
+        FUNCTIONS.values().forEach(stats -> stats.stats.reset());
+        MECHANISMS.values().forEach(OperationStats::reset);
+        SLOTS.values().forEach(OperationStats::reset);
+    }
+
+    /**
+     * Returns a text table of the statistics and of the pool utilization.
+     */
+    public static String snapshot() {
+        StringBuilder sb = new StringBuilder();
+        String header = String.format("%-40s %10s %8s %10s %10s %10s %10s  %s%n",
+                "", "calls", "errors", "mean(us)", "p50(us)", "p99(us)", "max(us)", "error codes");
+        sb.append(header.replaceFirst(" {40}", String.format("%-40s", "function")));
+        Map<String, OperationStats> functions = new TreeMap<>();
+        FUNCTIONS.forEach((name, stats) -> functions.put(name, stats.stats));
+        appendStats(sb, functions);
+        sb.append(header.replaceFirst(" {40}", String.format("%-40s", "mechanism")));
+        appendStats(sb, new TreeMap<>(MECHANISMS));
+        sb.append(header.replaceFirst(" {40}", String.format("%-40s", "slot")));
+        Map<Long, OperationStats> slots = new TreeMap<>();
+        SLOTS.forEach(slots::put);
+        appendStats(sb, slots);
+
+        sb.append(String.format("%-40s %10s %8s %10s %10s%n", "session pool", "max", "open", "idle", "borrowed"));
+        for (SessionPool pool : POOLS) {
+            sb.append(String.format("%-40s %10d %8d %10d %10d%n", "slot " + pool.getSlotId(),
+                    pool.getMaxSize(), pool.getOpenCount(), pool.getIdleCount(), pool.getBorrowedCount()));
+        }
+        return sb.toString();
+    }
+
+    private static void appendStats(StringBuilder sb, Map<?, OperationStats> stats) {
+        for (OperationStats s : stats.values()) {
+            sb.append(String.format("%-40s %10d %8d %10.1f %10.1f %10.1f %10.1f  %s%n", s.getName(), s.getCalls(),
+                    s.getErrors(), s.getMeanMicros(), s.getP50Micros(), s.getP99Micros(), s.getMaxMicros(), s.getErrorCodes()));
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package civ.kem.algo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.Reference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Incremental message digest computed on a PKCS#11 token.
+ *
+ * <p>
+ * Data is fed to {@code C_DigestUpdate} in fixed-size chunks, whatever the
+ * source (arrays, buffers, streams or memory-mapped files), so hashing uses a
+ * constant amount of memory. Direct and mapped buffers are passed by address
+ * without being copied. The digest length is derived from the
+ * mechanism.</p>
+ *
+ * <p>
+ * When reading a stream or a file fails, the operation is ended on the token
+ * before the exception is thrown, so the session can run a new operation.</p>
+ *
+ * <p>
+ * An instance holds the state of one operation at a time and is not
+ * thread-safe.</p>
+ */
+public class Digester {
+
+    /**
+     * Default amount of data sent to the token per update call.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    /* size of the file regions mapped at once */
+    private static final long MAPPING_WINDOW = 64L * 1024 * 1024;
+
+    /* largest digest produced by the usual hash mechanisms (SHA-512) */
+    static final int MAX_DIGEST_LEN = 64;
+
+    private final PKCS11 p11;
+    private final byte[] chunk;
+
+    private long hSession;
+    private CK_MECHANISM mechanism;
+    private int digestLen;
+    private boolean active;
+
+    /**
+     * Creates a digester using the default chunk size.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     */
+    public Digester(PKCS11 p11) {
+        this(p11, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates a digester.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param chunkSize Amount of data sent to the token per update call.
+     */
+    public Digester(PKCS11 p11, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        this.p11 = p11;
+        this.chunk = new byte[chunkSize];
+    }
+
+    /**
+     * Returns the length of the digest produced by a hash mechanism.
+     *
+     * @param mechanism The hashing mechanism (e.g., CKM_SHA256).
+     * @return The digest length in bytes, or -1 if the mechanism is unknown.
+     */
+    public static int digestLength(long mechanism) {
+        if (mechanism == PKCS11Constants.CKM_MD5) {
+            return 16;
+        } else if (mechanism == PKCS11Constants.CKM_SHA_1) {
+            return 20;
+        } else if (mechanism == PKCS11Constants.CKM_SHA224 || mechanism == PKCS11Constants.CKM_SHA512_224
+                || mechanism == PKCS11Constants.CKM_SHA3_224) {
+            return 28;
+        } else if (mechanism == PKCS11Constants.CKM_SHA256 || mechanism == PKCS11Constants.CKM_SHA512_256
+                || mechanism == PKCS11Constants.CKM_SHA3_256) {
+            return 32;
+        } else if (mechanism == PKCS11Constants.CKM_SHA384 || mechanism == PKCS11Constants.CKM_SHA3_384) {
+            return 48;
+        } else if (mechanism == PKCS11Constants.CKM_SHA512 || mechanism == PKCS11Constants.CKM_SHA3_512) {
+            return 64;
+        }
+        return -1;
+    }
+
+    /**
+     * Starts a digest operation.
+     *
+     * @param hSession Handle to the active PKCS#11 session.
+     * @param hashMech The hashing mechanism to use (e.g., CKM_SHA256).
+     * @throws PKCS11Exception If the operation cannot be initialized.
+     */
+    public void init(long hSession, CK_MECHANISM hashMech) throws PKCS11Exception {
+        CryptokiMetrics.run("C_DigestInit", hashMech, hSession, () -> digestInit(hSession, hashMech));
+        this.hSession = hSession;
+        this.mechanism = hashMech;
+        this.digestLen = digestLength(hashMech.mechanism);
+        this.active = true;
+    }
+
+    /**
+     * Adds data to the digest.
+     *
+     * @param data Input buffer.
+     * @param off Offset of the data.
+     * @param len Length of the data.
+     * @throws PKCS11Exception If the token rejects the data.
+     */
+    public void update(byte[] data, int off, int len) throws PKCS11Exception {
+        checkActive();
+        while (len > 0) {
+            int n = Math.min(len, chunk.length);
+            updateChunk(0L, data, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Adds data to the digest.
+     *
+     * @param data Data to hash.
+     * @throws PKCS11Exception If the token rejects the data.
+     */
+    public void update(byte[] data) throws PKCS11Exception {
+        update(data, 0, data.length);
+    }
+
+    /**
+     * Adds the remaining content of a buffer to the digest. The buffer
+     * position is moved to its limit.
+     *
+     * @param buffer Data to hash, e.g. a region of a memory-mapped file.
+     * @throws PKCS11Exception If the token rejects the data.
+     */
+    public void update(ByteBuffer buffer) throws PKCS11Exception {
+        checkActive();
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+        if (buffer.isDirect()) {
+            /* handed over by address, e.g. straight from a mapped file */
+            try {
+                while (buffer.hasRemaining()) {
+                    int n = Math.min(buffer.remaining(), chunk.length);
+                    updateChunk(Utils.address(buffer), null, 0, n);
+                    buffer.position(buffer.position() + n);
+                }
+            } finally {
+                Reference.reachabilityFence(buffer);
+            }
+            return;
+        }
+        while (buffer.hasRemaining()) {
+            int n = Math.min(buffer.remaining(), chunk.length);
+            buffer.get(chunk, 0, n);
+            updateChunk(0L, chunk, 0, n);
+        }
+    }
+
+    /**
+     * Adds the whole content of a stream to the digest.
+     *
+     * @param in Data to hash.
+     * @throws IOException If reading fails; the operation is then ended.
+     * @throws PKCS11Exception If the token rejects the data.
+     */
+    public void update(InputStream in) throws IOException, PKCS11Exception {
+        checkActive();
+        try {
+            int read;
+            while ((read = in.readNBytes(chunk, 0, chunk.length)) > 0) {
+                updateChunk(0L, chunk, 0, read);
+            }
+        } catch (IOException | RuntimeException ex) {
+            abort();
+            throw ex;
+        }
+    }
+
+    /**
+     * Adds the content of a file to the digest. The file is memory-mapped one
+     * window at a time, so files of any size can be hashed.
+     *
+     * @param file File to hash.
+     * @throws IOException If the file cannot be read; the operation is then
+     * ended.
+     * @throws PKCS11Exception If the token rejects the data.
+     */
+    public void update(Path file) throws IOException, PKCS11Exception {
+        checkActive();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long pos = 0; pos < size; pos += MAPPING_WINDOW) {
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAPPING_WINDOW, size - pos));
+                /* page the window in first, so the file I/O is not timed as token work */
+                window.load();
+                update(window);
+            }
+        } catch (IOException | RuntimeException ex) {
+            abort();
+            throw ex;
+        }
+    }
+
+    /**
+     * Completes the operation.
+     *
+     * @return The computed digest.
+     * @throws PKCS11Exception If the token cannot complete the operation.
+     */
+    public byte[] digest() throws PKCS11Exception {
+        checkActive();
+        active = false;
+        byte[] hash = new byte[digestLen > 0 ? digestLen : MAX_DIGEST_LEN];
+        int n = CryptokiMetrics.call("C_DigestFinal", mechanism, hSession, () -> digestFinal(hSession, hash, 0, hash.length));
+        return n == hash.length ? hash : Arrays.copyOf(hash, n);
+    }
+
+    /**
+     * Completes the operation into a caller-supplied array.
+     *
+     * @param out Buffer receiving the digest.
+     * @param off Offset in {@code out}.
+     * @return The number of bytes written.
+     * @throws PKCS11Exception If the token cannot complete the operation, or
+     * the buffer is too small.
+     */
+    public int digest(byte[] out, int off) throws PKCS11Exception {
+        checkActive();
+        active = false;
+        return CryptokiMetrics.call("C_DigestFinal", mechanism, hSession, () -> digestFinal(hSession, out, off, out.length - off));
+    }
+
+    /**
+     * Ends the current operation, if any, and discards its result, so that
+     * the session can start another one. Token errors are ignored.
+     */
+    public void abort() {
+        if (!active) {
+            return;
+        }
+        active = false;
+        byte[] scratch = new byte[MAX_DIGEST_LEN];
+        try {
+            CryptokiMetrics.call("C_DigestFinal", mechanism, hSession, () -> digestFinal(hSession, scratch, 0, scratch.length));
+        } catch (PKCS11Exception ex) {
+            /* the operation is over either way */
+        }
+    }
+
+    /**
+     * The length of the digest being computed, or -1 if unknown until the
+     * operation completes.
+     */
+    public int digestLength() {
+        return digestLen;
+    }
+
+    private void updateChunk(long address, byte[] data, int off, int len) throws PKCS11Exception {
+        CryptokiMetrics.run("C_DigestUpdate", mechanism, hSession, () -> digestUpdate(hSession, address, data, off, len));
+    }
+
+    /* the token calls, package-private so tests can run without a token */
+    void digestInit(long hSession, CK_MECHANISM hashMech) throws PKCS11Exception {
+        p11.C_DigestInit(hSession, hashMech);
+    }
+
+    void digestUpdate(long hSession, long address, byte[] data, int off, int len) throws PKCS11Exception {
+        p11.C_DigestUpdate(hSession, address, data, off, len);
+    }
+
+    int digestFinal(long hSession, byte[] out, int off, int len) throws PKCS11Exception {
+        return p11.C_DigestFinal(hSession, out, off, len);
+    }
+
+    private void checkActive() {
+        if (!active) {
+            throw new IllegalStateException("No digest operation in progress");
+        }
+    }
+}
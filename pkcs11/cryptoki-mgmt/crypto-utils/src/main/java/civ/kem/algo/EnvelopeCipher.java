@@ -0,0 +1,375 @@
+package civ.kem.algo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+
+/**
+ * Envelope encryption: data is encrypted in the JVM with AES-GCM under a
+ * fresh data key (DEK), and only the DEK wrapped by a key encryption key
+ * (KEK) held on the token is stored with it.
+ *
+ * <p>
+ * The token generates the DEK bytes, wraps the DEK with the KEK and unwraps
+ * it again on decryption; the KEK never leaves the token. The bulk of the
+ * data does not go through the token, so the throughput is that of the JVM
+ * AES-GCM implementation (AES-NI and CLMUL intrinsics on x86).</p>
+ *
+ * <p>
+ * Container layout, all integers big-endian:</p>
+ * <pre>
+ * "PKE1"                  magic
+ * u8    version           1
+ * u64   wrap mechanism    e.g. CKM_AES_KEY_WRAP
+ * u16   n, byte[n]        label of the KEK (may be empty)
+ * u16   n, byte[n]        wrapped DEK
+ * u32   segment size      plaintext bytes per segment
+ * byte[7] nonce prefix    random
+ * segments                AES-GCM ciphertext and 16 byte tag each
+ * </pre>
+ * <p>
+ * The plaintext is cut into segments encrypted separately, so streams of
+ * any length are processed in constant memory. The nonce of a segment is the
+ * prefix, the segment index (u32) and a byte set to 1 for the last segment
+ * only; the header is the associated data of every segment. Reordered,
+ * truncated or extended containers therefore fail authentication. Before
+ * that, the wrap mechanism of a container must be the one the cipher was
+ * created with, and its segment size at most {@link #MAX_SEGMENT_SIZE}.</p>
+ *
+ * <p>
+ * Instances are thread-safe.</p>
+ */
+public class EnvelopeCipher {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+
+    /**
+     * Largest segment size written or accepted; the segment size of a
+     * container sizes the decryption buffers before anything is
+     * authenticated.
+     */
+    public static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final byte[] MAGIC = "PKE1".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int NONCE_PREFIX_LENGTH = 7;
+    private static final int TAG_LENGTH = 16;
+    private static final int DEK_LENGTH = 32;
+
+    private final SessionPool pool;
+    private final CK_ATTRIBUTE[] kekTemplate;
+    private final CK_MECHANISM wrapMech;
+    private final byte[] kekLabel;
+    private final int segmentSize;
+    private volatile RandomPool randomPool;
+
+    /**
+     * Creates a cipher wrapping its data keys with {@code CKM_AES_KEY_WRAP}.
+     *
+     * @param pool Pool of sessions on the slot holding the KEK.
+     * @param kekTemplate Template of the KEK (e.g., label and class).
+     */
+    public EnvelopeCipher(SessionPool pool, CK_ATTRIBUTE[] kekTemplate) {
+        this(pool, kekTemplate, new CK_MECHANISM(PKCS11Constants.CKM_AES_KEY_WRAP), DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Creates a cipher.
+     *
+     * @param pool Pool of sessions on the slot holding the KEK.
+     * @param kekTemplate Template of the KEK (e.g., label and class).
+     * @param wrapMech The mechanism wrapping the data keys; the only one
+     * accepted in the containers decrypted.
+     * @param segmentSize Plaintext bytes per segment, at most
+     * {@link #MAX_SEGMENT_SIZE}.
+     */
+    public EnvelopeCipher(SessionPool pool, CK_ATTRIBUTE[] kekTemplate, CK_MECHANISM wrapMech, int segmentSize) {
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Segment size must be between 1 and " + MAX_SEGMENT_SIZE + ": " + segmentSize);
+        }
+        this.pool = pool;
+        this.kekTemplate = kekTemplate;
+        this.wrapMech = wrapMech;
+        this.segmentSize = segmentSize;
+        byte[] label = new byte[0];
+        for (CK_ATTRIBUTE attr : kekTemplate) {
+            if (attr.type == PKCS11Constants.CKA_LABEL && attr.pValue instanceof byte[]) {
+                label = (byte[]) attr.pValue;
+            }
+        }
+        this.kekLabel = label;
+    }
+
+    /**
+     * Draws the data keys and nonces from a random pool instead of one
+     * {@code C_GenerateRandom} call each.
+     */
+    public void setRandomPool(RandomPool randomPool) {
+        this.randomPool = randomPool;
+    }
+
+    /**
+     * Encrypts a byte array into a container.
+     *
+     * @param plaintext The data to encrypt.
+     * @return The container.
+     * @throws Exception If the data key cannot be generated or wrapped.
+     */
+    public byte[] encrypt(byte[] plaintext) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(plaintext.length + 256
+                + (plaintext.length / segmentSize + 1) * TAG_LENGTH);
+        encrypt(new ByteArrayInputStream(plaintext), out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Decrypts a container into a byte array.
+     *
+     * @param container The container.
+     * @return The decrypted data.
+     * @throws Exception If the data key cannot be unwrapped or the container
+     * fails authentication.
+     */
+    public byte[] decrypt(byte[] container) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(container.length);
+        decrypt(new ByteArrayInputStream(container), out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Encrypts a stream into a container.
+     *
+     * @param in The data to encrypt; read to its end, not closed.
+     * @param out Receives the container; not closed.
+     * @return The number of plaintext bytes encrypted.
+     * @throws Exception If the data key cannot be generated or wrapped, or on
+     * an I/O error.
+     */
+    public long encrypt(InputStream in, OutputStream out) throws Exception {
+        byte[] dek = random(DEK_LENGTH);
+        try {
+            byte[] wrappedDek = wrap(dek);
+            byte[] header = header(wrappedDek, random(NONCE_PREFIX_LENGTH));
+            out.write(header);
+
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            SecretKeySpec key = new SecretKeySpec(dek, "AES");
+            byte[] prefix = Arrays.copyOfRange(header, header.length - NONCE_PREFIX_LENGTH, header.length);
+            byte[] current = new byte[segmentSize];
+            byte[] next = new byte[segmentSize];
+            byte[] output = new byte[segmentSize + TAG_LENGTH];
+
+            long total = 0;
+            int length = in.readNBytes(current, 0, segmentSize);
+            for (int index = 0;; index++) {
+                /* a segment is the last one when nothing follows it */
+                int nextLength = length == segmentSize ? in.readNBytes(next, 0, segmentSize) : 0;
+                boolean last = nextLength == 0;
+                cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce(prefix, index, last)));
+                cipher.updateAAD(header);
+                int n = cipher.doFinal(current, 0, length, output, 0);
+                out.write(output, 0, n);
+                total += length;
+                if (last) {
+                    break;
+                }
+                byte[] swap = current;
+                current = next;
+                next = swap;
+                length = nextLength;
+            }
+            Arrays.fill(current, (byte) 0);
+            Arrays.fill(next, (byte) 0);
+            return total;
+        } finally {
+            Arrays.fill(dek, (byte) 0);
+        }
+    }
+
+    /**
+     * Decrypts a container. Plaintext is written segment by segment, once
+     * each segment is authenticated; when an error is reported, the output
+     * already written must be discarded.
+     *
+     * @param in The container; read to its end, not closed.
+     * @param out Receives the decrypted data; not closed.
+     * @return The number of plaintext bytes decrypted.
+     * @throws Exception If the data key cannot be unwrapped, the container is
+     * malformed or fails authentication, or on an I/O error.
+     */
+    public long decrypt(InputStream in, OutputStream out) throws Exception {
+        PushbackInputStream input = new PushbackInputStream(in, 1);
+        DataInputStream data = new DataInputStream(input);
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+
+        byte[] magic = readFully(data, MAGIC.length);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not an envelope container");
+        }
+        header.write(magic);
+        int version = data.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported container version: " + version);
+        }
+        header.writeByte(version);
+        long mechanism = data.readLong();
+        if (mechanism != wrapMech.mechanism) {
+            /* the header is not authenticated yet: never let it pick the unwrap mechanism */
+            throw new GeneralSecurityException(String.format("Unexpected wrap mechanism 0x%08X", mechanism));
+        }
+        header.writeLong(mechanism);
+        byte[] label = readFully(data, data.readUnsignedShort());
+        header.writeShort(label.length);
+        header.write(label);
+        if (label.length > 0 && kekLabel.length > 0 && !Arrays.equals(label, kekLabel)) {
+            throw new GeneralSecurityException("Container sealed under KEK "
+                    + new String(label, StandardCharsets.UTF_8) + ", not " + new String(kekLabel, StandardCharsets.UTF_8));
+        }
+        byte[] wrappedDek = readFully(data, data.readUnsignedShort());
+        header.writeShort(wrappedDek.length);
+        header.write(wrappedDek);
+        int segment = data.readInt();
+        if (segment <= 0 || segment > MAX_SEGMENT_SIZE) {
+            throw new IOException("Invalid segment size: " + segment);
+        }
+        header.writeInt(segment);
+        byte[] prefix = readFully(data, NONCE_PREFIX_LENGTH);
+        header.write(prefix);
+        byte[] aad = headerBytes.toByteArray();
+
+        byte[] dek = unwrap(wrappedDek);
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            SecretKeySpec key = new SecretKeySpec(dek, "AES");
+            byte[] input0 = new byte[segment + TAG_LENGTH];
+            byte[] output = new byte[segment + TAG_LENGTH];
+
+            long total = 0;
+            for (int index = 0;; index++) {
+                int length = input.readNBytes(input0, 0, input0.length);
+                if (length < TAG_LENGTH) {
+                    throw new EOFException("Truncated container");
+                }
+                int peek = length == input0.length ? input.read() : -1;
+                boolean last = peek < 0;
+                if (!last) {
+                    input.unread(peek);
+                }
+                cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce(prefix, index, last)));
+                cipher.updateAAD(aad);
+                int n = cipher.doFinal(input0, 0, length, output, 0);
+                out.write(output, 0, n);
+                Arrays.fill(output, 0, n, (byte) 0);
+                total += n;
+                if (last) {
+                    return total;
+                }
+            }
+        } finally {
+            Arrays.fill(dek, (byte) 0);
+        }
+    }
+
+    private byte[] header(byte[] wrappedDek, byte[] prefix) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.write(MAGIC);
+        header.writeByte(VERSION);
+        header.writeLong(wrapMech.mechanism);
+        header.writeShort(kekLabel.length);
+        header.write(kekLabel);
+        header.writeShort(wrappedDek.length);
+        header.write(wrappedDek);
+        header.writeInt(segmentSize);
+        header.write(prefix);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] nonce(byte[] prefix, int index, boolean last) {
+        return ByteBuffer.allocate(NONCE_PREFIX_LENGTH + 5)
+                .put(prefix)
+                .putInt(index)
+                .put((byte) (last ? 1 : 0))
+                .array();
+    }
+
+    private static byte[] readFully(DataInputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /* package-private so tests can run without a token */
+    byte[] random(int length) throws Exception {
+        RandomPool current = randomPool;
+        if (current != null) {
+            return current.nextBytes(length);
+        }
+        byte[] bytes = new byte[length];
+        pool.execute(hSession -> {
+            Random.generateRandomData(pool.getP11(), hSession, bytes, length);
+            return null;
+        });
+        return bytes;
+    }
+
+    /* imports the DEK as a session object only for the time of the wrap */
+    byte[] wrap(byte[] dek) throws Exception {
+        return pool.execute(hSession -> {
+            PKCS11 p11 = pool.getP11();
+            long hKek = ManageObjects.find(p11, hSession, kekTemplate, pool.getHandleCache());
+            CK_ATTRIBUTE[] template = {
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_CLASS, PKCS11Constants.CKO_SECRET_KEY),
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_KEY_TYPE, PKCS11Constants.CKK_AES),
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_TOKEN, PKCS11Constants.FALSE),
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_EXTRACTABLE, PKCS11Constants.TRUE),
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_VALUE, dek),};
+            long hDek = ManageObjects.create(p11, hSession, template, null);
+            try {
+                return ManageObjects.wrapKey(p11, hSession, wrapMech, hKek, hDek);
+            } finally {
+                ManageObjects.delete(p11, hSession, hDek);
+            }
+        });
+    }
+
+    byte[] unwrap(byte[] wrappedDek) throws Exception {
+        return pool.execute(hSession -> {
+            PKCS11 p11 = pool.getP11();
+            CK_ATTRIBUTE[] template = {
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_CLASS, PKCS11Constants.CKO_SECRET_KEY),
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_KEY_TYPE, PKCS11Constants.CKK_AES),
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_TOKEN, PKCS11Constants.FALSE),
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_SENSITIVE, PKCS11Constants.FALSE),
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_EXTRACTABLE, PKCS11Constants.TRUE),};
+            long hDek = ManageObjects.unWrapKey(p11, hSession, wrapMech, kekTemplate, wrappedDek, template, pool.getHandleCache());
+            try {
+                CK_ATTRIBUTE[] value = {new CK_ATTRIBUTE(PKCS11Constants.CKA_VALUE)};
+                CryptokiMetrics.run("C_GetAttributeValue", null, hSession, () -> p11.C_GetAttributeValue(hSession, hDek, value));
+                return value[0].getByteArray();
+            } finally {
+                ManageObjects.delete(p11, hSession, hDek);
+            }
+        });
+    }
+}
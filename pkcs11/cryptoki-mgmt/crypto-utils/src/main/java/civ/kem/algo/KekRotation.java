@@ -0,0 +1,390 @@
+package civ.kem.algo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+
+/**
+ * Rotates the key encryption key (KEK) of stored wrapped keys: every key is
+ * unwrapped under the old KEK and wrapped again under the new one, without
+ * leaving the token.
+ *
+ * <p>
+ * Wrapped keys are read from a file of records, each a big-endian
+ * {@code u32} length followed by the wrapped key, and written in the same
+ * format and order to the output file. The input is memory-mapped; the output
+ * is only appended to.</p>
+ *
+ * <p>
+ * Records are processed in batches, each spread over the sessions of the
+ * pool. A batch is appended to the output and forced to disk, then the
+ * checkpoint file is replaced by
+ * {@code records,inputOffset,outputOffset,inputSize,inputSha256,outputSha256},
+ * the digests covering the input and output up to the offsets. The new
+ * checkpoint is forced to disk before it replaces the previous one. When a
+ * run is restarted with the same files, the input size and both digests are
+ * checked, the output is truncated to the last checkpoint and the rotation
+ * resumes after it; a finished rotation is not run again. A checkpoint that
+ * does not match the files stops the run. Record {@code i} of the output is always the rewrapped
+ * record {@code i} of the input.</p>
+ *
+ * <p>
+ * A record that cannot be rewrapped stops the run before its batch is
+ * written, so a rotation never skips a key.</p>
+ */
+public class KekRotation {
+
+    public static final int DEFAULT_BATCH_SIZE = 4096;
+
+    /* largest region of the input mapped at once */
+    private static final long MAP_WINDOW = 256L * 1024 * 1024;
+
+    /**
+     * Receives the progress of a run.
+     */
+    @FunctionalInterface
+    public interface ProgressListener {
+
+        void onProgress(long completed, long total, double keysPerSecond);
+    }
+
+    private final SessionPool pool;
+    private final CK_MECHANISM oldMech;
+    private final CK_ATTRIBUTE[] oldKekTemplate;
+    private final CK_MECHANISM newMech;
+    private final CK_ATTRIBUTE[] newKekTemplate;
+    private final CK_ATTRIBUTE[] keyTemplate;
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+    private volatile ProgressListener listener;
+
+    private final AtomicLong completed = new AtomicLong();
+    private volatile long total;
+    private volatile long skipped;
+    private volatile long startNanos;
+    private volatile long endNanos;
+
+    /**
+     * Creates a rotation job.
+     *
+     * @param pool Pool of sessions on the slot holding both KEKs.
+     * @param oldMech The mechanism the keys are wrapped with.
+     * @param oldKekTemplate Template of the old KEK.
+     * @param newMech The mechanism to wrap the keys with.
+     * @param newKekTemplate Template of the new KEK.
+     * @param keyTemplate Template of the keys while unwrapped (e.g., class and
+     * key type); CKA_TOKEN is forced to false and CKA_EXTRACTABLE to true.
+     */
+    public KekRotation(SessionPool pool, CK_MECHANISM oldMech, CK_ATTRIBUTE[] oldKekTemplate,
+            CK_MECHANISM newMech, CK_ATTRIBUTE[] newKekTemplate, CK_ATTRIBUTE[] keyTemplate) {
+        this.pool = pool;
+        this.oldMech = oldMech;
+        this.oldKekTemplate = oldKekTemplate;
+        this.newMech = newMech;
+        this.newKekTemplate = newKekTemplate;
+
+        List<CK_ATTRIBUTE> template = new ArrayList<>();
+        for (CK_ATTRIBUTE attr : keyTemplate) {
+            if (attr.type != PKCS11Constants.CKA_TOKEN && attr.type != PKCS11Constants.CKA_EXTRACTABLE) {
+                template.add(attr);
+            }
+        }
+        template.add(new CK_ATTRIBUTE(PKCS11Constants.CKA_TOKEN, false));
+        template.add(new CK_ATTRIBUTE(PKCS11Constants.CKA_EXTRACTABLE, true));
+        this.keyTemplate = template.toArray(new CK_ATTRIBUTE[0]);
+    }
+
+    /**
+     * Sets the number of records written between two checkpoints.
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets the listener notified after every batch.
+     */
+    public void setListener(ProgressListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Rewraps the keys of a record file.
+     *
+     * @param input The records wrapped under the old KEK.
+     * @param output The records wrapped under the new KEK.
+     * @param checkpoint File recording the progress, or {@code null} for runs
+     * that cannot be resumed.
+     * @return The number of keys rewrapped by this run.
+     * @throws Exception If a file cannot be read or written, or a key cannot
+     * be rewrapped.
+     */
+    public long rotate(Path input, Path output, Path checkpoint) throws Exception {
+        String[] resume = readCheckpoint(checkpoint);
+        long records = resume != null ? Long.parseLong(resume[0]) : 0;
+        long inputOffset = resume != null ? Long.parseLong(resume[1]) : 0;
+        long outputOffset = resume != null ? Long.parseLong(resume[2]) : 0;
+
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long inputSize = in.size();
+            MessageDigest inputDigest = MessageDigest.getInstance("SHA-256");
+            MessageDigest outputDigest = MessageDigest.getInstance("SHA-256");
+            if (resume != null) {
+                /* the offsets only mean something for the files the checkpoint was written for */
+                if (Long.parseLong(resume[3]) != inputSize || inputOffset > inputSize) {
+                    throw new IOException("Input size does not match its checkpoint: " + input);
+                }
+                if (out.size() < outputOffset) {
+                    throw new IOException("Output shorter than its checkpoint: " + output);
+                }
+                if (!digest(in, inputOffset, inputDigest).equals(resume[4])) {
+                    throw new IOException("Input does not match its checkpoint: " + input);
+                }
+                if (!digest(out, outputOffset, outputDigest).equals(resume[5])) {
+                    throw new IOException("Output does not match its checkpoint: " + output);
+                }
+            }
+            total = records + new RecordReader(in).count(inputOffset);
+            skipped = records;
+            completed.set(0);
+            startNanos = System.nanoTime();
+            endNanos = 0;
+
+            /* drop what was written after the last checkpoint */
+            out.truncate(outputOffset);
+            out.position(outputOffset);
+
+            int parallelism = Math.max(1, pool.getMaxSize());
+            ExecutorService executor = ParallelSessions.newDaemonPool(parallelism, "kek-rotation-" + pool.getSlotId());
+            try {
+                RecordReader reader = new RecordReader(in);
+                while (inputOffset < inputSize) {
+                    List<byte[]> batch = new ArrayList<>(batchSize);
+                    while (batch.size() < batchSize && inputOffset < inputSize) {
+                        byte[] wrappedKey = reader.read(inputOffset);
+                        batch.add(wrappedKey);
+                        inputDigest.update(ByteBuffer.allocate(Integer.BYTES).putInt(0, wrappedKey.length).array());
+                        inputDigest.update(wrappedKey);
+                        inputOffset += Integer.BYTES + wrappedKey.length;
+                    }
+
+                    byte[][] rewrapped = rewrap(executor, parallelism, batch);
+                    int size = 0;
+                    for (byte[] key : rewrapped) {
+                        size += Integer.BYTES + key.length;
+                    }
+                    ByteBuffer buffer = ByteBuffer.allocate(size);
+                    for (byte[] key : rewrapped) {
+                        buffer.putInt(key.length).put(key);
+                    }
+                    buffer.flip();
+                    outputDigest.update(buffer.duplicate());
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    out.force(false);
+                    outputOffset = out.position();
+                    records += batch.size();
+                    if (checkpoint != null) {
+                        writeCheckpoint(checkpoint, records + "," + inputOffset + "," + outputOffset + "," + inputSize
+                                + "," + hex(inputDigest) + "," + hex(outputDigest));
+                    }
+
+                    completed.addAndGet(batch.size());
+                    notifyListener();
+                }
+            } finally {
+                executor.shutdownNow();
+                endNanos = System.nanoTime();
+            }
+        }
+        return completed.get();
+    }
+
+    private byte[][] rewrap(ExecutorService executor, int parallelism, List<byte[]> batch) throws Exception {
+        byte[][] rewrapped = new byte[batch.size()][];
+        ParallelSessions.WorkQueue queue = new ParallelSessions.WorkQueue(batch.size());
+        for (int w = 0; w < Math.min(parallelism, batch.size()); w++) {
+            queue.start(executor, pool, (hSession, i) -> rewrapped[i] = rewrap(hSession, batch.get(i)));
+        }
+        queue.await();
+        return rewrapped;
+    }
+
+    private byte[] rewrap(long hSession, byte[] wrappedKey) throws Exception {
+        PKCS11 p11 = pool.getP11();
+        long hOldKek = ManageObjects.find(p11, hSession, oldKekTemplate, pool.getHandleCache());
+        long hNewKek = ManageObjects.find(p11, hSession, newKekTemplate, pool.getHandleCache());
+        /* the key only lives for this call: no cached search can need it */
+        long hKey = ManageObjects.unWrapKey(p11, hSession, oldMech, hOldKek, wrappedKey, keyTemplate);
+        try {
+            return ManageObjects.wrapKey(p11, hSession, newMech, hNewKek, hKey);
+        } finally {
+            ManageObjects.delete(p11, hSession, hKey);
+        }
+    }
+
+    /* reads the records through a memory-mapped window sliding over the input */
+    private static final class RecordReader {
+
+        final FileChannel in;
+        final long size;
+        MappedByteBuffer window;
+        long windowStart;
+
+        RecordReader(FileChannel in) throws IOException {
+            this.in = in;
+            this.size = in.size();
+        }
+
+        long length(long offset) throws IOException {
+            cover(offset, Integer.BYTES);
+            long length = Integer.toUnsignedLong(window.getInt((int) (offset - windowStart)));
+            if (offset + Integer.BYTES + length > size) {
+                throw new IOException("Truncated record at offset " + offset);
+            }
+            return length;
+        }
+
+        byte[] read(long offset) throws IOException {
+            byte[] record = new byte[(int) length(offset)];
+            cover(offset, Integer.BYTES + record.length);
+            window.get((int) (offset - windowStart + Integer.BYTES), record);
+            return record;
+        }
+
+        long count(long offset) throws IOException {
+            long count = 0;
+            while (offset < size) {
+                offset += Integer.BYTES + length(offset);
+                count++;
+            }
+            return count;
+        }
+
+        private void cover(long offset, long length) throws IOException {
+            if (offset + length > size) {
+                throw new IOException("Truncated record at offset " + offset);
+            }
+            if (window == null || offset < windowStart || offset + length > windowStart + window.capacity()) {
+                windowStart = offset;
+                window = in.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(size - offset, Math.max(MAP_WINDOW, length)));
+            }
+        }
+    }
+
+    /* the fields of the checkpoint, or null when there is none */
+    private static String[] readCheckpoint(Path checkpoint) throws IOException {
+        if (checkpoint == null || !Files.exists(checkpoint)) {
+            return null;
+        }
+        String[] fields = Files.readString(checkpoint, StandardCharsets.UTF_8).trim().split(",");
+        if (fields.length != 6) {
+            throw new IOException("Malformed checkpoint: " + checkpoint);
+        }
+        return fields;
+    }
+
+    /* digest of the first length bytes of a file, leaving the digest ready for what follows */
+    private static String digest(FileChannel channel, long length, MessageDigest digest) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        for (long pos = 0; pos < length;) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), length - pos));
+            int n = channel.read(buffer, pos);
+            if (n < 0) {
+                throw new IOException("File shorter than its checkpoint");
+            }
+            buffer.flip();
+            digest.update(buffer);
+            pos += n;
+        }
+        return hex(digest);
+    }
+
+    private static String hex(MessageDigest digest) throws IOException {
+        try {
+            /* a copy, the running digest goes on */
+            return HexFormat.of().formatHex(((MessageDigest) digest.clone()).digest());
+        } catch (CloneNotSupportedException ex) {
+            throw new IOException("Cannot checkpoint " + digest.getAlgorithm(), ex);
+        }
+    }
+
+    private static void writeCheckpoint(Path checkpoint, String fields) throws IOException {
+        /* forced, then replaced atomically, so an interruption leaves the previous checkpoint */
+        Path temp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap((fields + "\n").getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(checkpoint.toAbsolutePath().getParent());
+    }
+
+    /* makes the rename durable; not every platform can open a directory */
+    private static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ex) {
+            /* e.g. on Windows */
+        }
+    }
+
+    private void notifyListener() {
+        ProgressListener current = listener;
+        if (current != null) {
+            current.onProgress(skipped + completed.get(), total, getKeysPerSecond());
+        }
+    }
+
+    /**
+     * Number of records in the input of the current or last run.
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * Number of records found in the checkpoint and not rewrapped again.
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Rewrap rate of the current or last run, in keys per second.
+     */
+    public double getKeysPerSecond() {
+        long end = endNanos != 0 ? endNanos : System.nanoTime();
+        long elapsed = end - startNanos;
+        return elapsed <= 0 ? 0 : completed.get() * 1e9 / elapsed;
+    }
+}
@@ -0,0 +1,392 @@
+package civ.kem.algo;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Generates large numbers of keys described by a manifest (see
+ * {@link KeySpec}), in parallel over the sessions of one or more slots.
+ *
+ * <p>
+ * Every slot gets as many workers as its {@link SessionPool} has sessions;
+ * the workers take the next key to generate from a shared counter, so faster
+ * tokens generate more keys. Each generated key is appended to the checkpoint
+ * file as {@code label,slotId,handle[,handle]}, with {@code %}, {@code ,} and
+ * line breaks of the label percent-encoded. When a run is restarted with the
+ * same manifest and checkpoint, the keys already listed are not generated
+ * again, and the tokens of every slot are searched for the other keys before
+ * generating them: a run interrupted between the generation of a key and its
+ * checkpoint line does not produce duplicates, whichever slot the key is
+ * given to on the next run. Handles are only stable for token
+ * objects, so checkpoints are meant for {@code token=true} keys (the
+ * default).</p>
+ *
+ * <p>
+ * A key that fails is reported through {@link #getFailures()} and left out of
+ * the checkpoint, so that the next run retries it.</p>
+ */
+public class KeyProvisioner {
+
+    /**
+     * Handles of a provisioned key.
+     */
+    public static final class ProvisionedKey {
+
+        private final long slotId;
+        private final long[] handles;
+
+        ProvisionedKey(long slotId, long[] handles) {
+            this.slotId = slotId;
+            this.handles = handles;
+        }
+
+        public long getSlotId() {
+            return slotId;
+        }
+
+        /**
+         * Handle of the secret key, or of the public half of a key pair.
+         */
+        public long getHandle() {
+            return handles[0];
+        }
+
+        /**
+         * Handle of the private half of a key pair, 0 for a secret key.
+         */
+        public long getPrivateHandle() {
+            return handles.length > 1 ? handles[1] : 0L;
+        }
+    }
+
+    /**
+     * Receives the progress of a run.
+     */
+    @FunctionalInterface
+    public interface ProgressListener {
+
+        void onProgress(long completed, long failed, long total);
+    }
+
+    private final List<SessionPool> pools;
+    private final Path checkpoint;
+    private volatile ProgressListener listener;
+    private volatile int progressInterval = 1000;
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private volatile long total;
+    private volatile long startNanos;
+    private volatile long endNanos;
+    private final Map<String, Exception> failures = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a provisioner.
+     *
+     * @param pools Pools of sessions, one per slot receiving keys. The pools
+     * must be logged in as user to create private token objects.
+     * @param checkpoint File recording the generated keys, or {@code null} for
+     * runs that cannot be resumed.
+     */
+    public KeyProvisioner(List<SessionPool> pools, Path checkpoint) {
+        if (pools.isEmpty()) {
+            throw new IllegalArgumentException("No session pool");
+        }
+        this.pools = pools;
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Sets the listener notified every {@code interval} keys, and once at the
+     * end of the run.
+     */
+    public void setListener(ProgressListener listener, int interval) {
+        this.listener = listener;
+        this.progressInterval = Math.max(1, interval);
+    }
+
+    /**
+     * Generates the keys of a manifest file.
+     *
+     * @param manifest Path of the manifest.
+     * @return The keys by label, including those read from the checkpoint.
+     * @throws Exception If the manifest or the checkpoint cannot be read.
+     */
+    public Map<String, ProvisionedKey> provision(Path manifest) throws Exception {
+        return provision(KeySpec.readManifest(manifest));
+    }
+
+    /**
+     * Generates keys.
+     *
+     * @param specs The key specifications.
+     * @return The keys by label, including those read from the checkpoint.
+     * @throws Exception If the checkpoint cannot be read or written.
+     */
+    public Map<String, ProvisionedKey> provision(List<KeySpec> specs) throws Exception {
+        boolean resuming = checkpoint != null && Files.exists(checkpoint);
+        Map<String, ProvisionedKey> keys = new ConcurrentHashMap<>(readCheckpoint());
+
+        /* flatten the manifest into the list of keys still to generate */
+        List<KeySpec> pendingSpecs = new ArrayList<>();
+        List<Integer> pendingIndexes = new ArrayList<>();
+        long count = 0;
+        for (KeySpec spec : specs) {
+            for (int i = 0; i < spec.getCount(); i++) {
+                count++;
+                if (!keys.containsKey(spec.label(i))) {
+                    pendingSpecs.add(spec);
+                    pendingIndexes.add(i);
+                }
+            }
+        }
+
+        total = count;
+        skipped.set(count - pendingSpecs.size());
+        completed.set(0);
+        failed.set(0);
+        failures.clear();
+        startNanos = System.nanoTime();
+        endNanos = 0;
+
+        ParallelSessions.WorkQueue queue = new ParallelSessions.WorkQueue(pendingSpecs.size());
+        List<ExecutorService> executors = new ArrayList<>();
+        try (BufferedWriter out = checkpoint == null ? null
+                : Files.newBufferedWriter(checkpoint, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (SessionPool pool : pools) {
+                int parallelism = Math.min(pool.getMaxSize(), Math.max(1, pendingSpecs.size()));
+                ExecutorService executor = ParallelSessions.newDaemonPool(parallelism, "key-provisioner-" + pool.getSlotId());
+                executors.add(executor);
+                for (int w = 0; w < parallelism; w++) {
+                    queue.start(executor, i -> {
+                        KeySpec spec = pendingSpecs.get(i);
+                        generate(pool, spec, spec.label(pendingIndexes.get(i)), resuming, keys, out);
+                    });
+                }
+            }
+            queue.await();
+        } finally {
+            for (ExecutorService executor : executors) {
+                executor.shutdownNow();
+            }
+            endNanos = System.nanoTime();
+            notifyListener();
+        }
+        return keys;
+    }
+
+    private void generate(SessionPool worker, KeySpec spec, String label, boolean resuming, Map<String, ProvisionedKey> keys,
+            BufferedWriter out) throws IOException {
+        SessionPool pool = worker;
+        long[] handles = null;
+        try {
+            if (resuming && spec.isTokenObject()) {
+                /* one slot at a time: holding a session of one pool while waiting for another could deadlock */
+                for (SessionPool candidate : pools) {
+                    handles = candidate.execute(hSession -> findExisting(candidate, hSession, spec, label));
+                    if (handles != null) {
+                        pool = candidate;
+                        break;
+                    }
+                }
+            }
+            if (handles == null) {
+                handles = worker.execute(hSession -> {
+                    CK_ATTRIBUTE[] publicTemplate = spec.publicTemplate(label);
+                    if (!spec.isKeyPair()) {
+                        return new long[]{CryptokiMetrics.call("C_GenerateKey", spec.mechanism(), hSession,
+                                () -> worker.getP11().C_GenerateKey(hSession, spec.mechanism(), publicTemplate))};
+                    }
+                    return Asymmetric.generateKeyPair(worker.getP11(), hSession, spec.mechanism(), publicTemplate, spec.privateTemplate(label));
+                });
+            }
+        } catch (Exception ex) {
+            failures.put(label, ex);
+            failed.incrementAndGet();
+            progress();
+            return;
+        }
+        /* new objects may match cached searches */
+        pool.getHandleCache().invalidateMatching(spec.publicTemplate(label));
+        if (spec.isKeyPair()) {
+            pool.getHandleCache().invalidateMatching(spec.privateTemplate(label));
+        }
+
+        keys.put(label, new ProvisionedKey(pool.getSlotId(), handles));
+        if (out != null) {
+            StringBuilder line = new StringBuilder(escape(label)).append(',').append(pool.getSlotId());
+            for (long handle : handles) {
+                line.append(',').append(handle);
+            }
+            synchronized (out) {
+                out.write(line.toString());
+                out.newLine();
+                out.flush();
+            }
+        }
+        completed.incrementAndGet();
+        progress();
+    }
+
+    /**
+     * Looks for a key generated by an interrupted run, whose checkpoint line
+     * was not written.
+     *
+     * @return The handles of the key, or {@code null} if it must be
+     * generated.
+     */
+    private static long[] findExisting(SessionPool pool, long hSession, KeySpec spec, String label) throws PKCS11Exception {
+        if (!spec.isKeyPair()) {
+            long hKey = findOne(pool.getP11(), hSession, spec.searchTemplate(label, PKCS11Constants.CKO_SECRET_KEY));
+            return hKey != 0L ? new long[]{hKey} : null;
+        }
+        long hPublicKey = findOne(pool.getP11(), hSession, spec.searchTemplate(label, PKCS11Constants.CKO_PUBLIC_KEY));
+        long hPrivateKey = findOne(pool.getP11(), hSession, spec.searchTemplate(label, PKCS11Constants.CKO_PRIVATE_KEY));
+        if (hPublicKey != 0L && hPrivateKey != 0L) {
+            return new long[]{hPublicKey, hPrivateKey};
+        }
+        /* half a pair cannot be used: replace it */
+        if (hPublicKey != 0L) {
+            ManageObjects.delete(pool.getP11(), hSession, hPublicKey, pool.getHandleCache());
+        }
+        if (hPrivateKey != 0L) {
+            ManageObjects.delete(pool.getP11(), hSession, hPrivateKey, pool.getHandleCache());
+        }
+        return null;
+    }
+
+    private static long findOne(PKCS11 p11, long hSession, CK_ATTRIBUTE[] template) throws PKCS11Exception {
+        long[] found = CryptokiMetrics.call("C_FindObjects", null, hSession, () -> {
+            p11.C_FindObjectsInit(hSession, template);
+            try {
+                return p11.C_FindObjects(hSession, 1);
+            } finally {
+                p11.C_FindObjectsFinal(hSession);
+            }
+        });
+        return found.length > 0 ? found[0] : 0L;
+    }
+
+    private Map<String, ProvisionedKey> readCheckpoint() throws IOException {
+        Map<String, ProvisionedKey> keys = new LinkedHashMap<>();
+        if (checkpoint == null || !Files.exists(checkpoint)) {
+            return keys;
+        }
+        String content = Files.readString(checkpoint, StandardCharsets.UTF_8);
+        /* a last line without its line break was cut by an interruption */
+        int end = content.lastIndexOf('\n') + 1;
+        for (String line : content.substring(0, end).split("\r?\n")) {
+            String[] fields = line.split(",");
+            if (fields.length < 3) {
+                continue;
+            }
+            long[] handles = new long[fields.length - 2];
+            for (int i = 0; i < handles.length; i++) {
+                handles[i] = Long.parseLong(fields[i + 2]);
+            }
+            keys.put(unescape(fields[0]), new ProvisionedKey(Long.parseLong(fields[1]), handles));
+        }
+        return keys;
+    }
+
+    /**
+     * Percent-encodes the characters of a label that would break a
+     * checkpoint line.
+     */
+    static String escape(String label) {
+        StringBuilder escaped = new StringBuilder(label.length());
+        for (int i = 0; i < label.length(); i++) {
+            char c = label.charAt(i);
+            if (c == '%' || c == ',' || c == '\n' || c == '\r') {
+                escaped.append('%').append(String.format("%02X", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    static String unescape(String field) {
+        StringBuilder label = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '%' && i + 2 < field.length()) {
+                label.append((char) Integer.parseInt(field.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else {
+                label.append(c);
+            }
+        }
+        return label.toString();
+    }
+
+    private void progress() {
+        long done = completed.get() + failed.get();
+        if (done % progressInterval == 0) {
+            notifyListener();
+        }
+    }
+
+    private void notifyListener() {
+        ProgressListener current = listener;
+        if (current != null) {
+            current.onProgress(completed.get(), failed.get(), total - skipped.get());
+        }
+    }
+
+    /**
+     * Number of keys in the manifest of the current or last run.
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Number of keys found in the checkpoint and not generated again.
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * Generation rate of the current or last run, in keys per second.
+     */
+    public double getKeysPerSecond() {
+        long end = endNanos != 0 ? endNanos : System.nanoTime();
+        long elapsed = end - startNanos;
+        return elapsed <= 0 ? 0 : completed.get() * 1e9 / elapsed;
+    }
+
+    /**
+     * Errors of the last run, by label.
+     */
+    public Map<String, Exception> getFailures() {
+        return Collections.unmodifiableMap(failures);
+    }
+}
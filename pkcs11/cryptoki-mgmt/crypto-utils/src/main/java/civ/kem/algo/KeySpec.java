@@ -0,0 +1,284 @@
+package civ.kem.algo;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+
+/**
+ * One line of a key provisioning manifest: a number of keys of the same type
+ * and size, labelled after a pattern.
+ *
+ * <p>
+ * Manifest lines read {@code type,size,labelPattern,count[,attribute=value...]}
+ * where</p>
+ * <ul>
+ * <li><i>type</i> is {@code AES}, {@code RSA} or {@code EC};</li>
+ * <li><i>size</i> is the key length in bits, or the curve name for EC keys
+ * ({@code P-256}, {@code P-384}, {@code P-521}, {@code secp256k1});</li>
+ * <li><i>labelPattern</i> is a {@link String#format} pattern receiving the key
+ * index, e.g. {@code device-%06d};</li>
+ * <li>the optional attributes override the boolean defaults of the
+ * templates, e.g. {@code extractable=true} or {@code token=false}.</li>
+ * </ul>
+ * Empty lines and lines starting with {@code #} are ignored. The label is
+ * also used as {@code CKA_ID}, which links the two halves of a key pair.
+ */
+public class KeySpec {
+
+    private static final Map<String, Long> BOOLEAN_ATTRIBUTES = new LinkedHashMap<>();
+    private static final Map<String, byte[]> CURVES = new LinkedHashMap<>();
+
+    static {
+        BOOLEAN_ATTRIBUTES.put("token", PKCS11Constants.CKA_TOKEN);
+        BOOLEAN_ATTRIBUTES.put("private", PKCS11Constants.CKA_PRIVATE);
+        BOOLEAN_ATTRIBUTES.put("sensitive", PKCS11Constants.CKA_SENSITIVE);
+        BOOLEAN_ATTRIBUTES.put("extractable", PKCS11Constants.CKA_EXTRACTABLE);
+        BOOLEAN_ATTRIBUTES.put("modifiable", PKCS11Constants.CKA_MODIFIABLE);
+        BOOLEAN_ATTRIBUTES.put("encrypt", PKCS11Constants.CKA_ENCRYPT);
+        BOOLEAN_ATTRIBUTES.put("decrypt", PKCS11Constants.CKA_DECRYPT);
+        BOOLEAN_ATTRIBUTES.put("sign", PKCS11Constants.CKA_SIGN);
+        BOOLEAN_ATTRIBUTES.put("verify", PKCS11Constants.CKA_VERIFY);
+        BOOLEAN_ATTRIBUTES.put("wrap", PKCS11Constants.CKA_WRAP);
+        BOOLEAN_ATTRIBUTES.put("unwrap", PKCS11Constants.CKA_UNWRAP);
+        BOOLEAN_ATTRIBUTES.put("derive", PKCS11Constants.CKA_DERIVE);
+
+        /* DER encoded OIDs */
+        CURVES.put("P-256", new byte[]{0x06, 0x08, 0x2A, (byte) 0x86, 0x48, (byte) 0xCE, 0x3D, 0x03, 0x01, 0x07});
+        CURVES.put("P-384", new byte[]{0x06, 0x05, 0x2B, (byte) 0x81, 0x04, 0x00, 0x22});
+        CURVES.put("P-521", new byte[]{0x06, 0x05, 0x2B, (byte) 0x81, 0x04, 0x00, 0x23});
+        CURVES.put("secp256k1", new byte[]{0x06, 0x05, 0x2B, (byte) 0x81, 0x04, 0x00, 0x0A});
+    }
+
+    private final String type;
+    private final String size;
+    private final String labelPattern;
+    private final int count;
+    private final Map<Long, Boolean> overrides;
+
+    /**
+     * Creates a key specification.
+     *
+     * @param type The key type: AES, RSA or EC.
+     * @param size The key length in bits, or the curve name for EC keys.
+     * @param labelPattern Pattern of the labels, receiving the key index.
+     * @param count Number of keys.
+     * @param overrides Boolean attributes overriding the template defaults.
+     */
+    public KeySpec(String type, String size, String labelPattern, int count, Map<Long, Boolean> overrides) {
+        this.type = type.toUpperCase(Locale.ROOT);
+        this.size = size;
+        this.labelPattern = labelPattern;
+        this.count = count;
+        this.overrides = overrides;
+
+        if (!this.type.equals("AES") && !this.type.equals("RSA") && !this.type.equals("EC")) {
+            throw new IllegalArgumentException("Unsupported key type: " + type);
+        }
+        if (this.type.equals("EC") && !CURVES.containsKey(size)) {
+            throw new IllegalArgumentException("Unsupported curve: " + size);
+        }
+        if (count <= 0) {
+            throw new IllegalArgumentException("Key count must be positive: " + count);
+        }
+        if (count > 1 && !labelPattern.contains("%")) {
+            throw new IllegalArgumentException("Label pattern has no index placeholder: " + labelPattern);
+        }
+    }
+
+    /**
+     * Parses a manifest line.
+     *
+     * @param line The manifest line.
+     * @return The key specification.
+     * @throws IllegalArgumentException If the line is malformed.
+     */
+    public static KeySpec parse(String line) {
+        String[] fields = line.trim().split("\\s*,\\s*");
+        if (fields.length < 4) {
+            throw new IllegalArgumentException("Expected type,size,labelPattern,count: " + line);
+        }
+        Map<Long, Boolean> overrides = new LinkedHashMap<>();
+        for (int i = 4; i < fields.length; i++) {
+            String[] pair = fields[i].split("=", 2);
+            Long attribute = BOOLEAN_ATTRIBUTES.get(pair[0].toLowerCase(Locale.ROOT));
+            if (attribute == null || pair.length != 2) {
+                throw new IllegalArgumentException("Unsupported attribute: " + fields[i]);
+            }
+            overrides.put(attribute, Boolean.parseBoolean(pair[1]));
+        }
+        return new KeySpec(fields[0], fields[1], fields[2], Integer.parseInt(fields[3]), overrides);
+    }
+
+    /**
+     * Reads a manifest file.
+     *
+     * @param manifest Path of the manifest.
+     * @return The key specifications, in the order of the file.
+     * @throws IOException If the file cannot be read.
+     */
+    public static List<KeySpec> readManifest(Path manifest) throws IOException {
+        List<KeySpec> specs = new ArrayList<>();
+        for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+            if (!line.isBlank() && !line.trim().startsWith("#")) {
+                specs.add(parse(line));
+            }
+        }
+        return specs;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getSize() {
+        return size;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public boolean isKeyPair() {
+        return !type.equals("AES");
+    }
+
+    /**
+     * Returns the label of a key.
+     *
+     * @param index Index of the key, from 0 to {@code count - 1}.
+     * @return The label.
+     */
+    public String label(int index) {
+        return String.format(Locale.ROOT, labelPattern, index);
+    }
+
+    CK_MECHANISM mechanism() {
+        switch (type) {
+            case "AES":
+                return new CK_MECHANISM(PKCS11Constants.CKM_AES_KEY_GEN);
+            case "RSA":
+                return new CK_MECHANISM(PKCS11Constants.CKM_RSA_PKCS_KEY_PAIR_GEN);
+            default:
+                return new CK_MECHANISM(PKCS11Constants.CKM_EC_KEY_PAIR_GEN);
+        }
+    }
+
+    /**
+     * Template of the secret key, or of the public half of a key pair.
+     */
+    CK_ATTRIBUTE[] publicTemplate(String label) {
+        Map<Long, Object> attrs = common(label);
+        switch (type) {
+            case "AES":
+                attrs.put(PKCS11Constants.CKA_CLASS, PKCS11Constants.CKO_SECRET_KEY);
+                attrs.put(PKCS11Constants.CKA_KEY_TYPE, PKCS11Constants.CKK_AES);
+                attrs.put(PKCS11Constants.CKA_VALUE_LEN, Integer.parseInt(size) / 8);
+                attrs.put(PKCS11Constants.CKA_PRIVATE, true);
+                attrs.put(PKCS11Constants.CKA_SENSITIVE, true);
+                attrs.put(PKCS11Constants.CKA_EXTRACTABLE, false);
+                attrs.put(PKCS11Constants.CKA_ENCRYPT, true);
+                attrs.put(PKCS11Constants.CKA_DECRYPT, true);
+                break;
+            case "RSA":
+                attrs.put(PKCS11Constants.CKA_MODULUS_BITS, Integer.parseInt(size));
+                attrs.put(PKCS11Constants.CKA_PUBLIC_EXPONENT, new byte[]{0x01, 0x00, 0x01});
+                attrs.put(PKCS11Constants.CKA_VERIFY, true);
+                break;
+            default:
+                attrs.put(PKCS11Constants.CKA_EC_PARAMS, CURVES.get(size));
+                attrs.put(PKCS11Constants.CKA_VERIFY, true);
+                break;
+        }
+        return toTemplate(attrs, isKeyPair() ? PUBLIC_ATTRIBUTES : null);
+    }
+
+    /**
+     * Whether the keys are token objects, which outlive the session that
+     * generated them.
+     */
+    boolean isTokenObject() {
+        return overrides.getOrDefault(PKCS11Constants.CKA_TOKEN, true);
+    }
+
+    /**
+     * Template finding a generated key by label and {@code CKA_ID}.
+     *
+     * @param label The label of the key.
+     * @param objectClass The class of the object, e.g. CKO_PRIVATE_KEY for
+     * the private half of a pair.
+     */
+    CK_ATTRIBUTE[] searchTemplate(String label, long objectClass) {
+        byte[] id = label.getBytes(StandardCharsets.UTF_8);
+        return new CK_ATTRIBUTE[]{
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_CLASS, objectClass),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_TOKEN, true),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_LABEL, id),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_ID, id)
+        };
+    }
+
+    /**
+     * Template of the private half of a key pair.
+     */
+    CK_ATTRIBUTE[] privateTemplate(String label) {
+        Map<Long, Object> attrs = common(label);
+        attrs.put(PKCS11Constants.CKA_PRIVATE, true);
+        attrs.put(PKCS11Constants.CKA_SENSITIVE, true);
+        attrs.put(PKCS11Constants.CKA_EXTRACTABLE, false);
+        attrs.put(PKCS11Constants.CKA_SIGN, true);
+        return toTemplate(attrs, PRIVATE_ATTRIBUTES);
+    }
+
+    /* overrides that make sense on each half of a pair */
+    private static final List<Long> PUBLIC_ATTRIBUTES = List.of(PKCS11Constants.CKA_TOKEN, PKCS11Constants.CKA_PRIVATE,
+            PKCS11Constants.CKA_MODIFIABLE, PKCS11Constants.CKA_ENCRYPT, PKCS11Constants.CKA_VERIFY, PKCS11Constants.CKA_WRAP,
+            PKCS11Constants.CKA_DERIVE);
+    private static final List<Long> PRIVATE_ATTRIBUTES = List.of(PKCS11Constants.CKA_TOKEN, PKCS11Constants.CKA_PRIVATE,
+            PKCS11Constants.CKA_SENSITIVE, PKCS11Constants.CKA_EXTRACTABLE, PKCS11Constants.CKA_MODIFIABLE,
+            PKCS11Constants.CKA_DECRYPT, PKCS11Constants.CKA_SIGN, PKCS11Constants.CKA_UNWRAP, PKCS11Constants.CKA_DERIVE);
+
+    private static Map<Long, Object> common(String label) {
+        Map<Long, Object> attrs = new LinkedHashMap<>();
+        byte[] id = label.getBytes(StandardCharsets.UTF_8);
+        attrs.put(PKCS11Constants.CKA_TOKEN, true);
+        attrs.put(PKCS11Constants.CKA_LABEL, id);
+        attrs.put(PKCS11Constants.CKA_ID, id);
+        return attrs;
+    }
+
+    private CK_ATTRIBUTE[] toTemplate(Map<Long, Object> attrs, List<Long> applicable) {
+        for (Map.Entry<Long, Boolean> override : overrides.entrySet()) {
+            if (applicable == null || applicable.contains(override.getKey())) {
+                attrs.put(override.getKey(), override.getValue());
+            }
+        }
+        List<CK_ATTRIBUTE> template = new ArrayList<>();
+        for (Map.Entry<Long, Object> attr : attrs.entrySet()) {
+            long type = attr.getKey();
+            Object value = attr.getValue();
+            if (value instanceof Boolean) {
+                template.add(new CK_ATTRIBUTE(type, (boolean) (Boolean) value));
+            } else if (value instanceof Number) {
+                template.add(new CK_ATTRIBUTE(type, ((Number) value).longValue()));
+            } else {
+                template.add(new CK_ATTRIBUTE(type, (byte[]) value));
+            }
+        }
+        return template.toArray(new CK_ATTRIBUTE[0]);
+    }
+
+    @Override
+    public String toString() {
+        return type + "," + size + "," + labelPattern + "," + count;
+    }
+}
@@ -0,0 +1,389 @@
+package civ.kem.algo;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Base of the caches of objects created on a session owned by the cache,
+ * such as {@link UnwrappedKeyCache}.
+ *
+ * <p>
+ * Entries are kept in least recently used order and leased to their users;
+ * beyond the size bound the expired entries, then those not in use, then the
+ * eldest are dropped. A dropped entry is destroyed on the owner session once
+ * its last lease is closed.</p>
+ *
+ * <p>
+ * When the objects are session objects and the owner session is lost, the
+ * objects went with it: the entries are forgotten rather than destroyed, as
+ * the token may reuse their handles, and every entry remembers the epoch of
+ * the owner session it was created on so that a late release destroys
+ * nothing.</p>
+ *
+ * @param <E> type of the entries.
+ */
+public abstract class LeasedObjectCache<E extends LeasedObjectCache.Entry> implements AutoCloseable {
+
+    /**
+     * Objects cached under one key.
+     */
+    public abstract static class Entry {
+
+        /* owner session the objects were created on, see ownerEpoch */
+        final long epoch;
+        int leases;
+        boolean dropped;
+
+        /**
+         * @param epoch Value of {@link LeasedObjectCache#ownerEpoch()} when
+         * the objects were created.
+         */
+        protected Entry(long epoch) {
+            this.epoch = epoch;
+        }
+
+        /**
+         * Returns {@code true} if the entry must not be served any more.
+         *
+         * @param now Current {@link System#nanoTime()}.
+         */
+        protected boolean isExpired(long now) {
+            return false;
+        }
+
+        /**
+         * Destroys the objects of the entry.
+         *
+         * @param p11 The PKCS#11 cryptoki library interface.
+         * @param hSession The owner session.
+         * @throws PKCS11Exception If an object cannot be destroyed.
+         */
+        protected abstract void destroy(PKCS11 p11, long hSession) throws PKCS11Exception;
+    }
+
+    protected final SessionPool pool;
+    protected final Object ownerLock = new Object();
+    private final String name;
+    private final int maxEntries;
+    private final boolean sessionObjects;
+    private final LinkedHashMap<String, E> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long hOwnerSession;
+    /* bumped when the owner session is lost with the objects; guarded by ownerLock */
+    private long ownerEpoch;
+    private volatile boolean closed;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param name Name of the cache in messages, e.g. {@code BIP32 node cache}.
+     * @param pool Pool of sessions on the slot of the objects.
+     * @param maxEntries Largest number of entries kept.
+     * @param sessionObjects True if the objects are session objects, lost
+     * with the owner session.
+     */
+    protected LeasedObjectCache(String name, SessionPool pool, int maxEntries, boolean sessionObjects) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maxEntries);
+        }
+        this.name = name;
+        this.pool = pool;
+        this.maxEntries = maxEntries;
+        this.sessionObjects = sessionObjects;
+    }
+
+    /**
+     * Returns the live entry of a key with one more lease, or {@code null}.
+     */
+    protected E lookup(String key) {
+        synchronized (entries) {
+            checkOpen();
+            E entry = entries.get(key);
+            if (entry != null && !entry.isExpired(System.nanoTime())) {
+                hits.incrementAndGet();
+                entry.leases++;
+                return entry;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Caches a new entry with one lease, unless a live entry was cached
+     * concurrently under the same key: that one is leased and returned, and
+     * the new entry destroyed.
+     *
+     * @param key The key.
+     * @param entry The new entry.
+     * @return The entry leased.
+     */
+    protected E install(String key, E entry) {
+        entry.leases = 1;
+        List<Entry> dropped = new ArrayList<>();
+        E winner;
+        synchronized (entries) {
+            winner = entries.get(key);
+            if (winner != null && !winner.isExpired(System.nanoTime())) {
+                winner.leases++;
+                entry.dropped = true;
+                dropped.add(entry);
+            } else {
+                if (winner != null) {
+                    drop(winner, dropped);
+                }
+                entries.put(key, entry);
+                winner = entry;
+                evict(dropped);
+            }
+        }
+        destroy(dropped);
+        return winner;
+    }
+
+    /**
+     * Closes a lease of an entry.
+     */
+    protected void release(E entry) {
+        boolean destroy;
+        synchronized (entries) {
+            entry.leases--;
+            destroy = entry.dropped && entry.leases == 0;
+        }
+        if (destroy) {
+            destroy(List.of(entry));
+        }
+    }
+
+    protected void countMiss() {
+        misses.incrementAndGet();
+    }
+
+    /**
+     * Destroys the entries whose key matches; entries in use are destroyed
+     * when their lease closes.
+     */
+    protected void invalidate(Predicate<String> keys) {
+        List<Entry> dropped = new ArrayList<>();
+        synchronized (entries) {
+            Iterator<Map.Entry<String, E>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, E> entry = it.next();
+                if (keys.test(entry.getKey())) {
+                    it.remove();
+                    drop(entry.getValue(), dropped);
+                }
+            }
+        }
+        destroy(dropped);
+    }
+
+    /**
+     * Destroys the expired entries not in use.
+     */
+    protected void invalidateExpired() {
+        List<Entry> dropped = new ArrayList<>();
+        synchronized (entries) {
+            long now = System.nanoTime();
+            Iterator<E> it = entries.values().iterator();
+            while (it.hasNext()) {
+                E entry = it.next();
+                if (entry.isExpired(now)) {
+                    it.remove();
+                    drop(entry, dropped);
+                }
+            }
+        }
+        destroy(dropped);
+    }
+
+    /**
+     * Destroys every entry; entries in use are destroyed when their lease
+     * closes.
+     */
+    public void invalidateAll() {
+        invalidate(key -> true);
+    }
+
+    /* caller holds the entries lock */
+    private void evict(List<Entry> dropped) {
+        long now = System.nanoTime();
+        Iterator<E> it = entries.values().iterator();
+        while (it.hasNext() && entries.size() > maxEntries) {
+            E entry = it.next();
+            if (entry.isExpired(now) || entry.leases == 0) {
+                it.remove();
+                drop(entry, dropped);
+            }
+        }
+        /* every remaining entry is in use: drop the eldest anyway, it goes once released */
+        it = entries.values().iterator();
+        while (it.hasNext() && entries.size() > maxEntries) {
+            E entry = it.next();
+            it.remove();
+            drop(entry, dropped);
+        }
+    }
+
+    /* caller holds the entries lock */
+    private void drop(Entry entry, List<Entry> dropped) {
+        entry.dropped = true;
+        evictions.incrementAndGet();
+        if (entry.leases == 0) {
+            dropped.add(entry);
+        }
+    }
+
+    /**
+     * Returns the owner session, opening it if needed; caller holds the
+     * owner lock.
+     */
+    protected long ownerSession() throws Exception {
+        checkOpen();
+        if (hOwnerSession == 0) {
+            hOwnerSession = Utils.openSession(pool.getP11(), pool.getSlotId(), pool.getFlags());
+        }
+        return hOwnerSession;
+    }
+
+    /**
+     * Returns the epoch of the owner session, to be stored in the entries
+     * created on it; caller holds the owner lock.
+     */
+    protected long ownerEpoch() {
+        return ownerEpoch;
+    }
+
+    /**
+     * Returns {@code true} if the entry was created on the current owner
+     * session, or its objects survive the session; caller holds the owner
+     * lock.
+     */
+    protected boolean isCurrent(Entry entry) {
+        return entry.epoch == ownerEpoch;
+    }
+
+    /**
+     * Returns {@code true} if a failure on the owner session means that the
+     * session, and its objects, are gone.
+     */
+    protected static boolean isOwnerSessionLost(PKCS11Exception ex) {
+        return SessionPool.isSessionLost(ex) || ex.getErrorCode() == ReturnCodes.CKR_DEVICE_ERROR;
+    }
+
+    /**
+     * Closes the lost owner session and, for session objects, forgets the
+     * entries; caller holds the owner lock.
+     */
+    protected void ownerSessionLost() {
+        long hSession = hOwnerSession;
+        hOwnerSession = 0;
+        try {
+            Utils.closeSession(pool.getP11(), hSession);
+        } catch (Exception ex) {
+            /* already gone */
+        }
+        if (!sessionObjects) {
+            return;
+        }
+        ownerEpoch++;
+        synchronized (entries) {
+            for (Entry entry : entries.values()) {
+                entry.dropped = true;
+            }
+            entries.clear();
+        }
+        pool.getHandleCache().invalidateSessionObjects();
+    }
+
+    private void destroy(List<Entry> dropped) {
+        if (dropped.isEmpty()) {
+            return;
+        }
+        synchronized (ownerLock) {
+            if (hOwnerSession == 0) {
+                return;
+            }
+            for (Entry entry : dropped) {
+                if (entry.epoch != ownerEpoch) {
+                    continue;
+                }
+                try {
+                    entry.destroy(pool.getP11(), hOwnerSession);
+                } catch (PKCS11Exception ex) {
+                    if (isOwnerSessionLost(ex)) {
+                        ownerSessionLost();
+                        return;
+                    }
+                    Utils.println("Cannot destroy " + entry + ": " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    protected void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException(name + " closed");
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Fraction of the lookups served from the cache, between 0 and 1.
+     */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * Destroys every entry and closes the session owning the objects.
+     */
+    @Override
+    public void close() throws Exception {
+        synchronized (entries) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        invalidateAll();
+        synchronized (ownerLock) {
+            if (hOwnerSession != 0) {
+                /* also destroys the session objects still leased */
+                Utils.closeSession(pool.getP11(), hOwnerSession);
+                hOwnerSession = 0;
+            }
+        }
+    }
+}
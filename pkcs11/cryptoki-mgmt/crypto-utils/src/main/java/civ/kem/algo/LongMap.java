@@ -0,0 +1,151 @@
+package civ.kem.algo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.LongFunction;
+
+/**
+ * A map keyed by primitive longs for lookups on every Cryptoki call: reads
+ * take no lock and box nothing, writes copy the table under the map lock.
+ * Meant for keys added rarely, such as mechanisms, slots or open sessions.
+ *
+ * @param <V> type of the values.
+ */
+final class LongMap<V> {
+
+    /* open addressing with linear probing; a null value marks a free bucket */
+    private static final class Table {
+
+        final long[] keys;
+        final Object[] values;
+        /* only changed before the table is published */
+        int size;
+
+        Table(int capacity) {
+            this.keys = new long[capacity];
+            this.values = new Object[capacity];
+        }
+
+        void insert(long key, Object value) {
+            int mask = keys.length - 1;
+            int i = index(key, mask);
+            while (values[i] != null && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (values[i] == null) {
+                size++;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+    }
+
+    private volatile Table table = new Table(16);
+
+    private static int index(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * Returns the value of a key, or {@code null}.
+     */
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        Table t = table;
+        int mask = t.keys.length - 1;
+        for (int i = index(key, mask);; i = (i + 1) & mask) {
+            Object value = t.values[i];
+            if (value == null) {
+                return null;
+            }
+            if (t.keys[i] == key) {
+                return (V) value;
+            }
+        }
+    }
+
+    /**
+     * Returns the value of a key, creating it once if absent.
+     */
+    V computeIfAbsent(long key, LongFunction<V> factory) {
+        V value = get(key);
+        if (value != null) {
+            return value;
+        }
+        synchronized (this) {
+            value = get(key);
+            if (value == null) {
+                value = factory.apply(key);
+                table = with(table, key, value);
+            }
+            return value;
+        }
+    }
+
+    synchronized void put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        table = with(table, key, value);
+    }
+
+    synchronized void remove(long key) {
+        if (get(key) == null) {
+            return;
+        }
+        Table t = table;
+        Table copy = new Table(t.keys.length);
+        for (int i = 0; i < t.keys.length; i++) {
+            if (t.values[i] != null && t.keys[i] != key) {
+                copy.insert(t.keys[i], t.values[i]);
+            }
+        }
+        table = copy;
+    }
+
+    /**
+     * Passes every entry to an action, in no particular order.
+     */
+    @SuppressWarnings("unchecked")
+    void forEach(BiConsumer<Long, V> action) {
+        Table t = table;
+        for (int i = 0; i < t.keys.length; i++) {
+            if (t.values[i] != null) {
+                action.accept(t.keys[i], (V) t.values[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns the values in no particular order.
+     */
+    @SuppressWarnings("unchecked")
+    List<V> values() {
+        Table t = table;
+        List<V> values = new ArrayList<>(t.size);
+        for (Object value : t.values) {
+            if (value != null) {
+                values.add((V) value);
+            }
+        }
+        return values;
+    }
+
+    /* a copy of the table with the key set, grown to stay at most half full */
+    private static Table with(Table t, long key, Object value) {
+        int capacity = t.keys.length;
+        while ((t.size + 1) * 2 > capacity) {
+            capacity *= 2;
+        }
+        Table copy = new Table(capacity);
+        for (int i = 0; i < t.keys.length; i++) {
+            if (t.values[i] != null) {
+                copy.insert(t.keys[i], t.values[i]);
+            }
+        }
+        copy.insert(key, value);
+        return copy;
+    }
+}
@@ -18,26 +18,31 @@ public class Main {
             PKCS11 p11 = Utils.setMonoThreadedCryptokiFunctions();
             long slotId = 1;
             long flags = PKCS11Constants.CKF_SERIAL_SESSION;
-            long hSession = Utils.openSession(p11, slotId, flags);
 
-            // Symmetric functions
-            System.out.println("TEST SYMMETRIC FUNCTIONS");
-            encryptDecrypt(p11, hSession, new CK_MECHANISM(PKCS11Constants.CKM_AES_ECB), text.getBytes());
-            sha2(p11, hSession, new CK_MECHANISM(PKCS11Constants.CKM_SHA256), 32, text.getBytes());
-
-            // Random numers
-             System.out.println("\n\nTEST RANDOM NUMBER GENERATION");
-            byte[] randomData = new byte[20];
-            Random.generateRandomData(p11, hSession, randomData, hSession);
-            System.out.println("Random value: " + HexFormat.of().formatHex(randomData));
-
-            String seed = "deadbeefdeadbeef";
-            Utils.println("Seed value: " + seed);
-            byte[] bSeed = HexFormat.of().parseHex(seed);
-            Random.seedRandom(p11, hSession, bSeed);
-            Utils.println("Modified value of the seed : " + HexFormat.of().formatHex(bSeed));
-
-            Utils.closeSession(p11, hSession);
+            try (SessionPool pool = SessionPool.forSlot(p11, slotId, flags)) {
+                pool.execute(hSession -> {
+                    // Symmetric functions
+                    System.out.println("TEST SYMMETRIC FUNCTIONS");
+                    encryptDecrypt(p11, hSession, new CK_MECHANISM(PKCS11Constants.CKM_AES_ECB), text.getBytes());
+                    sha2(p11, hSession, new CK_MECHANISM(PKCS11Constants.CKM_SHA256), 32, text.getBytes());
+                    return null;
+                });
+
+                pool.execute(hSession -> {
+                    // Random numers
+                    System.out.println("\n\nTEST RANDOM NUMBER GENERATION");
+                    byte[] randomData = new byte[20];
+                    Random.generateRandomData(p11, hSession, randomData, randomData.length);
+                    System.out.println("Random value: " + HexFormat.of().formatHex(randomData));
+
+                    String seed = "deadbeefdeadbeef";
+                    Utils.println("Seed value: " + seed);
+                    byte[] bSeed = HexFormat.of().parseHex(seed);
+                    Random.seedRandom(p11, hSession, bSeed);
+                    Utils.println("Modified value of the seed : " + HexFormat.of().formatHex(bSeed));
+                    return null;
+                });
+            }
 
         } catch (Exception ex) {
             ex.printStackTrace();
@@ -58,11 +63,11 @@ public class Main {
         long hSessionKey = p11.C_GenerateKey(hSession, new CK_MECHANISM(PKCS11Constants.CKM_AES_KEY_GEN), templateSessionKey);
 
         // Encrypt plaintext
-        byte[] ciphertext = new byte[16];
+        byte[] ciphertext = new byte[plaintext.length];
         Symmetric.encrypt(p11, hSession, mechanism, hSessionKey, plaintext, ciphertext);
 
         // Decrypt encrypted text
-        byte[] decrypted = new byte[16];
+        byte[] decrypted = new byte[ciphertext.length];
         Symmetric.decrypt(p11, hSession, mechanism, hSessionKey, ciphertext, decrypted);
 
         System.out.println("Plaintext          : " + new String(plaintext, StandardCharsets.UTF_8));
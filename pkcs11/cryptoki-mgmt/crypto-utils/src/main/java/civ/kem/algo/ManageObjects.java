@@ -1,8 +1,11 @@
 package civ.kem.algo;
 
+import java.util.stream.Stream;
+
 import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
 import sun.security.pkcs11.wrapper.CK_MECHANISM;
 import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
 import sun.security.pkcs11.wrapper.PKCS11Exception;
 
 public class ManageObjects {
@@ -23,22 +26,103 @@ public class ManageObjects {
      * @throws Exception If no matching object is found.
      */
     public static long find(PKCS11 p11, long hSession, CK_ATTRIBUTE[] template) throws Exception {
+        return find(p11, hSession, template, null);
+    }
 
-        long[] hObjects;
+    /**
+     * Searches for an object on a token matching the provided template,
+     * reusing the handle found by an earlier search when it is cached.
+     *
+     * @param p11 PKCS#11 wrapper instance used to interact with the token.
+     * @param hSession Handle to the open PKCS#11 session associated with the
+     * token.
+     * @param template Cryptoki template defining the desired object's
+     * attributes.
+     * @param cache Handle cache of the slot, or {@code null} to always search.
+     * @return The handle of the first object found that matches the template.
+     * @throws Exception If no matching object is found.
+     */
+    public static long find(PKCS11 p11, long hSession, CK_ATTRIBUTE[] template, ObjectHandleCache cache) throws Exception {
+        long stamp = 0L;
+        if (cache != null) {
+            long hObject = cache.get(template);
+            if (hObject != 0L) {
+                return hObject;
+            }
+            stamp = cache.stamp();
+        }
 
-        // Initialize object search using the provided template.
-        p11.C_FindObjectsInit(hSession, template);
-        hObjects = p11.C_FindObjects(hSession, 1);  // Fetch at most one object.
-        p11.C_FindObjectsFinal(hSession);  // Finalize the search.
+        long[] hObjects = CryptokiMetrics.call("C_FindObjects", null, hSession, () -> {
+            // Initialize object search using the provided template.
+            p11.C_FindObjectsInit(hSession, template);
+            long[] found = p11.C_FindObjects(hSession, 1);  // Fetch at most one object.
+            p11.C_FindObjectsFinal(hSession);  // Finalize the search.
+            return found;
+        });
 
         // Return the first object found, or throw an exception if none is found.
         if (hObjects.length >= 1) {
+            if (cache != null) {
+                cache.put(template, hObjects[0], isSessionObject(p11, hSession, template, hObjects[0]), stamp);
+            }
             return hObjects[0];
         } else {
             throw new Exception("Object not found!");
         }
     }
 
+    private static boolean isSessionObject(PKCS11 p11, long hSession, CK_ATTRIBUTE[] template, long hObject) throws PKCS11Exception {
+        for (CK_ATTRIBUTE attr : template) {
+            if (attr.type == PKCS11Constants.CKA_TOKEN && attr.pValue instanceof Boolean) {
+                return !(Boolean) attr.pValue;
+            }
+        }
+        CK_ATTRIBUTE[] token = {
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_TOKEN)
+        };
+        CryptokiMetrics.run("C_GetAttributeValue", null, hSession, () -> p11.C_GetAttributeValue(hSession, hObject, token));
+        return !token[0].getBoolean();
+    }
+
+    /**
+     * Lists every object matching a template as a lazy stream, fetching the
+     * handles and the requested attributes one page at a time. The stream must
+     * be closed (e.g. with try-with-resources) to terminate the search.
+     *
+     * @param p11 PKCS#11 wrapper instance used to interact with the token.
+     * @param hSession Handle to the open PKCS#11 session associated with the
+     * token.
+     * @param template Cryptoki template the objects must match, empty for all
+     * objects.
+     * @param pageSize Number of handles fetched per round trip.
+     * @param attributeTypes Attributes read for every object (e.g., CKA_LABEL,
+     * CKA_ID, CKA_CLASS, CKA_KEY_TYPE, CKA_VALUE_LEN).
+     * @return The matching objects.
+     * @throws PKCS11Exception If the search cannot be started.
+     */
+    public static Stream<TokenObject> enumerate(PKCS11 p11, long hSession, CK_ATTRIBUTE[] template, int pageSize, long... attributeTypes) throws PKCS11Exception {
+        return new ObjectEnumerator(p11, hSession, template, pageSize, attributeTypes).stream();
+    }
+
+    /**
+     * Creates an object on the token.
+     *
+     * @param p11 PKCS#11 wrapper instance used to interact with the token.
+     * @param hSession Handle to the open PKCS#11 session associated with the
+     * token.
+     * @param template The template specifying the attributes of the object.
+     * @param cache Handle cache of the slot, or {@code null}.
+     * @return The handle of the new object.
+     * @throws PKCS11Exception If an error occurs during the object creation.
+     */
+    public static long create(PKCS11 p11, long hSession, CK_ATTRIBUTE[] template, ObjectHandleCache cache) throws PKCS11Exception {
+        long hObject = CryptokiMetrics.call("C_CreateObject", null, hSession, () -> p11.C_CreateObject(hSession, template));
+        if (cache != null) {
+            cache.invalidateMatching(template);
+        }
+        return hObject;
+    }
+
     /**
      * Deletes an object from the token.
      *
@@ -53,7 +137,25 @@ public class ManageObjects {
      * process.
      */
     public static void delete(PKCS11 p11, long hSession, long hObject) throws PKCS11Exception {
-        p11.C_DestroyObject(hSession, hObject);
+        delete(p11, hSession, hObject, null);
+    }
+
+    /**
+     * Deletes an object from the token and forgets its handle.
+     *
+     * @param p11 PKCS#11 wrapper instance used to interact with the token.
+     * @param hSession Handle to the open PKCS#11 session associated with the
+     * token.
+     * @param hObject The handle of the object to be destroyed.
+     * @param cache Handle cache of the slot, or {@code null}.
+     * @throws PKCS11Exception If an error occurs during the object destruction
+     * process.
+     */
+    public static void delete(PKCS11 p11, long hSession, long hObject, ObjectHandleCache cache) throws PKCS11Exception {
+        CryptokiMetrics.run("C_DestroyObject", null, hSession, () -> p11.C_DestroyObject(hSession, hObject));
+        if (cache != null) {
+            cache.invalidate(hObject);
+        }
     }
 
     /**
@@ -75,7 +177,30 @@ public class ManageObjects {
      * @throws PKCS11Exception If an error occurs during the key derivation.
      */
     public static long deriveKey(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hBaseKey, CK_ATTRIBUTE[] newObjTpl) throws PKCS11Exception {
-        return p11.C_DeriveKey(hSession, mechanism, hBaseKey, newObjTpl);
+        return deriveKey(p11, hSession, mechanism, hBaseKey, newObjTpl, null);
+    }
+
+    /**
+     * Derives a new cryptographic key and drops the cached searches that could
+     * now return it.
+     *
+     * @param p11 PKCS#11 wrapper instance used to interact with the token.
+     * @param hSession Handle to the open PKCS#11 session associated with the
+     * token.
+     * @param mechanism The cryptographic mechanism used for key derivation.
+     * @param hBaseKey The handle of the base key used for derivation.
+     * @param newObjTpl The template specifying attributes for the new derived
+     * key.
+     * @param cache Handle cache of the slot, or {@code null}.
+     * @return The handle of the newly derived key.
+     * @throws PKCS11Exception If an error occurs during the key derivation.
+     */
+    public static long deriveKey(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hBaseKey, CK_ATTRIBUTE[] newObjTpl, ObjectHandleCache cache) throws PKCS11Exception {
+        long hKey = CryptokiMetrics.call("C_DeriveKey", mechanism, hSession, () -> p11.C_DeriveKey(hSession, mechanism, hBaseKey, newObjTpl));
+        if (cache != null) {
+            cache.invalidateMatching(newObjTpl);
+        }
+        return hKey;
     }
 
     /**
@@ -99,9 +224,46 @@ public class ManageObjects {
      * @throws Exception If an error occurs during the key wrapping process.
      */
     public static byte[] wrapKey(PKCS11 p11, long hSession, CK_MECHANISM mechanism, CK_ATTRIBUTE[] wrappingKeyTemplate, CK_ATTRIBUTE[] keyToWrapTemplate) throws Exception {
-        long hWrappingKey = find(p11, hSession, wrappingKeyTemplate);  // Locate the wrapping key.
-        long hKeyToWrap = find(p11, hSession, keyToWrapTemplate);  // Locate the key to be wrapped.
-        return p11.C_WrapKey(hSession, mechanism, hWrappingKey, hKeyToWrap);
+        return wrapKey(p11, hSession, mechanism, wrappingKeyTemplate, keyToWrapTemplate, null);
+    }
+
+    /**
+     * Wraps a cryptographic key, locating both keys through the handle cache.
+     *
+     * @param p11 PKCS#11 wrapper instance used to interact with the token.
+     * @param hSession Handle to the open PKCS#11 session associated with the
+     * token.
+     * @param mechanism The mechanism used for wrapping (e.g., CKM_AES_KEY_WRAP,
+     * CKM_RSA_PKCS).
+     * @param wrappingKeyTemplate Template containing attributes to identify the
+     * wrapping key.
+     * @param keyToWrapTemplate Template containing attributes to identify the
+     * key to be wrapped.
+     * @param cache Handle cache of the slot, or {@code null}.
+     * @return The wrapped key as a byte array.
+     * @throws Exception If an error occurs during the key wrapping process.
+     */
+    public static byte[] wrapKey(PKCS11 p11, long hSession, CK_MECHANISM mechanism, CK_ATTRIBUTE[] wrappingKeyTemplate, CK_ATTRIBUTE[] keyToWrapTemplate, ObjectHandleCache cache) throws Exception {
+        long hWrappingKey = find(p11, hSession, wrappingKeyTemplate, cache);  // Locate the wrapping key.
+        long hKeyToWrap = find(p11, hSession, keyToWrapTemplate, cache);  // Locate the key to be wrapped.
+        return wrapKey(p11, hSession, mechanism, hWrappingKey, hKeyToWrap);
+    }
+
+    /**
+     * Wraps a cryptographic key designated by handle.
+     *
+     * @param p11 PKCS#11 wrapper instance used to interact with the token.
+     * @param hSession Handle to the open PKCS#11 session associated with the
+     * token.
+     * @param mechanism The mechanism used for wrapping (e.g., CKM_AES_KEY_WRAP,
+     * CKM_RSA_PKCS).
+     * @param hWrappingKey Handle of the wrapping key.
+     * @param hKeyToWrap Handle of the key to be wrapped.
+     * @return The wrapped key as a byte array.
+     * @throws PKCS11Exception If an error occurs during the key wrapping process.
+     */
+    public static byte[] wrapKey(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hWrappingKey, long hKeyToWrap) throws PKCS11Exception {
+        return CryptokiMetrics.call("C_WrapKey", mechanism, hSession, () -> p11.C_WrapKey(hSession, mechanism, hWrappingKey, hKeyToWrap));
     }
 
     /**
@@ -127,7 +289,55 @@ public class ManageObjects {
      * @throws Exception If an error occurs during the key unwrapping process.
      */
     public static long unWrapKey(PKCS11 p11, long hSession, CK_MECHANISM mechanism, CK_ATTRIBUTE[] unWrappingKeyTemplate, byte[] wrappedKey, CK_ATTRIBUTE[] newKeyTemplate) throws Exception {
-        long hUnWrappingKey = find(p11, hSession, unWrappingKeyTemplate);  // Locate the unwrapping key.
-        return p11.C_UnwrapKey(hSession, mechanism, hUnWrappingKey, wrappedKey, newKeyTemplate);
+        return unWrapKey(p11, hSession, mechanism, unWrappingKeyTemplate, wrappedKey, newKeyTemplate, null);
+    }
+
+    /**
+     * Unwraps an encrypted key, locating the unwrapping key through the handle
+     * cache and dropping the cached searches that could now return the new
+     * key.
+     *
+     * @param p11 PKCS#11 wrapper instance used to interact with the token.
+     * @param hSession Handle to the open PKCS#11 session associated with the
+     * token.
+     * @param mechanism The mechanism used for unwrapping (e.g.,
+     * CKM_AES_KEY_WRAP, CKM_RSA_PKCS).
+     * @param unWrappingKeyTemplate Template containing attributes to identify
+     * the unwrapping key.
+     * @param wrappedKey The wrapped (encrypted) key in a byte array.
+     * @param newKeyTemplate The template defining attributes of the unwrapped
+     * key.
+     * @param cache Handle cache of the slot, or {@code null}.
+     * @return The handle of the unwrapped key.
+     * @throws Exception If an error occurs during the key unwrapping process.
+     */
+    public static long unWrapKey(PKCS11 p11, long hSession, CK_MECHANISM mechanism, CK_ATTRIBUTE[] unWrappingKeyTemplate, byte[] wrappedKey, CK_ATTRIBUTE[] newKeyTemplate, ObjectHandleCache cache) throws Exception {
+        long hUnWrappingKey = find(p11, hSession, unWrappingKeyTemplate, cache);  // Locate the unwrapping key.
+        long hKey = unWrapKey(p11, hSession, mechanism, hUnWrappingKey, wrappedKey, newKeyTemplate);
+        if (cache != null) {
+            cache.invalidateMatching(newKeyTemplate);
+        }
+        return hKey;
+    }
+
+    /**
+     * Unwraps an encrypted key with an unwrapping key already located.
+     *
+     * @param p11 PKCS#11 wrapper instance used to interact with the token.
+     * @param hSession Handle to the open PKCS#11 session associated with the
+     * token.
+     * @param mechanism The mechanism used for unwrapping (e.g.,
+     * CKM_AES_KEY_WRAP, CKM_RSA_PKCS).
+     * @param hUnWrappingKey Handle of the unwrapping key.
+     * @param wrappedKey The wrapped (encrypted) key in a byte array.
+     * @param newKeyTemplate The template defining attributes of the unwrapped
+     * key.
+     * @return The handle of the unwrapped key.
+     * @throws PKCS11Exception If an error occurs during the key unwrapping
+     * process.
+     */
+    public static long unWrapKey(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hUnWrappingKey, byte[] wrappedKey, CK_ATTRIBUTE[] newKeyTemplate) throws PKCS11Exception {
+        return CryptokiMetrics.call("C_UnwrapKey", mechanism, hSession,
+                () -> p11.C_UnwrapKey(hSession, mechanism, hUnWrappingKey, wrappedKey, newKeyTemplate));
     }
 }
@@ -0,0 +1,462 @@
+package civ.kem.algo;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.Channels;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Multi-part encryption and decryption on a PKCS#11 token.
+ *
+ * <p>
+ * Data is pushed through {@code C_EncryptUpdate}/{@code C_DecryptUpdate} one
+ * chunk at a time and the operation is completed with
+ * {@code C_EncryptFinal}/{@code C_DecryptFinal}, so the memory used does not
+ * depend on the payload size. The chunk buffers are allocated once and reused
+ * by every operation run with the same instance.</p>
+ *
+ * <p>
+ * When the source or the destination of a transfer fails, the operation is
+ * ended on the token before the exception is thrown, so the session can run
+ * a new operation. The token calls are recorded by
+ * {@link CryptokiMetrics}.</p>
+ *
+ * <p>
+ * An instance holds the state of one operation at a time and is not
+ * thread-safe.</p>
+ */
+public class MultiPartCipher {
+
+    /**
+     * Default amount of data sent to the token per update call.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 8192;
+
+    /* room for the block a padding mechanism may hold back or release */
+    private static final int OUTPUT_MARGIN = 64;
+
+    private final PKCS11 p11;
+    private final byte[] inBuf;
+    private byte[] outBuf;
+
+    private long hSession;
+    private CK_MECHANISM mechanism;
+    private boolean encrypting;
+    private boolean active;
+
+    /**
+     * Creates a cipher using the default chunk size.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     */
+    public MultiPartCipher(PKCS11 p11) {
+        this(p11, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates a cipher.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param chunkSize Amount of data sent to the token per update call.
+     */
+    public MultiPartCipher(PKCS11 p11, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        this.p11 = p11;
+        this.inBuf = new byte[chunkSize];
+        this.outBuf = new byte[chunkSize + OUTPUT_MARGIN];
+    }
+
+    /**
+     * Starts a multi-part encryption.
+     *
+     * @param hSession Handle to the active PKCS#11 session.
+     * @param mechanism The encryption mechanism to use (e.g., AES CBC PAD).
+     * @param hKey Handle to the encryption key.
+     * @throws PKCS11Exception If the operation cannot be initialized.
+     */
+    public void initEncrypt(long hSession, CK_MECHANISM mechanism, long hKey) throws PKCS11Exception {
+        CryptokiMetrics.run("C_EncryptInit", mechanism, hSession, () -> cipherInit(true, hSession, mechanism, hKey));
+        start(hSession, mechanism, true);
+    }
+
+    /**
+     * Starts a multi-part decryption.
+     *
+     * @param hSession Handle to the active PKCS#11 session.
+     * @param mechanism The decryption mechanism to use (e.g., AES CBC PAD).
+     * @param hKey Handle to the decryption key.
+     * @throws PKCS11Exception If the operation cannot be initialized.
+     */
+    public void initDecrypt(long hSession, CK_MECHANISM mechanism, long hKey) throws PKCS11Exception {
+        CryptokiMetrics.run("C_DecryptInit", mechanism, hSession, () -> cipherInit(false, hSession, mechanism, hKey));
+        start(hSession, mechanism, false);
+    }
+
+    private void start(long hSession, CK_MECHANISM mechanism, boolean encrypting) {
+        this.hSession = hSession;
+        this.mechanism = mechanism;
+        this.encrypting = encrypting;
+        this.active = true;
+    }
+
+    /**
+     * Processes a part of the input. The produced data is left at the start
+     * of {@link #output()}.
+     *
+     * @param in Input buffer.
+     * @param off Offset of the data in the input buffer.
+     * @param len Length of the data, at most the chunk size.
+     * @return The number of bytes produced.
+     * @throws PKCS11Exception If the token rejects the data.
+     */
+    public int update(byte[] in, int off, int len) throws PKCS11Exception {
+        checkActive();
+        while (true) {
+            byte[] out = outBuf;
+            try {
+                return CryptokiMetrics.call(encrypting ? "C_EncryptUpdate" : "C_DecryptUpdate", mechanism, hSession,
+                        () -> cipherUpdate(encrypting, hSession, in, off, len, out, 0, out.length));
+            } catch (PKCS11Exception ex) {
+                growOutput(ex);
+            }
+        }
+    }
+
+    /**
+     * Completes the operation. The remaining data is left at the start of
+     * {@link #output()}.
+     *
+     * @return The number of bytes produced.
+     * @throws PKCS11Exception If the token cannot complete the operation.
+     */
+    public int doFinal() throws PKCS11Exception {
+        checkActive();
+        while (true) {
+            byte[] out = outBuf;
+            try {
+                int n = CryptokiMetrics.call(encrypting ? "C_EncryptFinal" : "C_DecryptFinal", mechanism, hSession,
+                        () -> cipherFinal(encrypting, hSession, out, 0, out.length));
+                active = false;
+                return n;
+            } catch (PKCS11Exception ex) {
+                growOutput(ex);
+            }
+        }
+    }
+
+    /**
+     * Ends the current operation, if any, and discards its output, so that
+     * the session can start another one. Token errors are ignored.
+     */
+    public void abort() {
+        if (!active) {
+            return;
+        }
+        try {
+            doFinal();
+        } catch (PKCS11Exception ex) {
+            /* the operation is over either way */
+        } finally {
+            active = false;
+        }
+    }
+
+    /**
+     * The buffer holding the data produced by the last update or final call.
+     */
+    public byte[] output() {
+        return outBuf;
+    }
+
+    /**
+     * The amount of data sent to the token per update call.
+     */
+    public int chunkSize() {
+        return inBuf.length;
+    }
+
+    private void checkActive() {
+        if (!active) {
+            throw new IllegalStateException("No operation in progress");
+        }
+    }
+
+    /* the token calls, package-private so tests can run without a token */
+    void cipherInit(boolean encrypt, long hSession, CK_MECHANISM mechanism, long hKey) throws PKCS11Exception {
+        if (encrypt) {
+            p11.C_EncryptInit(hSession, mechanism, hKey);
+        } else {
+            p11.C_DecryptInit(hSession, mechanism, hKey);
+        }
+    }
+
+    int cipherUpdate(boolean encrypt, long hSession, byte[] in, int off, int len, byte[] out, int outOff, int outLen) throws PKCS11Exception {
+        return encrypt ? p11.C_EncryptUpdate(hSession, 0L, in, off, len, 0L, out, outOff, outLen)
+                : p11.C_DecryptUpdate(hSession, 0L, in, off, len, 0L, out, outOff, outLen);
+    }
+
+    int cipherFinal(boolean encrypt, long hSession, byte[] out, int outOff, int outLen) throws PKCS11Exception {
+        return encrypt ? p11.C_EncryptFinal(hSession, 0L, out, outOff, outLen) : p11.C_DecryptFinal(hSession, 0L, out, outOff, outLen);
+    }
+
+    private void growOutput(PKCS11Exception ex) throws PKCS11Exception {
+        /* CKR_BUFFER_TOO_SMALL leaves the operation active, retry with more room */
+        if (ex.getErrorCode() != PKCS11Exception.CKR_BUFFER_TOO_SMALL || outBuf.length >= (1 << 30)) {
+            active = false;
+            throw ex;
+        }
+        outBuf = new byte[outBuf.length * 2];
+    }
+
+    /**
+     * Runs the current operation over a whole stream and completes it.
+     *
+     * @param in Source of the input data.
+     * @param out Destination of the produced data.
+     * @return The number of bytes written to {@code out}.
+     * @throws IOException If reading or writing fails; the operation is then
+     * ended.
+     * @throws PKCS11Exception If the token rejects the data.
+     */
+    public long transfer(InputStream in, OutputStream out) throws IOException, PKCS11Exception {
+        try {
+            long total = 0;
+            int read;
+            while ((read = in.readNBytes(inBuf, 0, inBuf.length)) > 0) {
+                int n = update(inBuf, 0, read);
+                out.write(outBuf, 0, n);
+                total += n;
+            }
+            int n = doFinal();
+            out.write(outBuf, 0, n);
+            return total + n;
+        } catch (IOException | RuntimeException ex) {
+            abort();
+            throw ex;
+        }
+    }
+
+    /**
+     * Runs the current operation over a whole channel and completes it.
+     *
+     * @param in Source of the input data.
+     * @param out Destination of the produced data.
+     * @return The number of bytes written to {@code out}.
+     * @throws IllegalBlockingModeException If either channel is in
+     *         non-blocking mode.
+     * @throws IOException If reading or writing fails; the operation is then
+     * ended.
+     * @throws PKCS11Exception If the token rejects the data.
+     */
+    public long transfer(ReadableByteChannel in, WritableByteChannel out) throws IOException, PKCS11Exception {
+        /* the loops below would spin on a channel that returns 0 */
+        requireBlocking(in);
+        requireBlocking(out);
+        ByteBuffer input = ByteBuffer.wrap(inBuf);
+        try {
+            long total = 0;
+            while (true) {
+                input.clear();
+                while (input.hasRemaining() && in.read(input) >= 0) {
+                    /* fill a whole chunk unless the channel is exhausted */
+                }
+                if (input.position() == 0) {
+                    break;
+                }
+                total += writeFully(out, update(inBuf, 0, input.position()));
+                if (input.hasRemaining()) {
+                    break;
+                }
+            }
+            return total + writeFully(out, doFinal());
+        } catch (IOException | RuntimeException ex) {
+            abort();
+            throw ex;
+        }
+    }
+
+    private static void requireBlocking(Channel channel) {
+        if (channel instanceof SelectableChannel && !((SelectableChannel) channel).isBlocking()) {
+            throw new IllegalBlockingModeException();
+        }
+    }
+
+    private int writeFully(WritableByteChannel out, int len) throws IOException {
+        ByteBuffer output = ByteBuffer.wrap(outBuf, 0, len);
+        while (output.hasRemaining()) {
+            out.write(output);
+        }
+        return len;
+    }
+
+    /**
+     * Wraps a stream so that the data written to it goes through the current
+     * operation before reaching {@code sink}. Closing the returned stream
+     * completes the operation and closes {@code sink}; a failure of
+     * {@code sink} ends the operation.
+     *
+     * @param sink Destination of the produced data.
+     * @return A stream feeding the current operation.
+     */
+    public OutputStream outputStream(OutputStream sink) {
+        return new FilterOutputStream(sink) {
+            private int buffered;
+            private boolean closed;
+
+            @Override
+            public void write(int b) throws IOException {
+                inBuf[buffered++] = (byte) b;
+                if (buffered == inBuf.length) {
+                    flushChunk();
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    int n = Math.min(len, inBuf.length - buffered);
+                    System.arraycopy(b, off, inBuf, buffered, n);
+                    buffered += n;
+                    off += n;
+                    len -= n;
+                    if (buffered == inBuf.length) {
+                        flushChunk();
+                    }
+                }
+            }
+
+            private void flushChunk() throws IOException {
+                try {
+                    out.write(outBuf, 0, update(inBuf, 0, buffered));
+                } catch (PKCS11Exception ex) {
+                    throw new IOException(ex);
+                } catch (IOException | RuntimeException ex) {
+                    abort();
+                    throw ex;
+                } finally {
+                    buffered = 0;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    if (buffered > 0) {
+                        flushChunk();
+                    }
+                    out.write(outBuf, 0, doFinal());
+                } catch (IOException | RuntimeException ex) {
+                    abort();
+                    throw ex;
+                } catch (PKCS11Exception ex) {
+                    throw new IOException(ex);
+                } finally {
+                    out.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Wraps a stream so that the data read from it has gone through the
+     * current operation. The operation is completed when {@code source} is
+     * exhausted, and ended when {@code source} fails or the returned stream
+     * is closed before.
+     *
+     * @param source Source of the input data.
+     * @return A stream of the produced data.
+     */
+    public InputStream inputStream(InputStream source) {
+        return new InputStream() {
+            private int pos;
+            private int limit;
+            private boolean finished;
+
+            private boolean fill() throws IOException {
+                while (pos == limit && !finished) {
+                    try {
+                        int read = source.readNBytes(inBuf, 0, inBuf.length);
+                        if (read > 0) {
+                            limit = update(inBuf, 0, read);
+                        } else {
+                            limit = doFinal();
+                            finished = true;
+                        }
+                    } catch (PKCS11Exception ex) {
+                        throw new IOException(ex);
+                    } catch (IOException | RuntimeException ex) {
+                        abort();
+                        throw ex;
+                    }
+                    pos = 0;
+                }
+                return pos < limit;
+            }
+
+            @Override
+            public int read() throws IOException {
+                return fill() ? outBuf[pos++] & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!fill()) {
+                    return -1;
+                }
+                int n = Math.min(len, limit - pos);
+                System.arraycopy(outBuf, pos, b, off, n);
+                pos += n;
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (!finished) {
+                    finished = true;
+                    abort();
+                }
+                source.close();
+            }
+        };
+    }
+
+    /**
+     * Channel counterpart of {@link #outputStream(OutputStream)}.
+     *
+     * @param sink Destination of the produced data.
+     * @return A channel feeding the current operation.
+     */
+    public WritableByteChannel writableChannel(WritableByteChannel sink) {
+        return Channels.newChannel(outputStream(Channels.newOutputStream(sink)));
+    }
+
+    /**
+     * Channel counterpart of {@link #inputStream(InputStream)}.
+     *
+     * @param source Source of the input data.
+     * @return A channel of the produced data.
+     */
+    public ReadableByteChannel readableChannel(ReadableByteChannel source) {
+        return Channels.newChannel(inputStream(Channels.newInputStream(source)));
+    }
+}
@@ -0,0 +1,173 @@
+package civ.kem.algo;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Lazy enumeration of every object matching a template, however many the
+ * token holds.
+ *
+ * <p>
+ * Handles are fetched with {@code C_FindObjects} one page at a time and the
+ * requested attributes of the whole page are read right away, with a single
+ * {@code C_GetAttributeValue} per object. When an object does not allow one
+ * of the attributes to be read, the attributes are read one by one for this
+ * object and the failing ones are left out.</p>
+ *
+ * <p>
+ * The search keeps the session busy until {@link #close()} calls
+ * {@code C_FindObjectsFinal}, so the session must not be used for another
+ * search meanwhile.</p>
+ */
+public class ObjectEnumerator implements Iterator<TokenObject>, AutoCloseable {
+
+    public static final int DEFAULT_PAGE_SIZE = 256;
+
+    private final PKCS11 p11;
+    private final long hSession;
+    private final int pageSize;
+    private final long[] attributeTypes;
+    private final Deque<TokenObject> page = new ArrayDeque<>();
+    private boolean exhausted;
+    private boolean closed;
+
+    /**
+     * Starts a search.
+     *
+     * @param p11 PKCS#11 wrapper instance used to interact with the token.
+     * @param hSession Handle to the open PKCS#11 session associated with the
+     * token.
+     * @param template Cryptoki template the objects must match, empty for all
+     * objects.
+     * @param pageSize Number of handles fetched per {@code C_FindObjects}.
+     * @param attributeTypes Attributes read for every object (e.g., CKA_LABEL,
+     * CKA_ID, CKA_CLASS).
+     * @throws PKCS11Exception If the search cannot be started.
+     */
+    public ObjectEnumerator(PKCS11 p11, long hSession, CK_ATTRIBUTE[] template, int pageSize, long... attributeTypes) throws PKCS11Exception {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+        }
+        this.p11 = p11;
+        this.hSession = hSession;
+        this.pageSize = pageSize;
+        this.attributeTypes = attributeTypes.clone();
+        CryptokiMetrics.run("C_FindObjectsInit", null, hSession, () -> p11.C_FindObjectsInit(hSession, template));
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (page.isEmpty() && !exhausted) {
+            try {
+                fetchPage();
+            } catch (PKCS11Exception ex) {
+                throw new IllegalStateException("Object enumeration failed", ex);
+            }
+        }
+        return !page.isEmpty();
+    }
+
+    @Override
+    public TokenObject next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.poll();
+    }
+
+    private void fetchPage() throws PKCS11Exception {
+        long[] hObjects = CryptokiMetrics.call("C_FindObjects", null, hSession, () -> p11.C_FindObjects(hSession, pageSize));
+        /* a short page does not mean the end: tokens may return fewer handles than asked */
+        if (hObjects.length == 0) {
+            exhausted = true;
+        }
+        for (long hObject : hObjects) {
+            page.add(new TokenObject(hObject, readAttributes(hObject)));
+        }
+        if (exhausted) {
+            close();
+        }
+    }
+
+    private Map<Long, CK_ATTRIBUTE> readAttributes(long hObject) throws PKCS11Exception {
+        Map<Long, CK_ATTRIBUTE> values = new LinkedHashMap<>();
+        if (attributeTypes.length == 0) {
+            return values;
+        }
+        CK_ATTRIBUTE[] attrs = template();
+        try {
+            CryptokiMetrics.run("C_GetAttributeValue", null, hSession, () -> p11.C_GetAttributeValue(hSession, hObject, attrs));
+            for (CK_ATTRIBUTE attr : attrs) {
+                values.put(attr.type, attr);
+            }
+        } catch (PKCS11Exception ex) {
+            if (!isUnreadable(ex)) {
+                throw ex;
+            }
+            for (long type : attributeTypes) {
+                CK_ATTRIBUTE[] single = {new CK_ATTRIBUTE(type)};
+                try {
+                    CryptokiMetrics.run("C_GetAttributeValue", null, hSession, () -> p11.C_GetAttributeValue(hSession, hObject, single));
+                    values.put(type, single[0]);
+                } catch (PKCS11Exception inner) {
+                    if (!isUnreadable(inner)) {
+                        throw inner;
+                    }
+                }
+            }
+        }
+        return values;
+    }
+
+    private CK_ATTRIBUTE[] template() {
+        CK_ATTRIBUTE[] attrs = new CK_ATTRIBUTE[attributeTypes.length];
+        for (int i = 0; i < attrs.length; i++) {
+            attrs[i] = new CK_ATTRIBUTE(attributeTypes[i]);
+        }
+        return attrs;
+    }
+
+    private static boolean isUnreadable(PKCS11Exception ex) {
+        long rv = ex.getErrorCode();
+        return rv == ReturnCodes.CKR_ATTRIBUTE_SENSITIVE || rv == ReturnCodes.CKR_ATTRIBUTE_TYPE_INVALID;
+    }
+
+    /**
+     * Returns the remaining objects as a lazy stream. Closing the stream
+     * terminates the search.
+     */
+    public Stream<TokenObject> stream() {
+        Spliterator<TokenObject> spliterator = Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.DISTINCT);
+        return StreamSupport.stream(spliterator, false).onClose(() -> {
+            try {
+                close();
+            } catch (PKCS11Exception ex) {
+                throw new IllegalStateException("Cannot terminate the object search", ex);
+            }
+        });
+    }
+
+    /**
+     * Terminates the search. Objects already fetched remain available.
+     */
+    @Override
+    public void close() throws PKCS11Exception {
+        if (!closed) {
+            closed = true;
+            exhausted = true;
+            CryptokiMetrics.run("C_FindObjectsFinal", null, hSession, () -> p11.C_FindObjectsFinal(hSession));
+        }
+    }
+}
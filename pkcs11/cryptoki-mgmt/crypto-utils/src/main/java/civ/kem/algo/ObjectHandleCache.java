@@ -0,0 +1,269 @@
+package civ.kem.algo;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+
+/**
+ * Cache of the object handles found by {@link ManageObjects#find}, keyed by
+ * the search template (label, CKA_ID, class, key type...).
+ *
+ * <p>
+ * Entries expire after a time-to-live and the least recently used entries
+ * are dropped beyond the size bound. {@link ManageObjects} invalidates the
+ * entries concerned when it destroys or creates objects. {@link SessionPool}
+ * drops the session objects when it closes a session, since they may have
+ * been destroyed with it, and the whole cache on login changes. Handles are
+ * only meaningful on one slot, so a cache must not be shared between
+ * slots.</p>
+ *
+ * <p>
+ * A search may race with the destruction of the object it finds. Every
+ * invalidation moves the cache to a new generation, and a handle is only
+ * stored if no invalidation happened since the search started, see
+ * {@link #stamp()}.</p>
+ *
+ * <p>
+ * The cache is thread-safe.</p>
+ */
+public class ObjectHandleCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+    public static final long DEFAULT_TTL_MILLIS = 5 * 60 * 1000L;
+
+    private static final class Key {
+
+        final String canonical;
+        final Map<Long, String> values;
+
+        Key(Map<Long, String> values) {
+            this.values = values;
+            this.canonical = values.toString();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && canonical.equals(((Key) other).canonical);
+        }
+
+        @Override
+        public int hashCode() {
+            return canonical.hashCode();
+        }
+    }
+
+    private static final class Entry {
+
+        final long hObject;
+        final boolean sessionObject;
+        final long expiresAt;
+
+        Entry(long hObject, boolean sessionObject, long expiresAt) {
+            this.hObject = hObject;
+            this.sessionObject = sessionObject;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final long ttlNanos;
+    private final LinkedHashMap<Key, Entry> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    /* guarded by entries */
+    private long generation;
+
+    /**
+     * Creates a cache with the default bounds.
+     */
+    public ObjectHandleCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxEntries Largest number of templates remembered.
+     * @param ttlMillis Time after which an entry is searched again.
+     */
+    public ObjectHandleCache(int maxEntries, long ttlMillis) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Looks up the handle found earlier for a template.
+     *
+     * @param template The search template.
+     * @return The cached handle, or 0 (CK_INVALID_HANDLE) on a miss.
+     */
+    public long get(CK_ATTRIBUTE[] template) {
+        Key key = keyOf(template);
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && System.nanoTime() - entry.expiresAt < 0) {
+                hits.incrementAndGet();
+                return entry.hObject;
+            }
+            if (entry != null) {
+                entries.remove(key);
+            }
+        }
+        misses.incrementAndGet();
+        return 0L;
+    }
+
+    /**
+     * Returns the current generation of the cache, to be taken before a
+     * search and passed to {@link #put}.
+     *
+     * @return The generation.
+     */
+    public long stamp() {
+        synchronized (entries) {
+            return generation;
+        }
+    }
+
+    /**
+     * Remembers the handle found for a template, unless an invalidation
+     * happened since {@code stamp} was taken: the handle may then belong to
+     * a destroyed object, or the search may now find another one.
+     *
+     * @param template The search template.
+     * @param hObject The handle of the object found.
+     * @param sessionObject Whether the object is a session object, which
+     * disappears with the session that created it.
+     * @param stamp The generation returned by {@link #stamp()} before the
+     * search.
+     * @return {@code true} if the handle was stored.
+     */
+    public boolean put(CK_ATTRIBUTE[] template, long hObject, boolean sessionObject, long stamp) {
+        Key key = keyOf(template);
+        synchronized (entries) {
+            if (stamp != generation) {
+                return false;
+            }
+            entries.put(key, new Entry(hObject, sessionObject, System.nanoTime() + ttlNanos));
+            return true;
+        }
+    }
+
+    /**
+     * Drops the entries pointing to a destroyed object.
+     *
+     * @param hObject The handle of the object.
+     */
+    public void invalidate(long hObject) {
+        synchronized (entries) {
+            generation++;
+            entries.values().removeIf(entry -> entry.hObject == hObject);
+        }
+    }
+
+    /**
+     * Drops the entries pointing to session objects, e.g. when a session is
+     * closed. Token objects are not affected.
+     */
+    public void invalidateSessionObjects() {
+        synchronized (entries) {
+            generation++;
+            entries.values().removeIf(entry -> entry.sessionObject);
+        }
+    }
+
+    /**
+     * Drops the entries whose search could now return a new object. An entry
+     * is kept only when one of its search attributes is set to a different
+     * value in the template of the new object.
+     *
+     * @param newObjectTemplate The template the new object was created with.
+     */
+    public void invalidateMatching(CK_ATTRIBUTE[] newObjectTemplate) {
+        Map<Long, String> created = keyOf(newObjectTemplate).values;
+        synchronized (entries) {
+            generation++;
+            Iterator<Key> it = entries.keySet().iterator();
+            while (it.hasNext()) {
+                boolean conflict = false;
+                for (Map.Entry<Long, String> attr : it.next().values.entrySet()) {
+                    String value = created.get(attr.getKey());
+                    if (value != null && !value.equals(attr.getValue())) {
+                        conflict = true;
+                        break;
+                    }
+                }
+                if (!conflict) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops every entry.
+     */
+    public void invalidateAll() {
+        synchronized (entries) {
+            generation++;
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static Key keyOf(CK_ATTRIBUTE[] template) {
+        Map<Long, String> values = new TreeMap<>();
+        if (template != null) {
+            for (CK_ATTRIBUTE attr : template) {
+                values.put(attr.type, encode(attr.pValue));
+            }
+        }
+        return new Key(values);
+    }
+
+    private static String encode(Object value) {
+        byte[] bytes;
+        if (value == null) {
+            bytes = new byte[0];
+        } else if (value instanceof byte[]) {
+            bytes = (byte[]) value;
+        } else if (value instanceof Boolean) {
+            bytes = new byte[]{(byte) (((Boolean) value) ? 1 : 0)};
+        } else if (value instanceof Long) {
+            bytes = ByteBuffer.allocate(Long.BYTES).putLong((Long) value).array();
+        } else if (value instanceof BigInteger) {
+            bytes = ((BigInteger) value).toByteArray();
+        } else if (value instanceof char[]) {
+            bytes = new String((char[]) value).getBytes(StandardCharsets.UTF_8);
+        } else {
+            bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        return HexFormat.of().formatHex(bytes);
+    }
+}
@@ -0,0 +1,109 @@
+package civ.kem.algo;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Call count, errors and latencies of one Cryptoki function, mechanism or
+ * slot, as recorded by {@link CryptokiMetrics}.
+ */
+public class OperationStats implements OperationStatsMBean {
+
+    private final String name;
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final Map<Long, LongAdder> errorCodes = new ConcurrentHashMap<>();
+    private final Map<Long, String> errorNames = new ConcurrentHashMap<>();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    OperationStats(String name) {
+        this.name = name;
+    }
+
+    void record(long nanos) {
+        calls.increment();
+        latencies.record(nanos);
+    }
+
+    void recordError(long nanos, long errorCode, String errorName) {
+        record(nanos);
+        errors.increment();
+        errorCodes.computeIfAbsent(errorCode, code -> new LongAdder()).increment();
+        if (errorName != null) {
+            errorNames.putIfAbsent(errorCode, errorName);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    /**
+     * Returns the count of each CKR_* code, e.g.
+     * {@code CKR_SIGNATURE_INVALID=3}. Errors that are not
+     * {@code PKCS11Exception}s are reported as {@code other}.
+     */
+    @Override
+    public String getErrorCodes() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Long, LongAdder> entry : new TreeMap<>(errorCodes).entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            long code = entry.getKey();
+            String label = code < 0 ? "other" : errorNames.getOrDefault(code, String.format("0x%08X", code));
+            sb.append(label).append('=').append(entry.getValue().sum());
+        }
+        return sb.toString();
+    }
+
+    public LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    @Override
+    public double getMeanMicros() {
+        return latencies.getMean() / 1000.0;
+    }
+
+    @Override
+    public double getP50Micros() {
+        return latencies.getPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getP99Micros() {
+        return latencies.getPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getP999Micros() {
+        return latencies.getPercentile(99.9) / 1000.0;
+    }
+
+    @Override
+    public double getMaxMicros() {
+        return latencies.getMax() / 1000.0;
+    }
+
+    @Override
+    public void reset() {
+        calls.reset();
+        errors.reset();
+        errorCodes.clear();
+        latencies.reset();
+    }
+}
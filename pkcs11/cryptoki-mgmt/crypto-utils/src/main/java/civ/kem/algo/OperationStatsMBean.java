@@ -0,0 +1,27 @@
+package civ.kem.algo;
+
+/**
+ * JMX view of an {@link OperationStats}.
+ */
+public interface OperationStatsMBean {
+
+    String getName();
+
+    long getCalls();
+
+    long getErrors();
+
+    String getErrorCodes();
+
+    double getMeanMicros();
+
+    double getP50Micros();
+
+    double getP99Micros();
+
+    double getP999Micros();
+
+    double getMaxMicros();
+
+    void reset();
+}
@@ -0,0 +1,168 @@
+package civ.kem.algo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Helpers shared by the classes that spread work over the sessions of one or
+ * more {@link SessionPool}s: daemon worker threads, a work-stealing loop over
+ * the items of a list, and unwrapping of the exceptions thrown by the
+ * workers.
+ */
+public final class ParallelSessions {
+
+    /**
+     * Work on one item, identified by its index.
+     */
+    @FunctionalInterface
+    public interface IndexTask {
+
+        void run(int index) throws Exception;
+    }
+
+    /**
+     * Work on one item, on a session borrowed for the worker.
+     */
+    @FunctionalInterface
+    public interface SessionIndexTask {
+
+        void run(long hSession, int index) throws Exception;
+    }
+
+    /**
+     * Hands out the indexes of a list of items to workers, one index at a
+     * time, so that a slow item does not hold back the others. Workers can be
+     * started on several executors, e.g. one per slot.
+     */
+    public static final class WorkQueue {
+
+        private final int count;
+        private final AtomicInteger next = new AtomicInteger();
+        private final List<Future<?>> workers = new ArrayList<>();
+
+        /**
+         * @param count Number of items; the indexes go from 0 to
+         * {@code count - 1}.
+         */
+        public WorkQueue(int count) {
+            this.count = count;
+        }
+
+        /**
+         * Starts a worker running {@code task} for the indexes it claims.
+         *
+         * @param executor Executor running the worker.
+         * @param task Work on one item.
+         */
+        public void start(ExecutorService executor, IndexTask task) {
+            submit(executor, () -> {
+                for (int i = next.getAndIncrement(); i < count; i = next.getAndIncrement()) {
+                    task.run(i);
+                }
+                return null;
+            });
+        }
+
+        /**
+         * Starts a worker that borrows one session of {@code pool} and runs
+         * {@code task} on it for the indexes it claims. A session lost by the
+         * token is discarded by the pool, see {@link SessionPool#execute}.
+         *
+         * @param executor Executor running the worker.
+         * @param pool Pool lending the session.
+         * @param task Work on one item.
+         */
+        public void start(ExecutorService executor, SessionPool pool, SessionIndexTask task) {
+            submit(executor, () -> pool.execute(hSession -> {
+                for (int i = next.getAndIncrement(); i < count; i = next.getAndIncrement()) {
+                    task.run(hSession, i);
+                }
+                return null;
+            }));
+        }
+
+        /* a failed worker stops the others from claiming new indexes at once */
+        private void submit(ExecutorService executor, Callable<?> worker) {
+            workers.add(executor.submit(() -> {
+                try {
+                    return worker.call();
+                } catch (Exception | Error ex) {
+                    next.set(count);
+                    throw ex;
+                }
+            }));
+        }
+
+        /**
+         * Waits for every worker. As soon as a worker fails no new index is
+         * claimed, the items in progress on the other workers are completed,
+         * and the first failure is thrown once all the workers have
+         * stopped.
+         *
+         * @throws Exception The first failure of a worker.
+         */
+        public void await() throws Exception {
+            Exception failure = null;
+            for (Future<?> worker : workers) {
+                try {
+                    worker.get();
+                } catch (ExecutionException ex) {
+                    if (failure == null) {
+                        failure = unwrap(ex);
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    private ParallelSessions() {
+    }
+
+    /**
+     * Returns a factory of daemon threads, so that the workers never keep the
+     * JVM alive.
+     *
+     * @param name Name of the threads, e.g. {@code "batch-signer-" + slotId}.
+     * @return The thread factory.
+     */
+    public static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Creates a fixed pool of daemon threads.
+     *
+     * @param threads Number of threads.
+     * @param name Name of the threads.
+     * @return The executor.
+     */
+    public static ExecutorService newDaemonPool(int threads, String name) {
+        return Executors.newFixedThreadPool(threads, daemonThreads(name));
+    }
+
+    /**
+     * Returns the exception a task failed with, from the
+     * {@link ExecutionException} or
+     * {@link java.util.concurrent.CompletionException} wrapping it.
+     *
+     * @param ex The wrapping exception.
+     * @return Its cause if it is an {@link Exception}, {@code ex} otherwise.
+     */
+    public static Exception unwrap(Exception ex) {
+        return ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+    }
+}
@@ -0,0 +1,121 @@
+package civ.kem.algo;
+
+import java.math.BigInteger;
+import java.security.AlgorithmParameters;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Arrays;
+
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+
+/**
+ * Exports public keys held on a token to the JCA, so that signatures can be
+ * checked in software without a round trip to the token.
+ */
+public class PublicKeys {
+
+    /**
+     * Reads a RSA or EC public key from the token.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param hSession Handle to an open PKCS#11 session.
+     * @param hPublicKey Handle of the public key.
+     * @return The public key as a JCA object.
+     * @throws Exception If the key type is not supported or its attributes
+     * cannot be read.
+     */
+    public static PublicKey export(PKCS11 p11, long hSession, long hPublicKey) throws Exception {
+        CK_ATTRIBUTE[] keyType = {
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_KEY_TYPE)
+        };
+        CryptokiMetrics.run("C_GetAttributeValue", null, hSession, () -> p11.C_GetAttributeValue(hSession, hPublicKey, keyType));
+
+        long type = keyType[0].getLong();
+        if (type == PKCS11Constants.CKK_RSA) {
+            CK_ATTRIBUTE[] attrs = {
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_MODULUS),
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_PUBLIC_EXPONENT)
+            };
+            CryptokiMetrics.run("C_GetAttributeValue", null, hSession, () -> p11.C_GetAttributeValue(hSession, hPublicKey, attrs));
+            RSAPublicKeySpec spec = new RSAPublicKeySpec(attrs[0].getBigInteger(), attrs[1].getBigInteger());
+            return KeyFactory.getInstance("RSA").generatePublic(spec);
+        } else if (type == PKCS11Constants.CKK_EC) {
+            CK_ATTRIBUTE[] attrs = {
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_EC_PARAMS),
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_EC_POINT)
+            };
+            CryptokiMetrics.run("C_GetAttributeValue", null, hSession, () -> p11.C_GetAttributeValue(hSession, hPublicKey, attrs));
+            AlgorithmParameters params = AlgorithmParameters.getInstance("EC");
+            params.init(attrs[0].getByteArray());
+            ECParameterSpec spec = params.getParameterSpec(ECParameterSpec.class);
+            ECPoint point = decodePoint(attrs[1].getByteArray(), spec);
+            return KeyFactory.getInstance("EC").generatePublic(new ECPublicKeySpec(point, spec));
+        }
+        throw new Exception("Unsupported key type: " + type);
+    }
+
+    /**
+     * Decodes an uncompressed EC point, either raw or wrapped in the DER
+     * OCTET STRING used for {@code CKA_EC_POINT}.
+     */
+    static ECPoint decodePoint(byte[] encoded, ECParameterSpec spec) throws Exception {
+        int fieldLen = (spec.getCurve().getField().getFieldSize() + 7) / 8;
+        byte[] point = encoded;
+        if (encoded.length != 2 * fieldLen + 1 && encoded.length > 2 && encoded[0] == 0x04) {
+            /* DER OCTET STRING: tag, length (short or long form), value */
+            int off = 2;
+            if ((encoded[1] & 0x80) != 0) {
+                off += encoded[1] & 0x7F;
+            }
+            point = Arrays.copyOfRange(encoded, off, encoded.length);
+        }
+        if (point.length != 2 * fieldLen + 1 || point[0] != 0x04) {
+            throw new Exception("Only uncompressed EC points are supported");
+        }
+        BigInteger x = new BigInteger(1, Arrays.copyOfRange(point, 1, 1 + fieldLen));
+        BigInteger y = new BigInteger(1, Arrays.copyOfRange(point, 1 + fieldLen, point.length));
+        return new ECPoint(x, y);
+    }
+
+    /**
+     * Returns the JCA signature algorithm equivalent to a PKCS#11 signing
+     * mechanism. ECDSA algorithms use the raw r||s format of PKCS#11.
+     *
+     * @param mechanism The signing mechanism (e.g., CKM_ECDSA_SHA256).
+     * @return The JCA algorithm name, or {@code null} if there is none.
+     */
+    public static String signatureAlgorithm(long mechanism) {
+        if (mechanism == PKCS11Constants.CKM_RSA_PKCS) {
+            return "NONEwithRSA";
+        } else if (mechanism == PKCS11Constants.CKM_SHA1_RSA_PKCS) {
+            return "SHA1withRSA";
+        } else if (mechanism == PKCS11Constants.CKM_SHA224_RSA_PKCS) {
+            return "SHA224withRSA";
+        } else if (mechanism == PKCS11Constants.CKM_SHA256_RSA_PKCS) {
+            return "SHA256withRSA";
+        } else if (mechanism == PKCS11Constants.CKM_SHA384_RSA_PKCS) {
+            return "SHA384withRSA";
+        } else if (mechanism == PKCS11Constants.CKM_SHA512_RSA_PKCS) {
+            return "SHA512withRSA";
+        } else if (mechanism == PKCS11Constants.CKM_ECDSA) {
+            return "NONEwithECDSAinP1363Format";
+        } else if (mechanism == PKCS11Constants.CKM_ECDSA_SHA1) {
+            return "SHA1withECDSAinP1363Format";
+        } else if (mechanism == PKCS11Constants.CKM_ECDSA_SHA224) {
+            return "SHA224withECDSAinP1363Format";
+        } else if (mechanism == PKCS11Constants.CKM_ECDSA_SHA256) {
+            return "SHA256withECDSAinP1363Format";
+        } else if (mechanism == PKCS11Constants.CKM_ECDSA_SHA384) {
+            return "SHA384withECDSAinP1363Format";
+        } else if (mechanism == PKCS11Constants.CKM_ECDSA_SHA512) {
+            return "SHA512withECDSAinP1363Format";
+        }
+        return null;
+    }
+}
@@ -8,16 +8,19 @@ import sun.security.pkcs11.wrapper.PKCS11Constants;
 public class Random {
 
     /**
-     * Encrypts data using AES or another symmetric encryption algorithm.
+     * Fills a buffer with random bytes generated by the token. Each call is a
+     * round trip to the token; {@link RandomPool} serves small requests from
+     * memory instead.
      *
      * @param p11 PKCS#11 wrapper instance.
      * @param hSession Handle to the active PKCS#11 session.
-     * @param randomData The random data to be generated.
-     * @param randomDataLength The length of the data to be generated.
-     * @throws Exception If an error occurs during encryption.
+     * @param randomData The buffer receiving the random data.
+     * @param randomDataLength The length of the data to be generated; the
+     * whole buffer is filled.
+     * @throws Exception If an error occurs during generation.
      */
     public static void generateRandomData(PKCS11 p11, long hSession, byte[] randomData, long randomDataLength) throws Exception {
-        p11.C_GenerateRandom(hSession, randomData);
+        CryptokiMetrics.run("C_GenerateRandom", null, hSession, () -> p11.C_GenerateRandom(hSession, randomData));
     }
 
     /**
@@ -34,7 +37,7 @@ public class Random {
      * @throws Exception if the seeding operation fails.
      */
     public static void seedRandom(PKCS11 p11, long hSession, byte[] seed) throws Exception {
-        p11.C_SeedRandom(hSession, seed);
+        CryptokiMetrics.run("C_SeedRandom", null, hSession, () -> p11.C_SeedRandom(hSession, seed));
     }
 
     public static void main(String[] args) throws Exception {
@@ -42,7 +45,7 @@ public class Random {
         long hSession = Utils.openSession(p11, 2, PKCS11Constants.CKF_RW_SESSION | PKCS11Constants.CKF_SERIAL_SESSION);
 
         byte[] randomData = new byte[20];
-        generateRandomData(p11, hSession, randomData, hSession);
+        generateRandomData(p11, hSession, randomData, randomData.length);
         Utils.println("Random value: " + HexFormat.of().formatHex(randomData));
 
         String seed = "deadbeefdeadbeef";
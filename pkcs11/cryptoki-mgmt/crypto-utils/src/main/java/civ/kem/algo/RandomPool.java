@@ -0,0 +1,336 @@
+package civ.kem.algo;
+
+import java.security.Provider;
+import java.security.ProviderException;
+import java.security.SecureRandom;
+import java.security.SecureRandomSpi;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Buffer of random bytes generated by the token, serving small requests
+ * (nonces, IVs, salts) from memory.
+ *
+ * <p>
+ * Random data is fetched from the token in blocks with
+ * {@link Random#generateRandomData}. While one block is served, the next one
+ * is fetched by a background thread, so callers only wait for the token when
+ * they drain the buffer faster than it is refilled; the wait happens outside
+ * the lock of the pool, so it never holds back the other callers. Requests of
+ * a block or more bypass the buffer. Served bytes are zeroed in the
+ * buffer.</p>
+ *
+ * <p>
+ * The token generator can be reseeded explicitly with {@link #seed(byte[])},
+ * which also discards the buffered bytes, or periodically after a number of
+ * bytes served, see {@link #setReseed(long, Supplier)}.
+ * {@link #asSecureRandom()} exposes the pool through the JCA.</p>
+ *
+ * <p>
+ * The pool is thread-safe.</p>
+ */
+public class RandomPool implements AutoCloseable {
+
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    private static final Provider PROVIDER = new Provider("CryptokiRandomPool", "1.0", "PKCS#11 token random pool") {
+    };
+
+    private final SessionPool pool;
+    private final int blockSize;
+    private final ExecutorService refiller;
+
+    private byte[] current = new byte[0];
+    private int position;
+    private Future<byte[]> next;
+    private volatile boolean closed;
+
+    private volatile long reseedIntervalBytes;
+    private volatile Supplier<byte[]> seedSource;
+    private long servedSinceSeed;
+
+    private final AtomicLong bytesServed = new AtomicLong();
+    private final AtomicLong blocksFetched = new AtomicLong();
+    private final AtomicLong reseedCount = new AtomicLong();
+
+    /**
+     * Creates a pool with the default block size.
+     *
+     * @param pool Pool of sessions on the slot generating the random data.
+     */
+    public RandomPool(SessionPool pool) {
+        this(pool, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates a pool and starts fetching its first block.
+     *
+     * @param pool Pool of sessions on the slot generating the random data.
+     * @param blockSize Number of bytes fetched from the token at once.
+     */
+    public RandomPool(SessionPool pool, int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+        }
+        this.pool = pool;
+        this.blockSize = blockSize;
+        this.refiller = Executors.newSingleThreadExecutor(ParallelSessions.daemonThreads("random-pool-" + pool.getSlotId()));
+        this.next = refiller.submit(() -> fetch(blockSize));
+    }
+
+    /**
+     * Configures the periodic reseed of the token generator.
+     *
+     * @param intervalBytes Number of bytes served between two reseeds, 0 to
+     * disable.
+     * @param seedSource Supplier of the seed values.
+     */
+    public void setReseed(long intervalBytes, Supplier<byte[]> seedSource) {
+        this.seedSource = seedSource;
+        this.reseedIntervalBytes = intervalBytes;
+    }
+
+    /**
+     * Fills a buffer with random bytes.
+     *
+     * @param randomData The buffer to fill.
+     * @throws Exception If random data cannot be fetched from the token.
+     */
+    public void nextBytes(byte[] randomData) throws Exception {
+        if (randomData.length >= blockSize) {
+            checkOpen();
+            pool.execute(hSession -> {
+                Random.generateRandomData(pool.getP11(), hSession, randomData, randomData.length);
+                return null;
+            });
+        } else {
+            int off = 0;
+            while (true) {
+                Future<byte[]> pending;
+                synchronized (this) {
+                    checkOpen();
+                    int n = Math.min(randomData.length - off, current.length - position);
+                    System.arraycopy(current, position, randomData, off, n);
+                    Arrays.fill(current, position, position + n, (byte) 0);
+                    position += n;
+                    off += n;
+                    if (off == randomData.length) {
+                        break;
+                    }
+                    pending = next;
+                }
+                byte[] block = await(pending);
+                synchronized (this) {
+                    /* unless another caller installed it already, or a seed discarded it */
+                    if (block != null && next == pending && !closed) {
+                        current = block;
+                        position = 0;
+                        next = refiller.submit(() -> fetch(blockSize));
+                    } else if (block != null && block != current) {
+                        Arrays.fill(block, (byte) 0);
+                    }
+                }
+            }
+        }
+        bytesServed.addAndGet(randomData.length);
+        scheduleReseed(randomData.length);
+    }
+
+    /**
+     * Returns new random bytes.
+     *
+     * @param length Number of bytes.
+     * @return The random bytes.
+     * @throws Exception If random data cannot be fetched from the token.
+     */
+    public byte[] nextBytes(int length) throws Exception {
+        byte[] randomData = new byte[length];
+        nextBytes(randomData);
+        return randomData;
+    }
+
+    /**
+     * Mixes a seed into the token generator with {@link Random#seedRandom}
+     * and discards the bytes buffered before it.
+     *
+     * @param seed The seed value.
+     * @throws Exception If the token rejects the seed.
+     */
+    public void seed(byte[] seed) throws Exception {
+        pool.execute(hSession -> {
+            Random.seedRandom(pool.getP11(), hSession, seed);
+            return null;
+        });
+        reseedCount.incrementAndGet();
+        synchronized (this) {
+            checkOpen();
+            Arrays.fill(current, (byte) 0);
+            position = current.length;
+            next.cancel(false);
+            next = refiller.submit(() -> fetch(blockSize));
+            servedSinceSeed = 0;
+        }
+    }
+
+    private void scheduleReseed(int served) {
+        long interval = reseedIntervalBytes;
+        Supplier<byte[]> source = seedSource;
+        if (interval <= 0 || source == null) {
+            return;
+        }
+        synchronized (this) {
+            servedSinceSeed += served;
+            if (servedSinceSeed < interval || closed) {
+                return;
+            }
+            servedSinceSeed = 0;
+            /* runs on the refill thread, before the blocks requested later */
+            refiller.execute(() -> {
+                try {
+                    pool.execute(hSession -> {
+                        Random.seedRandom(pool.getP11(), hSession, source.get());
+                        return null;
+                    });
+                    reseedCount.incrementAndGet();
+                } catch (PKCS11Exception ex) {
+                    if (ex.getErrorCode() != ReturnCodes.CKR_RANDOM_SEED_NOT_SUPPORTED) {
+                        Utils.println("Reseed of the random pool failed: " + ex.getMessage());
+                    }
+                } catch (Exception ex) {
+                    Utils.println("Reseed of the random pool failed: " + ex.getMessage());
+                }
+            });
+        }
+    }
+
+    /* waits without holding the lock; null if the block was cancelled by a seed or a close */
+    private byte[] await(Future<byte[]> pending) throws Exception {
+        try {
+            return pending.get();
+        } catch (CancellationException ex) {
+            return null;
+        } catch (ExecutionException ex) {
+            synchronized (this) {
+                if (next == pending && !closed) {
+                    next = refiller.submit(() -> fetch(blockSize));
+                }
+            }
+            throw ParallelSessions.unwrap(ex);
+        }
+    }
+
+    private byte[] fetch(int length) throws Exception {
+        byte[] block = new byte[length];
+        pool.execute(hSession -> {
+            Random.generateRandomData(pool.getP11(), hSession, block, length);
+            return null;
+        });
+        blocksFetched.incrementAndGet();
+        return block;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Random pool is closed");
+        }
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public long getBytesServed() {
+        return bytesServed.get();
+    }
+
+    public long getBlocksFetched() {
+        return blocksFetched.get();
+    }
+
+    public long getReseedCount() {
+        return reseedCount.get();
+    }
+
+    /**
+     * Returns a {@link SecureRandom} drawing from this pool. Seeding it with
+     * {@code setSeed} reseeds the token generator; {@code generateSeed} reads
+     * directly from the token.
+     *
+     * @return A new {@link SecureRandom} backed by the pool.
+     */
+    public SecureRandom asSecureRandom() {
+        return new SecureRandom(new Spi(this), PROVIDER) {
+        };
+    }
+
+    /**
+     * Stops the refill thread and zeroes the buffered bytes; the session pool
+     * is left open.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            next.cancel(false);
+            Arrays.fill(current, (byte) 0);
+            position = current.length;
+        }
+        refiller.shutdown();
+        refiller.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    private static final class Spi extends SecureRandomSpi {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient RandomPool randomPool;
+
+        Spi(RandomPool randomPool) {
+            this.randomPool = randomPool;
+        }
+
+        @Override
+        protected void engineSetSeed(byte[] seed) {
+            try {
+                randomPool.seed(seed);
+            } catch (Exception ex) {
+                throw new ProviderException("Cannot seed the token generator", ex);
+            }
+        }
+
+        @Override
+        protected void engineNextBytes(byte[] bytes) {
+            try {
+                randomPool.nextBytes(bytes);
+            } catch (Exception ex) {
+                throw new ProviderException("Cannot generate random data", ex);
+            }
+        }
+
+        @Override
+        protected byte[] engineGenerateSeed(int numBytes) {
+            byte[] seed = new byte[numBytes];
+            try {
+                randomPool.pool.execute(hSession -> {
+                    Random.generateRandomData(randomPool.pool.getP11(), hSession, seed, numBytes);
+                    return null;
+                });
+            } catch (Exception ex) {
+                throw new ProviderException("Cannot generate a seed", ex);
+            }
+            return seed;
+        }
+    }
+}
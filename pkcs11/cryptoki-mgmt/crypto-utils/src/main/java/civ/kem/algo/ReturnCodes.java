@@ -0,0 +1,23 @@
+package civ.kem.algo;
+
+/**
+ * Cryptoki return values (CKR_*) used to classify {@code PKCS11Exception}
+ * error codes. The JDK wrapper only exposes a handful of them publicly.
+ */
+public class ReturnCodes {
+
+    public static final long CKR_ATTRIBUTE_SENSITIVE = 0x00000011L;
+    public static final long CKR_ATTRIBUTE_TYPE_INVALID = 0x00000012L;
+    public static final long CKR_DEVICE_ERROR = 0x00000030L;
+    public static final long CKR_DEVICE_MEMORY = 0x00000031L;
+    public static final long CKR_DEVICE_REMOVED = 0x00000032L;
+    public static final long CKR_OPERATION_ACTIVE = 0x00000090L;
+    public static final long CKR_SESSION_CLOSED = 0x000000B0L;
+    public static final long CKR_SESSION_HANDLE_INVALID = 0x000000B3L;
+    public static final long CKR_SIGNATURE_INVALID = 0x000000C0L;
+    public static final long CKR_SIGNATURE_LEN_RANGE = 0x000000C1L;
+    public static final long CKR_TOKEN_NOT_PRESENT = 0x000000E0L;
+    public static final long CKR_USER_ALREADY_LOGGED_IN = 0x00000100L;
+    public static final long CKR_USER_NOT_LOGGED_IN = 0x00000101L;
+    public static final long CKR_RANDOM_SEED_NOT_SUPPORTED = 0x00000120L;
+}
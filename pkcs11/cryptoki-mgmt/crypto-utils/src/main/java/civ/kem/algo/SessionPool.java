@@ -0,0 +1,509 @@
+package civ.kem.algo;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import sun.security.pkcs11.wrapper.CK_SESSION_INFO;
+import sun.security.pkcs11.wrapper.CK_TOKEN_INFO;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Bounded pool of PKCS#11 sessions opened on a single slot.
+ *
+ * <p>
+ * Sessions are opened lazily through {@link Utils#openSession} up to the pool
+ * size, handed out with {@link #borrow()} and given back with
+ * {@link #release(long)}. Every borrowed session is checked with
+ * {@code C_GetSessionInfo} first, so a session closed or reset by the token is
+ * replaced transparently. Sessions left idle longer than the idle timeout are
+ * closed on the next release or {@link #evictIdle()} call.</p>
+ *
+ * <p>
+ * In PKCS#11 the login state belongs to the application, not to a session:
+ * once one session is logged in, all sessions on the token are. The pool keeps
+ * the credentials given to {@link #login(long, char[])} so that the state can
+ * be restored when the token dropped it (for instance after every session has
+ * been closed).</p>
+ *
+ * <p>
+ * Each pool owns the {@link ObjectHandleCache} of its slot. The cache is
+ * cleared whenever the login state changes or a session is closed, since
+ * session objects disappear with the session that created them.</p>
+ *
+ * <p>
+ * The pool is thread-safe. Concurrent use of the borrowed sessions requires a
+ * library initialized with
+ * {@link Utils#setMultiThreadedCryptokiFunctions()}.</p>
+ */
+public class SessionPool implements SessionPoolMBean, AutoCloseable {
+
+    /**
+     * Pool size used when the token does not report a session limit.
+     */
+    public static final int DEFAULT_MAX_SESSIONS = 16;
+
+    /**
+     * Default time after which an idle session gets closed.
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60_000L;
+
+    /**
+     * Unit of work run against a borrowed session.
+     *
+     * @param <T> type of the result.
+     */
+    @FunctionalInterface
+    public interface SessionTask<T> {
+
+        T run(long hSession) throws Exception;
+    }
+
+    private static class PooledSession {
+
+        final long hSession;
+        long lastUsed;
+
+        PooledSession(long hSession) {
+            this.hSession = hSession;
+            this.lastUsed = System.nanoTime();
+        }
+    }
+
+    private final PKCS11 p11;
+    private final long slotId;
+    private final long flags;
+    private final int maxSize;
+    private final long idleTimeoutNanos;
+    private final Semaphore permits;
+
+    /* most recently released first, so cold sessions age out at the tail */
+    private final Deque<PooledSession> idle = new ArrayDeque<>();
+    private final Map<Long, PooledSession> borrowed = new ConcurrentHashMap<>();
+    private int openCount;
+    private final ObjectHandleCache handleCache = new ObjectHandleCache();
+
+    private final Object loginLock = new Object();
+    private long userType;
+    private char[] pin;
+    private volatile boolean loggedIn;
+    private volatile boolean closed;
+
+    /**
+     * Creates a pool of sessions on the given slot.
+     *
+     * @param p11 The PKCS#11 cryptoki library interface.
+     * @param slotId Identifier of the token slot.
+     * @param flags Session flags (e.g., CKF_SERIAL_SESSION, CKF_RW_SESSION).
+     * @param maxSize Maximum number of sessions opened at the same time.
+     * @param idleTimeoutMillis Time after which an idle session is closed.
+     */
+    public SessionPool(PKCS11 p11, long slotId, long flags, int maxSize, long idleTimeoutMillis) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Pool size must be positive: " + maxSize);
+        }
+        this.p11 = p11;
+        this.slotId = slotId;
+        this.flags = flags | PKCS11Constants.CKF_SERIAL_SESSION;
+        this.maxSize = maxSize;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.permits = new Semaphore(maxSize, true);
+        CryptokiMetrics.poolOpened(this);
+    }
+
+    /**
+     * Creates a pool sized after the session limits reported by the token in
+     * {@code CK_TOKEN_INFO}.
+     *
+     * @param p11 The PKCS#11 cryptoki library interface.
+     * @param slotId Identifier of the token slot.
+     * @param flags Session flags (e.g., CKF_SERIAL_SESSION, CKF_RW_SESSION).
+     * @return A new session pool.
+     * @throws Exception if the token information cannot be read.
+     */
+    public static SessionPool forSlot(PKCS11 p11, long slotId, long flags) throws Exception {
+        return forSlot(p11, slotId, flags, DEFAULT_IDLE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Creates a pool sized after the session limits reported by the token in
+     * {@code CK_TOKEN_INFO}, with a custom idle timeout.
+     *
+     * @param p11 The PKCS#11 cryptoki library interface.
+     * @param slotId Identifier of the token slot.
+     * @param flags Session flags (e.g., CKF_SERIAL_SESSION, CKF_RW_SESSION).
+     * @param idleTimeoutMillis Time after which an idle session is closed.
+     * @return A new session pool.
+     * @throws Exception if the token information cannot be read.
+     */
+    public static SessionPool forSlot(PKCS11 p11, long slotId, long flags, long idleTimeoutMillis) throws Exception {
+        CK_TOKEN_INFO info = CryptokiMetrics.callOnSlot("C_GetTokenInfo", slotId, () -> p11.C_GetTokenInfo(slotId));
+        int maxSize = sessionLimit(info.ulMaxSessionCount);
+        if ((flags & PKCS11Constants.CKF_RW_SESSION) != 0) {
+            maxSize = Math.min(maxSize, sessionLimit(info.ulMaxRwSessionCount));
+        }
+        return new SessionPool(p11, slotId, flags, maxSize, idleTimeoutMillis);
+    }
+
+    private static int sessionLimit(long ulMaxCount) {
+        if (ulMaxCount == PKCS11Constants.CK_EFFECTIVELY_INFINITE
+                || ulMaxCount == PKCS11Constants.CK_UNAVAILABLE_INFORMATION
+                || ulMaxCount < 0) {
+            return DEFAULT_MAX_SESSIONS;
+        }
+        return (int) Math.min(ulMaxCount, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Logs the user in and remembers the credentials for the pool lifetime.
+     *
+     * @param userType User type (e.g., CKU_USER, CKU_SO).
+     * @param pin User PIN as a character array.
+     * @throws Exception if the login attempt fails.
+     */
+    public void login(long userType, char[] pin) throws Exception {
+        long hSession = borrow();
+        try {
+            synchronized (loginLock) {
+                clearPin();
+                this.userType = userType;
+                this.pin = pin.clone();
+                doLogin(hSession);
+                loggedIn = true;
+                handleCache.invalidateAll();
+            }
+        } finally {
+            release(hSession);
+        }
+    }
+
+    /**
+     * Logs the user out and forgets the stored credentials.
+     *
+     * @throws Exception if the logout attempt fails.
+     */
+    public void logout() throws Exception {
+        long hSession = borrow();
+        try {
+            synchronized (loginLock) {
+                loggedIn = false;
+                clearPin();
+                handleCache.invalidateAll();
+                Utils.logout(p11, hSession);
+            }
+        } finally {
+            release(hSession);
+        }
+    }
+
+    private void doLogin(long hSession) throws Exception {
+        try {
+            Utils.login(p11, hSession, userType, pin);
+        } catch (PKCS11Exception ex) {
+            if (ex.getErrorCode() != ReturnCodes.CKR_USER_ALREADY_LOGGED_IN) {
+                throw ex;
+            }
+        }
+    }
+
+    private void clearPin() {
+        if (pin != null) {
+            Arrays.fill(pin, '\0');
+            pin = null;
+        }
+    }
+
+    /**
+     * Borrows a session, waiting as long as necessary for one to be free.
+     *
+     * @return A session handle that must be given back with
+     * {@link #release(long)}.
+     * @throws Exception if a session cannot be opened.
+     */
+    public long borrow() throws Exception {
+        permits.acquire();
+        return take();
+    }
+
+    /**
+     * Borrows a session, waiting at most the given time for one to be free.
+     *
+     * @param timeout Maximum time to wait.
+     * @param unit Unit of the timeout.
+     * @return A session handle that must be given back with
+     * {@link #release(long)}.
+     * @throws Exception if no session became available in time or a session
+     * cannot be opened.
+     */
+    public long borrow(long timeout, TimeUnit unit) throws Exception {
+        if (!permits.tryAcquire(timeout, unit)) {
+            throw new Exception("No session available on slot " + slotId);
+        }
+        return take();
+    }
+
+    private long take() throws Exception {
+        try {
+            if (closed) {
+                throw new IllegalStateException("Session pool is closed");
+            }
+            while (true) {
+                PooledSession session;
+                synchronized (this) {
+                    session = idle.pollFirst();
+                }
+                if (session == null) {
+                    session = open();
+                } else if (!isHealthy(session.hSession)) {
+                    discard(session.hSession);
+                    continue;
+                }
+                borrowed.put(session.hSession, session);
+                return session.hSession;
+            }
+        } catch (Exception | Error ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    private PooledSession open() throws Exception {
+        long hSession = Utils.openSession(p11, slotId, flags);
+        synchronized (this) {
+            openCount++;
+        }
+        if (loggedIn) {
+            try {
+                synchronized (loginLock) {
+                    if (loggedIn) {
+                        doLogin(hSession);
+                    }
+                }
+            } catch (Exception ex) {
+                discard(hSession);
+                throw ex;
+            }
+        }
+        return new PooledSession(hSession);
+    }
+
+    private boolean isHealthy(long hSession) {
+        try {
+            CK_SESSION_INFO info = CryptokiMetrics.call("C_GetSessionInfo", null, hSession, () -> p11.C_GetSessionInfo(hSession));
+            if (info.slotID != slotId) {
+                return false;
+            }
+            if (loggedIn && (info.state == PKCS11Constants.CKS_RO_PUBLIC_SESSION
+                    || info.state == PKCS11Constants.CKS_RW_PUBLIC_SESSION)) {
+                /* the token dropped the login state, restore it */
+                synchronized (loginLock) {
+                    if (loggedIn) {
+                        doLogin(hSession);
+                    }
+                }
+            }
+            return true;
+        } catch (Exception ex) {
+            return false;
+        }
+    }
+
+    private void discard(long hSession) {
+        synchronized (this) {
+            openCount--;
+        }
+        /* session objects may go with the session; token objects stay valid */
+        handleCache.invalidateSessionObjects();
+        try {
+            Utils.closeSession(p11, hSession);
+        } catch (Exception ex) {
+            /* the session is already unusable */
+        }
+    }
+
+    /**
+     * Gives a borrowed session back to the pool.
+     *
+     * @param hSession Handle returned by {@link #borrow()}.
+     */
+    public void release(long hSession) {
+        PooledSession session = borrowed.remove(hSession);
+        if (session == null) {
+            throw new IllegalArgumentException("Session " + hSession + " was not borrowed from this pool");
+        }
+        boolean pooled;
+        session.lastUsed = System.nanoTime();
+        /* same lock as close(), so no session is pooled after it drained the idle ones */
+        synchronized (this) {
+            pooled = !closed;
+            if (pooled) {
+                idle.addFirst(session);
+            }
+        }
+        if (!pooled) {
+            discard(hSession);
+        }
+        permits.release();
+        evictIdle();
+    }
+
+    /**
+     * Removes a borrowed session from the pool and closes it, e.g. after an
+     * error left it in an unknown state.
+     *
+     * @param hSession Handle returned by {@link #borrow()}.
+     */
+    public void invalidate(long hSession) {
+        if (borrowed.remove(hSession) == null) {
+            throw new IllegalArgumentException("Session " + hSession + " was not borrowed from this pool");
+        }
+        discard(hSession);
+        permits.release();
+    }
+
+    /**
+     * Closes the sessions that stayed idle longer than the idle timeout. While
+     * logged in, one session is kept open to preserve the login state.
+     *
+     * @return The number of sessions closed.
+     */
+    public int evictIdle() {
+        long now = System.nanoTime();
+        Deque<PooledSession> expired = new ArrayDeque<>();
+        synchronized (this) {
+            int keep = loggedIn ? 1 : 0;
+            Iterator<PooledSession> it = idle.descendingIterator();
+            while (it.hasNext() && openCount - expired.size() > keep) {
+                PooledSession session = it.next();
+                if (now - session.lastUsed < idleTimeoutNanos) {
+                    break;
+                }
+                it.remove();
+                expired.add(session);
+            }
+        }
+        for (PooledSession session : expired) {
+            discard(session.hSession);
+        }
+        return expired.size();
+    }
+
+    /**
+     * Tells whether an error means that the session it occurred on can no
+     * longer be used, so that it must be discarded rather than pooled again.
+     *
+     * @param ex The error returned by the token.
+     * @return {@code true} if the session is gone.
+     */
+    public static boolean isSessionLost(PKCS11Exception ex) {
+        long rv = ex.getErrorCode();
+        return rv == ReturnCodes.CKR_SESSION_HANDLE_INVALID || rv == ReturnCodes.CKR_SESSION_CLOSED
+                || rv == ReturnCodes.CKR_DEVICE_REMOVED || rv == ReturnCodes.CKR_TOKEN_NOT_PRESENT;
+    }
+
+    /**
+     * Runs a task on a borrowed session and gives the session back afterwards.
+     * A session on which the token reported it as closed or invalid is dropped
+     * from the pool instead.
+     *
+     * @param <T> type of the result.
+     * @param task The work to run.
+     * @return The task result.
+     * @throws Exception if the task fails or no session can be obtained.
+     */
+    public <T> T execute(SessionTask<T> task) throws Exception {
+        long hSession = borrow();
+        try {
+            T result = task.run(hSession);
+            release(hSession);
+            return result;
+        } catch (PKCS11Exception ex) {
+            if (isSessionLost(ex)) {
+                invalidate(hSession);
+            } else {
+                release(hSession);
+            }
+            throw ex;
+        } catch (Exception | Error ex) {
+            release(hSession);
+            throw ex;
+        }
+    }
+
+    /**
+     * Closes every idle session. Borrowed sessions are closed when released.
+     */
+    @Override
+    public void close() {
+        Deque<PooledSession> sessions;
+        synchronized (this) {
+            closed = true;
+            sessions = new ArrayDeque<>(idle);
+            idle.clear();
+        }
+        for (PooledSession session : sessions) {
+            discard(session.hSession);
+        }
+        synchronized (loginLock) {
+            loggedIn = false;
+            clearPin();
+        }
+        CryptokiMetrics.poolClosed(this);
+    }
+
+    /**
+     * The cache to pass to the {@link ManageObjects} methods run on sessions
+     * of this pool.
+     */
+    public ObjectHandleCache getHandleCache() {
+        return handleCache;
+    }
+
+    public PKCS11 getP11() {
+        return p11;
+    }
+
+    @Override
+    public long getSlotId() {
+        return slotId;
+    }
+
+    /**
+     * The flags the sessions of the pool are opened with.
+     */
+    public long getFlags() {
+        return flags;
+    }
+
+    @Override
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public synchronized int getOpenCount() {
+        return openCount;
+    }
+
+    @Override
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    @Override
+    public int getBorrowedCount() {
+        return borrowed.size();
+    }
+
+    @Override
+    public boolean isLoggedIn() {
+        return loggedIn;
+    }
+}
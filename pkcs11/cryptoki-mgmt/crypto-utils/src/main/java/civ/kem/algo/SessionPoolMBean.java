@@ -0,0 +1,19 @@
+package civ.kem.algo;
+
+/**
+ * JMX view of a {@link SessionPool}.
+ */
+public interface SessionPoolMBean {
+
+    long getSlotId();
+
+    int getMaxSize();
+
+    int getOpenCount();
+
+    int getIdleCount();
+
+    int getBorrowedCount();
+
+    boolean isLoggedIn();
+}
@@ -0,0 +1,379 @@
+package civ.kem.algo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Group of slots (tokens or HSM partitions) holding replicas of the same
+ * keys, used as one.
+ *
+ * <p>
+ * Each operation is sent to one slot chosen by the {@link Strategy}, and runs
+ * on a session of that slot's {@link SessionPool}. Keys are found by template
+ * (typically the label) on the chosen slot, since handles differ from one
+ * replica to the other; the handles are cached per slot.</p>
+ *
+ * <p>
+ * A slot answering {@code CKR_DEVICE_ERROR}, {@code CKR_DEVICE_REMOVED} or
+ * {@code CKR_TOKEN_NOT_PRESENT} is taken out of rotation for the retry delay
+ * and the operation is retried on another slot. After the delay the slot gets
+ * traffic again; if it fails again it is taken out again.</p>
+ *
+ * <p>
+ * The group does not own the pools: they are left open, and closed by the
+ * caller that created them.</p>
+ *
+ * <p>
+ * The group is thread-safe.</p>
+ */
+public class SlotGroup {
+
+    /**
+     * Default time a failed slot stays out of rotation.
+     */
+    public static final long DEFAULT_RETRY_DELAY_MILLIS = 30_000L;
+
+    /**
+     * How the slot of an operation is chosen.
+     */
+    public enum Strategy {
+        /**
+         * Each slot in turn.
+         */
+        ROUND_ROBIN,
+        /**
+         * The slot with the fewest operations in progress.
+         */
+        LEAST_OUTSTANDING,
+        /**
+         * A random slot, weighted by the inverse of its average latency and of
+         * its operations in progress.
+         */
+        LATENCY_WEIGHTED
+    }
+
+    /**
+     * Unit of work run against a borrowed session of the chosen slot.
+     *
+     * @param <T> type of the result.
+     */
+    @FunctionalInterface
+    public interface SlotTask<T> {
+
+        T run(SessionPool pool, long hSession) throws Exception;
+    }
+
+    private static class Member {
+
+        final SessionPool pool;
+        final AtomicInteger outstanding = new AtomicInteger();
+        final AtomicLong operations = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        /* exponentially weighted moving average, 0 until the first sample */
+        volatile double latencyNanos;
+        volatile long downUntil;
+
+        Member(SessionPool pool) {
+            this.pool = pool;
+        }
+
+        boolean isAvailable(long now) {
+            return downUntil == 0 || now - downUntil >= 0;
+        }
+
+        synchronized void recordLatency(long nanos) {
+            latencyNanos = latencyNanos == 0 ? nanos : latencyNanos * 0.9 + nanos * 0.1;
+        }
+    }
+
+    private final List<Member> members = new ArrayList<>();
+    private final Strategy strategy;
+    private final long retryDelayNanos;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Creates a group with the default retry delay.
+     *
+     * @param pools Pools of sessions, one per slot.
+     * @param strategy How the slot of an operation is chosen.
+     */
+    public SlotGroup(List<SessionPool> pools, Strategy strategy) {
+        this(pools, strategy, DEFAULT_RETRY_DELAY_MILLIS);
+    }
+
+    /**
+     * Creates a group.
+     *
+     * @param pools Pools of sessions, one per slot.
+     * @param strategy How the slot of an operation is chosen.
+     * @param retryDelayMillis Time a failed slot stays out of rotation.
+     */
+    public SlotGroup(List<SessionPool> pools, Strategy strategy, long retryDelayMillis) {
+        if (pools.isEmpty()) {
+            throw new IllegalArgumentException("No session pool");
+        }
+        for (SessionPool pool : pools) {
+            members.add(new Member(pool));
+        }
+        this.strategy = strategy;
+        this.retryDelayNanos = TimeUnit.MILLISECONDS.toNanos(retryDelayMillis);
+    }
+
+    /**
+     * Runs a task on one slot of the group, retrying on the other slots when
+     * the chosen one has failed.
+     *
+     * @param <T> type of the result.
+     * @param task The work to run.
+     * @return The task result.
+     * @throws Exception if the task fails, or no slot is available.
+     */
+    public <T> T execute(SlotTask<T> task) throws Exception {
+        return execute(null, task);
+    }
+
+    /**
+     * Picks the slot the next operation would run on, e.g. to queue the
+     * operation for that slot before calling {@link #execute(SessionPool, SlotTask)}.
+     *
+     * @return The pool of the slot, or {@code null} if no slot is available.
+     */
+    public SessionPool select() {
+        Member member = choose(List.of());
+        return member != null ? member.pool : null;
+    }
+
+    /**
+     * Runs a task on a given slot of the group, retrying on the other slots
+     * when it has failed.
+     *
+     * @param <T> type of the result.
+     * @param preferred Pool of the slot tried first, see {@link #select()}.
+     * @param task The work to run.
+     * @return The task result.
+     * @throws Exception if the task fails, or no slot is available.
+     */
+    public <T> T execute(SessionPool preferred, SlotTask<T> task) throws Exception {
+        List<Member> tried = new ArrayList<>();
+        PKCS11Exception lastFailure = null;
+        while (true) {
+            Member preferredMember = tried.isEmpty() ? member(preferred) : null;
+            Member member = preferredMember != null ? preferredMember : choose(tried);
+            if (member == null) {
+                Exception ex = new Exception("No slot available in the group");
+                if (lastFailure != null) {
+                    ex.initCause(lastFailure);
+                }
+                throw ex;
+            }
+            tried.add(member);
+
+            member.outstanding.incrementAndGet();
+            long start = System.nanoTime();
+            try {
+                T result = member.pool.execute(hSession -> task.run(member.pool, hSession));
+                member.recordLatency(System.nanoTime() - start);
+                member.operations.incrementAndGet();
+                return result;
+            } catch (PKCS11Exception ex) {
+                if (!isSlotFailure(ex.getErrorCode())) {
+                    throw ex;
+                }
+                member.failures.incrementAndGet();
+                member.downUntil = System.nanoTime() + retryDelayNanos;
+                member.pool.getHandleCache().invalidateAll();
+                lastFailure = ex;
+            } finally {
+                member.outstanding.decrementAndGet();
+            }
+        }
+    }
+
+    private Member member(SessionPool pool) {
+        long now = System.nanoTime();
+        for (Member member : members) {
+            if (member.pool == pool && member.isAvailable(now)) {
+                return member;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isSlotFailure(long rv) {
+        return rv == ReturnCodes.CKR_DEVICE_ERROR || rv == ReturnCodes.CKR_DEVICE_REMOVED
+                || rv == ReturnCodes.CKR_TOKEN_NOT_PRESENT;
+    }
+
+    private Member choose(List<Member> excluded) {
+        long now = System.nanoTime();
+        List<Member> candidates = new ArrayList<>(members.size());
+        for (Member member : members) {
+            if (member.isAvailable(now) && !excluded.contains(member)) {
+                candidates.add(member);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+
+        int start = Math.floorMod(next.getAndIncrement(), candidates.size());
+        switch (strategy) {
+            case LEAST_OUTSTANDING: {
+                Member best = null;
+                for (int i = 0; i < candidates.size(); i++) {
+                    Member member = candidates.get((start + i) % candidates.size());
+                    if (best == null || member.outstanding.get() < best.outstanding.get()) {
+                        best = member;
+                    }
+                }
+                return best;
+            }
+            case LATENCY_WEIGHTED: {
+                /* slots without samples yet are weighted like the fastest one */
+                double fastest = Double.MAX_VALUE;
+                for (Member member : candidates) {
+                    if (member.latencyNanos > 0) {
+                        fastest = Math.min(fastest, member.latencyNanos);
+                    }
+                }
+                if (fastest == Double.MAX_VALUE) {
+                    return candidates.get(start);
+                }
+                double[] weights = new double[candidates.size()];
+                double sum = 0;
+                for (int i = 0; i < weights.length; i++) {
+                    Member member = candidates.get(i);
+                    double latency = member.latencyNanos > 0 ? member.latencyNanos : fastest;
+                    weights[i] = 1.0 / (latency * (member.outstanding.get() + 1));
+                    sum += weights[i];
+                }
+                double pick = ThreadLocalRandom.current().nextDouble(sum);
+                for (int i = 0; i < weights.length; i++) {
+                    pick -= weights[i];
+                    if (pick < 0) {
+                        return candidates.get(i);
+                    }
+                }
+                return candidates.get(weights.length - 1);
+            }
+            default:
+                return candidates.get(start);
+        }
+    }
+
+    /**
+     * Signs a hash with the private key matching a template on one of the
+     * slots.
+     *
+     * @param signMech The signing mechanism to use (e.g., ECDSA, RSA PKCS1).
+     * @param keyTemplate Template of the private key replicas (e.g., label and class).
+     * @param hash The hash value to sign.
+     * @return The signature.
+     * @throws Exception If the key is not found or the signature fails.
+     */
+    public byte[] sign(CK_MECHANISM signMech, CK_ATTRIBUTE[] keyTemplate, byte[] hash) throws Exception {
+        return execute((pool, hSession) -> {
+            long hKey = ManageObjects.find(pool.getP11(), hSession, keyTemplate, pool.getHandleCache());
+            return Asymmetric.sign(pool.getP11(), hSession, signMech, hKey, hash, hash.length);
+        });
+    }
+
+    /**
+     * Encrypts data with the secret key matching a template on one of the
+     * slots.
+     *
+     * @param mechanism The encryption mechanism to use (e.g., AES_ECB, AES_CBC).
+     * @param keyTemplate Template of the key replicas (e.g., label and class).
+     * @param plaintext The data to be encrypted.
+     * @param ciphertext The buffer to store the resulting encrypted data.
+     * @throws Exception If the key is not found or the encryption fails.
+     */
+    public void encrypt(CK_MECHANISM mechanism, CK_ATTRIBUTE[] keyTemplate, byte[] plaintext, byte[] ciphertext) throws Exception {
+        execute((pool, hSession) -> {
+            long hKey = ManageObjects.find(pool.getP11(), hSession, keyTemplate, pool.getHandleCache());
+            Symmetric.encrypt(pool.getP11(), hSession, mechanism, hKey, plaintext, ciphertext);
+            return null;
+        });
+    }
+
+    /**
+     * Decrypts data with the secret key matching a template on one of the
+     * slots.
+     *
+     * @param mechanism The decryption mechanism to use (e.g., AES_ECB, AES_CBC).
+     * @param keyTemplate Template of the key replicas (e.g., label and class).
+     * @param ciphertext The data to be decrypted.
+     * @param plaintext The buffer to store the resulting decrypted data.
+     * @throws Exception If the key is not found or the decryption fails.
+     */
+    public void decrypt(CK_MECHANISM mechanism, CK_ATTRIBUTE[] keyTemplate, byte[] ciphertext, byte[] plaintext) throws Exception {
+        execute((pool, hSession) -> {
+            long hKey = ManageObjects.find(pool.getP11(), hSession, keyTemplate, pool.getHandleCache());
+            Symmetric.decrypt(pool.getP11(), hSession, mechanism, hKey, ciphertext, plaintext);
+            return null;
+        });
+    }
+
+    /**
+     * Puts a slot back into rotation before the end of its retry delay.
+     *
+     * @param slotId Identifier of the slot.
+     */
+    public void markAvailable(long slotId) {
+        for (Member member : members) {
+            if (member.pool.getSlotId() == slotId) {
+                member.downUntil = 0;
+            }
+        }
+    }
+
+    /**
+     * Returns the slots currently in rotation.
+     */
+    public List<Long> getAvailableSlots() {
+        long now = System.nanoTime();
+        List<Long> slots = new ArrayList<>();
+        for (Member member : members) {
+            if (member.isAvailable(now)) {
+                slots.add(member.pool.getSlotId());
+            }
+        }
+        return slots;
+    }
+
+    public List<SessionPool> getPools() {
+        List<SessionPool> pools = new ArrayList<>(members.size());
+        for (Member member : members) {
+            pools.add(member.pool);
+        }
+        return pools;
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Returns a one-line summary per slot: operations, failures, operations
+     * in progress and average latency.
+     */
+    public String stats() {
+        StringBuilder sb = new StringBuilder();
+        long now = System.nanoTime();
+        for (Member member : members) {
+            sb.append(String.format("slot %d%s: %d ops, %d failures, %d in progress, %.1f us%n",
+                    member.pool.getSlotId(), member.isAvailable(now) ? "" : " (out of rotation)",
+                    member.operations.get(), member.failures.get(), member.outstanding.get(),
+                    member.latencyNanos / 1000.0));
+        }
+        return sb.toString();
+    }
+}
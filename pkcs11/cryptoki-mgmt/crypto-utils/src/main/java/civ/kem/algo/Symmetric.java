@@ -1,9 +1,27 @@
 package civ.kem.algo;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.Reference;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+
 import sun.security.pkcs11.wrapper.CK_MECHANISM;
 import sun.security.pkcs11.wrapper.PKCS11;
 import sun.security.pkcs11.wrapper.PKCS11Exception;
 
+/**
+ * Helpers for symmetric cryptographic operations on a PKCS#11 token.
+ * <p>
+ * The methods keep no state: with a library obtained through
+ * {@link Utils#setMultiThreadedCryptokiFunctions()} they can be called from
+ * several threads at once, each thread working on its own session (see
+ * {@link SessionPool}).
+ */
 public class Symmetric {
 
     /**
@@ -18,8 +36,10 @@ public class Symmetric {
      * @throws Exception If an error occurs during encryption.
      */
     public static void encrypt(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hKey, byte[] plaintext, byte[] ciphertext) throws Exception {
-        p11.C_EncryptInit(hSession, mechanism, hKey);
-        p11.C_Encrypt(hSession, 0L, plaintext, 0, plaintext.length, 0L, ciphertext, 0, ciphertext.length);
+        CryptokiMetrics.call("C_Encrypt", mechanism, hSession, () -> {
+            p11.C_EncryptInit(hSession, mechanism, hKey);
+            return p11.C_Encrypt(hSession, 0L, plaintext, 0, plaintext.length, 0L, ciphertext, 0, ciphertext.length);
+        });
     }
 
     /**
@@ -34,8 +54,158 @@ public class Symmetric {
      * @throws Exception If an error occurs during decryption.
      */
     public static void decrypt(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hKey, byte[] ciphertext, byte[] plaintext) throws Exception {
-        p11.C_DecryptInit(hSession, mechanism, hKey);
-        p11.C_Decrypt(hSession, 0L, ciphertext, 0, ciphertext.length, 0L, plaintext, 0, plaintext.length);
+        CryptokiMetrics.call("C_Decrypt", mechanism, hSession, () -> {
+            p11.C_DecryptInit(hSession, mechanism, hKey);
+            return p11.C_Decrypt(hSession, 0L, ciphertext, 0, ciphertext.length, 0L, plaintext, 0, plaintext.length);
+        });
+    }
+
+    /**
+     * Encrypts the remaining content of a buffer into another buffer. Direct
+     * buffers are passed to the token by address, without intermediate
+     * copies.
+     *
+     * <p>
+     * On return the position of {@code plaintext} is at its limit and the
+     * position of {@code ciphertext} is moved past the produced data.</p>
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param hSession Handle to the active PKCS#11 session.
+     * @param mechanism The encryption mechanism to use (e.g., AES ECB, AES CBC).
+     * @param hKey Handle to the encryption key.
+     * @param plaintext The data to be encrypted.
+     * @param ciphertext The buffer to store the resulting encrypted data.
+     * @return The number of bytes written to {@code ciphertext}.
+     * @throws ReadOnlyBufferException If {@code ciphertext} is read-only.
+     * @throws PKCS11Exception If an error occurs during encryption.
+     */
+    public static int encrypt(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hKey, ByteBuffer plaintext, ByteBuffer ciphertext) throws PKCS11Exception {
+        Utils.checkWritable(ciphertext);
+        return CryptokiMetrics.call("C_Encrypt", mechanism, hSession, () -> {
+            p11.C_EncryptInit(hSession, mechanism, hKey);
+            try {
+                int n = p11.C_Encrypt(hSession,
+                        Utils.address(plaintext), Utils.array(plaintext), Utils.arrayOffset(plaintext), plaintext.remaining(),
+                        Utils.address(ciphertext), Utils.array(ciphertext), Utils.arrayOffset(ciphertext), ciphertext.remaining());
+                plaintext.position(plaintext.limit());
+                ciphertext.position(ciphertext.position() + n);
+                return n;
+            } finally {
+                Reference.reachabilityFence(plaintext);
+                Reference.reachabilityFence(ciphertext);
+            }
+        });
+    }
+
+    /**
+     * Decrypts the remaining content of a buffer into another buffer. Direct
+     * buffers are passed to the token by address, without intermediate
+     * copies.
+     *
+     * <p>
+     * On return the position of {@code ciphertext} is at its limit and the
+     * position of {@code plaintext} is moved past the produced data.</p>
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param hSession Handle to the active PKCS#11 session.
+     * @param mechanism The decryption mechanism to use (e.g., AES ECB, AES CBC).
+     * @param hKey Handle to the decryption key.
+     * @param ciphertext The data to be decrypted.
+     * @param plaintext The buffer to store the resulting decrypted data.
+     * @return The number of bytes written to {@code plaintext}.
+     * @throws ReadOnlyBufferException If {@code plaintext} is read-only.
+     * @throws PKCS11Exception If an error occurs during decryption.
+     */
+    public static int decrypt(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hKey, ByteBuffer ciphertext, ByteBuffer plaintext) throws PKCS11Exception {
+        Utils.checkWritable(plaintext);
+        return CryptokiMetrics.call("C_Decrypt", mechanism, hSession, () -> {
+            p11.C_DecryptInit(hSession, mechanism, hKey);
+            try {
+                int n = p11.C_Decrypt(hSession,
+                        Utils.address(ciphertext), Utils.array(ciphertext), Utils.arrayOffset(ciphertext), ciphertext.remaining(),
+                        Utils.address(plaintext), Utils.array(plaintext), Utils.arrayOffset(plaintext), plaintext.remaining());
+                ciphertext.position(ciphertext.limit());
+                plaintext.position(plaintext.position() + n);
+                return n;
+            } finally {
+                Reference.reachabilityFence(ciphertext);
+                Reference.reachabilityFence(plaintext);
+            }
+        });
+    }
+
+    /**
+     * Encrypts a stream of any size with a multi-part operation, keeping only
+     * one chunk of data in memory.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param hSession Handle to the active PKCS#11 session.
+     * @param mechanism The encryption mechanism to use (e.g., AES CBC PAD).
+     * @param hKey Handle to the encryption key.
+     * @param in Source of the plaintext.
+     * @param out Destination of the ciphertext.
+     * @return The number of bytes of ciphertext written.
+     * @throws Exception If an error occurs during encryption or I/O.
+     */
+    public static long encrypt(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hKey, InputStream in, OutputStream out) throws Exception {
+        MultiPartCipher cipher = new MultiPartCipher(p11);
+        cipher.initEncrypt(hSession, mechanism, hKey);
+        return cipher.transfer(in, out);
+    }
+
+    /**
+     * Decrypts a stream of any size with a multi-part operation, keeping only
+     * one chunk of data in memory.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param hSession Handle to the active PKCS#11 session.
+     * @param mechanism The decryption mechanism to use (e.g., AES CBC PAD).
+     * @param hKey Handle to the decryption key.
+     * @param in Source of the ciphertext.
+     * @param out Destination of the plaintext.
+     * @return The number of bytes of plaintext written.
+     * @throws Exception If an error occurs during decryption or I/O.
+     */
+    public static long decrypt(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hKey, InputStream in, OutputStream out) throws Exception {
+        MultiPartCipher cipher = new MultiPartCipher(p11);
+        cipher.initDecrypt(hSession, mechanism, hKey);
+        return cipher.transfer(in, out);
+    }
+
+    /**
+     * Encrypts the content of a channel with a multi-part operation.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param hSession Handle to the active PKCS#11 session.
+     * @param mechanism The encryption mechanism to use (e.g., AES CBC PAD).
+     * @param hKey Handle to the encryption key.
+     * @param in Source of the plaintext.
+     * @param out Destination of the ciphertext.
+     * @return The number of bytes of ciphertext written.
+     * @throws Exception If an error occurs during encryption or I/O.
+     */
+    public static long encrypt(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hKey, ReadableByteChannel in, WritableByteChannel out) throws Exception {
+        MultiPartCipher cipher = new MultiPartCipher(p11);
+        cipher.initEncrypt(hSession, mechanism, hKey);
+        return cipher.transfer(in, out);
+    }
+
+    /**
+     * Decrypts the content of a channel with a multi-part operation.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param hSession Handle to the active PKCS#11 session.
+     * @param mechanism The decryption mechanism to use (e.g., AES CBC PAD).
+     * @param hKey Handle to the decryption key.
+     * @param in Source of the ciphertext.
+     * @param out Destination of the plaintext.
+     * @return The number of bytes of plaintext written.
+     * @throws Exception If an error occurs during decryption or I/O.
+     */
+    public static long decrypt(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hKey, ReadableByteChannel in, WritableByteChannel out) throws Exception {
+        MultiPartCipher cipher = new MultiPartCipher(p11);
+        cipher.initDecrypt(hSession, mechanism, hKey);
+        return cipher.transfer(in, out);
     }
 
     /**
@@ -53,9 +223,92 @@ public class Symmetric {
         byte[] hash = new byte[digestLen];
 
         // Perform a single-step digest operation
-        p11.C_DigestSingle(hSession, hashMech, data, 0, data.length, hash, 0, digestLen);
+        CryptokiMetrics.call("C_DigestSingle", hashMech, hSession,
+                () -> p11.C_DigestSingle(hSession, hashMech, data, 0, data.length, hash, 0, digestLen));
 
         return hash;
     }
 
+    /**
+     * Computes the hash (digest) of the given data, deriving the digest length
+     * from the mechanism.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param hSession Handle to the active PKCS#11 session.
+     * @param hashMech The hashing mechanism to use (e.g., CKM_SHA_256).
+     * @param data The data to hash.
+     * @return The computed hash as a byte array.
+     * @throws PKCS11Exception If an error occurs during hashing.
+     */
+    public static byte[] hashData(PKCS11 p11, long hSession, CK_MECHANISM hashMech, byte[] data) throws PKCS11Exception {
+        int digestLen = Digester.digestLength(hashMech.mechanism);
+        if (digestLen > 0) {
+            return hashData(p11, hSession, hashMech, digestLen, data);
+        }
+        /* unknown mechanism: let the token report the length */
+        byte[] hash = new byte[Digester.MAX_DIGEST_LEN];
+        int n = CryptokiMetrics.call("C_DigestSingle", hashMech, hSession,
+                () -> p11.C_DigestSingle(hSession, hashMech, data, 0, data.length, hash, 0, hash.length));
+        return n == hash.length ? hash : Arrays.copyOf(hash, n);
+    }
+
+    /**
+     * Computes the hash (digest) of a file of any size. The file is
+     * memory-mapped and sent to the token in fixed-size chunks.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param hSession Handle to the active PKCS#11 session.
+     * @param hashMech The hashing mechanism to use (e.g., CKM_SHA_256).
+     * @param file The file to hash.
+     * @return The computed hash as a byte array.
+     * @throws Exception If an error occurs during hashing or reading the file.
+     */
+    public static byte[] hashFile(PKCS11 p11, long hSession, CK_MECHANISM hashMech, Path file) throws Exception {
+        /* the digester records each token call, leaving the file I/O out */
+        Digester digester = new Digester(p11);
+        digester.init(hSession, hashMech);
+        digester.update(file);
+        return digester.digest();
+    }
+
+    /**
+     * Computes the hash (digest) of the remaining content of a buffer into a
+     * caller-supplied buffer. A direct input buffer is passed to the token by
+     * address, and no array is allocated when the output buffer is a heap
+     * buffer.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param hSession Handle to the active PKCS#11 session.
+     * @param hashMech The hashing mechanism to use (e.g., CKM_SHA_256).
+     * @param data The data to hash.
+     * @param digest The buffer to store the computed hash.
+     * @return The number of bytes written to {@code digest}.
+     * @throws ReadOnlyBufferException If {@code digest} is read-only.
+     * @throws PKCS11Exception If an error occurs during hashing.
+     */
+    public static int hashData(PKCS11 p11, long hSession, CK_MECHANISM hashMech, ByteBuffer data, ByteBuffer digest) throws PKCS11Exception {
+        Utils.checkWritable(digest);
+        return CryptokiMetrics.call("C_Digest", hashMech, hSession, () -> {
+            p11.C_DigestInit(hSession, hashMech);
+            try {
+                /* the direct variant of C_DigestUpdate ignores the offset argument */
+                p11.C_DigestUpdate(hSession, Utils.address(data), Utils.array(data), Utils.arrayOffset(data), data.remaining());
+                data.position(data.limit());
+            } finally {
+                Reference.reachabilityFence(data);
+            }
+
+            int n;
+            if (digest.hasArray()) {
+                n = p11.C_DigestFinal(hSession, digest.array(), digest.arrayOffset() + digest.position(), digest.remaining());
+                digest.position(digest.position() + n);
+            } else {
+                byte[] hash = new byte[digest.remaining()];
+                n = p11.C_DigestFinal(hSession, hash, 0, hash.length);
+                digest.put(hash, 0, n);
+            }
+            return n;
+        });
+    }
+
 }
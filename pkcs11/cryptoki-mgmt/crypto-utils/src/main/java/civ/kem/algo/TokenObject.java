@@ -0,0 +1,44 @@
+package civ.kem.algo;
+
+import java.util.Collections;
+import java.util.Map;
+
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+
+/**
+ * An object found on a token, with the attributes read along with it.
+ */
+public class TokenObject {
+
+    private final long hObject;
+    private final Map<Long, CK_ATTRIBUTE> attributes;
+
+    public TokenObject(long hObject, Map<Long, CK_ATTRIBUTE> attributes) {
+        this.hObject = hObject;
+        this.attributes = Collections.unmodifiableMap(attributes);
+    }
+
+    public long getHandle() {
+        return hObject;
+    }
+
+    /**
+     * Returns an attribute read with the object.
+     *
+     * @param type The attribute type (e.g., CKA_LABEL).
+     * @return The attribute, or {@code null} if it was not requested or could
+     * not be read (sensitive or not defined for this object).
+     */
+    public CK_ATTRIBUTE getAttribute(long type) {
+        return attributes.get(type);
+    }
+
+    public Map<Long, CK_ATTRIBUTE> getAttributes() {
+        return attributes;
+    }
+
+    @Override
+    public String toString() {
+        return "TokenObject[" + hObject + ", " + attributes.values() + "]";
+    }
+}
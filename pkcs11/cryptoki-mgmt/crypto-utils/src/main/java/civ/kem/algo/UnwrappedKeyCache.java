@@ -0,0 +1,248 @@
+package civ.kem.algo;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+import sun.security.pkcs11.wrapper.CK_TOKEN_INFO;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Cache of the keys unwrapped with
+ * {@link ManageObjects#unWrapKey(PKCS11, long, CK_MECHANISM, CK_ATTRIBUTE[], byte[], CK_ATTRIBUTE[], ObjectHandleCache)},
+ * keyed by the SHA-256 digest of the wrapped key.
+ *
+ * <p>
+ * Records sharing a few data keys then cost one {@code C_UnwrapKey} per key
+ * instead of one per record, and the unwrapped objects no longer pile up on
+ * the token. The keys are unwrapped as session objects on a session owned by
+ * the cache, kept open for their lifetime; they remain usable from every
+ * other session of the application, such as those of the {@link SessionPool}.
+ * </p>
+ *
+ * <p>
+ * Entries expire after a time-to-live and the least recently used entries
+ * are dropped beyond the size bound; dropped keys are destroyed with
+ * {@link ManageObjects#delete}. A key in use through a {@link Lease} is only
+ * destroyed once the lease is closed. {@link #capacityFor} derives the bound
+ * from the free memory reported by the token. If the owner session is lost,
+ * its keys are forgotten and unwrapped again on the next use, see
+ * {@link LeasedObjectCache}.</p>
+ *
+ * <p>
+ * The cache is thread-safe.</p>
+ */
+public class UnwrappedKeyCache extends LeasedObjectCache<UnwrappedKeyCache.Entry> {
+
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+    public static final long DEFAULT_TTL_MILLIS = 10 * 60 * 1000L;
+
+    /**
+     * Unit of work run with a cached key, on a borrowed session.
+     *
+     * @param <T> type of the result.
+     */
+    @FunctionalInterface
+    public interface KeyTask<T> {
+
+        T run(long hSession, long hKey) throws Exception;
+    }
+
+    static final class Entry extends LeasedObjectCache.Entry {
+
+        final long hKey;
+        final long expiresAt;
+        final ObjectHandleCache handleCache;
+
+        Entry(long hKey, long expiresAt, long epoch, ObjectHandleCache handleCache) {
+            super(epoch);
+            this.hKey = hKey;
+            this.expiresAt = expiresAt;
+            this.handleCache = handleCache;
+        }
+
+        @Override
+        protected boolean isExpired(long now) {
+            return now - expiresAt >= 0;
+        }
+
+        @Override
+        protected void destroy(PKCS11 p11, long hSession) throws PKCS11Exception {
+            ManageObjects.delete(p11, hSession, hKey, handleCache);
+        }
+
+        @Override
+        public String toString() {
+            return "unwrapped key " + hKey;
+        }
+    }
+
+    /**
+     * Use of a cached key; the key cannot be destroyed before the lease is
+     * closed.
+     */
+    public final class Lease implements AutoCloseable {
+
+        private final Entry entry;
+        private boolean closed;
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        public long getHandle() {
+            return entry.hKey;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release(entry);
+            }
+        }
+    }
+
+    private final CK_MECHANISM mechanism;
+    private final CK_ATTRIBUTE[] unWrappingKeyTemplate;
+    private final CK_ATTRIBUTE[] newKeyTemplate;
+    private final long ttlNanos;
+
+    /**
+     * Creates a cache with the default bounds.
+     *
+     * @param pool Pool of sessions on the slot holding the unwrapping key.
+     * @param mechanism The unwrapping mechanism (e.g., CKM_AES_KEY_WRAP).
+     * @param unWrappingKeyTemplate Template of the unwrapping key.
+     * @param newKeyTemplate Template of the unwrapped keys; CKA_TOKEN is
+     * forced to false.
+     */
+    public UnwrappedKeyCache(SessionPool pool, CK_MECHANISM mechanism, CK_ATTRIBUTE[] unWrappingKeyTemplate, CK_ATTRIBUTE[] newKeyTemplate) {
+        this(pool, mechanism, unWrappingKeyTemplate, newKeyTemplate, DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param pool Pool of sessions on the slot holding the unwrapping key.
+     * @param mechanism The unwrapping mechanism (e.g., CKM_AES_KEY_WRAP).
+     * @param unWrappingKeyTemplate Template of the unwrapping key.
+     * @param newKeyTemplate Template of the unwrapped keys; CKA_TOKEN is
+     * forced to false.
+     * @param maxEntries Largest number of keys kept unwrapped.
+     * @param ttlMillis Time after which a key is destroyed and unwrapped again.
+     */
+    public UnwrappedKeyCache(SessionPool pool, CK_MECHANISM mechanism, CK_ATTRIBUTE[] unWrappingKeyTemplate, CK_ATTRIBUTE[] newKeyTemplate,
+            int maxEntries, long ttlMillis) {
+        super("Unwrapped key cache", pool, maxEntries, true);
+        this.mechanism = mechanism;
+        this.unWrappingKeyTemplate = unWrappingKeyTemplate;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+
+        List<CK_ATTRIBUTE> template = new ArrayList<>();
+        for (CK_ATTRIBUTE attr : newKeyTemplate) {
+            if (attr.type != PKCS11Constants.CKA_TOKEN) {
+                template.add(attr);
+            }
+        }
+        template.add(new CK_ATTRIBUTE(PKCS11Constants.CKA_TOKEN, false));
+        this.newKeyTemplate = template.toArray(new CK_ATTRIBUTE[0]);
+    }
+
+    /**
+     * Returns a cache size fitting the free memory of the token, keeping a
+     * quarter of it for other objects.
+     *
+     * @param pool Pool of sessions on the slot.
+     * @param bytesPerKey Token memory taken by one unwrapped key.
+     * @param fallback Size returned when the token does not report its free
+     * memory.
+     * @return The cache size.
+     * @throws PKCS11Exception If the token information cannot be read.
+     */
+    public static int capacityFor(SessionPool pool, long bytesPerKey, int fallback) throws PKCS11Exception {
+        CK_TOKEN_INFO info = CryptokiMetrics.callOnSlot("C_GetTokenInfo", pool.getSlotId(),
+                () -> pool.getP11().C_GetTokenInfo(pool.getSlotId()));
+        long free = info.ulFreePrivateMemory;
+        if (free == PKCS11Constants.CK_UNAVAILABLE_INFORMATION || free == PKCS11Constants.CK_EFFECTIVELY_INFINITE || free < 0) {
+            return fallback;
+        }
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, free * 3 / 4 / bytesPerKey));
+    }
+
+    /**
+     * Runs a task with the key of a wrapped key, unwrapping it on a miss.
+     *
+     * @param <T> type of the result.
+     * @param wrappedKey The wrapped key.
+     * @param task The work to run with the key handle.
+     * @return The task result.
+     * @throws Exception If the key cannot be unwrapped, or the task fails.
+     */
+    public <T> T execute(byte[] wrappedKey, KeyTask<T> task) throws Exception {
+        try (Lease lease = acquire(wrappedKey)) {
+            return pool.execute(hSession -> task.run(hSession, lease.getHandle()));
+        }
+    }
+
+    /**
+     * Leases the key of a wrapped key, unwrapping it on a miss. The lease
+     * must be closed once the key is no longer used.
+     *
+     * @param wrappedKey The wrapped key.
+     * @return The lease of the key.
+     * @throws Exception If the key cannot be unwrapped.
+     */
+    public Lease acquire(byte[] wrappedKey) throws Exception {
+        String digest = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(wrappedKey));
+        Entry entry = lookup(digest);
+        if (entry != null) {
+            return new Lease(entry);
+        }
+        synchronized (ownerLock) {
+            /* a concurrent miss on the same key may have unwrapped it while this one waited */
+            entry = lookup(digest);
+            if (entry == null) {
+                countMiss();
+                long hKey = unwrap(wrappedKey);
+                entry = install(digest, new Entry(hKey, System.nanoTime() + ttlNanos, ownerEpoch(), pool.getHandleCache()));
+            }
+        }
+        return new Lease(entry);
+    }
+
+    /**
+     * Destroys the expired keys not in use.
+     */
+    public void evictExpired() {
+        invalidateExpired();
+    }
+
+    /*
+     * one session must not run two calls at once, so misses unwrap in turn;
+     * caller holds the owner lock
+     */
+    private long unwrap(byte[] wrappedKey) throws Exception {
+        for (int attempt = 0;; attempt++) {
+            long hOwnerSession = ownerSession();
+            try {
+                return ManageObjects.unWrapKey(pool.getP11(), hOwnerSession, mechanism, unWrappingKeyTemplate, wrappedKey,
+                        newKeyTemplate, pool.getHandleCache());
+            } catch (PKCS11Exception ex) {
+                if (!isOwnerSessionLost(ex)) {
+                    throw ex;
+                }
+                ownerSessionLost();
+                if (attempt > 0) {
+                    throw ex;
+                }
+            }
+        }
+    }
+}
@@ -3,9 +3,16 @@ package civ.kem.algo;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
 import java.util.Properties;
 
+import sun.security.pkcs11.wrapper.CK_C_INITIALIZE_ARGS;
 import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
 
 /**
  * The class demonstrates the retrieval of Slot and Token Information.
@@ -56,6 +63,58 @@ public class Utils {
         return PKCS11.getInstance(Utils.loadLibrary(), "C_GetFunctionList", null, false);
     }
 
+    /**
+     * Obtains entry points of Cryptoki (PKCS#11) library functions in a
+     * multi-threaded mode where the library relies on native OS locking.
+     *
+     * <p>
+     * The library is initialized with {@code CKF_OS_LOCKING_OK}, so the JDK
+     * wrapper does not serialize the calls and distinct sessions can be used
+     * from several threads at the same time.</p>
+     *
+     * @return A {@link PKCS11} instance with initialized function pointers.
+     * @throws Exception if the library cannot be loaded or initialized.
+     * @see #setMultiThreadedCryptokiFunctions(CK_C_INITIALIZE_ARGS)
+     */
+    public static PKCS11 setMultiThreadedCryptokiFunctions() throws Exception {
+        CK_C_INITIALIZE_ARGS initArgs = new CK_C_INITIALIZE_ARGS();
+        initArgs.flags = PKCS11Constants.CKF_OS_LOCKING_OK;
+        return setMultiThreadedCryptokiFunctions(initArgs);
+    }
+
+    /**
+     * Obtains entry points of Cryptoki (PKCS#11) library functions in a
+     * multi-threaded mode with caller supplied initialization arguments, e.g.
+     * to register mutex callbacks.
+     *
+     * <p>
+     * The JDK keeps a single instance per library path: the first call made
+     * in the JVM decides the locking mode, later calls return that instance
+     * regardless of the arguments given. Use {@link #isMultiThreaded(PKCS11)}
+     * to check the mode actually obtained.</p>
+     *
+     * @param initArgs Arguments passed to {@code C_Initialize}.
+     * @return A {@link PKCS11} instance with initialized function pointers.
+     * @throws Exception if the library cannot be loaded or initialized.
+     */
+    public static PKCS11 setMultiThreadedCryptokiFunctions(CK_C_INITIALIZE_ARGS initArgs) throws Exception {
+        return PKCS11.getInstance(Utils.loadLibrary(), "C_GetFunctionList", initArgs, false);
+    }
+
+    /**
+     * Tells whether calls through the given instance may run concurrently.
+     *
+     * <p>
+     * Without {@code CKF_OS_LOCKING_OK} the JDK returns a synchronized
+     * subclass of {@link PKCS11} that holds a global lock for every call.</p>
+     *
+     * @param p11 The PKCS#11 cryptoki library interface.
+     * @return {@code true} if the calls are not serialized by the wrapper.
+     */
+    public static boolean isMultiThreaded(PKCS11 p11) {
+        return p11.getClass() == PKCS11.class;
+    }
+
     /**
      * Opens a new PKCS#11 session on a specified token slot.
      *
@@ -66,7 +125,8 @@ public class Utils {
      * @throws Exception if the session cannot be opened.
      */
     public static long openSession(PKCS11 p11, long slotId, long flags) throws Exception {
-        long hSession = p11.C_OpenSession(slotId, flags, null, null);
+        long hSession = CryptokiMetrics.callOnSlot("C_OpenSession", slotId, () -> p11.C_OpenSession(slotId, flags, null, null));
+        CryptokiMetrics.sessionOpened(hSession, slotId);
         return hSession;
     }
 
@@ -78,7 +138,11 @@ public class Utils {
      * @throws Exception if the session cannot be closed.
      */
     public static void closeSession(PKCS11 p11, long hSession) throws Exception {
-        p11.C_CloseSession(hSession);
+        try {
+            CryptokiMetrics.run("C_CloseSession", null, hSession, () -> p11.C_CloseSession(hSession));
+        } finally {
+            CryptokiMetrics.sessionClosed(hSession);
+        }
     }
 
     /**
@@ -91,7 +155,7 @@ public class Utils {
      * @throws Exception if the login attempt fails.
      */
     public static void login(PKCS11 p11, long hSession, long hUser, char[] pin) throws Exception {
-        p11.C_Login(hSession, hUser, pin);
+        CryptokiMetrics.run("C_Login", null, hSession, () -> p11.C_Login(hSession, hUser, pin));
     }
 
     /**
@@ -102,7 +166,93 @@ public class Utils {
      * @throws Exception if the logout attempt fails.
      */
     public static void logout(PKCS11 p11, long hSession) throws Exception {
-        p11.C_Logout(hSession);
+        CryptokiMetrics.run("C_Logout", null, hSession, () -> p11.C_Logout(hSession));
+    }
+
+    /**
+     * Returns the native address of the remaining content of a buffer, as
+     * expected by the direct variants of the {@link PKCS11} calls.
+     *
+     * @param buffer The buffer to pass to the token.
+     * @return The address of the buffer position, or 0 for a heap buffer.
+     */
+    public static long address(ByteBuffer buffer) {
+        return buffer.isDirect() ? DirectAddress.of(buffer) + buffer.position() : 0L;
+    }
+
+    /**
+     * Checks that the token may write into a buffer. A read-only heap buffer
+     * would otherwise be replaced by a copy that is thrown away, and a
+     * read-only direct buffer written through its address.
+     *
+     * @param buffer The buffer receiving output from the token.
+     * @throws ReadOnlyBufferException If the buffer is read-only.
+     */
+    public static void checkWritable(ByteBuffer buffer) {
+        if (buffer.isReadOnly()) {
+            throw new ReadOnlyBufferException();
+        }
+    }
+
+    /**
+     * Looks up {@code sun.nio.ch.DirectBuffer.address()}. There is no
+     * supported way to get the address of a direct buffer on Java 17, so the
+     * method is bound at run time (the package is exported by the jar
+     * manifest) instead of being linked against the internal class, which
+     * javac reports as proprietary API. Kept in its own class so that
+     * heap-only callers never need the export.
+     */
+    private static final class DirectAddress {
+        private static final MethodHandle ADDRESS;
+
+        static {
+            try {
+                Class<?> directBuffer = Class.forName("sun.nio.ch.DirectBuffer");
+                ADDRESS = MethodHandles.lookup()
+                        .findVirtual(directBuffer, "address", MethodType.methodType(long.class))
+                        .asType(MethodType.methodType(long.class, ByteBuffer.class));
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        static long of(ByteBuffer buffer) {
+            try {
+                return (long) ADDRESS.invokeExact(buffer);
+            } catch (Throwable e) {
+                throw new IllegalStateException("cannot get the address of a direct buffer", e);
+            }
+        }
+    }
+
+    /**
+     * Returns the array backing the remaining content of a heap buffer. A
+     * read-only buffer is copied, so it may only be used as input (see
+     * {@link #checkWritable(ByteBuffer)}).
+     *
+     * @param buffer The buffer to pass to the token.
+     * @return The backing array, or {@code null} for a direct buffer.
+     */
+    public static byte[] array(ByteBuffer buffer) {
+        if (buffer.isDirect()) {
+            return null;
+        } else if (buffer.hasArray()) {
+            return buffer.array();
+        }
+        byte[] copy = new byte[buffer.remaining()];
+        buffer.duplicate().get(copy);
+        return copy;
+    }
+
+    /**
+     * Returns the offset of the remaining content in {@link #array(ByteBuffer)}.
+     *
+     * @param buffer The buffer to pass to the token.
+     * @return The array offset of the buffer position, or 0 for a direct
+     * buffer.
+     */
+    public static int arrayOffset(ByteBuffer buffer) {
+        return !buffer.isDirect() && buffer.hasArray() ? buffer.arrayOffset() + buffer.position() : 0;
     }
 
     /**
@@ -139,16 +289,20 @@ public class Utils {
      * <p>
      * The method reads the {@code library.properties} file and retrieves the
      * value of the property {@code cryptoki.library}, which specifies the
-     * PKCS#11 library path. It then validates the path using
-     * {@link #setLibrary(String)}.</p>
+     * PKCS#11 library path. A system property of the same name takes
+     * precedence, e.g. to point a benchmark at a software token. It then
+     * validates the path using {@link #setLibrary(String)}.</p>
      *
      * @return The validated path of the PKCS#11 (Cryptoki) library.
      * @throws Exception if the properties file cannot be loaded, the property
      * is missing, or the library path is invalid.
      */
     public static String loadLibrary() throws Exception {
-        Properties props = Utils.loadProperties("library.properties");
-        String library = props.getProperty("cryptoki.library");
+        String library = System.getProperty("cryptoki.library");
+        if (library == null) {
+            Properties props = Utils.loadProperties("library.properties");
+            library = props.getProperty("cryptoki.library");
+        }
         return setLibrary(library);
     }
 }
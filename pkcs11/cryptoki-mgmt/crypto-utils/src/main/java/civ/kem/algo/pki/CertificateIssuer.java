@@ -0,0 +1,415 @@
+package civ.kem.algo.pki;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.DERBitString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.edec.EdECObjectIdentifiers;
+import org.bouncycastle.asn1.pkcs.Attribute;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Certificate;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.ExtensionsGenerator;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.asn1.x509.TBSCertificate;
+import org.bouncycastle.asn1.x509.Time;
+import org.bouncycastle.asn1.x509.V3TBSCertificateGenerator;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.bc.BcX509ExtensionUtils;
+import org.bouncycastle.openssl.PEMParser;
+import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.bouncycastle.pkcs.PKCS10CertificationRequest;
+import org.bouncycastle.util.io.pem.PemObject;
+import org.bouncycastle.util.io.pem.PemWriter;
+
+import civ.kem.algo.Asymmetric;
+import civ.kem.algo.AsyncCryptoki;
+import civ.kem.algo.ParallelSessions;
+import civ.kem.algo.SessionPool;
+
+/**
+ * Issues X.509 certificates from PKCS#10 requests, signing them with a CA
+ * key held on the token.
+ *
+ * <p>
+ * Issuance is pipelined: requests are parsed, checked and turned into a
+ * hashed TBSCertificate on a pool of worker threads, the hashes are signed
+ * through an {@link AsyncCryptoki} spread over the sessions of the CA slot,
+ * and the certificates are assembled and written by the workers again. The
+ * token only ever sees hashes, and the CPU stages of the next requests run
+ * while the token signs, up to a bound of requests in flight.</p>
+ *
+ * <p>
+ * Certificates get a random 159-bit serial number, the subject and public
+ * key of the request and its subject alternative names, if any. They are
+ * valid for the configured period, cut at the end of validity of the CA
+ * certificate. The issuer
+ * adds the basic constraints (end entity), key usage, subject and authority
+ * key identifiers. The key usage follows the algorithm of the subject key:
+ * key encipherment is only asserted for RSA keys, never for EC keys (RFC
+ * 5480) or EdDSA keys (RFC 8410).</p>
+ */
+public class CertificateIssuer implements AutoCloseable {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+
+    /* a request on its way through the pipeline */
+    private static final class Job {
+
+        final String name;
+        byte[] encoded;
+        TBSCertificate tbs;
+        byte[] toSign;
+        X509CertificateHolder certificate;
+
+        Job(String name, byte[] encoded) {
+            this.name = name;
+            this.encoded = encoded;
+        }
+    }
+
+    private final SessionPool pool;
+    private final TokenContentSigner signer;
+    private final X509CertificateHolder caCertificate;
+    private final Extension authorityKeyIdentifier;
+    private final BcX509ExtensionUtils extensionUtils = new BcX509ExtensionUtils();
+    private final SecureRandom random = new SecureRandom();
+    private final int maxInFlight;
+    private final ExecutorService workers;
+    private final AsyncCryptoki async;
+    private volatile Duration validity = Duration.ofDays(365);
+    private volatile boolean verifyRequests = true;
+
+    private final AtomicLong issued = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final Map<String, Throwable> failures = new ConcurrentHashMap<>();
+    private volatile long startNanos;
+    private volatile long endNanos;
+
+    /**
+     * Creates an issuer with the default bound of requests in flight.
+     *
+     * @param pool Pool of sessions on the slot holding the CA key.
+     * @param hCaKey Handle of the CA private key.
+     * @param caCertificate Certificate of the CA.
+     * @param algorithm The signature algorithm, e.g. {@code SHA256withECDSA}.
+     * @throws Exception If the algorithm is not supported.
+     */
+    public CertificateIssuer(SessionPool pool, long hCaKey, X509CertificateHolder caCertificate, String algorithm) throws Exception {
+        this(pool, hCaKey, caCertificate, algorithm, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Creates an issuer.
+     *
+     * @param pool Pool of sessions on the slot holding the CA key.
+     * @param hCaKey Handle of the CA private key.
+     * @param caCertificate Certificate of the CA.
+     * @param algorithm The signature algorithm, e.g. {@code SHA256withECDSA}.
+     * @param maxInFlight Largest number of requests between parsing and
+     * writing.
+     * @throws Exception If the algorithm is not supported.
+     */
+    public CertificateIssuer(SessionPool pool, long hCaKey, X509CertificateHolder caCertificate, String algorithm, int maxInFlight) throws Exception {
+        this.pool = pool;
+        this.signer = new TokenContentSigner(pool, hCaKey, algorithm);
+        this.caCertificate = caCertificate;
+        this.authorityKeyIdentifier = new Extension(Extension.authorityKeyIdentifier, false,
+                extensionUtils.createAuthorityKeyIdentifier(caCertificate).getEncoded(ASN1Encoding.DER));
+        this.maxInFlight = maxInFlight;
+        this.workers = ParallelSessions.newDaemonPool(Runtime.getRuntime().availableProcessors(), "certificate-issuer");
+        this.async = new AsyncCryptoki(maxInFlight, pool.getMaxSize());
+    }
+
+    /**
+     * Sets the validity period of the certificates, one year by default.
+     */
+    public void setValidity(Duration validity) {
+        this.validity = validity;
+    }
+
+    /**
+     * Chooses whether the signature of each request is checked, the default.
+     */
+    public void setVerifyRequests(boolean verifyRequests) {
+        this.verifyRequests = verifyRequests;
+    }
+
+    /**
+     * Issues one certificate.
+     *
+     * @param csr The DER or PEM encoded request.
+     * @return The certificate.
+     * @throws Exception If the request is invalid or the signature fails.
+     */
+    public X509CertificateHolder issue(byte[] csr) throws Exception {
+        try {
+            return submit(new Job("request", csr)).join().certificate;
+        } catch (CompletionException ex) {
+            throw ParallelSessions.unwrap(ex);
+        }
+    }
+
+    /**
+     * Issues the certificates of the requests of a directory (files ending
+     * with {@code .csr}, {@code .p10}, {@code .pem} or {@code .der}), writing
+     * each one in PEM to {@code <request name>.crt} in the output directory.
+     *
+     * @param requests The directory of the requests.
+     * @param certificates The directory receiving the certificates.
+     * @return The number of certificates issued.
+     * @throws Exception If a directory cannot be read or written.
+     */
+    public long issueDirectory(Path requests, Path certificates) throws Exception {
+        Files.createDirectories(certificates);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(requests, "*.{csr,p10,pem,der}")) {
+            Iterator<Path> it = files.iterator();
+            return issueAll(new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public Map.Entry<String, byte[]> next() {
+                    Path file = it.next();
+                    try {
+                        return Map.entry(file.getFileName().toString(), Files.readAllBytes(file));
+                    } catch (IOException ex) {
+                        throw new CompletionException(ex);
+                    }
+                }
+            }, (name, certificate) -> {
+                String base = name.substring(0, name.lastIndexOf('.'));
+                try {
+                    Files.writeString(certificates.resolve(base + ".crt"), toPem(certificate), StandardCharsets.US_ASCII);
+                } catch (IOException ex) {
+                    throw new CompletionException(ex);
+                }
+            });
+        }
+    }
+
+    /**
+     * Issues the certificates of a stream of requests.
+     *
+     * @param requests The requests, DER or PEM encoded, by name.
+     * @param sink Receives each certificate with the name of its request, on
+     * a worker thread.
+     * @return The number of certificates issued.
+     * @throws InterruptedException If interrupted while waiting for the
+     * pipeline.
+     */
+    public long issueAll(Iterator<Map.Entry<String, byte[]>> requests, BiConsumer<String, X509CertificateHolder> sink) throws InterruptedException {
+        issued.set(0);
+        failed.set(0);
+        failures.clear();
+        startNanos = System.nanoTime();
+        endNanos = 0;
+
+        Semaphore window = new Semaphore(maxInFlight);
+        try {
+            while (requests.hasNext()) {
+                Map.Entry<String, byte[]> request = requests.next();
+                window.acquire();
+                submit(new Job(request.getKey(), request.getValue()))
+                        .thenAcceptAsync(job -> sink.accept(job.name, job.certificate), workers)
+                        .whenComplete((result, ex) -> {
+                            if (ex != null) {
+                                failures.put(request.getKey(), ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex);
+                                failed.incrementAndGet();
+                            } else {
+                                issued.incrementAndGet();
+                            }
+                            window.release();
+                        });
+            }
+            /* wait for the requests in flight */
+            window.acquire(maxInFlight);
+            window.release(maxInFlight);
+        } finally {
+            endNanos = System.nanoTime();
+        }
+        return issued.get();
+    }
+
+    private CompletableFuture<Job> submit(Job job) {
+        return CompletableFuture.supplyAsync(() -> prepare(job), workers)
+                .thenCompose(prepared -> async.submit(pool, hSession -> sign(hSession, prepared.toSign)))
+                .thenApplyAsync(signature -> assemble(job, signature), workers);
+    }
+
+    /*
+     * signs on a session of the pool, returning the token form of the
+     * signature; package-private so tests can sign without a token
+     */
+    byte[] sign(long hSession, byte[] toSign) throws Exception {
+        return Asymmetric.sign(pool.getP11(), hSession, signer.mechanism(), signer.getPrivateKey(), toSign, toSign.length);
+    }
+
+    /* parse, check, build and hash: everything before the token */
+    private Job prepare(Job job) {
+        try {
+            PKCS10CertificationRequest csr = parseRequest(job.encoded);
+            job.encoded = null;
+            if (verifyRequests && !csr.isSignatureValid(new JcaContentVerifierProviderBuilder().build(new JcaPEMKeyConverter().getPublicKey(csr.getSubjectPublicKeyInfo())))) {
+                throw new IllegalArgumentException("Invalid request signature: " + job.name);
+            }
+
+            Date notBefore = new Date();
+            Date notAfter = new Date(notBefore.getTime() + validity.toMillis());
+            if (notAfter.after(caCertificate.getNotAfter())) {
+                notAfter = caCertificate.getNotAfter();
+                if (!notAfter.after(notBefore)) {
+                    throw new IllegalStateException("CA certificate expired: " + caCertificate.getSubject());
+                }
+            }
+            BigInteger serial;
+            do {
+                serial = new BigInteger(159, random);
+            } while (serial.signum() == 0);
+
+            ExtensionsGenerator extensions = new ExtensionsGenerator();
+            extensions.addExtension(Extension.basicConstraints, true, new BasicConstraints(false));
+            extensions.addExtension(Extension.keyUsage, true, keyUsage(csr.getSubjectPublicKeyInfo()));
+            extensions.addExtension(Extension.subjectKeyIdentifier, false,
+                    extensionUtils.createSubjectKeyIdentifier(csr.getSubjectPublicKeyInfo()));
+            extensions.addExtension(authorityKeyIdentifier);
+            for (Attribute attribute : csr.getAttributes(PKCSObjectIdentifiers.pkcs_9_at_extensionRequest)) {
+                Extension san = Extensions.getInstance(attribute.getAttrValues().getObjectAt(0)).getExtension(Extension.subjectAlternativeName);
+                if (san != null) {
+                    extensions.addExtension(san);
+                }
+            }
+
+            V3TBSCertificateGenerator tbs = new V3TBSCertificateGenerator();
+            tbs.setSerialNumber(new ASN1Integer(serial));
+            tbs.setSignature(signer.getAlgorithmIdentifier());
+            tbs.setIssuer(caCertificate.getSubject());
+            tbs.setStartDate(new Time(notBefore));
+            tbs.setEndDate(new Time(notAfter));
+            tbs.setSubject(csr.getSubject());
+            tbs.setSubjectPublicKeyInfo(csr.getSubjectPublicKeyInfo());
+            tbs.setExtensions(extensions.generate());
+            job.tbs = tbs.generateTBSCertificate();
+            job.toSign = signer.toBeSigned(signer.hash(job.tbs.getEncoded(ASN1Encoding.DER)));
+            return job;
+        } catch (Exception ex) {
+            throw new CompletionException(ex);
+        }
+    }
+
+    /* the usages the subject key can have, by key algorithm */
+    static KeyUsage keyUsage(SubjectPublicKeyInfo subjectKey) {
+        ASN1ObjectIdentifier algorithm = subjectKey.getAlgorithm().getAlgorithm();
+        if (algorithm.equals(PKCSObjectIdentifiers.rsaEncryption)) {
+            return new KeyUsage(KeyUsage.digitalSignature | KeyUsage.keyEncipherment);
+        } else if (algorithm.equals(EdECObjectIdentifiers.id_X25519) || algorithm.equals(EdECObjectIdentifiers.id_X448)) {
+            return new KeyUsage(KeyUsage.keyAgreement);
+        }
+        /* EC, EdDSA, RSASSA-PSS: signing only */
+        return new KeyUsage(KeyUsage.digitalSignature);
+    }
+
+    private Job assemble(Job job, byte[] signature) {
+        try {
+            job.certificate = new X509CertificateHolder(Certificate.getInstance(new DERSequence(new ASN1Encodable[]{
+                job.tbs, signer.getAlgorithmIdentifier(), new DERBitString(signer.encodeSignature(signature))})));
+        } catch (IOException ex) {
+            throw new CompletionException(ex);
+        }
+        job.tbs = null;
+        job.toSign = null;
+        return job;
+    }
+
+    private static PKCS10CertificationRequest parseRequest(byte[] encoded) throws IOException {
+        if (encoded.length > 0 && encoded[0] == 0x30) {
+            return new PKCS10CertificationRequest(encoded);
+        }
+        try (Reader reader = new StringReader(new String(encoded, StandardCharsets.US_ASCII));
+                PEMParser parser = new PEMParser(reader)) {
+            Object object = parser.readObject();
+            if (!(object instanceof PKCS10CertificationRequest)) {
+                throw new IOException("Not a certification request");
+            }
+            return (PKCS10CertificationRequest) object;
+        }
+    }
+
+    /**
+     * Returns the PEM encoding of a certificate.
+     */
+    public static String toPem(X509CertificateHolder certificate) throws IOException {
+        StringWriter out = new StringWriter();
+        try (PemWriter writer = new PemWriter(out)) {
+            writer.writeObject(new PemObject("CERTIFICATE", certificate.getEncoded()));
+        }
+        return out.toString();
+    }
+
+    public long getIssued() {
+        return issued.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Errors of the last run, by request name.
+     */
+    public Map<String, Throwable> getFailures() {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * Issuance rate of the current or last run, in certificates per minute.
+     */
+    public double getCertificatesPerMinute() {
+        long end = endNanos != 0 ? endNanos : System.nanoTime();
+        long elapsed = end - startNanos;
+        return elapsed <= 0 ? 0 : issued.get() * 60e9 / elapsed;
+    }
+
+    /**
+     * Stops the pipeline once the requests in flight are done; the pool is
+     * left open.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        async.close();
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.MINUTES);
+    }
+}
@@ -0,0 +1,522 @@
+package civ.kem.algo.pki;
+
+import java.security.MessageDigest;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertPathValidator;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.PKIXParameters;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.ECPublicKey;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
+import org.bouncycastle.asn1.x9.X9ObjectIdentifiers;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.bc.BcX509ExtensionUtils;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
+import org.bouncycastle.operator.DefaultAlgorithmNameFinder;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.bouncycastle.util.encoders.Hex;
+
+import civ.kem.algo.Asymmetric;
+import civ.kem.algo.SessionPool;
+
+/**
+ * Builds and validates certificate chains up to a set of trust anchors,
+ * remembering the signatures already verified.
+ *
+ * <p>
+ * Issuers are looked up by authority key identifier in an index of the
+ * subject key identifiers of the trust anchors and known intermediates, and
+ * by issuer name when the certificate has no identifier. The signature of
+ * each issuer to subject link is verified once: verified links are kept in
+ * a bounded cache keyed by the SHA-256 fingerprints of both certificates, so
+ * validating a known chain again costs a hash lookup per link plus the
+ * validity and constraint checks, which are never cached.</p>
+ *
+ * <p>
+ * The validator itself checks the validity periods, the basic constraints
+ * and the key usage of the issuers. A certificate below the trust anchor
+ * with any other critical extension than the key identifiers, the subject
+ * alternative name and the extended key usage, whose purpose is left to the
+ * caller, is rejected. Paths carrying name constraints, policy mappings,
+ * policy constraints, an inhibit any-policy or critical certificate policies
+ * are in addition validated with the PKIX {@link CertPathValidator} of the
+ * JDK, without revocation checking; only their signature links are cached.
+ * The name constraints of a trust anchor are applied, its other extensions
+ * are not.</p>
+ *
+ * <p>
+ * Signatures are verified with the JCA, or on the token with
+ * {@link Asymmetric#isSignatureValid} for the trust anchors whose public key
+ * is held on a token; the data is hashed in the JVM. Signature algorithms
+ * the token path does not cover fall back to the JCA.</p>
+ *
+ * <p>
+ * The validator is thread-safe.</p>
+ */
+public class ChainValidator {
+
+    public static final int DEFAULT_CACHE_SIZE = 10000;
+    public static final int DEFAULT_MAX_PATH_LENGTH = 10;
+
+    /* critical extensions checked here, or that carry no constraint on the path */
+    private static final Set<ASN1ObjectIdentifier> HANDLED = Set.of(Extension.basicConstraints, Extension.keyUsage,
+            Extension.subjectKeyIdentifier, Extension.authorityKeyIdentifier, Extension.subjectAlternativeName,
+            Extension.extendedKeyUsage);
+    /* extensions left to the PKIX validator */
+    private static final Set<ASN1ObjectIdentifier> PKIX = Set.of(Extension.nameConstraints, Extension.policyMappings,
+            Extension.policyConstraints, Extension.inhibitAnyPolicy, Extension.certificatePolicies);
+
+    /* a trust anchor or intermediate, with its key held on a token or not */
+    private static final class Issuer {
+
+        final X509CertificateHolder certificate;
+        final String fingerprint;
+        final boolean anchor;
+        final SessionPool pool;
+        final long hPublicKey;
+        final int orderLength;
+        final long notBefore;
+        final long notAfter;
+        /* why the certificate cannot issue certificates, null if it can */
+        final String notCa;
+        final int pathLength;
+        /* the first critical extension not handled, null if none */
+        final String unhandled;
+        final boolean constrained;
+
+        Issuer(X509CertificateHolder certificate, boolean anchor, SessionPool pool, long hPublicKey) throws Exception {
+            this.certificate = certificate;
+            this.fingerprint = fingerprint(certificate);
+            this.anchor = anchor;
+            this.pool = pool;
+            this.hPublicKey = hPublicKey;
+            this.orderLength = pool != null ? orderLength(certificate) : 0;
+            this.notBefore = certificate.getNotBefore().getTime();
+            this.notAfter = certificate.getNotAfter().getTime();
+            Extensions extensions = certificate.getExtensions();
+            BasicConstraints constraints = BasicConstraints.fromExtensions(extensions);
+            KeyUsage usage = KeyUsage.fromExtensions(extensions);
+            if (certificate.getVersionNumber() == 3 && (constraints == null || !constraints.isCA())) {
+                this.notCa = "is not a CA";
+            } else if (usage != null && !usage.hasUsages(KeyUsage.keyCertSign)) {
+                this.notCa = "cannot sign certificates";
+            } else {
+                this.notCa = null;
+            }
+            this.pathLength = constraints != null && constraints.getPathLenConstraint() != null
+                    ? constraints.getPathLenConstraint().intValue() : Integer.MAX_VALUE;
+            this.unhandled = unhandledExtension(certificate);
+            this.constrained = anchor ? certificate.getExtension(Extension.nameConstraints) != null : constrained(certificate);
+        }
+    }
+
+    private final int cacheSize;
+    private final int maxPathLength;
+    private final Map<String, List<Issuer>> byKeyId = new ConcurrentHashMap<>();
+    private final Map<X500Name, List<Issuer>> bySubject = new ConcurrentHashMap<>();
+    private final LinkedHashMap<String, Boolean> verified = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong tokenVerifications = new AtomicLong();
+    private final AtomicLong pkixValidations = new AtomicLong();
+
+    /**
+     * Creates a validator with the default cache size and path length.
+     */
+    public ChainValidator() {
+        this(DEFAULT_CACHE_SIZE, DEFAULT_MAX_PATH_LENGTH);
+    }
+
+    /**
+     * Creates a validator.
+     *
+     * @param cacheSize Largest number of verified links kept.
+     * @param maxPathLength Largest number of certificates below a trust
+     * anchor.
+     */
+    public ChainValidator(int cacheSize, int maxPathLength) {
+        if (cacheSize <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive: " + cacheSize);
+        }
+        this.cacheSize = cacheSize;
+        this.maxPathLength = maxPathLength;
+    }
+
+    /**
+     * Adds a trust anchor verified with the JCA.
+     *
+     * @param anchor The certificate of the anchor.
+     * @throws Exception If the certificate cannot be indexed.
+     */
+    public void addTrustAnchor(X509CertificateHolder anchor) throws Exception {
+        index(new Issuer(anchor, true, null, 0L));
+    }
+
+    /**
+     * Adds a trust anchor whose public key is held on a token.
+     *
+     * @param anchor The certificate of the anchor.
+     * @param pool Pool of sessions on the slot holding the key.
+     * @param hPublicKey Handle of the public key of the anchor.
+     * @throws Exception If the certificate cannot be indexed.
+     */
+    public void addTrustAnchor(X509CertificateHolder anchor, SessionPool pool, long hPublicKey) throws Exception {
+        index(new Issuer(anchor, true, pool, hPublicKey));
+    }
+
+    /**
+     * Adds an intermediate certificate, used to complete the chains that do
+     * not carry it. It is not trusted by itself.
+     *
+     * @param intermediate The certificate.
+     * @throws Exception If the certificate cannot be indexed.
+     */
+    public void addIntermediate(X509CertificateHolder intermediate) throws Exception {
+        index(new Issuer(intermediate, false, null, 0L));
+    }
+
+    private void index(Issuer issuer) {
+        byKeyId.computeIfAbsent(keyId(issuer.certificate), id -> new CopyOnWriteArrayList<>()).add(issuer);
+        bySubject.computeIfAbsent(issuer.certificate.getSubject(), name -> new CopyOnWriteArrayList<>()).add(issuer);
+    }
+
+    /**
+     * Validates a chain now.
+     *
+     * @see #validate(List, Date)
+     */
+    public List<X509CertificateHolder> validate(List<X509CertificateHolder> chain) throws CertPathValidatorException {
+        return validate(chain, new Date());
+    }
+
+    /**
+     * Validates a chain at a given time: every certificate up to a trust
+     * anchor must be valid at that time, issued by the next one, and every
+     * issuer must be a CA allowed to sign certificates within its path
+     * length constraint. The certificates below the anchor must not carry
+     * unhandled critical extensions, and the paths with name or policy
+     * constraints must also pass the PKIX validation.
+     *
+     * @param chain The end-entity certificate first, followed by any number
+     * of intermediates in any order.
+     * @param at The validation time.
+     * @return The path from the end-entity certificate to the trust anchor,
+     * both included.
+     * @throws CertPathValidatorException If no valid path is found.
+     */
+    public List<X509CertificateHolder> validate(List<X509CertificateHolder> chain, Date at) throws CertPathValidatorException {
+        if (chain.isEmpty()) {
+            throw new CertPathValidatorException("Empty chain");
+        }
+        List<X509CertificateHolder> path = new ArrayList<>();
+        X509CertificateHolder subject = chain.get(0);
+        String subjectFingerprint = fingerprint(subject);
+        path.add(subject);
+        checkValidity(subject, at);
+        if (subject.getSubject().equals(subject.getIssuer())) {
+            List<Issuer> same = bySubject.get(subject.getSubject());
+            for (Issuer issuer : same != null ? same : List.<Issuer>of()) {
+                if (issuer.anchor && issuer.fingerprint.equals(subjectFingerprint)) {
+                    /* the trust anchor itself */
+                    return path;
+                }
+            }
+        }
+        checkExtensions(subject);
+        boolean constrained = constrained(subject);
+
+        for (int depth = 0; depth <= maxPathLength; depth++) {
+            CertPathValidatorException last = null;
+            Issuer found = null;
+            /* the indexed issuers, whose fingerprints are known, before those of the chain */
+            for (int pass = 0; pass < 2 && found == null; pass++) {
+                for (Issuer issuer : pass == 0 ? indexedIssuers(subject) : chainIssuers(subject, chain)) {
+                    try {
+                        checkValidity(issuer, at);
+                        checkIssuer(issuer, depth);
+                        if (!issuer.anchor && issuer.unhandled != null) {
+                            throw new CertPathValidatorException("Certificate " + issuer.certificate.getSubject()
+                                    + " has an unhandled critical extension " + issuer.unhandled);
+                        }
+                        verifyLink(issuer, subject, subjectFingerprint);
+                    } catch (CertPathValidatorException ex) {
+                        last = ex;
+                        continue;
+                    }
+                    found = issuer;
+                    break;
+                }
+            }
+            if (found == null) {
+                throw last != null ? last : new CertPathValidatorException("No issuer found for " + subject.getSubject());
+            }
+            path.add(found.certificate);
+            constrained |= found.constrained;
+            if (found.anchor) {
+                if (constrained) {
+                    validatePkix(path, at);
+                }
+                return path;
+            }
+            subject = found.certificate;
+            subjectFingerprint = found.fingerprint;
+        }
+        throw new CertPathValidatorException("Path longer than " + maxPathLength + " certificates");
+    }
+
+    /* trust anchors first, then the known intermediates */
+    private List<Issuer> indexedIssuers(X509CertificateHolder subject) {
+        String keyId = authorityKeyId(subject);
+        List<Issuer> indexed = keyId != null ? byKeyId.get(keyId) : bySubject.get(subject.getIssuer());
+        if (indexed == null) {
+            return List.of();
+        }
+        List<Issuer> candidates = new ArrayList<>(indexed.size());
+        for (Issuer issuer : indexed) {
+            if (issuer.anchor && issuer.certificate.getSubject().equals(subject.getIssuer())) {
+                candidates.add(issuer);
+            }
+        }
+        for (Issuer issuer : indexed) {
+            if (!issuer.anchor && issuer.certificate.getSubject().equals(subject.getIssuer())) {
+                candidates.add(issuer);
+            }
+        }
+        return candidates;
+    }
+
+    private static List<Issuer> chainIssuers(X509CertificateHolder subject, List<X509CertificateHolder> chain) throws CertPathValidatorException {
+        String keyId = authorityKeyId(subject);
+        List<Issuer> candidates = new ArrayList<>();
+        for (X509CertificateHolder certificate : chain) {
+            if (certificate != subject && certificate.getSubject().equals(subject.getIssuer())
+                    && (keyId == null || keyId.equals(keyId(certificate)))) {
+                try {
+                    candidates.add(new Issuer(certificate, false, null, 0L));
+                } catch (Exception ex) {
+                    throw new CertPathValidatorException("Invalid certificate " + certificate.getSubject(), ex);
+                }
+            }
+        }
+        return candidates;
+    }
+
+    private void verifyLink(Issuer issuer, X509CertificateHolder subject, String subjectFingerprint) throws CertPathValidatorException {
+        String link = issuer.fingerprint + ":" + subjectFingerprint;
+        synchronized (verified) {
+            if (verified.get(link) != null) {
+                hits.incrementAndGet();
+                return;
+            }
+        }
+        misses.incrementAndGet();
+        boolean valid;
+        try {
+            valid = issuer.pool != null ? verifyOnToken(issuer, subject) : verifyWithJca(issuer, subject);
+        } catch (Exception ex) {
+            throw new CertPathValidatorException("Cannot verify the signature of " + subject.getSubject() + ": " + ex.getMessage(), ex);
+        }
+        if (!valid) {
+            throw new CertPathValidatorException("Invalid signature on " + subject.getSubject());
+        }
+        synchronized (verified) {
+            verified.put(link, Boolean.TRUE);
+            Iterator<String> it = verified.keySet().iterator();
+            while (verified.size() > cacheSize && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    private static boolean verifyWithJca(Issuer issuer, X509CertificateHolder subject) throws Exception {
+        return subject.isSignatureValid(new JcaContentVerifierProviderBuilder().build(
+                new JcaPEMKeyConverter().getPublicKey(issuer.certificate.getSubjectPublicKeyInfo())));
+    }
+
+    private boolean verifyOnToken(Issuer issuer, X509CertificateHolder subject) throws Exception {
+        /* only the hashing and encoding helpers of the signer are used */
+        TokenContentSigner scheme;
+        try {
+            scheme = new TokenContentSigner(issuer.pool, issuer.hPublicKey,
+                    new DefaultAlgorithmNameFinder().getAlgorithmName(subject.getSignatureAlgorithm()));
+        } catch (NoSuchAlgorithmException ex) {
+            return verifyWithJca(issuer, subject);
+        }
+        byte[] data = scheme.toBeSigned(scheme.hash(subject.toASN1Structure().getTBSCertificate().getEncoded(ASN1Encoding.DER)));
+        byte[] signature = scheme.decodeSignature(subject.getSignature(), issuer.orderLength);
+        tokenVerifications.incrementAndGet();
+        return issuer.pool.execute(hSession -> Asymmetric.isSignatureValid(issuer.pool.getP11(), hSession, scheme.mechanism(),
+                issuer.hPublicKey, data, signature));
+    }
+
+    /* the signatures are verified again, the last certificate of the path is the anchor */
+    private void validatePkix(List<X509CertificateHolder> path, Date at) throws CertPathValidatorException {
+        pkixValidations.incrementAndGet();
+        try {
+            JcaX509CertificateConverter converter = new JcaX509CertificateConverter();
+            List<X509Certificate> certificates = new ArrayList<>(path.size());
+            for (X509CertificateHolder certificate : path) {
+                certificates.add(converter.getCertificate(certificate));
+            }
+            X509CertificateHolder anchor = path.get(path.size() - 1);
+            Extension nameConstraints = anchor.getExtension(Extension.nameConstraints);
+            PKIXParameters parameters = new PKIXParameters(Set.of(new TrustAnchor(certificates.remove(certificates.size() - 1),
+                    nameConstraints != null ? nameConstraints.getExtnValue().getOctets() : null)));
+            parameters.setRevocationEnabled(false);
+            parameters.setDate(at);
+            CertPathValidator.getInstance("PKIX").validate(CertificateFactory.getInstance("X.509").generateCertPath(certificates), parameters);
+        } catch (CertPathValidatorException ex) {
+            throw ex;
+        } catch (GeneralSecurityException ex) {
+            throw new CertPathValidatorException("Cannot validate the path of " + path.get(0).getSubject() + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    private static void checkExtensions(X509CertificateHolder certificate) throws CertPathValidatorException {
+        String unhandled = unhandledExtension(certificate);
+        if (unhandled != null) {
+            throw new CertPathValidatorException("Certificate " + certificate.getSubject() + " has an unhandled critical extension " + unhandled);
+        }
+    }
+
+    private static String unhandledExtension(X509CertificateHolder certificate) {
+        for (Object oid : certificate.getCriticalExtensionOIDs()) {
+            if (!HANDLED.contains(oid) && !PKIX.contains(oid)) {
+                return oid.toString();
+            }
+        }
+        return null;
+    }
+
+    /* certificate policies are only left to the PKIX validator when critical */
+    private static boolean constrained(X509CertificateHolder certificate) {
+        for (Object oid : certificate.getExtensionOIDs()) {
+            if (PKIX.contains(oid) && (!Extension.certificatePolicies.equals(oid) || certificate.getExtension(Extension.certificatePolicies).isCritical())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void checkValidity(X509CertificateHolder certificate, Date at) throws CertPathValidatorException {
+        if (!certificate.isValidOn(at)) {
+            throw new CertPathValidatorException("Certificate " + certificate.getSubject() + " not valid on " + at);
+        }
+    }
+
+    private static void checkValidity(Issuer issuer, Date at) throws CertPathValidatorException {
+        if (at.getTime() < issuer.notBefore || at.getTime() > issuer.notAfter) {
+            throw new CertPathValidatorException("Certificate " + issuer.certificate.getSubject() + " not valid on " + at);
+        }
+    }
+
+    /* depth is the number of intermediates below the issuer */
+    private static void checkIssuer(Issuer issuer, int depth) throws CertPathValidatorException {
+        if (issuer.notCa != null) {
+            throw new CertPathValidatorException("Certificate " + issuer.certificate.getSubject() + " " + issuer.notCa);
+        }
+        if (depth > issuer.pathLength) {
+            throw new CertPathValidatorException("Path length constraint of " + issuer.certificate.getSubject() + " exceeded");
+        }
+    }
+
+    private static String keyId(X509CertificateHolder certificate) {
+        SubjectKeyIdentifier ski = SubjectKeyIdentifier.fromExtensions(certificate.getExtensions());
+        if (ski == null) {
+            ski = new BcX509ExtensionUtils().createSubjectKeyIdentifier(certificate.getSubjectPublicKeyInfo());
+        }
+        return Hex.toHexString(ski.getKeyIdentifier());
+    }
+
+    private static String authorityKeyId(X509CertificateHolder certificate) {
+        AuthorityKeyIdentifier aki = AuthorityKeyIdentifier.fromExtensions(certificate.getExtensions());
+        return aki != null && aki.getKeyIdentifier() != null ? Hex.toHexString(aki.getKeyIdentifier()) : null;
+    }
+
+    private static String fingerprint(X509CertificateHolder certificate) throws CertPathValidatorException {
+        try {
+            return Hex.toHexString(MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded()));
+        } catch (Exception ex) {
+            throw new CertPathValidatorException("Cannot encode " + certificate.getSubject(), ex);
+        }
+    }
+
+    private static int orderLength(X509CertificateHolder certificate) throws Exception {
+        if (!certificate.getSubjectPublicKeyInfo().getAlgorithm().getAlgorithm().equals(X9ObjectIdentifiers.id_ecPublicKey)) {
+            return 0;
+        }
+        ECPublicKey key = (ECPublicKey) new JcaPEMKeyConverter().getPublicKey(certificate.getSubjectPublicKeyInfo());
+        return (key.getParams().getOrder().bitLength() + 7) / 8;
+    }
+
+    /**
+     * Forgets the verified links.
+     */
+    public void clearCache() {
+        synchronized (verified) {
+            verified.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (verified) {
+            return verified.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Number of signatures verified on a token.
+     */
+    public long getTokenVerifications() {
+        return tokenVerifications.get();
+    }
+
+    /**
+     * Number of paths with name or policy constraints validated with the
+     * PKIX validator.
+     */
+    public long getPkixValidations() {
+        return pkixValidations.get();
+    }
+
+    /**
+     * Returns a one-line summary of the cache.
+     */
+    public String stats() {
+        return String.format("%d/%d links, %d hits, %d misses, %d token verifications, %d PKIX validations",
+                size(), cacheSize, hits.get(), misses.get(), tokenVerifications.get(), pkixValidations.get());
+    }
+}
@@ -0,0 +1,434 @@
+package civ.kem.algo.pki;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DERBitString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERTaggedObject;
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.ExtensionsGenerator;
+import org.bouncycastle.asn1.x509.Time;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.bc.BcX509ExtensionUtils;
+
+import civ.kem.algo.Asymmetric;
+import civ.kem.algo.Digester;
+import civ.kem.algo.SessionPool;
+
+/**
+ * Generates full and delta CRLs of any size, signed with a CA key held on the
+ * token.
+ *
+ * <p>
+ * The revoked certificates are streamed from a text file sorted by serial
+ * number, one entry per line: the serial number in hexadecimal, the
+ * revocation time as an ISO-8601 instant and an optional
+ * {@link CRLReason} code, e.g. {@code 1f3a 2024-05-01T12:00:00Z 1}. Each
+ * entry is DER encoded on its own into a temporary file, so the heap use does
+ * not depend on the number of revocations. The TBSCertList is then hashed on
+ * the token with a {@link Digester}, the entries going by memory-mapped
+ * windows, and the CA key signs the final digest only; the CRL is written by
+ * copying the entries from the temporary file between the encoded header and
+ * trailer. The CRL is written to a temporary file next to it and moved in
+ * place atomically, so readers never see a partial CRL.</p>
+ *
+ * <p>
+ * Revocations made since the last full CRL are appended to a change log, one
+ * line per change: {@code + <serial> <time> [reason]} for a revocation and
+ * {@code - <serial> <time>} for a certificate released from hold. A delta CRL
+ * is built from the change log alone, so its cost follows the number of
+ * changes. When the next full CRL is published, {@link #compact} folds the
+ * change log into the sorted file; the log itself is left untouched, and the
+ * caller starts a new one once the merged file is in place.</p>
+ */
+public class CrlGenerator {
+
+    private static final int TAG_SEQUENCE = 0x30;
+
+    /* a line of the sorted file or of the change log */
+    static final class Entry {
+
+        final BigInteger serial;
+        final Instant time;
+        final int reason;
+
+        Entry(BigInteger serial, Instant time, int reason) {
+            this.serial = serial;
+            this.time = time;
+            this.reason = reason;
+        }
+
+        static Entry parse(String[] fields, int from) {
+            return new Entry(new BigInteger(fields[from], 16), Instant.parse(fields[from + 1]),
+                    fields.length > from + 2 ? Integer.parseInt(fields[from + 2]) : -1);
+        }
+
+        String format() {
+            return serial.toString(16) + " " + time + (reason >= 0 ? " " + reason : "");
+        }
+
+        byte[] encode() throws IOException {
+            ASN1EncodableVector entry = new ASN1EncodableVector(3);
+            entry.add(new ASN1Integer(serial));
+            entry.add(new Time(Date.from(time)));
+            if (reason >= 0) {
+                entry.add(new DERSequence(new Extension(Extension.reasonCode, false,
+                        CRLReason.lookup(reason).getEncoded(ASN1Encoding.DER))));
+            }
+            return new DERSequence(entry).getEncoded(ASN1Encoding.DER);
+        }
+    }
+
+    private final SessionPool pool;
+    private final TokenContentSigner signer;
+    private final X509CertificateHolder caCertificate;
+    private final Extension authorityKeyIdentifier;
+    private volatile Duration nextUpdate = Duration.ofDays(7);
+    private volatile Path tempDirectory;
+
+    /**
+     * Creates a generator.
+     *
+     * @param pool Pool of sessions on the slot holding the CA key.
+     * @param hCaKey Handle of the CA private key.
+     * @param caCertificate Certificate of the CA.
+     * @param algorithm The signature algorithm, e.g. {@code SHA256withECDSA}.
+     * @throws Exception If the algorithm is not supported.
+     */
+    public CrlGenerator(SessionPool pool, long hCaKey, X509CertificateHolder caCertificate, String algorithm) throws Exception {
+        this.pool = pool;
+        this.signer = new TokenContentSigner(pool, hCaKey, algorithm);
+        this.caCertificate = caCertificate;
+        this.authorityKeyIdentifier = new Extension(Extension.authorityKeyIdentifier, false,
+                new BcX509ExtensionUtils().createAuthorityKeyIdentifier(caCertificate).getEncoded(ASN1Encoding.DER));
+    }
+
+    /**
+     * Sets the time between this update and the next one, seven days by
+     * default.
+     */
+    public void setNextUpdate(Duration nextUpdate) {
+        this.nextUpdate = nextUpdate;
+    }
+
+    /**
+     * Sets the directory of the temporary entry files, the directory of the
+     * CRL by default.
+     */
+    public void setTempDirectory(Path tempDirectory) {
+        this.tempDirectory = tempDirectory;
+    }
+
+    /**
+     * Generates a full CRL.
+     *
+     * @param revoked The revoked certificates, sorted by serial number.
+     * @param crlNumber The number of the CRL.
+     * @param crl The DER file receiving the CRL.
+     * @return The number of entries.
+     * @throws Exception If the file is not sorted or the signature fails.
+     */
+    public long generate(Path revoked, BigInteger crlNumber, Path crl) throws Exception {
+        ExtensionsGenerator extensions = new ExtensionsGenerator();
+        extensions.addExtension(authorityKeyIdentifier);
+        extensions.addExtension(Extension.cRLNumber, false, new CRLNumber(crlNumber));
+        try (BufferedReader reader = Files.newBufferedReader(revoked, StandardCharsets.US_ASCII)) {
+            return write(new SortedEntries(reader), extensions.generate(), crl);
+        }
+    }
+
+    /**
+     * Generates a delta CRL from the change log since a full CRL. A serial
+     * number changed several times appears once, with its last change;
+     * certificates released from hold are listed with the
+     * {@code removeFromCRL} reason.
+     *
+     * @param changeLog The changes since the full CRL.
+     * @param baseCrlNumber The number of the full CRL.
+     * @param crlNumber The number of the delta CRL.
+     * @param crl The DER file receiving the delta CRL.
+     * @return The number of entries.
+     * @throws Exception If the log cannot be read or the signature fails.
+     */
+    public long generateDelta(Path changeLog, BigInteger baseCrlNumber, BigInteger crlNumber, Path crl) throws Exception {
+        ExtensionsGenerator extensions = new ExtensionsGenerator();
+        extensions.addExtension(authorityKeyIdentifier);
+        extensions.addExtension(Extension.cRLNumber, false, new CRLNumber(crlNumber));
+        extensions.addExtension(Extension.deltaCRLIndicator, true, new CRLNumber(baseCrlNumber));
+        List<Entry> changes = new ArrayList<>();
+        for (Map.Entry<Entry, Boolean> change : readChanges(changeLog).values()) {
+            Entry entry = change.getKey();
+            changes.add(change.getValue() ? entry : new Entry(entry.serial, entry.time, CRLReason.removeFromCRL));
+        }
+        return write(changes.iterator(), extensions.generate(), crl);
+    }
+
+    /**
+     * Folds a change log into a sorted file of revoked certificates. The
+     * change log is only read: changes recorded after it was read would be
+     * lost by a truncation here, so starting a new log is left to the caller.
+     *
+     * @param revoked The revoked certificates, sorted by serial number.
+     * @param changeLog The changes since the sorted file was written.
+     * @param merged The file receiving the new sorted file; it may be
+     * {@code revoked} itself.
+     * @return The number of revoked certificates.
+     * @throws IOException If a file cannot be read or written, or is not
+     * sorted.
+     */
+    public static long compact(Path revoked, Path changeLog, Path merged) throws IOException {
+        TreeMap<BigInteger, Map.Entry<Entry, Boolean>> changes = readChanges(changeLog);
+        Path temp = Files.createTempFile(merged.toAbsolutePath().getParent(), "crl", ".tmp");
+        long count = 0;
+        try (BufferedReader reader = Files.newBufferedReader(revoked, StandardCharsets.US_ASCII);
+                BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.US_ASCII)) {
+            Iterator<Entry> base = new SortedEntries(reader);
+            Iterator<Map.Entry<Entry, Boolean>> added = changes.values().iterator();
+            Entry next = base.hasNext() ? base.next() : null;
+            Map.Entry<Entry, Boolean> change = added.hasNext() ? added.next() : null;
+            while (next != null || change != null) {
+                int order = next == null ? 1 : change == null ? -1 : next.serial.compareTo(change.getKey().serial);
+                Entry out = null;
+                if (order < 0) {
+                    out = next;
+                } else if (change.getValue()) {
+                    out = change.getKey();
+                }
+                if (order <= 0) {
+                    next = base.hasNext() ? base.next() : null;
+                }
+                if (order >= 0) {
+                    change = added.hasNext() ? added.next() : null;
+                }
+                if (out != null) {
+                    writer.write(out.format());
+                    writer.newLine();
+                    count++;
+                }
+            }
+        } catch (UncheckedIOException ex) {
+            Files.deleteIfExists(temp);
+            throw ex.getCause();
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(temp);
+            throw ex;
+        }
+        Files.move(temp, merged, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    /* last change of each serial number, true for a revocation; ordered by serial */
+    private static TreeMap<BigInteger, Map.Entry<Entry, Boolean>> readChanges(Path changeLog) throws IOException {
+        TreeMap<BigInteger, Map.Entry<Entry, Boolean>> last = new TreeMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(changeLog, StandardCharsets.US_ASCII)) {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                if (fields.length < 3 || (!fields[0].equals("+") && !fields[0].equals("-"))) {
+                    throw new IOException("Invalid change at line " + number + ": " + line);
+                }
+                Entry entry = Entry.parse(fields, 1);
+                last.put(entry.serial, Map.entry(entry, fields[0].equals("+")));
+            }
+        }
+        return last;
+    }
+
+    /* streams a sorted file, checking the order */
+    static final class SortedEntries implements Iterator<Entry> {
+
+        private final BufferedReader reader;
+        private Entry next;
+        private BigInteger previous;
+        private int number;
+
+        SortedEntries(BufferedReader reader) {
+            this.reader = reader;
+            advance();
+        }
+
+        private void advance() {
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    number++;
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    next = Entry.parse(line.split("\\s+"), 0);
+                    if (previous != null && next.serial.compareTo(previous) <= 0) {
+                        throw new IOException("Serial numbers not sorted at line " + number + ": " + line);
+                    }
+                    previous = next.serial;
+                    return;
+                }
+                next = null;
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Entry entry = next;
+            advance();
+            return entry;
+        }
+    }
+
+    private long write(Iterator<Entry> entries, Extensions extensions, Path crl) throws Exception {
+        Path directory = tempDirectory != null ? tempDirectory : crl.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(directory, "crl-entries", ".der");
+        try {
+            /* encode the entries one by one */
+            long count = 0;
+            long length = 0;
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024)) {
+                while (entries.hasNext()) {
+                    byte[] entry = entries.next().encode();
+                    out.write(entry);
+                    length += entry.length;
+                    count++;
+                }
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+
+            Instant thisUpdate = Instant.now();
+            ByteArrayOutputStream head = new ByteArrayOutputStream();
+            head.write(new ASN1Integer(1).getEncoded(ASN1Encoding.DER));
+            head.write(signer.getAlgorithmIdentifier().getEncoded(ASN1Encoding.DER));
+            head.write(caCertificate.getSubject().getEncoded(ASN1Encoding.DER));
+            head.write(new Time(Date.from(thisUpdate)).getEncoded(ASN1Encoding.DER));
+            head.write(new Time(Date.from(thisUpdate.plus(nextUpdate))).getEncoded(ASN1Encoding.DER));
+            if (count > 0) {
+                head.write(header(TAG_SEQUENCE, length));
+            }
+            byte[] tail = new DERTaggedObject(true, 0, extensions).getEncoded(ASN1Encoding.DER);
+            byte[] tbsHeader = header(TAG_SEQUENCE, head.size() + (count > 0 ? length : 0) + tail.length);
+            byte[] prefix = concat(tbsHeader, head.toByteArray());
+
+            byte[] signature = signer.encodeSignature(sign(prefix, count > 0 ? temp : null, tail));
+
+            byte[] algorithm = signer.getAlgorithmIdentifier().getEncoded(ASN1Encoding.DER);
+            byte[] bitString = new DERBitString(signature).getEncoded(ASN1Encoding.DER);
+            long tbsLength = prefix.length + (count > 0 ? length : 0) + tail.length;
+            byte[] crlHeader = header(TAG_SEQUENCE, tbsLength + algorithm.length + bitString.length);
+
+            /* same directory as the CRL, so the move can be atomic */
+            Path output = Files.createTempFile(crl.toAbsolutePath().getParent(), "crl", ".tmp");
+            try {
+                try (FileChannel out = FileChannel.open(output, StandardOpenOption.WRITE)) {
+                    writeFully(out, concat(crlHeader, prefix));
+                    if (count > 0) {
+                        try (FileChannel in = FileChannel.open(temp, StandardOpenOption.READ)) {
+                            for (long pos = 0; pos < length;) {
+                                pos += in.transferTo(pos, length - pos, out);
+                            }
+                        }
+                    }
+                    writeFully(out, concat(tail, concat(algorithm, bitString)));
+                    out.force(true);
+                }
+                Files.move(output, crl, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(output);
+            }
+            return count;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /*
+     * hashes the TBSCertList on the token and signs the digest, on one
+     * session; returns the token form of the signature. Package-private so
+     * tests can sign without a token.
+     */
+    byte[] sign(byte[] prefix, Path entries, byte[] tail) throws Exception {
+        return pool.execute(hSession -> {
+            Digester digester = new Digester(pool.getP11());
+            digester.init(hSession, signer.digestMechanism());
+            digester.update(prefix);
+            if (entries != null) {
+                digester.update(entries);
+            }
+            digester.update(tail);
+            byte[] toSign = signer.toBeSigned(digester.digest());
+            return Asymmetric.sign(pool.getP11(), hSession, signer.mechanism(), signer.getPrivateKey(), toSign, toSign.length);
+        });
+    }
+
+    /* DER tag and definite length */
+    private static byte[] header(int tag, long length) {
+        if (length < 0x80) {
+            return new byte[]{(byte) tag, (byte) length};
+        }
+        int bytes = (64 - Long.numberOfLeadingZeros(length) + 7) / 8;
+        byte[] header = new byte[2 + bytes];
+        header[0] = (byte) tag;
+        header[1] = (byte) (0x80 | bytes);
+        for (int i = 0; i < bytes; i++) {
+            header[2 + i] = (byte) (length >>> (8 * (bytes - 1 - i)));
+        }
+        return header;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] out = new byte[a.length + b.length];
+        System.arraycopy(a, 0, out, 0, a.length);
+        System.arraycopy(b, 0, out, a.length, b.length);
+        return out;
+    }
+
+    private static void writeFully(FileChannel out, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+}
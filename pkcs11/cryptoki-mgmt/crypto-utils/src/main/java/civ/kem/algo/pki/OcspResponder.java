@@ -0,0 +1,724 @@
+package civ.kem.algo.pki;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.ocsp.OCSPObjectIdentifiers;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.BasicOCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.Req;
+import org.bouncycastle.cert.ocsp.RespID;
+import org.bouncycastle.cert.ocsp.RevokedStatus;
+import org.bouncycastle.cert.ocsp.UnknownStatus;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.DigestCalculator;
+import org.bouncycastle.operator.bc.BcDigestCalculatorProvider;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import civ.kem.algo.ParallelSessions;
+import civ.kem.algo.SessionPool;
+import civ.kem.algo.Utils;
+
+/**
+ * OCSP responder signing with a CA key held on the token, serving
+ * pre-signed responses.
+ *
+ * <p>
+ * {@link #refresh} signs one response per known serial number, in parallel
+ * on the sessions of the pool, and stores them in a pair of files: the
+ * responses, and an index of fixed-size records sorted by serial number
+ * holding the status of each certificate and the place of its response.
+ * Both are memory-mapped, so answering a request for a known serial number
+ * is a binary search in the index and a copy of the response, without any
+ * call to the token. Responses are refreshed on a schedule with
+ * {@link #schedule}; a refresh builds new files and swaps them in once
+ * complete.</p>
+ *
+ * <p>
+ * Requests carrying a nonce, for several certificates, with a certificate
+ * identifier other than the SHA-1 one of the pre-signed responses, or for a
+ * serial number missing from the index are signed live. The status of a
+ * serial number missing from the index is {@code unknown}. Requests with a
+ * nonce longer than 32 bytes are rejected as malformed (RFC 8954), and
+ * requests posted over HTTP are limited to {@link #MAX_REQUEST_SIZE}
+ * bytes.</p>
+ *
+ * <p>
+ * The known serial numbers are read from a sorted file of hexadecimal serial
+ * numbers, one per line, and the revoked ones from the sorted file used by
+ * {@link CrlGenerator}. Responses are signed by the CA key itself and
+ * identify the responder by key hash.</p>
+ */
+public class OcspResponder implements AutoCloseable {
+
+    /* serial (20 bytes) | status | reason | padding | revocation time | offset | length | padding */
+    private static final int RECORD_SIZE = 48;
+    private static final int SERIAL_SIZE = 20;
+    private static final int STATUS_OFFSET = 20;
+    private static final int REASON_OFFSET = 21;
+    private static final int TIME_OFFSET = 24;
+    private static final int DATA_OFFSET = 32;
+    private static final int LENGTH_OFFSET = 40;
+
+    private static final byte GOOD = 0;
+    private static final byte REVOKED = 1;
+
+    /* responses never straddle two mapped segments */
+    private static final long DEFAULT_SEGMENT_SIZE = 1L << 30;
+
+    private static final int CHUNK_SIZE = 1024;
+
+    /**
+     * Largest request accepted over HTTP, in bytes.
+     */
+    public static final int MAX_REQUEST_SIZE = 64 * 1024;
+
+    /* RFC 8954 */
+    private static final int MAX_NONCE_LENGTH = 32;
+
+    private static final byte[] MALFORMED_REQUEST = errorResponse(OCSPRespBuilder.MALFORMED_REQUEST);
+    private static final byte[] INTERNAL_ERROR = errorResponse(OCSPRespBuilder.INTERNAL_ERROR);
+    private static final byte[] UNAUTHORIZED = errorResponse(OCSPRespBuilder.UNAUTHORIZED);
+
+    /* status of a serial number */
+    private static final class Status {
+
+        final BigInteger serial;
+        final boolean revoked;
+        final Instant time;
+        final int reason;
+
+        Status(BigInteger serial, boolean revoked, Instant time, int reason) {
+            this.serial = serial;
+            this.revoked = revoked;
+            this.time = time;
+            this.reason = reason;
+        }
+
+        CertificateStatus certificateStatus() {
+            if (!revoked) {
+                return CertificateStatus.GOOD;
+            }
+            return reason >= 0 ? new RevokedStatus(Date.from(time), reason) : new RevokedStatus(Date.from(time), CRLReason.unspecified);
+        }
+    }
+
+    /* the mapped files of one refresh */
+    private static final class Snapshot {
+
+        final long generation;
+        final ByteBuffer index;
+        final MappedByteBuffer[] segments;
+        final long segmentSize;
+        final int count;
+        final Date nextUpdate;
+
+        Snapshot(long generation, ByteBuffer index, MappedByteBuffer[] segments, long segmentSize, Date nextUpdate) {
+            this.generation = generation;
+            this.index = index;
+            this.segments = segments;
+            this.segmentSize = segmentSize;
+            this.count = index.capacity() / RECORD_SIZE;
+            this.nextUpdate = nextUpdate;
+        }
+
+        /* position of the record of a serial number, or -1 */
+        int find(byte[] key) {
+            int head = ByteBuffer.wrap(key, 0, 4).getInt();
+            long middle = ByteBuffer.wrap(key, 4, 8).getLong();
+            long tail = ByteBuffer.wrap(key, 12, 8).getLong();
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int at = mid * RECORD_SIZE;
+                int cmp = Integer.compareUnsigned(index.getInt(at), head);
+                if (cmp == 0) {
+                    cmp = Long.compareUnsigned(index.getLong(at + 4), middle);
+                }
+                if (cmp == 0) {
+                    cmp = Long.compareUnsigned(index.getLong(at + 12), tail);
+                }
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return at;
+                }
+            }
+            return -1;
+        }
+
+        Status status(BigInteger serial, int at) {
+            boolean revoked = index.get(at + STATUS_OFFSET) == REVOKED;
+            return new Status(serial, revoked, revoked ? Instant.ofEpochSecond(index.getLong(at + TIME_OFFSET)) : null, index.get(at + REASON_OFFSET));
+        }
+
+        byte[] response(int at) {
+            long offset = index.getLong(at + DATA_OFFSET);
+            byte[] response = new byte[index.getInt(at + LENGTH_OFFSET)];
+            segments[(int) (offset / segmentSize)].get((int) (offset % segmentSize), response);
+            return response;
+        }
+    }
+
+    private final SessionPool pool;
+    private final long hCaKey;
+    private final String algorithm;
+    private final X509CertificateHolder caCertificate;
+    private final Path cacheDirectory;
+    private final RespID responderId;
+    private final CertificateID issuerId;
+    private volatile Duration validity = Duration.ofDays(1);
+    private volatile long segmentSize = DEFAULT_SEGMENT_SIZE;
+    private volatile Snapshot snapshot;
+    private final Object refreshLock = new Object();
+    private long generation;
+
+    private final ExecutorService signers;
+    private ScheduledExecutorService scheduler;
+    private HttpServer server;
+    private ExecutorService serverThreads;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong liveSigned = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+
+    /**
+     * Creates a responder.
+     *
+     * @param pool Pool of sessions on the slot holding the CA key.
+     * @param hCaKey Handle of the CA private key.
+     * @param caCertificate Certificate of the CA.
+     * @param algorithm The signature algorithm, e.g. {@code SHA256withECDSA}.
+     * @param cacheDirectory Directory of the pre-signed response files.
+     * @throws Exception If the algorithm is not supported.
+     */
+    public OcspResponder(SessionPool pool, long hCaKey, X509CertificateHolder caCertificate, String algorithm, Path cacheDirectory) throws Exception {
+        this.pool = pool;
+        this.hCaKey = hCaKey;
+        this.algorithm = algorithm;
+        this.caCertificate = caCertificate;
+        this.cacheDirectory = cacheDirectory;
+        /* fails early on an unsupported algorithm */
+        new TokenContentSigner(pool, hCaKey, algorithm);
+        DigestCalculator sha1 = new BcDigestCalculatorProvider().get(CertificateID.HASH_SHA1);
+        this.responderId = new RespID(caCertificate.getSubjectPublicKeyInfo(), sha1);
+        this.issuerId = new CertificateID(sha1, caCertificate, BigInteger.ONE);
+        this.signers = ParallelSessions.newDaemonPool(pool.getMaxSize(), "ocsp-signer-" + pool.getSlotId());
+        Files.createDirectories(cacheDirectory);
+    }
+
+    /**
+     * Sets the validity of the responses, one day by default; refreshes
+     * should run well within it.
+     */
+    public void setValidity(Duration validity) {
+        this.validity = validity;
+    }
+
+    /*
+     * size of the mapped segments of the next refreshes; package-private so
+     * tests can cross segments with small files
+     */
+    void setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /*
+     * a signer is used by one thread at a time; package-private so tests can
+     * sign without a token
+     */
+    ContentSigner newSigner() throws Exception {
+        return new TokenContentSigner(pool, hCaKey, algorithm);
+    }
+
+    /**
+     * Signs the responses of every known serial number and swaps them in.
+     *
+     * @param issued The issued serial numbers, sorted.
+     * @param revoked The revoked certificates, sorted, in the format of
+     * {@link CrlGenerator}.
+     * @return The number of responses.
+     * @throws Exception If a file cannot be read or written, or a signature
+     * fails.
+     */
+    public long refresh(Path issued, Path revoked) throws Exception {
+        synchronized (refreshLock) {
+            long current = Math.max(generation + 1, System.currentTimeMillis());
+            Path indexFile = cacheDirectory.resolve("ocsp-" + current + ".idx");
+            Path dataFile = cacheDirectory.resolve("ocsp-" + current + ".dat");
+            Date thisUpdate = new Date();
+            Date nextUpdate = new Date(thisUpdate.getTime() + validity.toMillis());
+            long segment = segmentSize;
+            long count = 0;
+            try (BufferedReader issuedReader = Files.newBufferedReader(issued, StandardCharsets.US_ASCII);
+                    BufferedReader revokedReader = Files.newBufferedReader(revoked, StandardCharsets.US_ASCII);
+                    DataOutputStream index = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(indexFile), 64 * 1024));
+                    OutputStream data = new BufferedOutputStream(Files.newOutputStream(dataFile), 64 * 1024)) {
+                Iterator<Status> statuses = new Statuses(issuedReader, new CrlGenerator.SortedEntries(revokedReader));
+                Deque<Map.Entry<List<Status>, Future<List<byte[]>>>> pending = new ArrayDeque<>();
+                long offset = 0;
+                while (statuses.hasNext() || !pending.isEmpty()) {
+                    /* keep every session busy, in the order of the index */
+                    while (statuses.hasNext() && pending.size() < 2 * pool.getMaxSize()) {
+                        List<Status> chunk = new ArrayList<>(CHUNK_SIZE);
+                        while (statuses.hasNext() && chunk.size() < CHUNK_SIZE) {
+                            Status status = statuses.next();
+                            if (key(status.serial) != null) {
+                                chunk.add(status);
+                            }
+                        }
+                        pending.add(Map.entry(chunk, signers.submit(() -> sign(chunk, thisUpdate, nextUpdate))));
+                    }
+                    Map.Entry<List<Status>, Future<List<byte[]>>> done = pending.poll();
+                    List<byte[]> responses;
+                    try {
+                        responses = done.getValue().get();
+                    } catch (ExecutionException ex) {
+                        for (Map.Entry<List<Status>, Future<List<byte[]>>> other : pending) {
+                            other.getValue().cancel(true);
+                        }
+                        throw ParallelSessions.unwrap(ex);
+                    }
+                    for (int i = 0; i < responses.size(); i++) {
+                        Status status = done.getKey().get(i);
+                        byte[] response = responses.get(i);
+                        if (offset % segment + response.length > segment) {
+                            long padding = segment - offset % segment;
+                            data.write(new byte[(int) padding]);
+                            offset += padding;
+                        }
+                        index.write(key(status.serial));
+                        index.writeByte(status.revoked ? REVOKED : GOOD);
+                        index.writeByte(status.reason);
+                        index.writeShort(0);
+                        index.writeLong(status.revoked ? status.time.getEpochSecond() : 0);
+                        index.writeLong(offset);
+                        index.writeInt(response.length);
+                        index.writeInt(0);
+                        data.write(response);
+                        offset += response.length;
+                        count++;
+                    }
+                }
+            } catch (Exception ex) {
+                Files.deleteIfExists(indexFile);
+                Files.deleteIfExists(dataFile);
+                throw ex instanceof UncheckedIOException ? ((UncheckedIOException) ex).getCause() : ex;
+            }
+
+            Snapshot previous = snapshot;
+            snapshot = map(current, indexFile, dataFile, segment, nextUpdate);
+            generation = current;
+            refreshes.incrementAndGet();
+            if (previous != null) {
+                /* still mapped by the requests in progress, gone from the directory */
+                Files.deleteIfExists(cacheDirectory.resolve("ocsp-" + previous.generation + ".idx"));
+                Files.deleteIfExists(cacheDirectory.resolve("ocsp-" + previous.generation + ".dat"));
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Refreshes the responses periodically, on a background thread.
+     *
+     * @param issued The issued serial numbers, sorted.
+     * @param revoked The revoked certificates, sorted.
+     * @param period The time between two refreshes.
+     */
+    public synchronized void schedule(Path issued, Path revoked, Duration period) {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(ParallelSessions.daemonThreads("ocsp-refresh-" + pool.getSlotId()));
+        }
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                refresh(issued, revoked);
+            } catch (Exception ex) {
+                Utils.println("Refresh of the OCSP responses failed: " + ex.getMessage());
+            }
+        }, period.toMillis(), period.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private List<byte[]> sign(List<Status> chunk, Date thisUpdate, Date nextUpdate) throws Exception {
+        ContentSigner signer = newSigner();
+        List<byte[]> responses = new ArrayList<>(chunk.size());
+        for (Status status : chunk) {
+            BasicOCSPRespBuilder builder = new BasicOCSPRespBuilder(responderId);
+            /* reuses the issuer hashes: no digest calculator shared between the signing threads */
+            builder.addResponse(CertificateID.deriveCertificateID(issuerId, status.serial), status.certificateStatus(), thisUpdate, nextUpdate, null);
+            BasicOCSPResp basic = builder.build(signer, null, thisUpdate);
+            responses.add(new OCSPRespBuilder().build(OCSPRespBuilder.SUCCESSFUL, basic).getEncoded());
+        }
+        return responses;
+    }
+
+    private static Snapshot map(long generation, Path indexFile, Path dataFile, long segmentSize, Date nextUpdate) throws IOException {
+        try (FileChannel index = FileChannel.open(indexFile, StandardOpenOption.READ);
+                FileChannel data = FileChannel.open(dataFile, StandardOpenOption.READ)) {
+            long size = data.size();
+            MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((size + segmentSize - 1) / segmentSize)];
+            for (int i = 0; i < segments.length; i++) {
+                long position = i * segmentSize;
+                segments[i] = data.map(FileChannel.MapMode.READ_ONLY, position, Math.min(segmentSize, size - position));
+            }
+            if (index.size() > Integer.MAX_VALUE) {
+                throw new IOException("OCSP index too large: " + index.size());
+            }
+            return new Snapshot(generation, index.map(FileChannel.MapMode.READ_ONLY, 0, index.size()), segments, segmentSize, nextUpdate);
+        }
+    }
+
+    /* 20-byte unsigned big-endian serial, null beyond 20 bytes */
+    private static byte[] key(BigInteger serial) {
+        if (serial.signum() < 0 || serial.bitLength() > SERIAL_SIZE * 8) {
+            return null;
+        }
+        byte[] bytes = serial.toByteArray();
+        byte[] key = new byte[SERIAL_SIZE];
+        int length = Math.min(bytes.length, SERIAL_SIZE);
+        System.arraycopy(bytes, bytes.length - length, key, SERIAL_SIZE - length, length);
+        return key;
+    }
+
+    /**
+     * Answers an OCSP request.
+     *
+     * @param request The DER encoded request.
+     * @return The DER encoded response.
+     */
+    public byte[] respond(byte[] request) {
+        OCSPReq req;
+        try {
+            req = new OCSPReq(request);
+        } catch (IOException | RuntimeException ex) {
+            errors.incrementAndGet();
+            return MALFORMED_REQUEST;
+        }
+        Req[] requests = req.getRequestList();
+        if (requests.length == 0) {
+            errors.incrementAndGet();
+            return MALFORMED_REQUEST;
+        }
+        for (Req single : requests) {
+            if (!isOurs(single.getCertID())) {
+                errors.incrementAndGet();
+                return UNAUTHORIZED;
+            }
+        }
+        Snapshot current = snapshot;
+        Extension nonce = req.getExtension(OCSPObjectIdentifiers.id_pkix_ocsp_nonce);
+        if (nonce != null && !isValidNonce(nonce)) {
+            errors.incrementAndGet();
+            return MALFORMED_REQUEST;
+        }
+
+        /* hot path: one pre-signed response */
+        if (nonce == null && requests.length == 1 && current != null && current.nextUpdate.after(new Date())
+                && requests[0].getCertID().getHashAlgOID().equals(CertificateID.HASH_SHA1.getAlgorithm())) {
+            byte[] key = key(requests[0].getCertID().getSerialNumber());
+            int at = key != null ? current.find(key) : -1;
+            if (at >= 0) {
+                hits.incrementAndGet();
+                return current.response(at);
+            }
+        }
+
+        try {
+            return live(requests, nonce, current);
+        } catch (Exception ex) {
+            errors.incrementAndGet();
+            Utils.println("OCSP signature failed: " + ex.getMessage());
+            return INTERNAL_ERROR;
+        }
+    }
+
+    private byte[] live(Req[] requests, Extension nonce, Snapshot current) throws Exception {
+        Date now = new Date();
+        BasicOCSPRespBuilder builder = new BasicOCSPRespBuilder(responderId);
+        for (Req single : requests) {
+            CertificateID id = single.getCertID();
+            byte[] key = key(id.getSerialNumber());
+            int at = key != null && current != null ? current.find(key) : -1;
+            CertificateStatus status = at >= 0 ? current.status(id.getSerialNumber(), at).certificateStatus() : new UnknownStatus();
+            builder.addResponse(id, status, now, new Date(now.getTime() + validity.toMillis()), null);
+        }
+        if (nonce != null) {
+            builder.setResponseExtensions(new Extensions(nonce));
+        }
+        BasicOCSPResp basic = builder.build(newSigner(), null, now);
+        liveSigned.incrementAndGet();
+        return new OCSPRespBuilder().build(OCSPRespBuilder.SUCCESSFUL, basic).getEncoded();
+    }
+
+    /* 1 to 32 bytes, wrapped in an OCTET STRING or, from older clients, raw */
+    static boolean isValidNonce(Extension nonce) {
+        byte[] value = nonce.getExtnValue().getOctets();
+        try {
+            value = ASN1OctetString.getInstance(value).getOctets();
+        } catch (IllegalArgumentException ex) {
+            /* raw nonce */
+        }
+        return value.length >= 1 && value.length <= MAX_NONCE_LENGTH;
+    }
+
+    /* same issuer as the CA, whatever the hash of the identifier */
+    private boolean isOurs(CertificateID id) {
+        if (id.getHashAlgOID().equals(CertificateID.HASH_SHA1.getAlgorithm())) {
+            return Arrays.equals(id.getIssuerNameHash(), issuerId.getIssuerNameHash())
+                    && Arrays.equals(id.getIssuerKeyHash(), issuerId.getIssuerKeyHash());
+        }
+        try {
+            return id.matchesIssuer(caCertificate, new BcDigestCalculatorProvider());
+        } catch (Exception ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Serves OCSP over HTTP, with POST and GET requests (RFC 6960, appendix
+     * A).
+     *
+     * @param address The address to listen on.
+     * @param path The context path, e.g. {@code /ocsp}.
+     * @return The started server; {@link #close} stops it.
+     * @throws IOException If the server cannot be started.
+     */
+    public synchronized HttpServer serve(InetSocketAddress address, String path) throws IOException {
+        if (server != null) {
+            throw new IllegalStateException("OCSP responder already served");
+        }
+        server = HttpServer.create(address, 0);
+        serverThreads = ParallelSessions.newDaemonPool(Runtime.getRuntime().availableProcessors(), "ocsp-http");
+        server.createContext(path, exchange -> handle(exchange, path));
+        server.setExecutor(serverThreads);
+        server.start();
+        return server;
+    }
+
+    private void handle(HttpExchange exchange, String path) throws IOException {
+        try {
+            byte[] request;
+            if (exchange.getRequestMethod().equals("POST")) {
+                try (InputStream in = exchange.getRequestBody()) {
+                    request = in.readNBytes(MAX_REQUEST_SIZE + 1);
+                }
+                if (request.length > MAX_REQUEST_SIZE) {
+                    errors.incrementAndGet();
+                    exchange.sendResponseHeaders(413, -1);
+                    return;
+                }
+            } else if (exchange.getRequestMethod().equals("GET")) {
+                String encoded = exchange.getRequestURI().getRawPath().substring(path.length());
+                if (encoded.startsWith("/")) {
+                    encoded = encoded.substring(1);
+                }
+                try {
+                    request = Base64.getDecoder().decode(percentDecode(encoded));
+                } catch (IllegalArgumentException ex) {
+                    request = new byte[0];
+                }
+            } else {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] response = respond(request);
+            exchange.getResponseHeaders().set("Content-Type", "application/ocsp-response");
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /*
+     * decodes the %XX escapes of a path; unlike URLDecoder, which decodes
+     * forms, it leaves '+' alone, a character of base64
+     */
+    static String percentDecode(String encoded) {
+        if (encoded.indexOf('%') < 0) {
+            return encoded;
+        }
+        StringBuilder sb = new StringBuilder(encoded.length());
+        for (int i = 0; i < encoded.length(); i++) {
+            char c = encoded.charAt(i);
+            if (c == '%') {
+                if (i + 2 >= encoded.length()) {
+                    throw new IllegalArgumentException("Truncated escape in " + encoded);
+                }
+                int high = Character.digit(encoded.charAt(i + 1), 16);
+                int low = Character.digit(encoded.charAt(i + 2), 16);
+                if (high < 0 || low < 0) {
+                    throw new IllegalArgumentException("Invalid escape in " + encoded);
+                }
+                c = (char) (high << 4 | low);
+                i += 2;
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static byte[] errorResponse(int status) {
+        try {
+            return new OCSPRespBuilder().build(status, null).getEncoded();
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /* merge of the issued and revoked serial numbers, both sorted */
+    private static final class Statuses implements Iterator<Status> {
+
+        private final BufferedReader issued;
+        private final Iterator<CrlGenerator.Entry> revoked;
+        private BigInteger nextIssued;
+        private CrlGenerator.Entry nextRevoked;
+        private BigInteger previous;
+        private int number;
+
+        Statuses(BufferedReader issued, Iterator<CrlGenerator.Entry> revoked) {
+            this.issued = issued;
+            this.revoked = revoked;
+            advanceIssued();
+            nextRevoked = revoked.hasNext() ? revoked.next() : null;
+        }
+
+        private void advanceIssued() {
+            try {
+                String line;
+                while ((line = issued.readLine()) != null) {
+                    number++;
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    nextIssued = new BigInteger(line, 16);
+                    if (previous != null && nextIssued.compareTo(previous) <= 0) {
+                        throw new IOException("Serial numbers not sorted at line " + number + ": " + line);
+                    }
+                    previous = nextIssued;
+                    return;
+                }
+                nextIssued = null;
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextIssued != null || nextRevoked != null;
+        }
+
+        @Override
+        public Status next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int order = nextIssued == null ? 1 : nextRevoked == null ? -1 : nextIssued.compareTo(nextRevoked.serial);
+            if (order < 0) {
+                Status status = new Status(nextIssued, false, null, -1);
+                advanceIssued();
+                return status;
+            }
+            CrlGenerator.Entry entry = nextRevoked;
+            nextRevoked = revoked.hasNext() ? revoked.next() : null;
+            if (order == 0) {
+                advanceIssued();
+            }
+            return new Status(entry.serial, true, entry.time, entry.reason);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getLiveSigned() {
+        return liveSigned.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    /**
+     * Number of pre-signed responses served.
+     */
+    public int size() {
+        Snapshot current = snapshot;
+        return current != null ? current.count : 0;
+    }
+
+    /**
+     * Stops the server and the refreshes; the pool is left open.
+     */
+    @Override
+    public synchronized void close() throws InterruptedException {
+        if (server != null) {
+            server.stop(0);
+            serverThreads.shutdown();
+            server = null;
+        }
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        signers.shutdownNow();
+        signers.awaitTermination(1, TimeUnit.MINUTES);
+    }
+}
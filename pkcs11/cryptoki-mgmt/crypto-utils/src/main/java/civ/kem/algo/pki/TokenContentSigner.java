@@ -0,0 +1,214 @@
+package civ.kem.algo.pki;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.DigestInfo;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.DefaultSignatureAlgorithmIdentifierFinder;
+import org.bouncycastle.operator.RuntimeOperatorException;
+import org.bouncycastle.util.BigIntegers;
+
+import civ.kem.algo.Asymmetric;
+import civ.kem.algo.SessionPool;
+
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+
+/**
+ * BouncyCastle {@link ContentSigner} signing with a private key held on the
+ * token.
+ *
+ * <p>
+ * The data is hashed in the JVM and only the hash goes to the token, with
+ * {@code CKM_RSA_PKCS} over a DigestInfo for RSA keys and {@code CKM_ECDSA}
+ * for EC keys; ECDSA signatures are converted from the PKCS#11 {@code r||s}
+ * form to DER. Supported algorithms are {@code SHA256withRSA},
+ * {@code SHA384withRSA}, {@code SHA512withRSA}, {@code SHA256withECDSA},
+ * {@code SHA384withECDSA} and {@code SHA512withECDSA}.</p>
+ *
+ * <p>
+ * A signer is used by one thread at a time, like any {@code ContentSigner};
+ * the helpers used by {@link CertificateIssuer} are stateless.</p>
+ */
+public class TokenContentSigner implements ContentSigner {
+
+    private final SessionPool pool;
+    private final long hPrivateKey;
+    private final String algorithm;
+    private final AlgorithmIdentifier algorithmIdentifier;
+    private final String digestName;
+    private final long digestMechanism;
+    private final AlgorithmIdentifier digestIdentifier;
+    private final boolean ecdsa;
+    private final MessageDigest digest;
+
+    /**
+     * Creates a signer.
+     *
+     * @param pool Pool of sessions on the slot holding the key.
+     * @param hPrivateKey Handle of the private key.
+     * @param algorithm The signature algorithm, e.g. {@code SHA256withECDSA}.
+     * @throws NoSuchAlgorithmException If the algorithm is not supported.
+     */
+    public TokenContentSigner(SessionPool pool, long hPrivateKey, String algorithm) throws NoSuchAlgorithmException {
+        this.pool = pool;
+        this.hPrivateKey = hPrivateKey;
+        this.algorithm = algorithm;
+
+        String upper = algorithm.toUpperCase(Locale.ROOT);
+        int with = upper.indexOf("WITH");
+        if (with < 0) {
+            throw new NoSuchAlgorithmException("Unsupported signature algorithm: " + algorithm);
+        }
+        String hash = upper.substring(0, with);
+        String key = upper.substring(with + 4);
+        ASN1ObjectIdentifier hashOid;
+        switch (hash) {
+            case "SHA256":
+                hashOid = NISTObjectIdentifiers.id_sha256;
+                digestName = "SHA-256";
+                digestMechanism = PKCS11Constants.CKM_SHA256;
+                break;
+            case "SHA384":
+                hashOid = NISTObjectIdentifiers.id_sha384;
+                digestName = "SHA-384";
+                digestMechanism = PKCS11Constants.CKM_SHA384;
+                break;
+            case "SHA512":
+                hashOid = NISTObjectIdentifiers.id_sha512;
+                digestName = "SHA-512";
+                digestMechanism = PKCS11Constants.CKM_SHA512;
+                break;
+            default:
+                throw new NoSuchAlgorithmException("Unsupported signature algorithm: " + algorithm);
+        }
+        if (!key.equals("RSA") && !key.equals("ECDSA")) {
+            throw new NoSuchAlgorithmException("Unsupported signature algorithm: " + algorithm);
+        }
+        this.ecdsa = key.equals("ECDSA");
+        this.digestIdentifier = new AlgorithmIdentifier(hashOid, DERNull.INSTANCE);
+        this.algorithmIdentifier = new DefaultSignatureAlgorithmIdentifierFinder().find(algorithm);
+        this.digest = MessageDigest.getInstance(digestName);
+    }
+
+    @Override
+    public AlgorithmIdentifier getAlgorithmIdentifier() {
+        return algorithmIdentifier;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) {
+                digest.update((byte) b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                digest.update(b, off, len);
+            }
+        };
+    }
+
+    @Override
+    public byte[] getSignature() {
+        byte[] hash = digest.digest();
+        try {
+            byte[] toSign = toBeSigned(hash);
+            byte[] raw = pool.execute(hSession -> Asymmetric.sign(pool.getP11(), hSession, mechanism(), hPrivateKey, toSign, toSign.length));
+            return encodeSignature(raw);
+        } catch (Exception ex) {
+            throw new RuntimeOperatorException("Cannot sign on the token: " + ex.getMessage(), ex);
+        }
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public long getPrivateKey() {
+        return hPrivateKey;
+    }
+
+    /**
+     * Hashes data with the digest of the algorithm.
+     */
+    byte[] hash(byte[] data) throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance(digestName).digest(data);
+    }
+
+    /**
+     * The mechanism computing the digest of the algorithm on the token, for
+     * data hashed with a {@link civ.kem.algo.Digester}.
+     */
+    CK_MECHANISM digestMechanism() {
+        return new CK_MECHANISM(digestMechanism);
+    }
+
+    /**
+     * Returns the input of the token signature for a hash: the hash itself
+     * for ECDSA, its DigestInfo for RSA.
+     */
+    byte[] toBeSigned(byte[] hash) throws IOException {
+        return ecdsa ? hash : new DigestInfo(digestIdentifier, hash).getEncoded(ASN1Encoding.DER);
+    }
+
+    /**
+     * The mechanism signing {@link #toBeSigned} on the token.
+     */
+    CK_MECHANISM mechanism() {
+        return new CK_MECHANISM(ecdsa ? PKCS11Constants.CKM_ECDSA : PKCS11Constants.CKM_RSA_PKCS);
+    }
+
+    /**
+     * Converts a token signature to its X.509 encoding.
+     */
+    byte[] encodeSignature(byte[] raw) throws IOException {
+        if (!ecdsa) {
+            return raw;
+        }
+        int half = raw.length / 2;
+        BigInteger r = new BigInteger(1, Arrays.copyOfRange(raw, 0, half));
+        BigInteger s = new BigInteger(1, Arrays.copyOfRange(raw, half, raw.length));
+        return new DERSequence(new ASN1Integer[]{new ASN1Integer(r), new ASN1Integer(s)}).getEncoded(ASN1Encoding.DER);
+    }
+
+    /**
+     * Converts an X.509 signature to its token form, the inverse of
+     * {@link #encodeSignature}.
+     *
+     * @param signature The X.509 signature.
+     * @param orderLength Length in bytes of the order of the EC curve; unused
+     * for RSA.
+     */
+    byte[] decodeSignature(byte[] signature, int orderLength) {
+        if (!ecdsa) {
+            return signature;
+        }
+        ASN1Sequence sequence = ASN1Sequence.getInstance(signature);
+        byte[] raw = new byte[2 * orderLength];
+        for (int i = 0; i < 2; i++) {
+            byte[] value = BigIntegers.asUnsignedByteArray(ASN1Integer.getInstance(sequence.getObjectAt(i)).getPositiveValue());
+            if (value.length > orderLength) {
+                throw new IllegalArgumentException("Invalid ECDSA signature");
+            }
+            System.arraycopy(value, 0, raw, (i + 1) * orderLength - value.length, value.length);
+        }
+        return raw;
+    }
+}
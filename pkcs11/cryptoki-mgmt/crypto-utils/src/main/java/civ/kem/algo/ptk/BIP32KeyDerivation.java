@@ -3,6 +3,8 @@ package civ.kem.algo.ptk;
 import java.io.File;
 import java.nio.charset.StandardCharsets;
 
+import civ.kem.algo.CryptokiMetrics;
+
 import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
 import sun.security.pkcs11.wrapper.CK_MECHANISM;
 import sun.security.pkcs11.wrapper.PKCS11;
@@ -160,7 +162,7 @@ public class BIP32KeyDerivation {
                     new CK_ATTRIBUTE(PKCS11Constants.CKA_DERIVE, PKCS11Constants.TRUE)
                 };
 
-        pKey = p11.C_CreateObject(session, attr);
+        pKey = CryptokiMetrics.call("C_CreateObject", null, session, () -> p11.C_CreateObject(session, attr));
         return pKey;
     }
 
@@ -201,7 +203,7 @@ public class BIP32KeyDerivation {
 
         CK_MECHANISM mech = new PTK_CK_MECHANISM(PTK_Constants.CKM_BIP32_MASTER_DERIVE, mechParams);
 
-     p11.C_DeriveKey(hPrivateSession, mech, hSeed, priKeyAttr);
+        CryptokiMetrics.call("C_DeriveKey", mech, hPrivateSession, () -> p11.C_DeriveKey(hPrivateSession, mech, hSeed, priKeyAttr));
 
         return mechParams;
     }
@@ -216,42 +218,56 @@ public class BIP32KeyDerivation {
      */
     public static CK_BIP32_CHILD_DERIVE_PARAMS generateChildKeyPair(PKCS11 p11, long hPrivateSession,
             long hParent) throws PKCS11Exception {
-        String pubLabel = "Child BIP32 Key(Public)";
-        String priLabel = "Child BIP32 Key(Private)";
-
-        CK_ATTRIBUTE[] pubKeyAttr
-                = {
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_LABEL, pubLabel.getBytes(StandardCharsets.US_ASCII)),
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_TOKEN, PKCS11Constants.TRUE),
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_SENSITIVE, PKCS11Constants.FALSE),
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_DERIVE, PKCS11Constants.TRUE),
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_EXTRACTABLE, PKCS11Constants.TRUE),
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_KEY_TYPE, PTK_Constants.CKK_BIP32)
-                };
+        long[] path = {0L, 1L, 4L};
 
-        CK_ATTRIBUTE[] priKeyAttr
-                = {
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_LABEL, priLabel.getBytes(StandardCharsets.US_ASCII)),
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_TOKEN, PKCS11Constants.TRUE),
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_SENSITIVE, PKCS11Constants.FALSE),
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_DERIVE, PKCS11Constants.TRUE),
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_EXTRACTABLE, PKCS11Constants.TRUE),
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_KEY_TYPE, PTK_Constants.CKK_BIP32)
-                };
+        return generateChildKeyPair(p11, hPrivateSession, hParent, path,
+                "Child BIP32 Key(Public)", "Child BIP32 Key(Private)", true);
+    }
 
-        long[] path = {0L, 1L, 4L};
+    /**
+     * Generate a BIP32 child key pair at a path below a parent key
+     *
+     * @param hPrivateSession handle to an open session
+     *
+     * @param hParent OBJECT_HANDLE linked to the parent private key
+     *
+     * @param path child indexes from the parent, hardened indexes having
+     * the {@link Bip32Path#HARDENED} bit set
+     *
+     * @param pubLabel label of the public child key
+     *
+     * @param priLabel label of the private child key
+     *
+     * @param token true for token objects, false for session objects
+     *
+     */
+    public static CK_BIP32_CHILD_DERIVE_PARAMS generateChildKeyPair(PKCS11 p11, long hPrivateSession,
+            long hParent, long[] path, String pubLabel, String priLabel, boolean token) throws PKCS11Exception {
+        CK_ATTRIBUTE[] pubKeyAttr = childTemplate(pubLabel, token);
+        CK_ATTRIBUTE[] priKeyAttr = childTemplate(priLabel, token);
 
         CK_BIP32_CHILD_DERIVE_PARAMS mechParams
                 = new CK_BIP32_CHILD_DERIVE_PARAMS(pubKeyAttr, priKeyAttr, path);
 
         CK_MECHANISM mech = new PTK_CK_MECHANISM(PTK_Constants.CKM_BIP32_CHILD_DERIVE, mechParams);
 
-   p11.C_DeriveKey(hPrivateSession, mech, hParent, priKeyAttr);
+        CryptokiMetrics.call("C_DeriveKey", mech, hPrivateSession, () -> p11.C_DeriveKey(hPrivateSession, mech, hParent, priKeyAttr));
 
         return mechParams;
 
     }
 
+    private static CK_ATTRIBUTE[] childTemplate(String label, boolean token) {
+        return new CK_ATTRIBUTE[]{
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_LABEL, label.getBytes(StandardCharsets.US_ASCII)),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_TOKEN, token),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_SENSITIVE, PKCS11Constants.FALSE),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_DERIVE, PKCS11Constants.TRUE),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_EXTRACTABLE, PKCS11Constants.TRUE),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_KEY_TYPE, PTK_Constants.CKK_BIP32)
+        };
+    }
+
     public static long findSecretKey(PKCS11 p11, long hSession,
             String label) throws PKCS11Exception {
         /* array of one object handles */
@@ -266,11 +282,14 @@ public class BIP32KeyDerivation {
                     new CK_ATTRIBUTE(PKCS11Constants.CKA_KEY_TYPE, PKCS11Constants.CKK_GENERIC_SECRET)
                 };
 
-        p11.C_FindObjectsInit(hSession, findAttr);
+        hObjects = CryptokiMetrics.call("C_FindObjects", null, hSession, () -> {
+            p11.C_FindObjectsInit(hSession, findAttr);
 
-        hObjects = p11.C_FindObjects(hSession, PTK_Constants.maxObjects);
+            long[] found = p11.C_FindObjects(hSession, PTK_Constants.maxObjects);
 
-        p11.C_FindObjectsFinal(hSession);
+            p11.C_FindObjectsFinal(hSession);
+            return found;
+        });
 
         if (hObjects.length == 1) {
             /* return the handle of the located object */
@@ -296,7 +315,8 @@ public class BIP32KeyDerivation {
         CK_ATTRIBUTE[] getDerivedValue = {
             new CK_ATTRIBUTE(PKCS11Constants.CKA_VALUE, derivedKey)
         };
-        p11.C_GetAttributeValue(hPrivateSession, childPub, getDerivedValue);
+        CryptokiMetrics.run("C_GetAttributeValue", null, hPrivateSession,
+                () -> p11.C_GetAttributeValue(hPrivateSession, childPub, getDerivedValue));
 
         return derivedKey;
     }
@@ -0,0 +1,258 @@
+package civ.kem.algo.ptk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import civ.kem.algo.ManageObjects;
+import civ.kem.algo.ParallelSessions;
+import civ.kem.algo.SessionPool;
+
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Derives the BIP32 key pairs of many paths below a master key, in parallel
+ * over the sessions of a pool.
+ *
+ * <p>
+ * The paths are merged into a tree and derived one level at a time, each
+ * node with a single child step from its parent. A prefix shared by many
+ * paths, such as {@code m/44'/0'/0'/0} for the addresses of an account, is
+ * therefore derived once rather than once per leaf. The nodes of a level are
+ * spread over the sessions of the pool.</p>
+ *
+ * <p>
+ * Intermediate nodes are derived as session objects and destroyed once the
+ * next level is derived, unless a {@link Bip32NodeCache} provides them: the
+ * parents of the leaves then stay cached between runs, and a run costs one
+ * child step per leaf. Leaves are token objects by default; as session
+ * objects they remain valid only while the pool keeps the sessions that
+ * created them open, so the pool should not close idle sessions (see
+ * {@link SessionPool#forSlot(PKCS11, long, long, long)}).</p>
+ *
+ * <p>
+ * When a derivation fails, the objects created by the run are destroyed and
+ * the error is thrown.</p>
+ */
+public class Bip32Deriver {
+
+    /* a node to derive, and the nodes below it */
+    private static final class Pending {
+
+        final long[] path;
+        final String parent;
+        boolean leaf;
+        volatile long hPublicKey;
+        volatile long hPrivateKey;
+
+        Pending(long[] path, String parent) {
+            this.path = path;
+            this.parent = parent;
+        }
+    }
+
+    private final SessionPool pool;
+    private volatile boolean tokenObjects = true;
+    private volatile String labelPrefix = "BIP32";
+    private volatile Bip32NodeCache nodeCache;
+
+    private final AtomicLong derivations = new AtomicLong();
+    private volatile long lastRunNanos;
+
+    /**
+     * Creates a deriver.
+     *
+     * @param pool Pool of sessions on the slot holding the master key.
+     */
+    public Bip32Deriver(SessionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Chooses whether the leaves are token objects (the default) or session
+     * objects.
+     */
+    public void setTokenObjects(boolean tokenObjects) {
+        this.tokenObjects = tokenObjects;
+    }
+
+    /**
+     * Sets the prefix of the labels, followed by the path and
+     * {@code (Public)} or {@code (Private)}.
+     */
+    public void setLabelPrefix(String labelPrefix) {
+        this.labelPrefix = labelPrefix;
+    }
+
+    /**
+     * Takes the parents of the leaves from a cache, which keeps them across
+     * runs, instead of deriving and destroying them on every run.
+     */
+    public void setNodeCache(Bip32NodeCache nodeCache) {
+        this.nodeCache = nodeCache;
+    }
+
+    /**
+     * Derives the key pairs of a path pattern.
+     *
+     * @param hMaster Handle of the master private key.
+     * @param pattern The paths, see {@link Bip32Path#expand}.
+     * @return The derived leaves, in the order of the paths.
+     * @throws Exception If a key pair cannot be derived.
+     */
+    public List<Bip32Node> derive(long hMaster, String pattern) throws Exception {
+        return derive(hMaster, Bip32Path.expand(pattern));
+    }
+
+    /**
+     * Derives the key pairs of many paths.
+     *
+     * @param hMaster Handle of the master private key.
+     * @param paths The child indexes of each path from the master key.
+     * @return The derived leaves, in the order of the paths.
+     * @throws Exception If a key pair cannot be derived.
+     */
+    public List<Bip32Node> derive(long hMaster, List<long[]> paths) throws Exception {
+        long start = System.nanoTime();
+
+        /* one map of nodes per depth, keyed by formatted path */
+        List<Map<String, Pending>> levels = new ArrayList<>();
+        Map<String, Pending> nodes = new LinkedHashMap<>();
+        Bip32NodeCache cache = nodeCache;
+        for (long[] path : paths) {
+            if (path.length == 0) {
+                throw new IllegalArgumentException("Empty path");
+            }
+            /* with a cache, the parents come from it and only the leaves are derived here */
+            for (int depth = cache != null ? path.length : 1; depth <= path.length; depth++) {
+                int index = cache != null ? 0 : depth - 1;
+                while (levels.size() <= index) {
+                    levels.add(new LinkedHashMap<>());
+                }
+                String key = Bip32Path.format(path, depth);
+                Pending node = levels.get(index).get(key);
+                if (node == null) {
+                    node = new Pending(Arrays.copyOf(path, depth), Bip32Path.format(path, depth - 1));
+                    levels.get(index).put(key, node);
+                    nodes.put(key, node);
+                }
+                node.leaf |= depth == path.length;
+            }
+        }
+
+        Map<String, Long> parents = new ConcurrentHashMap<>();
+        parents.put("m", hMaster);
+        List<Bip32NodeCache.Lease> leases = new ArrayList<>();
+        int parallelism = Math.max(1, pool.getMaxSize());
+        ExecutorService executor = ParallelSessions.newDaemonPool(parallelism, "bip32-deriver-" + pool.getSlotId());
+        try {
+            if (cache != null) {
+                for (Pending node : nodes.values()) {
+                    if (!parents.containsKey(node.parent)) {
+                        Bip32NodeCache.Lease lease = cache.acquire(hMaster, Arrays.copyOf(node.path, node.path.length - 1));
+                        leases.add(lease);
+                        parents.put(node.parent, lease.getPrivateKey());
+                    }
+                }
+            }
+            for (int depth = 0; depth < levels.size(); depth++) {
+                List<Pending> level = new ArrayList<>(levels.get(depth).values());
+                deriveLevel(executor, parallelism, level, parents);
+                if (depth > 0) {
+                    destroyIntermediates(levels.get(depth - 1).values());
+                }
+            }
+        } catch (Exception ex) {
+            for (Pending node : nodes.values()) {
+                destroy(node);
+            }
+            throw ex;
+        } finally {
+            for (Bip32NodeCache.Lease lease : leases) {
+                lease.close();
+            }
+            executor.shutdownNow();
+            lastRunNanos = System.nanoTime() - start;
+        }
+
+        List<Bip32Node> leaves = new ArrayList<>(paths.size());
+        for (long[] path : paths) {
+            Pending node = nodes.get(Bip32Path.format(path));
+            leaves.add(new Bip32Node(node.path, node.hPublicKey, node.hPrivateKey));
+        }
+        return leaves;
+    }
+
+    private void deriveLevel(ExecutorService executor, int parallelism, List<Pending> level, Map<String, Long> parents) throws Exception {
+        ParallelSessions.WorkQueue queue = new ParallelSessions.WorkQueue(level.size());
+        for (int w = 0; w < Math.min(parallelism, level.size()); w++) {
+            queue.start(executor, pool, (hSession, i) -> {
+                Pending node = level.get(i);
+                deriveNode(hSession, node, parents.get(node.parent));
+                parents.put(Bip32Path.format(node.path), node.hPrivateKey);
+            });
+        }
+        queue.await();
+    }
+
+    private void deriveNode(long hSession, Pending node, long hParent) throws PKCS11Exception {
+        String label = labelPrefix + " " + Bip32Path.format(node.path);
+        CK_BIP32_CHILD_DERIVE_PARAMS params = BIP32KeyDerivation.generateChildKeyPair(pool.getP11(), hSession, hParent,
+                new long[]{node.path[node.path.length - 1]}, label + "(Public)", label + "(Private)", node.leaf && tokenObjects);
+        node.hPublicKey = params.hPublicKey;
+        node.hPrivateKey = params.hPrivateKey;
+        derivations.incrementAndGet();
+    }
+
+    private void destroyIntermediates(Iterable<Pending> nodes) throws Exception {
+        for (Pending node : nodes) {
+            if (!node.leaf) {
+                destroy(node);
+            }
+        }
+    }
+
+    private void destroy(Pending node) throws Exception {
+        long hPublicKey = node.hPublicKey;
+        long hPrivateKey = node.hPrivateKey;
+        node.hPublicKey = 0;
+        node.hPrivateKey = 0;
+        if (hPublicKey == 0 && hPrivateKey == 0) {
+            return;
+        }
+        pool.execute(hSession -> {
+            PKCS11 p11 = pool.getP11();
+            try {
+                if (hPublicKey != 0) {
+                    ManageObjects.delete(p11, hSession, hPublicKey);
+                }
+                if (hPrivateKey != 0) {
+                    ManageObjects.delete(p11, hSession, hPrivateKey);
+                }
+            } catch (PKCS11Exception ex) {
+                /* already gone with its session */
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Number of child steps run on the token since the deriver was created.
+     */
+    public long getDerivations() {
+        return derivations.get();
+    }
+
+    /**
+     * Duration of the last run, in milliseconds.
+     */
+    public long getLastRunMillis() {
+        return lastRunNanos / 1_000_000;
+    }
+}
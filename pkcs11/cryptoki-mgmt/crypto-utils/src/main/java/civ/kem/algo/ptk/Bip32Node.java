@@ -0,0 +1,37 @@
+package civ.kem.algo.ptk;
+
+/**
+ * A BIP32 key pair derived on the token, with its path from the master key.
+ */
+public final class Bip32Node {
+
+    private final long[] path;
+    private final long hPublicKey;
+    private final long hPrivateKey;
+
+    Bip32Node(long[] path, long hPublicKey, long hPrivateKey) {
+        this.path = path;
+        this.hPublicKey = hPublicKey;
+        this.hPrivateKey = hPrivateKey;
+    }
+
+    /**
+     * Child indexes from the master key.
+     */
+    public long[] getPath() {
+        return path.clone();
+    }
+
+    public long getPublicKey() {
+        return hPublicKey;
+    }
+
+    public long getPrivateKey() {
+        return hPrivateKey;
+    }
+
+    @Override
+    public String toString() {
+        return Bip32Path.format(path);
+    }
+}
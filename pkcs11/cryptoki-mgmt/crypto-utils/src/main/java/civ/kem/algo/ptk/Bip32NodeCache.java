@@ -0,0 +1,296 @@
+package civ.kem.algo.ptk;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import civ.kem.algo.CryptokiMetrics;
+import civ.kem.algo.LeasedObjectCache;
+import civ.kem.algo.ManageObjects;
+import civ.kem.algo.SessionPool;
+
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Cache of derived BIP32 parent nodes, keyed by master key and path.
+ *
+ * <p>
+ * A master key is identified by its chain code rather than by its handle: a
+ * handle freed by the deletion of a master key may be given to another key,
+ * whose nodes must not be served from the cache. The chain code is read once
+ * per handle, which {@link #invalidate(long)} forgets.</p>
+ *
+ * <p>
+ * A node missing from the cache is derived with one child step from its
+ * parent, itself taken from the cache or derived the same way. Once the
+ * account node {@code m/44'/0'/0'/0} is cached, deriving any of its
+ * addresses costs a single child step, see
+ * {@link #deriveChild(long, long[], String, String, boolean)}.</p>
+ *
+ * <p>
+ * The cached nodes are session objects by default, on a session owned by the
+ * cache and kept open for their lifetime; they can be made token objects
+ * instead, for instance to share them between processes. The least recently
+ * used nodes are dropped beyond the size bound and destroyed with
+ * {@link ManageObjects#delete}; a node in use through a {@link Lease} is only
+ * destroyed once the lease is closed. If the owner session is lost, its
+ * session objects are forgotten and derived again on the next use, see
+ * {@link LeasedObjectCache}.</p>
+ *
+ * <p>
+ * The cache is thread-safe.</p>
+ */
+public class Bip32NodeCache extends LeasedObjectCache<Bip32NodeCache.Entry> {
+
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    static final class Entry extends LeasedObjectCache.Entry {
+
+        final long hPublicKey;
+        final long hPrivateKey;
+
+        Entry(long hPublicKey, long hPrivateKey, long epoch) {
+            super(epoch);
+            this.hPublicKey = hPublicKey;
+            this.hPrivateKey = hPrivateKey;
+        }
+
+        @Override
+        protected void destroy(PKCS11 p11, long hSession) throws PKCS11Exception {
+            ManageObjects.delete(p11, hSession, hPublicKey);
+            ManageObjects.delete(p11, hSession, hPrivateKey);
+        }
+
+        @Override
+        public String toString() {
+            return "BIP32 node " + hPrivateKey;
+        }
+    }
+
+    /**
+     * Use of a cached node; the node cannot be destroyed before the lease is
+     * closed.
+     */
+    public final class Lease implements AutoCloseable {
+
+        private final Entry entry;
+        private final long hPrivateKey;
+        private boolean closed;
+
+        private Lease(Entry entry, long hPrivateKey) {
+            this.entry = entry;
+            this.hPrivateKey = hPrivateKey;
+        }
+
+        /**
+         * Handle of the private key of the node.
+         */
+        public long getPrivateKey() {
+            return hPrivateKey;
+        }
+
+        /**
+         * Handle of the public key of the node, 0 for a master key.
+         */
+        public long getPublicKey() {
+            return entry != null ? entry.hPublicKey : 0L;
+        }
+
+        @Override
+        public void close() {
+            if (!closed && entry != null) {
+                closed = true;
+                release(entry);
+            }
+        }
+    }
+
+    private final boolean tokenObjects;
+    /* chain code by master key handle, see invalidate */
+    private final Map<Long, String> masterIds = new HashMap<>();
+    private final AtomicLong derivations = new AtomicLong();
+
+    /**
+     * Creates a cache of session objects with the default size.
+     *
+     * @param pool Pool of sessions on the slot holding the master keys.
+     */
+    public Bip32NodeCache(SessionPool pool) {
+        this(pool, DEFAULT_MAX_ENTRIES, false);
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param pool Pool of sessions on the slot holding the master keys.
+     * @param maxEntries Largest number of nodes kept.
+     * @param tokenObjects True to derive the nodes as token objects, false
+     * for session objects.
+     */
+    public Bip32NodeCache(SessionPool pool, int maxEntries, boolean tokenObjects) {
+        super("BIP32 node cache", pool, maxEntries, !tokenObjects);
+        this.tokenObjects = tokenObjects;
+    }
+
+    /**
+     * Leases the node at a path, deriving it and its missing parents on a
+     * miss. The lease must be closed once the node is no longer used.
+     *
+     * @param hMaster Handle of the master private key.
+     * @param path Child indexes from the master key; empty for the master key
+     * itself.
+     * @return The lease of the node.
+     * @throws Exception If a node cannot be derived.
+     */
+    public Lease acquire(long hMaster, long[] path) throws Exception {
+        if (path.length == 0) {
+            return new Lease(null, hMaster);
+        }
+        return acquire(masterId(hMaster), hMaster, path);
+    }
+
+    private Lease acquire(String masterId, long hMaster, long[] path) throws Exception {
+        if (path.length == 0) {
+            return new Lease(null, hMaster);
+        }
+        String key = masterId + ":" + Bip32Path.format(path);
+        Entry entry = lookup(key);
+        if (entry != null) {
+            return new Lease(entry, entry.hPrivateKey);
+        }
+        countMiss();
+
+        for (int attempt = 0;; attempt++) {
+            try (Lease parent = acquire(masterId, hMaster, Arrays.copyOf(path, path.length - 1))) {
+                /* one session must not run two calls at once, so misses derive in turn */
+                synchronized (ownerLock) {
+                    if (parent.entry == null || isCurrent(parent.entry)) {
+                        try {
+                            entry = install(key, derive(parent.getPrivateKey(), path));
+                            return new Lease(entry, entry.hPrivateKey);
+                        } catch (PKCS11Exception ex) {
+                            if (!isOwnerSessionLost(ex)) {
+                                throw ex;
+                            }
+                            ownerSessionLost();
+                            if (attempt > 0) {
+                                throw ex;
+                            }
+                        }
+                    } else if (attempt > 0) {
+                        throw new IllegalStateException("Owner session of the BIP32 node cache lost again");
+                    }
+                }
+            }
+            /* the parent went with the lost owner session: derive it again */
+        }
+    }
+
+    /**
+     * Derives a key pair owned by the caller with one child step from its
+     * cached parent, on a session of the pool.
+     *
+     * @param hMaster Handle of the master private key.
+     * @param path Child indexes from the master key.
+     * @param pubLabel Label of the public key.
+     * @param priLabel Label of the private key.
+     * @param token True for token objects, false for session objects.
+     * @return The derived key pair.
+     * @throws Exception If the key pair or a parent cannot be derived.
+     */
+    public Bip32Node deriveChild(long hMaster, long[] path, String pubLabel, String priLabel, boolean token) throws Exception {
+        if (path.length == 0) {
+            throw new IllegalArgumentException("Empty path");
+        }
+        try (Lease parent = acquire(hMaster, Arrays.copyOf(path, path.length - 1))) {
+            CK_BIP32_CHILD_DERIVE_PARAMS params = pool.execute(hSession -> BIP32KeyDerivation.generateChildKeyPair(pool.getP11(),
+                    hSession, parent.getPrivateKey(), new long[]{path[path.length - 1]}, pubLabel, priLabel, token));
+            return new Bip32Node(path.clone(), params.hPublicKey, params.hPrivateKey);
+        }
+    }
+
+    /* the chain code of the master key, stable across handles */
+    private String masterId(long hMaster) throws Exception {
+        synchronized (masterIds) {
+            String masterId = masterIds.get(hMaster);
+            if (masterId != null) {
+                return masterId;
+            }
+        }
+        CK_ATTRIBUTE[] chainCode = {new CK_ATTRIBUTE(PTK_Constants.CKA_BIP32_CHAIN_CODE)};
+        pool.execute(hSession -> {
+            CryptokiMetrics.run("C_GetAttributeValue", null, hSession,
+                    () -> pool.getP11().C_GetAttributeValue(hSession, hMaster, chainCode));
+            return null;
+        });
+        byte[] value = chainCode[0].getByteArray();
+        if (value == null || value.length == 0) {
+            throw new IllegalArgumentException("Not a BIP32 key: " + hMaster);
+        }
+        String masterId = HexFormat.of().formatHex(value);
+        synchronized (masterIds) {
+            masterIds.put(hMaster, masterId);
+        }
+        return masterId;
+    }
+
+    /* caller holds the owner lock */
+    private Entry derive(long hParent, long[] path) throws Exception {
+        String label = "BIP32 node " + Bip32Path.format(path);
+        CK_BIP32_CHILD_DERIVE_PARAMS params = BIP32KeyDerivation.generateChildKeyPair(pool.getP11(), ownerSession(), hParent,
+                new long[]{path[path.length - 1]}, label + "(Public)", label + "(Private)", tokenObjects);
+        derivations.incrementAndGet();
+        return new Entry(params.hPublicKey, params.hPrivateKey, ownerEpoch());
+    }
+
+    /**
+     * Destroys the nodes derived from a master key and forgets its handle;
+     * nodes in use are destroyed when their lease closes. Must be called
+     * before the master key itself is deleted.
+     *
+     * @param hMaster Handle of the master private key.
+     * @throws Exception If the master key cannot be read.
+     */
+    public void invalidate(long hMaster) throws Exception {
+        String prefix = masterId(hMaster) + ":";
+        synchronized (masterIds) {
+            masterIds.remove(hMaster);
+        }
+        invalidate(key -> key.startsWith(prefix));
+    }
+
+    /**
+     * Destroys every node and forgets the master key handles; nodes in use
+     * are destroyed when their lease closes.
+     */
+    @Override
+    public void invalidateAll() {
+        synchronized (masterIds) {
+            masterIds.clear();
+        }
+        super.invalidateAll();
+    }
+
+    public boolean isTokenObjects() {
+        return tokenObjects;
+    }
+
+    /**
+     * Number of child steps run to fill the cache.
+     */
+    public long getDerivations() {
+        return derivations.get();
+    }
+
+    /**
+     * Returns a one-line summary of the cache.
+     */
+    public String stats() {
+        return String.format("%d/%d nodes, %d hits, %d misses, %d derivations, %d evictions",
+                size(), getMaxEntries(), getHits(), getMisses(), derivations.get(), getEvictions());
+    }
+}
@@ -0,0 +1,131 @@
+package civ.kem.algo.ptk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * BIP32 derivation paths, written {@code m/44'/0'/0'/0/5}.
+ *
+ * <p>
+ * An index followed by {@code '} (or {@code h}) is hardened. Path patterns
+ * may hold inclusive ranges, {@code m/44'/0'/0'/0/0..999} or
+ * {@code m/44'/0'/0'..9'/0/0}, which expand to one path per index; several
+ * ranges expand to their cartesian product.</p>
+ */
+public final class Bip32Path {
+
+    /**
+     * Bit set on hardened child indexes.
+     */
+    public static final long HARDENED = 0x80000000L;
+
+    private Bip32Path() {
+    }
+
+    /**
+     * Parses a path without ranges.
+     *
+     * @param path The path, e.g. {@code m/44'/0'/0'/0/5}.
+     * @return The child indexes, hardened ones with {@link #HARDENED} set.
+     * @throws IllegalArgumentException If the path is malformed or holds a
+     * range.
+     */
+    public static long[] parse(String path) {
+        List<long[]> paths = expand(path);
+        if (paths.size() != 1 || path.contains("..")) {
+            throw new IllegalArgumentException("Not a single path: " + path);
+        }
+        return paths.get(0);
+    }
+
+    /**
+     * Expands a path pattern into the paths it describes.
+     *
+     * @param pattern The pattern, e.g. {@code m/44'/0'/0'/0/0..999}.
+     * @return The paths, in lexicographic order of their indexes.
+     * @throws IllegalArgumentException If the pattern is malformed.
+     */
+    public static List<long[]> expand(String pattern) {
+        /* a trailing or doubled slash is an empty level, not ignored */
+        String[] levels = pattern.trim().split("/", -1);
+        if (levels.length == 0 || !levels[0].equals("m")) {
+            throw new IllegalArgumentException("Path must start with m: " + pattern);
+        }
+        List<long[]> paths = new ArrayList<>();
+        paths.add(new long[0]);
+        for (int depth = 1; depth < levels.length; depth++) {
+            String level = levels[depth];
+            long first;
+            long last;
+            int range = level.indexOf("..");
+            if (range < 0) {
+                first = index(level, pattern);
+                last = first;
+            } else {
+                first = index(level.substring(0, range), pattern);
+                last = index(level.substring(range + 2), pattern);
+                if ((first & HARDENED) != (last & HARDENED) || last < first) {
+                    throw new IllegalArgumentException("Invalid range " + level + ": " + pattern);
+                }
+            }
+            List<long[]> next = new ArrayList<>();
+            for (long[] prefix : paths) {
+                for (long index = first; index <= last; index++) {
+                    long[] path = Arrays.copyOf(prefix, depth);
+                    path[depth - 1] = index;
+                    next.add(path);
+                }
+            }
+            paths = next;
+        }
+        return paths;
+    }
+
+    private static long index(String level, String pattern) {
+        boolean hardened = level.endsWith("'") || level.endsWith("h") || level.endsWith("H");
+        String digits = hardened ? level.substring(0, level.length() - 1) : level;
+        long index;
+        try {
+            if (digits.isEmpty() || !digits.chars().allMatch(c -> c >= '0' && c <= '9')) {
+                /* no sign, no other digits than ASCII */
+                throw new NumberFormatException(digits);
+            }
+            index = Long.parseLong(digits);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid index " + level + ": " + pattern);
+        }
+        if (index < 0 || index >= HARDENED) {
+            throw new IllegalArgumentException("Index out of range " + level + ": " + pattern);
+        }
+        return hardened ? index | HARDENED : index;
+    }
+
+    /**
+     * Formats a path.
+     *
+     * @param path The child indexes.
+     * @return The path, e.g. {@code m/44'/0'/0'/0/5}.
+     */
+    public static String format(long[] path) {
+        return format(path, path.length);
+    }
+
+    /**
+     * Formats the first levels of a path.
+     *
+     * @param path The child indexes.
+     * @param depth The number of levels to format.
+     * @return The path prefix, {@code m} for depth 0.
+     */
+    public static String format(long[] path, int depth) {
+        StringBuilder sb = new StringBuilder("m");
+        for (int i = 0; i < depth; i++) {
+            sb.append('/').append(path[i] & ~HARDENED);
+            if ((path[i] & HARDENED) != 0) {
+                sb.append('\'');
+            }
+        }
+        return sb.toString();
+    }
+}
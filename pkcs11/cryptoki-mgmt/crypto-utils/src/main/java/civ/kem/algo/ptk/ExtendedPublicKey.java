@@ -0,0 +1,436 @@
+package civ.kem.algo.ptk;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.bouncycastle.asn1.x9.X9ECParameters;
+import org.bouncycastle.crypto.digests.RIPEMD160Digest;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.digests.SHA512Digest;
+import org.bouncycastle.crypto.ec.CustomNamedCurves;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.math.ec.ECPoint;
+import org.bouncycastle.math.ec.FixedPointCombMultiplier;
+import org.bouncycastle.math.ec.FixedPointUtil;
+
+import civ.kem.algo.CryptokiMetrics;
+
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * BIP32 extended public key, deriving its non-hardened children in software.
+ *
+ * <p>
+ * Public child derivation (CKD-pub) needs neither the private key nor the
+ * token: an extended public key exported once with
+ * {@link #fromToken(PKCS11, long, long, long[], long)} or
+ * parsed from its {@code xpub} form gives every receive address of an
+ * account without further Cryptoki calls. The secp256k1 arithmetic uses the
+ * BouncyCastle custom curve, and the multiplications by the generator a comb
+ * table precomputed once per JVM.</p>
+ *
+ * <p>
+ * Instances are immutable and thread-safe; {@link #childPublicKeys} and
+ * {@link #p2pkhAddresses} derive in parallel.</p>
+ */
+public final class ExtendedPublicKey {
+
+    /**
+     * Version bytes of mainnet {@code xpub} keys.
+     */
+    public static final int MAINNET_VERSION = 0x0488B21E;
+
+    /**
+     * Version bytes of testnet {@code tpub} keys.
+     */
+    public static final int TESTNET_VERSION = 0x043587CF;
+
+    private static final X9ECParameters SECP256K1 = CustomNamedCurves.getByName("secp256k1");
+    private static final FixedPointCombMultiplier MULTIPLIER = new FixedPointCombMultiplier();
+    private static final char[] BASE58 = "123456789ABCDEFGHJKLMNPQRSTUVWXYZabcdefghijkmnopqrstuvwxyz".toCharArray();
+
+    static {
+        /* builds the comb table of the generator once */
+        FixedPointUtil.precompute(SECP256K1.getG());
+    }
+
+    private final int version;
+    private final int depth;
+    private final int parentFingerprint;
+    private final long childNumber;
+    private final byte[] chainCode;
+    private final byte[] publicKey;
+    private final ECPoint point;
+    private volatile Integer fingerprint;
+
+    /**
+     * Creates an extended public key.
+     *
+     * @param version Version bytes, e.g. {@link #MAINNET_VERSION}.
+     * @param depth Depth below the master key.
+     * @param parentFingerprint Fingerprint of the parent key, 0 for a master
+     * key.
+     * @param childNumber Index of the key below its parent.
+     * @param chainCode The 32 byte chain code.
+     * @param publicKey The 33 byte compressed public key.
+     */
+    public ExtendedPublicKey(int version, int depth, int parentFingerprint, long childNumber, byte[] chainCode, byte[] publicKey) {
+        if (chainCode.length != 32) {
+            throw new IllegalArgumentException("Chain code must be 32 bytes: " + chainCode.length);
+        }
+        if (publicKey.length != 33 || (publicKey[0] != 0x02 && publicKey[0] != 0x03)) {
+            throw new IllegalArgumentException("Not a compressed public key");
+        }
+        this.version = version;
+        this.depth = depth;
+        this.parentFingerprint = parentFingerprint;
+        this.childNumber = childNumber;
+        this.chainCode = chainCode.clone();
+        this.publicKey = publicKey.clone();
+        this.point = SECP256K1.getCurve().decodePoint(publicKey);
+    }
+
+    private ExtendedPublicKey(int version, int depth, int parentFingerprint, long childNumber, byte[] chainCode, ECPoint point) {
+        this.version = version;
+        this.depth = depth;
+        this.parentFingerprint = parentFingerprint;
+        this.childNumber = childNumber;
+        this.chainCode = chainCode;
+        this.publicKey = point.getEncoded(true);
+        this.point = point;
+    }
+
+    /**
+     * Exports the extended public key of a BIP32 master key.
+     *
+     * @param p11 PKCS#11 wrapper instance used to interact with the token.
+     * @param hSession Handle to an open session.
+     * @param hPublicKey Handle of the BIP32 master public key, e.g.
+     * {@code CK_BIP32_MASTER_DERIVE_PARAMS.hPublicKey}.
+     * @return The extended public key, at depth 0.
+     * @throws PKCS11Exception If the attributes cannot be read.
+     * @throws IllegalArgumentException If the key value is not a secp256k1
+     * point.
+     */
+    public static ExtendedPublicKey fromToken(PKCS11 p11, long hSession, long hPublicKey) throws PKCS11Exception {
+        CK_ATTRIBUTE[] attrs = {
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_VALUE),
+            new CK_ATTRIBUTE(PTK_Constants.CKA_BIP32_CHAIN_CODE)
+        };
+        CryptokiMetrics.run("C_GetAttributeValue", null, hSession, () -> p11.C_GetAttributeValue(hSession, hPublicKey, attrs));
+        return new ExtendedPublicKey(MAINNET_VERSION, 0, 0, 0, attrs[1].getByteArray(), compressedPoint(attrs[0].getByteArray()));
+    }
+
+    /**
+     * Exports an extended public key from a BIP32 public key object, e.g.
+     * {@code CK_BIP32_CHILD_DERIVE_PARAMS.hPublicKey}. The fingerprint of the
+     * parent, part of the serialized key, is computed from the public key of
+     * the parent.
+     *
+     * @param p11 PKCS#11 wrapper instance used to interact with the token.
+     * @param hSession Handle to an open session.
+     * @param hPublicKey Handle of the BIP32 public key.
+     * @param path Path of the key from the master key, giving its depth and
+     * child number; not empty.
+     * @param hParentPublicKey Handle of the public key of the parent.
+     * @return The extended public key.
+     * @throws PKCS11Exception If the attributes cannot be read.
+     * @throws IllegalArgumentException If the path is empty, or a key value
+     * is not a secp256k1 point.
+     */
+    public static ExtendedPublicKey fromToken(PKCS11 p11, long hSession, long hPublicKey, long[] path, long hParentPublicKey) throws PKCS11Exception {
+        if (path.length == 0) {
+            throw new IllegalArgumentException("Empty path, the master key has no parent");
+        }
+        CK_ATTRIBUTE[] attrs = {
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_VALUE),
+            new CK_ATTRIBUTE(PTK_Constants.CKA_BIP32_CHAIN_CODE)
+        };
+        CK_ATTRIBUTE[] parent = {new CK_ATTRIBUTE(PKCS11Constants.CKA_VALUE)};
+        CryptokiMetrics.run("C_GetAttributeValue", null, hSession, () -> p11.C_GetAttributeValue(hSession, hPublicKey, attrs));
+        CryptokiMetrics.run("C_GetAttributeValue", null, hSession, () -> p11.C_GetAttributeValue(hSession, hParentPublicKey, parent));
+        int parentFingerprint = ByteBuffer.wrap(hash160(compressedPoint(parent[0].getByteArray()))).getInt();
+        return new ExtendedPublicKey(MAINNET_VERSION, path.length, parentFingerprint, path[path.length - 1],
+                attrs[1].getByteArray(), compressedPoint(attrs[0].getByteArray()));
+    }
+
+    /**
+     * Returns the compressed form of a public key value: a compressed (33
+     * bytes) or uncompressed (65 bytes) point, possibly wrapped in a DER
+     * OCTET STRING as in {@code CKA_EC_POINT}.
+     *
+     * @param value The key value read from the token.
+     * @return The 33 byte compressed point.
+     * @throws IllegalArgumentException If the value is not a secp256k1 point.
+     */
+    static byte[] compressedPoint(byte[] value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Missing public key value");
+        }
+        if (value.length >= 2 && value[0] == 0x04 && (value[1] & 0xFF) == value.length - 2
+                && (value.length == 35 || value.length == 67)) {
+            value = Arrays.copyOfRange(value, 2, value.length);
+        }
+        boolean compressed = value.length == 33 && (value[0] == 0x02 || value[0] == 0x03);
+        boolean uncompressed = value.length == 65 && value[0] == 0x04;
+        if (!compressed && !uncompressed) {
+            throw new IllegalArgumentException("Not a secp256k1 public key: " + value.length + " bytes");
+        }
+        /* decoding checks the point is on the curve */
+        return SECP256K1.getCurve().decodePoint(value).getEncoded(true);
+    }
+
+    /**
+     * Parses a serialized extended public key.
+     *
+     * @param xpub The key, e.g. {@code xpub661MyMwAqRbc...}.
+     * @return The extended public key.
+     * @throws IllegalArgumentException If the key is malformed or private.
+     */
+    public static ExtendedPublicKey parse(String xpub) {
+        byte[] data = base58CheckDecode(xpub);
+        if (data.length != 78) {
+            throw new IllegalArgumentException("Extended key must be 78 bytes: " + data.length);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int version = buffer.getInt();
+        int depth = buffer.get() & 0xFF;
+        int parentFingerprint = buffer.getInt();
+        long childNumber = Integer.toUnsignedLong(buffer.getInt());
+        byte[] chainCode = new byte[32];
+        buffer.get(chainCode);
+        byte[] publicKey = new byte[33];
+        buffer.get(publicKey);
+        if (publicKey[0] == 0x00) {
+            throw new IllegalArgumentException("Extended private keys are not supported");
+        }
+        return new ExtendedPublicKey(version, depth, parentFingerprint, childNumber, chainCode, publicKey);
+    }
+
+    /**
+     * Serializes the key, e.g. {@code xpub661MyMwAqRbc...}.
+     */
+    public String serialize() {
+        ByteBuffer buffer = ByteBuffer.allocate(78)
+                .putInt(version)
+                .put((byte) depth)
+                .putInt(parentFingerprint)
+                .putInt((int) childNumber)
+                .put(chainCode)
+                .put(publicKey);
+        return base58CheckEncode(buffer.array());
+    }
+
+    /**
+     * Derives a non-hardened child.
+     *
+     * @param index Index of the child, below {@link Bip32Path#HARDENED}.
+     * @return The child extended public key.
+     * @throws IllegalArgumentException If the index is hardened or, with a
+     * negligible probability, invalid.
+     */
+    public ExtendedPublicKey derive(long index) {
+        byte[] i = hmac(index);
+        return new ExtendedPublicKey(version, depth + 1, getFingerprint(), index, Arrays.copyOfRange(i, 32, 64), childPoint(index, i));
+    }
+
+    /* the public key of a child, without building its extended key */
+    private byte[] childPublicKey(long index) {
+        return childPoint(index, hmac(index)).getEncoded(true);
+    }
+
+    private ECPoint childPoint(long index, byte[] i) {
+        BigInteger il = new BigInteger(1, Arrays.copyOf(i, 32));
+        if (il.compareTo(SECP256K1.getN()) >= 0) {
+            throw new IllegalArgumentException("Invalid child " + index + ", use the next index");
+        }
+        ECPoint child = MULTIPLIER.multiply(SECP256K1.getG(), il).add(point).normalize();
+        if (child.isInfinity()) {
+            throw new IllegalArgumentException("Invalid child " + index + ", use the next index");
+        }
+        return child;
+    }
+
+    /**
+     * Derives a descendant through non-hardened indexes.
+     *
+     * @param path Child indexes from this key.
+     * @return The descendant extended public key.
+     */
+    public ExtendedPublicKey derive(long[] path) {
+        ExtendedPublicKey key = this;
+        for (long index : path) {
+            key = key.derive(index);
+        }
+        return key;
+    }
+
+    /**
+     * Derives the public keys of consecutive children, in parallel.
+     *
+     * @param first Index of the first child.
+     * @param count Number of children.
+     * @return The compressed public keys, in index order.
+     */
+    public List<byte[]> childPublicKeys(long first, int count) {
+        return IntStream.range(0, count).parallel()
+                .mapToObj(i -> childPublicKey(first + i))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Derives the P2PKH addresses of consecutive children, in parallel.
+     *
+     * @param first Index of the first child.
+     * @param count Number of children.
+     * @return The addresses, in index order.
+     */
+    public List<String> p2pkhAddresses(long first, int count) {
+        byte prefix = version == TESTNET_VERSION ? (byte) 0x6F : (byte) 0x00;
+        return IntStream.range(0, count).parallel()
+                .mapToObj(i -> p2pkhAddress(prefix, childPublicKey(first + i)))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the pay-to-public-key-hash address of a public key.
+     *
+     * @param prefix Version byte: 0x00 on mainnet, 0x6F on testnet.
+     * @param publicKey The compressed public key.
+     * @return The Base58Check address.
+     */
+    public static String p2pkhAddress(byte prefix, byte[] publicKey) {
+        byte[] payload = new byte[21];
+        payload[0] = prefix;
+        System.arraycopy(hash160(publicKey), 0, payload, 1, 20);
+        return base58CheckEncode(payload);
+    }
+
+    private byte[] hmac(long index) {
+        if (index < 0 || index >= Bip32Path.HARDENED) {
+            throw new IllegalArgumentException("Hardened child " + index + " needs the private key");
+        }
+        HMac mac = new HMac(new SHA512Digest());
+        mac.init(new KeyParameter(chainCode));
+        mac.update(publicKey, 0, publicKey.length);
+        mac.update((byte) (index >>> 24));
+        mac.update((byte) (index >>> 16));
+        mac.update((byte) (index >>> 8));
+        mac.update((byte) index);
+        byte[] i = new byte[64];
+        mac.doFinal(i, 0);
+        return i;
+    }
+
+    private static byte[] hash160(byte[] data) {
+        SHA256Digest sha256 = new SHA256Digest();
+        byte[] hash = new byte[32];
+        sha256.update(data, 0, data.length);
+        sha256.doFinal(hash, 0);
+        RIPEMD160Digest ripemd160 = new RIPEMD160Digest();
+        byte[] out = new byte[20];
+        ripemd160.update(hash, 0, hash.length);
+        ripemd160.doFinal(out, 0);
+        return out;
+    }
+
+    private static byte[] checksum(byte[] data, int length) {
+        SHA256Digest sha256 = new SHA256Digest();
+        byte[] hash = new byte[32];
+        sha256.update(data, 0, length);
+        sha256.doFinal(hash, 0);
+        sha256.update(hash, 0, hash.length);
+        sha256.doFinal(hash, 0);
+        return Arrays.copyOf(hash, 4);
+    }
+
+    private static String base58CheckEncode(byte[] payload) {
+        byte[] data = Arrays.copyOf(payload, payload.length + 4);
+        System.arraycopy(checksum(payload, payload.length), 0, data, payload.length, 4);
+        StringBuilder sb = new StringBuilder();
+        BigInteger value = new BigInteger(1, data);
+        BigInteger base = BigInteger.valueOf(58);
+        while (value.signum() > 0) {
+            BigInteger[] qr = value.divideAndRemainder(base);
+            sb.append(BASE58[qr[1].intValue()]);
+            value = qr[0];
+        }
+        for (int i = 0; i < data.length && data[i] == 0; i++) {
+            sb.append(BASE58[0]);
+        }
+        return sb.reverse().toString();
+    }
+
+    private static byte[] base58CheckDecode(String text) {
+        BigInteger value = BigInteger.ZERO;
+        BigInteger base = BigInteger.valueOf(58);
+        int zeros = 0;
+        while (zeros < text.length() && text.charAt(zeros) == BASE58[0]) {
+            zeros++;
+        }
+        for (char c : text.toCharArray()) {
+            int digit = Arrays.binarySearch(BASE58, c);
+            if (digit < 0) {
+                throw new IllegalArgumentException("Invalid Base58 character: " + c);
+            }
+            value = value.multiply(base).add(BigInteger.valueOf(digit));
+        }
+        byte[] bytes = value.toByteArray();
+        int skip = bytes.length > 1 && bytes[0] == 0 ? 1 : 0;
+        byte[] data = new byte[zeros + bytes.length - skip];
+        System.arraycopy(bytes, skip, data, zeros, bytes.length - skip);
+        if (data.length < 4) {
+            throw new IllegalArgumentException("Base58Check data too short");
+        }
+        byte[] payload = Arrays.copyOf(data, data.length - 4);
+        if (!Arrays.equals(checksum(data, data.length - 4), Arrays.copyOfRange(data, data.length - 4, data.length))) {
+            throw new IllegalArgumentException("Invalid Base58Check checksum");
+        }
+        return payload;
+    }
+
+    /**
+     * Returns the first four bytes of the HASH160 of the public key, which
+     * identify the key as the parent of its children.
+     */
+    public int getFingerprint() {
+        Integer current = fingerprint;
+        if (current == null) {
+            current = ByteBuffer.wrap(hash160(publicKey)).getInt();
+            fingerprint = current;
+        }
+        return current;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public long getChildNumber() {
+        return childNumber;
+    }
+
+    public byte[] getChainCode() {
+        return chainCode.clone();
+    }
+
+    /**
+     * The 33 byte compressed public key.
+     */
+    public byte[] getPublicKey() {
+        return publicKey.clone();
+    }
+
+    @Override
+    public String toString() {
+        return serialize();
+    }
+}
@@ -5,4 +5,5 @@ public class PTK_Constants{
     public static long CKK_BIP32 = 2147483668L;
     public static long  CKM_BIP32_MASTER_DERIVE = 2147487232L;
     public static long  CKM_BIP32_CHILD_DERIVE = 2147487233L;
+    public static long  CKA_BIP32_CHAIN_CODE = 2147488000L;
 }
\ No newline at end of file
@@ -0,0 +1,66 @@
+package civ.kem.algo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class AsyncCryptokiTest {
+
+    @Test
+    public void failsQueuedRequestsOnClose() throws Exception {
+        SingleSessionPool pool = new SingleSessionPool();
+        AsyncCryptoki async = new AsyncCryptoki(4, 2);
+        async.setSlotLimit(pool.getSlotId(), 1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        CompletableFuture<Integer> running = async.submit(pool, hSession -> {
+            started.countDown();
+            proceed.await();
+            return 1;
+        });
+        CompletableFuture<Integer> queued = async.submit(pool, hSession -> 2);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        Thread closer = new Thread(() -> {
+            try {
+                async.close();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        closer.start();
+        /* close() is waiting for the running request */
+        while (closer.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(10);
+        }
+        proceed.countDown();
+        closer.join(10_000);
+
+        assertEquals(Integer.valueOf(1), running.get(10, TimeUnit.SECONDS));
+        try {
+            queued.get(10, TimeUnit.SECONDS);
+            fail("Ran after close");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof RejectedExecutionException);
+        }
+        assertEquals(0, async.getInFlight());
+        assertEquals(1, async.getRejectedCount());
+    }
+
+    @Test
+    public void rejectsAfterClose() throws Exception {
+        AsyncCryptoki async = new AsyncCryptoki(4, 2);
+        assertTrue(async.shutdown());
+        CompletableFuture<Integer> future = async.submit(new SingleSessionPool(), hSession -> 1);
+        assertTrue(future.isCompletedExceptionally());
+        assertEquals(0, async.getInFlight());
+    }
+}
@@ -0,0 +1,134 @@
+package civ.kem.algo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+public class DigesterTest {
+
+    private static final CK_MECHANISM SHA256 = new CK_MECHANISM(PKCS11Constants.CKM_SHA256);
+
+    /* hashes in software, on the operation state of the single session */
+    private static class StubDigester extends Digester {
+
+        private final SingleSessionPool pool;
+        private MessageDigest digest;
+
+        StubDigester(SingleSessionPool pool) {
+            super(null, 16);
+            this.pool = pool;
+        }
+
+        @Override
+        void digestInit(long hSession, CK_MECHANISM hashMech) throws PKCS11Exception {
+            pool.begin("digest");
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        @Override
+        void digestUpdate(long hSession, long address, byte[] data, int off, int len) {
+            digest.update(data, off, len);
+        }
+
+        @Override
+        int digestFinal(long hSession, byte[] out, int off, int len) throws PKCS11Exception {
+            pool.end("digest");
+            byte[] hash = digest.digest();
+            System.arraycopy(hash, 0, out, off, hash.length);
+            return hash.length;
+        }
+    }
+
+    private final SingleSessionPool pool = new SingleSessionPool();
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    private static InputStream failingAfter(byte[] data) {
+        return new SequenceInputStream(new ByteArrayInputStream(data), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("read error");
+            }
+        });
+    }
+
+    private void assertSessionReusable() throws Exception {
+        assertNull(pool.activeOperation());
+        byte[] data = "the session is usable again".getBytes();
+        byte[] hash = pool.execute(hSession -> {
+            Digester digester = new StubDigester(pool);
+            digester.init(hSession, SHA256);
+            digester.update(new ByteArrayInputStream(data));
+            return digester.digest();
+        });
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(data), hash);
+        assertEquals(0, pool.borrowed);
+        assertEquals(0, pool.invalidated);
+    }
+
+    @Test
+    public void failingStreamEndsOperation() throws Exception {
+        try {
+            pool.execute(hSession -> {
+                Digester digester = new StubDigester(pool);
+                digester.init(hSession, SHA256);
+                digester.update(failingAfter(new byte[100]));
+                return digester.digest();
+            });
+            fail("The read error was ignored");
+        } catch (IOException ex) {
+            assertEquals("read error", ex.getMessage());
+        }
+        assertSessionReusable();
+    }
+
+    @Test
+    public void failingFileEndsOperation() throws Exception {
+        try {
+            pool.execute(hSession -> {
+                Digester digester = new StubDigester(pool);
+                digester.init(hSession, SHA256);
+                digester.update(Path.of("no", "such", "file"));
+                return digester.digest();
+            });
+            fail("Hashed a missing file");
+        } catch (NoSuchFileException ex) {
+            /* expected */
+        }
+        assertSessionReusable();
+    }
+
+    @Test
+    public void abortWithoutOperation() throws Exception {
+        Digester digester = new StubDigester(pool);
+        digester.abort();
+        digester.init(SingleSessionPool.SESSION, SHA256);
+        digester.abort();
+        digester.abort();
+        assertSessionReusable();
+    }
+}
@@ -0,0 +1,168 @@
+package civ.kem.algo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+
+public class EnvelopeCipherTest {
+
+    private static final int SEGMENT = 64;
+    /* "PKE1", version, mechanism, label "kek", wrapped DEK (8 + 32), segment size, nonce prefix */
+    private static final int MECHANISM_OFFSET = 5;
+    private static final int SEGMENT_OFFSET = 4 + 1 + 8 + 2 + 3 + 2 + 40;
+    private static final int HEADER_LENGTH = SEGMENT_OFFSET + 4 + 7;
+
+    /* wraps the data key without a token: a check block and the key XORed with a pad */
+    private static class StubCipher extends EnvelopeCipher {
+
+        private static final byte[] CHECK = {(byte) 0xA6, (byte) 0xA6, (byte) 0xA6, (byte) 0xA6,
+            (byte) 0xA6, (byte) 0xA6, (byte) 0xA6, (byte) 0xA6};
+        private final SecureRandom random = new SecureRandom();
+
+        StubCipher(long wrapMechanism) {
+            super(null, new CK_ATTRIBUTE[]{
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_CLASS, PKCS11Constants.CKO_SECRET_KEY),
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_LABEL, "kek".getBytes(StandardCharsets.US_ASCII))
+            }, new CK_MECHANISM(wrapMechanism), SEGMENT);
+        }
+
+        @Override
+        byte[] random(int length) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            return bytes;
+        }
+
+        @Override
+        byte[] wrap(byte[] dek) {
+            byte[] wrapped = Arrays.copyOf(CHECK, CHECK.length + dek.length);
+            for (int i = 0; i < dek.length; i++) {
+                wrapped[CHECK.length + i] = (byte) (dek[i] ^ 0x5C);
+            }
+            return wrapped;
+        }
+
+        @Override
+        byte[] unwrap(byte[] wrappedDek) throws GeneralSecurityException {
+            if (!Arrays.equals(CHECK, Arrays.copyOf(wrappedDek, CHECK.length))) {
+                throw new GeneralSecurityException("CKR_WRAPPED_KEY_INVALID");
+            }
+            byte[] dek = Arrays.copyOfRange(wrappedDek, CHECK.length, wrappedDek.length);
+            for (int i = 0; i < dek.length; i++) {
+                dek[i] ^= 0x5C;
+            }
+            return dek;
+        }
+    }
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        return data;
+    }
+
+    private static void assertRejected(EnvelopeCipher cipher, byte[] container, Class<? extends Exception> type) throws Exception {
+        try {
+            cipher.decrypt(container);
+            fail("Container accepted");
+        } catch (Exception ex) {
+            if (!type.isInstance(ex)) {
+                throw ex;
+            }
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        EnvelopeCipher cipher = new StubCipher(PKCS11Constants.CKM_AES_KEY_WRAP);
+        for (int length : new int[]{0, 1, SEGMENT - 1, SEGMENT, SEGMENT + 1, 3 * SEGMENT, 1000}) {
+            byte[] plaintext = data(length);
+            byte[] container = cipher.encrypt(plaintext);
+            int segments = Math.max(1, (length + SEGMENT - 1) / SEGMENT);
+            assertEquals(HEADER_LENGTH + length + 16 * segments, container.length);
+            assertArrayEquals(plaintext, cipher.decrypt(container));
+        }
+    }
+
+    @Test
+    public void rejectsTamperedHeader() throws Exception {
+        EnvelopeCipher cipher = new StubCipher(PKCS11Constants.CKM_AES_KEY_WRAP);
+        byte[] container = cipher.encrypt(data(100));
+        /* the nonce prefix is only covered by the tags */
+        byte[] tampered = container.clone();
+        tampered[HEADER_LENGTH - 1] ^= 1;
+        assertRejected(cipher, tampered, GeneralSecurityException.class);
+
+        tampered = container.clone();
+        tampered[0] = 'X';
+        assertRejected(cipher, tampered, IOException.class);
+    }
+
+    @Test
+    public void rejectsTamperedCiphertext() throws Exception {
+        EnvelopeCipher cipher = new StubCipher(PKCS11Constants.CKM_AES_KEY_WRAP);
+        byte[] container = cipher.encrypt(data(3 * SEGMENT));
+        for (int offset : new int[]{HEADER_LENGTH, HEADER_LENGTH + SEGMENT + 16, container.length - 1}) {
+            byte[] tampered = container.clone();
+            tampered[offset] ^= 1;
+            assertRejected(cipher, tampered, GeneralSecurityException.class);
+        }
+    }
+
+    @Test
+    public void rejectsOtherWrapMechanism() throws Exception {
+        byte[] container = new StubCipher(PKCS11Constants.CKM_AES_KEY_WRAP_PAD).encrypt(data(10));
+        assertRejected(new StubCipher(PKCS11Constants.CKM_AES_KEY_WRAP), container, GeneralSecurityException.class);
+
+        container = new StubCipher(PKCS11Constants.CKM_AES_KEY_WRAP).encrypt(data(10));
+        ByteBuffer.wrap(container).putLong(MECHANISM_OFFSET, PKCS11Constants.CKM_RSA_PKCS);
+        assertRejected(new StubCipher(PKCS11Constants.CKM_AES_KEY_WRAP), container, GeneralSecurityException.class);
+    }
+
+    @Test
+    public void rejectsOversizedSegment() throws Exception {
+        EnvelopeCipher cipher = new StubCipher(PKCS11Constants.CKM_AES_KEY_WRAP);
+        for (int segment : new int[]{0, -1, EnvelopeCipher.MAX_SEGMENT_SIZE + 1, Integer.MAX_VALUE}) {
+            byte[] container = cipher.encrypt(data(10));
+            ByteBuffer.wrap(container).putInt(SEGMENT_OFFSET, segment);
+            assertRejected(cipher, container, IOException.class);
+        }
+    }
+
+    @Test
+    public void rejectsTruncation() throws Exception {
+        EnvelopeCipher cipher = new StubCipher(PKCS11Constants.CKM_AES_KEY_WRAP);
+        byte[] container = cipher.encrypt(data(3 * SEGMENT));
+        /* within the header, at the tag of the first segment, and a whole last segment dropped */
+        assertRejected(cipher, Arrays.copyOf(container, 10), EOFException.class);
+        assertRejected(cipher, Arrays.copyOf(container, HEADER_LENGTH), EOFException.class);
+        assertRejected(cipher, Arrays.copyOf(container, HEADER_LENGTH + 10), EOFException.class);
+        assertRejected(cipher, Arrays.copyOf(container, container.length - 1), GeneralSecurityException.class);
+        assertRejected(cipher, Arrays.copyOf(container, container.length - SEGMENT - 16), GeneralSecurityException.class);
+    }
+
+    @Test
+    public void rejectsExtension() throws Exception {
+        EnvelopeCipher cipher = new StubCipher(PKCS11Constants.CKM_AES_KEY_WRAP);
+        byte[] container = cipher.encrypt(data(2 * SEGMENT));
+        byte[] extended = Arrays.copyOf(container, container.length + SEGMENT + 16);
+        System.arraycopy(container, HEADER_LENGTH, extended, container.length, SEGMENT + 16);
+        assertRejected(cipher, extended, GeneralSecurityException.class);
+    }
+}
@@ -0,0 +1,24 @@
+package civ.kem.algo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+public class KeyProvisionerTest {
+
+    @Test
+    public void escapesCheckpointSeparators() {
+        String label = "device,1%\n\r2";
+        String escaped = KeyProvisioner.escape(label);
+        assertFalse(escaped.contains(","));
+        assertFalse(escaped.contains("\n"));
+        assertEquals(label, KeyProvisioner.unescape(escaped));
+    }
+
+    @Test
+    public void keepsPlainLabels() {
+        assertEquals("device-000042", KeyProvisioner.escape("device-000042"));
+        assertEquals("device-000042", KeyProvisioner.unescape("device-000042"));
+    }
+}
@@ -0,0 +1,100 @@
+package civ.kem.algo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+
+public class KeySpecTest {
+
+    private static CK_ATTRIBUTE find(CK_ATTRIBUTE[] template, long type) {
+        for (CK_ATTRIBUTE attr : template) {
+            if (attr.type == type) {
+                return attr;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void parsesLine() {
+        KeySpec spec = KeySpec.parse("  aes , 256 , device-%06d , 10  ");
+        assertEquals("AES", spec.getType());
+        assertEquals("256", spec.getSize());
+        assertEquals(10, spec.getCount());
+        assertFalse(spec.isKeyPair());
+        assertTrue(spec.isTokenObject());
+        assertEquals("device-000042", spec.label(42));
+        assertEquals("AES,256,device-%06d,10", spec.toString());
+    }
+
+    @Test
+    public void parsesCurve() {
+        KeySpec spec = KeySpec.parse("EC,P-256,signer-%d,2");
+        assertTrue(spec.isKeyPair());
+        assertEquals(PKCS11Constants.CKM_EC_KEY_PAIR_GEN, spec.mechanism().mechanism);
+        CK_ATTRIBUTE params = find(spec.publicTemplate("signer-0"), PKCS11Constants.CKA_EC_PARAMS);
+        assertArrayEquals(new byte[]{0x06, 0x08, 0x2A, (byte) 0x86, 0x48, (byte) 0xCE, 0x3D, 0x03, 0x01, 0x07},
+                (byte[]) params.pValue);
+    }
+
+    @Test
+    public void usesLabelAsId() {
+        KeySpec spec = KeySpec.parse("RSA,2048,rsa-%d,1");
+        byte[] label = "rsa-0".getBytes(StandardCharsets.UTF_8);
+        for (CK_ATTRIBUTE[] template : new CK_ATTRIBUTE[][]{spec.publicTemplate("rsa-0"), spec.privateTemplate("rsa-0")}) {
+            assertArrayEquals(label, (byte[]) find(template, PKCS11Constants.CKA_LABEL).pValue);
+            assertArrayEquals(label, (byte[]) find(template, PKCS11Constants.CKA_ID).pValue);
+        }
+    }
+
+    @Test
+    public void appliesOverridesToTheirHalf() {
+        KeySpec spec = KeySpec.parse("EC,P-384,k-%d,1,token=false,extractable=true");
+        assertFalse(spec.isTokenObject());
+        CK_ATTRIBUTE[] publicTemplate = spec.publicTemplate("k-0");
+        CK_ATTRIBUTE[] privateTemplate = spec.privateTemplate("k-0");
+        assertEquals(Boolean.FALSE, find(publicTemplate, PKCS11Constants.CKA_TOKEN).pValue);
+        assertEquals(Boolean.FALSE, find(privateTemplate, PKCS11Constants.CKA_TOKEN).pValue);
+        /* extractable only makes sense on the private key */
+        assertNull(find(publicTemplate, PKCS11Constants.CKA_EXTRACTABLE));
+        assertEquals(Boolean.TRUE, find(privateTemplate, PKCS11Constants.CKA_EXTRACTABLE).pValue);
+    }
+
+    @Test
+    public void setsAesLength() {
+        CK_ATTRIBUTE[] template = KeySpec.parse("AES,128,k,1").publicTemplate("k");
+        assertEquals(16L, find(template, PKCS11Constants.CKA_VALUE_LEN).pValue);
+        assertEquals(PKCS11Constants.CKO_SECRET_KEY, find(template, PKCS11Constants.CKA_CLASS).pValue);
+    }
+
+    @Test
+    public void rejectsMalformedLines() {
+        String[] lines = {
+            "AES,256,k",
+            "DES,64,k-%d,1",
+            "EC,P-192,k-%d,1",
+            "AES,256,k-%d,0",
+            "AES,256,k,2",
+            "AES,256,k-%d,1,exportable=true",
+            "AES,256,k-%d,1,token"
+        };
+        for (String line : lines) {
+            try {
+                KeySpec.parse(line);
+                fail("Parsed " + line);
+            } catch (IllegalArgumentException expected) {
+                /* expected */
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package civ.kem.algo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0.0, histogram.getMean(), 0.0);
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(0, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long v = 0; v < 8; v++) {
+            histogram.record(v);
+        }
+        assertEquals(8, histogram.getCount());
+        assertEquals(7, histogram.getMax());
+        assertEquals(3.5, histogram.getMean(), 0.0);
+        assertEquals(0, histogram.getPercentile(0));
+        assertEquals(3, histogram.getPercentile(50));
+        assertEquals(6, histogram.getPercentile(87.5));
+        assertEquals(7, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void negativeCountsAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void percentileIsBucketUpperBound() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long v = 1; v <= 100; v++) {
+            histogram.record(v);
+        }
+        /* 50 falls in [48, 51], 99 in [96, 103] capped by the maximum */
+        assertEquals(51, histogram.getPercentile(50));
+        assertEquals(100, histogram.getPercentile(99));
+        assertEquals(100, histogram.getPercentile(100));
+        assertEquals(50.5, histogram.getMean(), 0.0);
+    }
+
+    @Test
+    public void relativeErrorIsBounded() {
+        long[] values = {8, 9, 15, 16, 17, 1000, 123_456, 1_000_000_007L, 1L << 40, (1L << 40) + 1, Long.MAX_VALUE / 3};
+        for (long v : values) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(v);
+            /* a larger value keeps the maximum from capping the bound */
+            histogram.record(Long.MAX_VALUE);
+            long p50 = histogram.getPercentile(50);
+            assertTrue(v + " -> " + p50, p50 >= v);
+            assertTrue(v + " -> " + p50, p50 - v <= v / 8);
+        }
+    }
+
+    @Test
+    public void bucketBoundaries() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(16);
+        histogram.record(17);
+        histogram.record(18);
+        histogram.record(Long.MAX_VALUE);
+        /* 16 and 17 share a bucket of width 2, 18 starts the next one */
+        assertEquals(17, histogram.getPercentile(25));
+        assertEquals(17, histogram.getPercentile(50));
+        assertEquals(19, histogram.getPercentile(75));
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void resetClearsEverything() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(99));
+        histogram.record(3);
+        assertEquals(3, histogram.getPercentile(50));
+    }
+}
@@ -0,0 +1,47 @@
+package civ.kem.algo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class LongMapTest {
+
+    @Test
+    public void growsAndRemoves() {
+        LongMap<String> map = new LongMap<>();
+        for (long key = -100; key < 100; key++) {
+            map.put(key << 20, "v" + key);
+        }
+        assertEquals(200, map.values().size());
+        for (long key = -100; key < 100; key++) {
+            assertEquals("v" + key, map.get(key << 20));
+        }
+        for (long key = -100; key < 100; key += 2) {
+            map.remove(key << 20);
+        }
+        assertEquals(100, map.values().size());
+        assertNull(map.get(-100L << 20));
+        assertEquals("v-99", map.get(-99L << 20));
+        assertNull(map.get(1L));
+
+        map.put(-99L << 20, "replaced");
+        assertEquals("replaced", map.get(-99L << 20));
+        assertEquals(100, map.values().size());
+    }
+
+    @Test
+    public void createsOnce() {
+        LongMap<Object> map = new LongMap<>();
+        Object created = map.computeIfAbsent(7L, key -> new Object());
+        assertSame(created, map.computeIfAbsent(7L, key -> new Object()));
+
+        Map<Long, Object> entries = new TreeMap<>();
+        map.forEach(entries::put);
+        assertEquals(Map.of(7L, created), entries);
+    }
+}
@@ -0,0 +1,204 @@
+package civ.kem.algo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+import org.junit.After;
+import org.junit.Test;
+
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+public class MultiPartCipherTest {
+
+    private static final int CHUNK = 32;
+    private static final CK_MECHANISM MECHANISM = new CK_MECHANISM(PKCS11Constants.CKM_AES_CTR);
+
+    /* XORs the data with a constant, on the operation state of the single session */
+    private static class StubCipher extends MultiPartCipher {
+
+        private final SingleSessionPool pool;
+
+        StubCipher(SingleSessionPool pool) {
+            super(null, CHUNK);
+            this.pool = pool;
+        }
+
+        @Override
+        void cipherInit(boolean encrypt, long hSession, CK_MECHANISM mechanism, long hKey) throws PKCS11Exception {
+            pool.begin(encrypt ? "encrypt" : "decrypt");
+        }
+
+        @Override
+        int cipherUpdate(boolean encrypt, long hSession, byte[] in, int off, int len, byte[] out, int outOff, int outLen) {
+            for (int i = 0; i < len; i++) {
+                out[outOff + i] = (byte) (in[off + i] ^ 0x5C);
+            }
+            return len;
+        }
+
+        @Override
+        int cipherFinal(boolean encrypt, long hSession, byte[] out, int outOff, int outLen) throws PKCS11Exception {
+            pool.end(encrypt ? "encrypt" : "decrypt");
+            return 0;
+        }
+    }
+
+    private final SingleSessionPool pool = new SingleSessionPool();
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        return data;
+    }
+
+    private static InputStream failingAfter(byte[] data) {
+        return new SequenceInputStream(new ByteArrayInputStream(data), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("read error");
+            }
+        });
+    }
+
+    private static OutputStream failingSink() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("write error");
+            }
+        };
+    }
+
+    private void assertFails(SessionPool.SessionTask<?> task) throws Exception {
+        try {
+            pool.execute(task);
+            fail("The I/O error was ignored");
+        } catch (IOException ex) {
+            /* expected */
+        }
+    }
+
+    /* a second operation on the same pool, as the next borrower would run it */
+    private void assertSessionReusable() throws Exception {
+        assertNull(pool.activeOperation());
+        byte[] data = data(3 * CHUNK + 5);
+        byte[] encrypted = pool.execute(hSession -> {
+            MultiPartCipher cipher = new StubCipher(pool);
+            cipher.initEncrypt(hSession, MECHANISM, 0L);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            cipher.transfer(new ByteArrayInputStream(data), out);
+            return out.toByteArray();
+        });
+        byte[] decrypted = pool.execute(hSession -> {
+            MultiPartCipher cipher = new StubCipher(pool);
+            cipher.initDecrypt(hSession, MECHANISM, 0L);
+            try (InputStream in = cipher.inputStream(new ByteArrayInputStream(encrypted))) {
+                return in.readAllBytes();
+            }
+        });
+        assertArrayEquals(data, decrypted);
+        assertNull(pool.activeOperation());
+        assertEquals(0, pool.borrowed);
+        assertEquals(0, pool.invalidated);
+    }
+
+    @Test
+    public void failingSourceEndsTransfer() throws Exception {
+        assertFails(hSession -> {
+            MultiPartCipher cipher = new StubCipher(pool);
+            cipher.initEncrypt(hSession, MECHANISM, 0L);
+            return cipher.transfer(failingAfter(data(2 * CHUNK + 1)), new ByteArrayOutputStream());
+        });
+        assertSessionReusable();
+    }
+
+    @Test
+    public void failingSinkEndsTransfer() throws Exception {
+        assertFails(hSession -> {
+            MultiPartCipher cipher = new StubCipher(pool);
+            cipher.initDecrypt(hSession, MECHANISM, 0L);
+            return cipher.transfer(new ByteArrayInputStream(data(100)), failingSink());
+        });
+        assertSessionReusable();
+    }
+
+    @Test
+    public void failingChannelEndsTransfer() throws Exception {
+        WritableByteChannel sink = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                throw new IOException("write error");
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        assertFails(hSession -> {
+            MultiPartCipher cipher = new StubCipher(pool);
+            cipher.initEncrypt(hSession, MECHANISM, 0L);
+            return cipher.transfer(Channels.newChannel(new ByteArrayInputStream(data(100))), sink);
+        });
+        assertSessionReusable();
+    }
+
+    @Test
+    public void failingStreamsEndOperation() throws Exception {
+        assertFails(hSession -> {
+            MultiPartCipher cipher = new StubCipher(pool);
+            cipher.initEncrypt(hSession, MECHANISM, 0L);
+            try (OutputStream out = cipher.outputStream(failingSink())) {
+                out.write(data(CHUNK + 1));
+            }
+            return null;
+        });
+        assertSessionReusable();
+
+        assertFails(hSession -> {
+            MultiPartCipher cipher = new StubCipher(pool);
+            cipher.initDecrypt(hSession, MECHANISM, 0L);
+            try (InputStream in = cipher.inputStream(failingAfter(data(CHUNK + 1)))) {
+                return in.readAllBytes();
+            }
+        });
+        assertSessionReusable();
+    }
+
+    @Test
+    public void closingInputStreamEarlyEndsOperation() throws Exception {
+        pool.execute(hSession -> {
+            MultiPartCipher cipher = new StubCipher(pool);
+            cipher.initEncrypt(hSession, MECHANISM, 0L);
+            try (InputStream in = cipher.inputStream(new ByteArrayInputStream(data(4 * CHUNK)))) {
+                return in.read();
+            }
+        });
+        assertSessionReusable();
+    }
+}
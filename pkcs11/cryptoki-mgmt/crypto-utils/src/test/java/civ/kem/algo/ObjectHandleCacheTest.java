@@ -0,0 +1,120 @@
+package civ.kem.algo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+
+public class ObjectHandleCacheTest {
+
+    private static CK_ATTRIBUTE[] key(String label) {
+        return new CK_ATTRIBUTE[]{
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_CLASS, PKCS11Constants.CKO_SECRET_KEY),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_LABEL, label.getBytes(StandardCharsets.US_ASCII))
+        };
+    }
+
+    private static void put(ObjectHandleCache cache, CK_ATTRIBUTE[] template, long hObject) {
+        assertTrue(cache.put(template, hObject, false, cache.stamp()));
+    }
+
+    @Test
+    public void returnsCachedHandle() {
+        ObjectHandleCache cache = new ObjectHandleCache();
+        assertEquals(0L, cache.get(key("kek")));
+        put(cache, key("kek"), 42L);
+        assertEquals(42L, cache.get(key("kek")));
+        assertEquals(0L, cache.get(key("dek")));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void ignoresAttributeOrder() {
+        ObjectHandleCache cache = new ObjectHandleCache();
+        CK_ATTRIBUTE[] template = key("kek");
+        put(cache, template, 42L);
+        assertEquals(42L, cache.get(new CK_ATTRIBUTE[]{template[1], template[0]}));
+    }
+
+    @Test
+    public void expiresEntries() {
+        ObjectHandleCache cache = new ObjectHandleCache(16, 0);
+        put(cache, key("kek"), 42L);
+        assertEquals(0L, cache.get(key("kek")));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void dropsLeastRecentlyUsed() {
+        ObjectHandleCache cache = new ObjectHandleCache(2, ObjectHandleCache.DEFAULT_TTL_MILLIS);
+        put(cache, key("a"), 1L);
+        put(cache, key("b"), 2L);
+        cache.get(key("a"));
+        put(cache, key("c"), 3L);
+        assertEquals(1L, cache.get(key("a")));
+        assertEquals(0L, cache.get(key("b")));
+        assertEquals(3L, cache.get(key("c")));
+    }
+
+    @Test
+    public void invalidatesDestroyedObject() {
+        ObjectHandleCache cache = new ObjectHandleCache();
+        put(cache, key("a"), 1L);
+        put(cache, key("b"), 2L);
+        cache.invalidate(1L);
+        assertEquals(0L, cache.get(key("a")));
+        assertEquals(2L, cache.get(key("b")));
+    }
+
+    @Test
+    public void invalidatesSearchesMatchingNewObject() {
+        ObjectHandleCache cache = new ObjectHandleCache();
+        CK_ATTRIBUTE[] anyKek = {
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_CLASS, PKCS11Constants.CKO_SECRET_KEY)
+        };
+        put(cache, anyKek, 1L);
+        put(cache, key("a"), 2L);
+        put(cache, key("b"), 3L);
+        cache.invalidateMatching(key("b"));
+        /* a search without a label, or with the same one, could find the new object */
+        assertEquals(0L, cache.get(anyKek));
+        assertEquals(0L, cache.get(key("b")));
+        assertEquals(2L, cache.get(key("a")));
+    }
+
+    @Test
+    public void invalidatesOnlySessionObjects() {
+        ObjectHandleCache cache = new ObjectHandleCache();
+        assertTrue(cache.put(key("session"), 1L, true, cache.stamp()));
+        assertTrue(cache.put(key("token"), 2L, false, cache.stamp()));
+        cache.invalidateSessionObjects();
+        assertEquals(0L, cache.get(key("session")));
+        assertEquals(2L, cache.get(key("token")));
+    }
+
+    @Test
+    public void rejectsHandleFoundBeforeInvalidation() {
+        ObjectHandleCache cache = new ObjectHandleCache();
+        long stamp = cache.stamp();
+        /* the object is destroyed while the search runs */
+        cache.invalidate(7L);
+        assertFalse(cache.put(key("kek"), 7L, false, stamp));
+        assertEquals(0L, cache.get(key("kek")));
+    }
+
+    @Test
+    public void invalidatesEverything() {
+        ObjectHandleCache cache = new ObjectHandleCache();
+        put(cache, key("a"), 1L);
+        put(cache, key("b"), 2L);
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+    }
+}
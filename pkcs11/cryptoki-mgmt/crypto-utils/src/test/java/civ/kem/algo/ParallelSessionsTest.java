@@ -0,0 +1,79 @@
+package civ.kem.algo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ParallelSessionsTest {
+
+    private static final int COUNT = 1000;
+
+    private final ExecutorService executor = ParallelSessions.newDaemonPool(2, "parallel-sessions-test");
+    private final Set<Integer> run = ConcurrentHashMap.newKeySet();
+    private final CountDownLatch failed = new CountDownLatch(1);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /* index 0 is slow, so the worker awaited first is still busy when index 1 fails */
+    private void work(int index) throws Exception {
+        run.add(index);
+        if (index == 0) {
+            assertTrue(failed.await(10, TimeUnit.SECONDS));
+            Thread.sleep(100);
+        } else if (index == 1) {
+            failed.countDown();
+            throw new IllegalStateException("item 1");
+        }
+    }
+
+    private void assertStopped(ParallelSessions.WorkQueue queue) throws Exception {
+        try {
+            queue.await();
+            fail("The failure was not reported");
+        } catch (IllegalStateException ex) {
+            assertEquals("item 1", ex.getMessage());
+        }
+        assertEquals(Set.of(0, 1), run);
+    }
+
+    @Test
+    public void failureStopsOtherWorkers() throws Exception {
+        ParallelSessions.WorkQueue queue = new ParallelSessions.WorkQueue(COUNT);
+        queue.start(executor, this::work);
+        queue.start(executor, this::work);
+        assertStopped(queue);
+    }
+
+    @Test
+    public void failureStopsOtherSessionWorkers() throws Exception {
+        try (SingleSessionPool pool = new SingleSessionPool()) {
+            ParallelSessions.WorkQueue queue = new ParallelSessions.WorkQueue(COUNT);
+            queue.start(executor, pool, (hSession, index) -> work(index));
+            queue.start(executor, pool, (hSession, index) -> work(index));
+            assertStopped(queue);
+        }
+    }
+
+    @Test
+    public void runsEveryIndexOnce() throws Exception {
+        Set<Integer> seen = ConcurrentHashMap.newKeySet();
+        ParallelSessions.WorkQueue queue = new ParallelSessions.WorkQueue(COUNT);
+        for (int i = 0; i < 2; i++) {
+            queue.start(executor, index -> assertTrue(seen.add(index)));
+        }
+        queue.await();
+        assertEquals(COUNT, seen.size());
+    }
+}
@@ -0,0 +1,114 @@
+package civ.kem.algo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.math.BigInteger;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+
+public class PublicKeysTest {
+
+    private static ECPublicKey generate(String curve) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec(curve));
+        return (ECPublicKey) generator.generateKeyPair().getPublic();
+    }
+
+    private static byte[] uncompressed(ECPublicKey key) {
+        int fieldLen = (key.getParams().getCurve().getField().getFieldSize() + 7) / 8;
+        byte[] point = new byte[2 * fieldLen + 1];
+        point[0] = 0x04;
+        copy(key.getW().getAffineX(), point, 1, fieldLen);
+        copy(key.getW().getAffineY(), point, 1 + fieldLen, fieldLen);
+        return point;
+    }
+
+    private static void copy(BigInteger value, byte[] out, int off, int len) {
+        byte[] bytes = value.toByteArray();
+        int skip = Math.max(0, bytes.length - len);
+        System.arraycopy(bytes, skip, out, off + len - (bytes.length - skip), bytes.length - skip);
+    }
+
+    private static byte[] octetString(byte[] value) {
+        byte[] header = value.length < 0x80
+                ? new byte[]{0x04, (byte) value.length}
+                : new byte[]{0x04, (byte) 0x81, (byte) value.length};
+        byte[] der = Arrays.copyOf(header, header.length + value.length);
+        System.arraycopy(value, 0, der, header.length, value.length);
+        return der;
+    }
+
+    @Test
+    public void decodesRawPoint() throws Exception {
+        ECPublicKey key = generate("secp256r1");
+        assertEquals(key.getW(), PublicKeys.decodePoint(uncompressed(key), key.getParams()));
+    }
+
+    @Test
+    public void decodesDerWrappedPoint() throws Exception {
+        ECPublicKey key = generate("secp256r1");
+        assertEquals(key.getW(), PublicKeys.decodePoint(octetString(uncompressed(key)), key.getParams()));
+    }
+
+    @Test
+    public void decodesLongFormLength() throws Exception {
+        /* 133 byte points need the long form of the DER length */
+        ECPublicKey key = generate("secp521r1");
+        byte[] der = octetString(uncompressed(key));
+        assertEquals((byte) 0x81, der[1]);
+        assertEquals(key.getW(), PublicKeys.decodePoint(der, key.getParams()));
+    }
+
+    @Test
+    public void keepsLeadingZeros() throws Exception {
+        ECParameterSpec spec = generate("secp256r1").getParams();
+        byte[] point = new byte[65];
+        point[0] = 0x04;
+        point[32] = 1;
+        point[64] = 2;
+        assertEquals(new ECPoint(BigInteger.ONE, BigInteger.TWO), PublicKeys.decodePoint(point, spec));
+    }
+
+    @Test
+    public void rejectsCompressedPoint() throws Exception {
+        ECPublicKey key = generate("secp256r1");
+        byte[] compressed = Arrays.copyOf(uncompressed(key), 33);
+        compressed[0] = 0x02;
+        expectFailure(compressed, key.getParams());
+        expectFailure(octetString(compressed), key.getParams());
+    }
+
+    @Test
+    public void rejectsPointOfAnotherCurve() throws Exception {
+        /* a P-384 sized point */
+        byte[] point = new byte[97];
+        point[0] = 0x04;
+        expectFailure(point, generate("secp256r1").getParams());
+    }
+
+    @Test
+    public void mapsSignatureMechanisms() {
+        assertEquals("SHA256withRSA", PublicKeys.signatureAlgorithm(PKCS11Constants.CKM_SHA256_RSA_PKCS));
+        assertEquals("NONEwithECDSAinP1363Format", PublicKeys.signatureAlgorithm(PKCS11Constants.CKM_ECDSA));
+        assertNull(PublicKeys.signatureAlgorithm(PKCS11Constants.CKM_AES_CBC));
+    }
+
+    private static void expectFailure(byte[] encoded, ECParameterSpec spec) {
+        try {
+            PublicKeys.decodePoint(encoded, spec);
+            fail("Decoded an unsupported point");
+        } catch (Exception expected) {
+            /* expected */
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package civ.kem.algo;
+
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/* a pool of one session without a token, tracking the operation active on it */
+class SingleSessionPool extends SessionPool {
+
+    static final long SESSION = 1L;
+
+    int borrowed;
+    int invalidated;
+    private String operation;
+
+    SingleSessionPool() {
+        super(null, 0L, 0L, 1, DEFAULT_IDLE_TIMEOUT_MILLIS);
+    }
+
+    @Override
+    public long borrow() {
+        borrowed++;
+        return SESSION;
+    }
+
+    @Override
+    public void release(long hSession) {
+        borrowed--;
+    }
+
+    @Override
+    public void invalidate(long hSession) {
+        borrowed--;
+        invalidated++;
+    }
+
+    /* what C_*Init checks on a real token */
+    void begin(String operation) throws PKCS11Exception {
+        if (this.operation != null) {
+            throw new PKCS11Exception(ReturnCodes.CKR_OPERATION_ACTIVE, null);
+        }
+        this.operation = operation;
+    }
+
+    void end(String operation) throws PKCS11Exception {
+        if (!operation.equals(this.operation)) {
+            throw new PKCS11Exception(PKCS11Exception.CKR_OPERATION_NOT_INITIALIZED, null);
+        }
+        this.operation = null;
+    }
+
+    String activeOperation() {
+        return operation;
+    }
+}
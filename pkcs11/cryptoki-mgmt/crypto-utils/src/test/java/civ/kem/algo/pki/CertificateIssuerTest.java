@@ -0,0 +1,187 @@
+package civ.kem.algo.pki;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.ExtensionsGenerator;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.bouncycastle.pkcs.jcajce.JcaPKCS10CertificationRequestBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import civ.kem.algo.SessionPool;
+
+public class CertificateIssuerTest {
+
+    private static final String ALGORITHM = "SHA256withECDSA";
+
+    /* a pool handing out one fake session, for the async stage */
+    private static SessionPool fakePool() {
+        return new SessionPool(null, 0L, 0L, 4, SessionPool.DEFAULT_IDLE_TIMEOUT_MILLIS) {
+            @Override
+            public long borrow() {
+                return 1L;
+            }
+
+            @Override
+            public void release(long hSession) {
+            }
+
+            @Override
+            public void invalidate(long hSession) {
+            }
+        };
+    }
+
+    /* signs the TBSCertificate hash in software, in the token form of the signature */
+    private static class SoftwareCertificateIssuer extends CertificateIssuer {
+
+        private final KeyPair caKey;
+
+        SoftwareCertificateIssuer(KeyPair caKey, X509CertificateHolder caCertificate, int maxInFlight) throws Exception {
+            super(fakePool(), 0L, caCertificate, ALGORITHM, maxInFlight);
+            this.caKey = caKey;
+        }
+
+        @Override
+        byte[] sign(long hSession, byte[] toSign) throws Exception {
+            Signature signature = Signature.getInstance("NONEwithECDSA");
+            signature.initSign(caKey.getPrivate());
+            signature.update(toSign);
+            return new TokenContentSigner(null, 0L, ALGORITHM).decodeSignature(signature.sign(), 32);
+        }
+    }
+
+    private KeyPair caKey;
+    private X509CertificateHolder caCertificate;
+    private CertificateIssuer issuer;
+
+    private static KeyPair keyPair(String algorithm, int size) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(algorithm);
+        if (size > 0) {
+            generator.initialize(size);
+        }
+        return generator.generateKeyPair();
+    }
+
+    private static X509CertificateHolder caCertificate(KeyPair caKey, long validityMillis) throws Exception {
+        Date now = new Date();
+        return new JcaX509v3CertificateBuilder(new X500Name("CN=Test CA"), BigInteger.ONE, new Date(now.getTime() - 60_000L),
+                new Date(now.getTime() + validityMillis), new X500Name("CN=Test CA"), caKey.getPublic())
+                .addExtension(Extension.basicConstraints, true, new BasicConstraints(true))
+                .build(new JcaContentSignerBuilder(ALGORITHM).build(caKey.getPrivate()));
+    }
+
+    private static byte[] request(String subject, KeyPair key, String algorithm) throws Exception {
+        ExtensionsGenerator extensions = new ExtensionsGenerator();
+        extensions.addExtension(Extension.subjectAlternativeName, false,
+                new GeneralNames(new GeneralName(GeneralName.dNSName, "host.example")));
+        return new JcaPKCS10CertificationRequestBuilder(new X500Name(subject), key.getPublic())
+                .addAttribute(PKCSObjectIdentifiers.pkcs_9_at_extensionRequest, extensions.generate())
+                .build(new JcaContentSignerBuilder(algorithm).build(key.getPrivate()))
+                .getEncoded();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        caKey = keyPair("EC", 256);
+        caCertificate = caCertificate(caKey, 10 * 365 * 86_400_000L);
+        issuer = new SoftwareCertificateIssuer(caKey, caCertificate, 4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        issuer.close();
+    }
+
+    @Test
+    public void issuesVerifiableCertificates() throws Exception {
+        X509CertificateHolder certificate = issuer.issue(request("CN=Leaf", keyPair("EC", 256), ALGORITHM));
+
+        assertTrue(certificate.isSignatureValid(new JcaContentVerifierProviderBuilder().build(caKey.getPublic())));
+        assertEquals(caCertificate.getSubject(), certificate.getIssuer());
+        assertEquals(new X500Name("CN=Leaf"), certificate.getSubject());
+        assertFalse(BasicConstraints.fromExtensions(certificate.getExtensions()).isCA());
+        assertEquals(new KeyUsage(KeyUsage.digitalSignature), KeyUsage.fromExtensions(certificate.getExtensions()));
+        assertNotNull(certificate.getExtension(Extension.subjectKeyIdentifier));
+        assertNotNull(certificate.getExtension(Extension.authorityKeyIdentifier));
+        assertEquals(new GeneralNames(new GeneralName(GeneralName.dNSName, "host.example")),
+                GeneralNames.fromExtensions(certificate.getExtensions(), Extension.subjectAlternativeName));
+
+        /* PEM requests too */
+        String pem = "-----BEGIN CERTIFICATE REQUEST-----\n"
+                + Base64.getMimeEncoder().encodeToString(request("CN=Pem", keyPair("EC", 256), ALGORITHM))
+                + "\n-----END CERTIFICATE REQUEST-----\n";
+        certificate = issuer.issue(pem.getBytes(StandardCharsets.US_ASCII));
+        assertEquals(new X500Name("CN=Pem"), certificate.getSubject());
+    }
+
+    @Test
+    public void keyUsageFollowsKeyAlgorithm() throws Exception {
+        X509CertificateHolder rsa = issuer.issue(request("CN=RSA", keyPair("RSA", 2048), "SHA256withRSA"));
+        assertEquals(new KeyUsage(KeyUsage.digitalSignature | KeyUsage.keyEncipherment), KeyUsage.fromExtensions(rsa.getExtensions()));
+        X509CertificateHolder ed25519 = issuer.issue(request("CN=Ed25519", keyPair("Ed25519", 0), "Ed25519"));
+        assertEquals(new KeyUsage(KeyUsage.digitalSignature), KeyUsage.fromExtensions(ed25519.getExtensions()));
+        /* X25519 keys cannot sign their request */
+        SubjectPublicKeyInfo x25519 = SubjectPublicKeyInfo.getInstance(keyPair("X25519", 0).getPublic().getEncoded());
+        assertEquals(new KeyUsage(KeyUsage.keyAgreement), CertificateIssuer.keyUsage(x25519));
+    }
+
+    @Test
+    public void validityEndsWithTheCa() throws Exception {
+        X509CertificateHolder shortCa = caCertificate(caKey, 86_400_000L);
+        try (CertificateIssuer clamped = new SoftwareCertificateIssuer(caKey, shortCa, 4)) {
+            clamped.setValidity(Duration.ofDays(365));
+            X509CertificateHolder certificate = clamped.issue(request("CN=Leaf", keyPair("EC", 256), ALGORITHM));
+            assertEquals(shortCa.getNotAfter(), certificate.getNotAfter());
+        }
+        issuer.setValidity(Duration.ofDays(30));
+        X509CertificateHolder certificate = issuer.issue(request("CN=Leaf", keyPair("EC", 256), ALGORITHM));
+        assertEquals(30 * 86_400_000L, certificate.getNotAfter().getTime() - certificate.getNotBefore().getTime(), 1000L);
+    }
+
+    @Test
+    public void pipelinesBeyondTheWindow() throws Exception {
+        KeyPair key = keyPair("EC", 256);
+        List<Map.Entry<String, byte[]>> requests = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            requests.add(Map.entry("request-" + i, request("CN=Leaf " + i, key, ALGORITHM)));
+        }
+        requests.add(Map.entry("garbage", new byte[]{0x30, 0x03, 0x02, 0x01, 0x00}));
+        Map<String, X509CertificateHolder> issued = new ConcurrentHashMap<>();
+
+        assertEquals(64, issuer.issueAll(requests.iterator(), issued::put));
+        assertEquals(64, issued.size());
+        assertEquals(new X500Name("CN=Leaf 7"), issued.get("request-7").getSubject());
+        /* the window and the async stage share the bound without spurious rejections */
+        assertEquals(1, issuer.getFailed());
+        assertEquals(Map.of("garbage", issuer.getFailures().get("garbage")), issuer.getFailures());
+    }
+}
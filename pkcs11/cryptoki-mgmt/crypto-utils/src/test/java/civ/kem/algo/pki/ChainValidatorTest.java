@@ -0,0 +1,137 @@
+package civ.kem.algo.pki;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.CertPathValidatorException;
+import java.util.Date;
+import java.util.List;
+
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralSubtree;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.asn1.x509.NameConstraints;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChainValidatorTest {
+
+    private static final String ALGORITHM = "SHA256withECDSA";
+    private static final ASN1ObjectIdentifier PRIVATE_EXTENSION = new ASN1ObjectIdentifier("1.3.6.1.4.1.99999.1");
+
+    private final Date now = new Date();
+    private long serial;
+    private KeyPair rootKey;
+    private X509CertificateHolder root;
+
+    private static KeyPair keyPair() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(256);
+        return generator.generateKeyPair();
+    }
+
+    private X509v3CertificateBuilder builder(X500Name issuer, String subject, KeyPair key, KeyPair issuerKey, boolean ca) throws Exception {
+        JcaX509ExtensionUtils utils = new JcaX509ExtensionUtils();
+        X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(issuer, BigInteger.valueOf(++serial),
+                new Date(now.getTime() - 60_000L), new Date(now.getTime() + 86_400_000L), new X500Name(subject), key.getPublic());
+        builder.addExtension(Extension.subjectKeyIdentifier, false, utils.createSubjectKeyIdentifier(key.getPublic()));
+        builder.addExtension(Extension.authorityKeyIdentifier, false, utils.createAuthorityKeyIdentifier(issuerKey.getPublic()));
+        builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(ca));
+        builder.addExtension(Extension.keyUsage, true, new KeyUsage(ca ? KeyUsage.keyCertSign | KeyUsage.cRLSign : KeyUsage.digitalSignature));
+        return builder;
+    }
+
+    private static X509CertificateHolder sign(X509v3CertificateBuilder builder, KeyPair issuerKey) throws Exception {
+        return builder.build(new JcaContentSignerBuilder(ALGORITHM).build(issuerKey.getPrivate()));
+    }
+
+    private static void assertRejected(ChainValidator validator, List<X509CertificateHolder> chain) {
+        try {
+            validator.validate(chain);
+            fail("Accepted " + chain.get(0).getSubject());
+        } catch (CertPathValidatorException ex) {
+            /* expected */
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        rootKey = keyPair();
+        root = sign(builder(new X500Name("CN=Root,O=Test"), "CN=Root,O=Test", rootKey, rootKey, true), rootKey);
+    }
+
+    @Test
+    public void cachesVerifiedLinks() throws Exception {
+        KeyPair caKey = keyPair();
+        X509CertificateHolder ca = sign(builder(root.getSubject(), "CN=CA,O=Test", caKey, rootKey, true), rootKey);
+        X509CertificateHolder leaf = sign(builder(ca.getSubject(), "CN=Leaf,O=Test", keyPair(), caKey, false), caKey);
+        ChainValidator validator = new ChainValidator();
+        validator.addTrustAnchor(root);
+
+        assertEquals(List.of(leaf, ca, root), validator.validate(List.of(leaf, ca)));
+        assertEquals(2, validator.getMisses());
+        assertEquals(List.of(leaf, ca, root), validator.validate(List.of(leaf, ca)));
+        assertEquals(2, validator.getHits());
+        assertEquals(0, validator.getPkixValidations());
+    }
+
+    @Test
+    public void rejectsUnhandledCriticalExtensions() throws Exception {
+        KeyPair caKey = keyPair();
+        X509v3CertificateBuilder builder = builder(root.getSubject(), "CN=CA,O=Test", caKey, rootKey, true);
+        builder.addExtension(PRIVATE_EXTENSION, true, DERNull.INSTANCE);
+        X509CertificateHolder ca = sign(builder, rootKey);
+        X509CertificateHolder leaf = sign(builder(ca.getSubject(), "CN=Leaf,O=Test", keyPair(), caKey, false), caKey);
+        ChainValidator validator = new ChainValidator();
+        validator.addTrustAnchor(root);
+        assertRejected(validator, List.of(leaf, ca));
+
+        /* on the end-entity certificate, even with its issuer cached */
+        X509CertificateHolder plainCa = sign(builder(root.getSubject(), "CN=Plain CA,O=Test", caKey, rootKey, true), rootKey);
+        validator.addIntermediate(plainCa);
+        builder = builder(plainCa.getSubject(), "CN=Leaf,O=Test", keyPair(), caKey, false);
+        builder.addExtension(PRIVATE_EXTENSION, true, DERNull.INSTANCE);
+        assertRejected(validator, List.of(sign(builder, caKey)));
+
+        /* the same extension, not critical */
+        builder = builder(plainCa.getSubject(), "CN=Leaf,O=Test", keyPair(), caKey, false);
+        builder.addExtension(PRIVATE_EXTENSION, false, DERNull.INSTANCE);
+        assertEquals(3, validator.validate(List.of(sign(builder, caKey))).size());
+    }
+
+    @Test
+    public void appliesNameConstraints() throws Exception {
+        KeyPair caKey = keyPair();
+        X509v3CertificateBuilder builder = builder(root.getSubject(), "CN=CA,O=Test", caKey, rootKey, true);
+        builder.addExtension(Extension.nameConstraints, true, new NameConstraints(
+                new GeneralSubtree[]{new GeneralSubtree(new GeneralName(new X500Name("O=Test")))}, null));
+        X509CertificateHolder ca = sign(builder, rootKey);
+        ChainValidator validator = new ChainValidator();
+        validator.addTrustAnchor(root);
+
+        /* subtrees match the leading RDNs */
+        X509CertificateHolder permitted = sign(builder(ca.getSubject(), "O=Test,CN=Leaf", keyPair(), caKey, false), caKey);
+        assertEquals(3, validator.validate(List.of(permitted, ca)).size());
+        assertEquals(1, validator.getPkixValidations());
+
+        /* still applied once the links of the path are cached */
+        X509CertificateHolder excluded = sign(builder(ca.getSubject(), "O=Other,CN=Leaf", keyPair(), caKey, false), caKey);
+        assertRejected(validator, List.of(excluded, ca));
+        assertRejected(validator, List.of(excluded, ca));
+        assertEquals(3, validator.getPkixValidations());
+        assertEquals(3, validator.getMisses());
+    }
+}
@@ -0,0 +1,222 @@
+package civ.kem.algo.pki;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.cert.X509CRLEntryHolder;
+import org.bouncycastle.cert.X509CRLHolder;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CrlGeneratorTest {
+
+    private static final String ALGORITHM = "SHA256withECDSA";
+
+    /* signs the TBSCertList in software, in the token form of the signature */
+    private static class SoftwareCrlGenerator extends CrlGenerator {
+
+        private final KeyPair caKey;
+
+        SoftwareCrlGenerator(KeyPair caKey, X509CertificateHolder caCertificate) throws Exception {
+            super(null, 0L, caCertificate, ALGORITHM);
+            this.caKey = caKey;
+        }
+
+        @Override
+        byte[] sign(byte[] prefix, Path entries, byte[] tail) throws Exception {
+            Signature signature = Signature.getInstance(ALGORITHM);
+            signature.initSign(caKey.getPrivate());
+            signature.update(prefix);
+            if (entries != null) {
+                signature.update(Files.readAllBytes(entries));
+            }
+            signature.update(tail);
+            return new TokenContentSigner(null, 0L, ALGORITHM).decodeSignature(signature.sign(), 32);
+        }
+    }
+
+    private Path directory;
+    private X509CertificateHolder caCertificate;
+    private CrlGenerator generator;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("crl-test");
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+        keyPairGenerator.initialize(256);
+        KeyPair caKey = keyPairGenerator.generateKeyPair();
+        X500Name name = new X500Name("CN=Test CA");
+        Date now = new Date();
+        caCertificate = new JcaX509v3CertificateBuilder(name, BigInteger.ONE, now, new Date(now.getTime() + 86_400_000L), name,
+                caKey.getPublic()).build(new JcaContentSignerBuilder(ALGORITHM).build(caKey.getPrivate()));
+        generator = new SoftwareCrlGenerator(caKey, caCertificate);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private Path write(String name, List<String> lines) throws IOException {
+        return Files.write(directory.resolve(name), lines, StandardCharsets.US_ASCII);
+    }
+
+    private X509CRLHolder read(Path crl) throws Exception {
+        byte[] der = Files.readAllBytes(crl);
+        /* the JDK parser is strict about the DER layout */
+        X509CRL jdk = (X509CRL) CertificateFactory.getInstance("X.509").generateCRL(new ByteArrayInputStream(der));
+        X509CRLHolder holder = new X509CRLHolder(der);
+        assertTrue(holder.isSignatureValid(new JcaContentVerifierProviderBuilder().build(caCertificate)));
+        assertEquals(caCertificate.getSubject(), holder.getIssuer());
+        assertEquals(holder.getRevokedCertificates().size(), jdk.getRevokedCertificates() == null ? 0 : jdk.getRevokedCertificates().size());
+        return holder;
+    }
+
+    private static BigInteger crlNumber(X509CRLHolder crl, ASN1ObjectIdentifier oid) {
+        Extension extension = crl.getExtension(oid);
+        assertNotNull(extension);
+        return CRLNumber.getInstance(extension.getParsedValue()).getCRLNumber();
+    }
+
+    private static int reason(X509CRLEntryHolder entry) {
+        Extension extension = entry.getExtension(Extension.reasonCode);
+        return extension == null ? -1 : CRLReason.getInstance(extension.getParsedValue()).getValue().intValue();
+    }
+
+    @Test
+    public void fullCrl() throws Exception {
+        Path revoked = write("revoked.txt", List.of(
+                "# serial time reason",
+                "1f3a 2024-05-01T12:00:00Z 1",
+                "",
+                "2b00 2024-05-02T08:30:00Z",
+                "ff01 2024-05-03T00:00:00Z 6"));
+        Path crl = directory.resolve("ca.crl");
+        assertEquals(3, generator.generate(revoked, BigInteger.valueOf(42), crl));
+
+        X509CRLHolder holder = read(crl);
+        assertEquals(BigInteger.valueOf(42), crlNumber(holder, Extension.cRLNumber));
+        assertNotNull(holder.getExtension(Extension.authorityKeyIdentifier));
+        List<X509CRLEntryHolder> entries = new ArrayList<>(holder.getRevokedCertificates());
+        assertEquals(3, entries.size());
+        assertEquals(new BigInteger("1f3a", 16), entries.get(0).getSerialNumber());
+        assertEquals(Instant.parse("2024-05-01T12:00:00Z").toEpochMilli(), entries.get(0).getRevocationDate().getTime());
+        assertEquals(CRLReason.keyCompromise, reason(entries.get(0)));
+        assertEquals(-1, reason(entries.get(1)));
+        assertEquals(CRLReason.certificateHold, reason(entries.get(2)));
+    }
+
+    @Test
+    public void emptyCrl() throws Exception {
+        Path revoked = write("revoked.txt", List.of());
+        Path crl = directory.resolve("ca.crl");
+        assertEquals(0, generator.generate(revoked, BigInteger.ONE, crl));
+        assertTrue(read(crl).getRevokedCertificates().isEmpty());
+    }
+
+    @Test
+    public void longFormLengths() throws Exception {
+        /* enough entries for three-byte DER lengths */
+        List<String> lines = new ArrayList<>();
+        for (int i = 1; i <= 5000; i++) {
+            lines.add(Integer.toHexString(i * 7919) + " 2024-05-01T12:00:00Z" + (i % 3 == 0 ? " 4" : ""));
+        }
+        Path crl = directory.resolve("ca.crl");
+        assertEquals(5000, generator.generate(write("revoked.txt", lines), BigInteger.TEN, crl));
+        assertTrue(Files.size(crl) > 65536);
+        Collection<?> entries = read(crl).getRevokedCertificates();
+        assertEquals(5000, entries.size());
+    }
+
+    @Test
+    public void replacesExistingCrl() throws Exception {
+        Path crl = write("ca.crl", List.of("previous content, much longer than nothing at all ".repeat(100)));
+        generator.generate(write("revoked.txt", List.of("01 2024-05-01T12:00:00Z")), BigInteger.TWO, crl);
+        assertEquals(BigInteger.TWO, crlNumber(read(crl), Extension.cRLNumber));
+        try (Stream<Path> files = Files.list(directory)) {
+            /* no temporary file left behind */
+            assertEquals(2, files.count());
+        }
+    }
+
+    @Test
+    public void rejectsUnsortedInput() throws Exception {
+        Path crl = write("ca.crl", List.of("previous"));
+        Path revoked = write("revoked.txt", List.of("02 2024-05-01T12:00:00Z", "01 2024-05-01T12:00:00Z"));
+        try {
+            generator.generate(revoked, BigInteger.ONE, crl);
+            fail("Accepted an unsorted file");
+        } catch (IOException ex) {
+            /* expected */
+        }
+        /* the previous CRL is left as it was */
+        assertEquals(List.of("previous"), Files.readAllLines(crl));
+    }
+
+    @Test
+    public void deltaCrl() throws Exception {
+        Path log = write("changes.log", List.of(
+                "+ 10 2024-05-01T12:00:00Z 6",
+                "+ 20 2024-05-01T13:00:00Z 1",
+                "- 10 2024-05-02T12:00:00Z",
+                "+ 05 2024-05-02T13:00:00Z"));
+        Path crl = directory.resolve("delta.crl");
+        assertEquals(3, generator.generateDelta(log, BigInteger.valueOf(7), BigInteger.valueOf(8), crl));
+
+        X509CRLHolder holder = read(crl);
+        assertEquals(BigInteger.valueOf(8), crlNumber(holder, Extension.cRLNumber));
+        assertEquals(BigInteger.valueOf(7), crlNumber(holder, Extension.deltaCRLIndicator));
+        assertTrue(holder.getExtension(Extension.deltaCRLIndicator).isCritical());
+        List<X509CRLEntryHolder> entries = new ArrayList<>(holder.getRevokedCertificates());
+        assertEquals(BigInteger.valueOf(0x05), entries.get(0).getSerialNumber());
+        assertEquals(BigInteger.valueOf(0x10), entries.get(1).getSerialNumber());
+        assertEquals(CRLReason.removeFromCRL, reason(entries.get(1)));
+        assertEquals(BigInteger.valueOf(0x20), entries.get(2).getSerialNumber());
+    }
+
+    @Test
+    public void compactFoldsChanges() throws Exception {
+        Path revoked = write("revoked.txt", List.of("01 2024-04-01T00:00:00Z", "10 2024-04-02T00:00:00Z 6", "30 2024-04-03T00:00:00Z"));
+        Path log = write("changes.log", List.of("+ 20 2024-05-01T00:00:00Z 1", "- 10 2024-05-02T00:00:00Z", "+ 40 2024-05-03T00:00:00Z"));
+        assertEquals(4, CrlGenerator.compact(revoked, log, revoked));
+        assertEquals(List.of("1 2024-04-01T00:00:00Z", "20 2024-05-01T00:00:00Z 1", "30 2024-04-03T00:00:00Z", "40 2024-05-03T00:00:00Z"),
+                Files.readAllLines(revoked));
+        /* the log is left to the caller */
+        assertEquals(3, Files.readAllLines(log).size());
+    }
+}
@@ -0,0 +1,381 @@
+package civ.kem.algo.pki;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.ocsp.OCSPObjectIdentifiers;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPReqBuilder;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.RevokedStatus;
+import org.bouncycastle.cert.ocsp.SingleResp;
+import org.bouncycastle.cert.ocsp.UnknownStatus;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.bc.BcDigestCalculatorProvider;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import civ.kem.algo.SessionPool;
+
+public class OcspResponderTest {
+
+    private static final String ALGORITHM = "SHA256withECDSA";
+    private static final BigInteger REVOKED_SERIAL = BigInteger.ONE.shiftLeft(64);
+    private static final BigInteger REVOKED_ONLY_SERIAL = BigInteger.ONE.shiftLeft(100);
+
+    /* signs the responses in software */
+    private static class SoftwareOcspResponder extends OcspResponder {
+
+        private final KeyPair caKey;
+
+        SoftwareOcspResponder(KeyPair caKey, X509CertificateHolder caCertificate, Path cacheDirectory) throws Exception {
+            super(new SessionPool(null, 0L, 0L, 2, SessionPool.DEFAULT_IDLE_TIMEOUT_MILLIS), 0L, caCertificate, ALGORITHM, cacheDirectory);
+            this.caKey = caKey;
+        }
+
+        @Override
+        ContentSigner newSigner() throws Exception {
+            return new JcaContentSignerBuilder(ALGORITHM).build(caKey.getPrivate());
+        }
+    }
+
+    private Path directory;
+    private Path cacheDirectory;
+    private KeyPair caKey;
+    private X509CertificateHolder caCertificate;
+    private OcspResponder responder;
+    private List<BigInteger> serials;
+    private Path issued;
+    private Path revoked;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("ocsp-test");
+        cacheDirectory = directory.resolve("cache");
+        caKey = keyPair();
+        caCertificate = certificate("CN=Test CA", caKey);
+        responder = new SoftwareOcspResponder(caKey, caCertificate, cacheDirectory);
+
+        /* around the sign bit of every part of the 20-byte key: head, middle and tail */
+        TreeSet<BigInteger> set = new TreeSet<>();
+        for (int bits : new int[]{8, 63, 64, 127, 128, 159}) {
+            BigInteger power = BigInteger.ONE.shiftLeft(bits);
+            set.add(power.subtract(BigInteger.ONE));
+            set.add(power);
+            set.add(power.add(BigInteger.ONE));
+        }
+        set.add(BigInteger.ONE.shiftLeft(160).subtract(BigInteger.ONE));
+        serials = new ArrayList<>(set);
+        List<String> lines = new ArrayList<>();
+        for (BigInteger serial : serials) {
+            lines.add(serial.toString(16));
+        }
+        issued = Files.write(directory.resolve("issued.txt"), lines, StandardCharsets.US_ASCII);
+        revoked = Files.write(directory.resolve("revoked.txt"), List.of(
+                REVOKED_SERIAL.toString(16) + " 2024-05-01T12:00:00Z " + CRLReason.keyCompromise,
+                REVOKED_ONLY_SERIAL.toString(16) + " 2024-05-02T12:00:00Z"), StandardCharsets.US_ASCII);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        responder.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    private static KeyPair keyPair() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(256);
+        return generator.generateKeyPair();
+    }
+
+    private static X509CertificateHolder certificate(String name, KeyPair key) throws Exception {
+        Date now = new Date();
+        return new JcaX509v3CertificateBuilder(new X500Name(name), BigInteger.ONE, new Date(now.getTime() - 60_000L),
+                new Date(now.getTime() + 86_400_000L), new X500Name(name), key.getPublic())
+                .build(new JcaContentSignerBuilder(ALGORITHM).build(key.getPrivate()));
+    }
+
+    private CertificateID id(BigInteger serial) throws Exception {
+        return new CertificateID(new BcDigestCalculatorProvider().get(CertificateID.HASH_SHA1), caCertificate, serial);
+    }
+
+    private static byte[] request(Extension nonce, CertificateID... ids) throws Exception {
+        OCSPReqBuilder builder = new OCSPReqBuilder();
+        for (CertificateID id : ids) {
+            builder.addRequest(id);
+        }
+        if (nonce != null) {
+            builder.setRequestExtensions(new Extensions(nonce));
+        }
+        return builder.build().getEncoded();
+    }
+
+    /* the verified single response of a successful answer */
+    private BasicOCSPResp verified(byte[] encoded) throws Exception {
+        OCSPResp response = new OCSPResp(encoded);
+        assertEquals(OCSPResp.SUCCESSFUL, response.getStatus());
+        BasicOCSPResp basic = (BasicOCSPResp) response.getResponseObject();
+        assertTrue(basic.isSignatureValid(new JcaContentVerifierProviderBuilder().build(caKey.getPublic())));
+        return basic;
+    }
+
+    private SingleResp single(byte[] encoded, BigInteger serial) throws Exception {
+        SingleResp[] responses = verified(encoded).getResponses();
+        assertEquals(1, responses.length);
+        assertEquals(serial, responses[0].getCertID().getSerialNumber());
+        return responses[0];
+    }
+
+    private Path onlyFile(String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(cacheDirectory)) {
+            List<Path> matching = files.filter(file -> file.toString().endsWith(suffix)).toList();
+            assertEquals(1, matching.size());
+            return matching.get(0);
+        }
+    }
+
+    @Test
+    public void indexIsSortedAndSegmented() throws Exception {
+        long segmentSize = 1024;
+        responder.setSegmentSize(segmentSize);
+        assertEquals(serials.size() + 1, responder.refresh(issued, revoked));
+        assertEquals(serials.size() + 1, responder.size());
+
+        ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(onlyFile(".idx")));
+        long dataSize = Files.size(onlyFile(".dat"));
+        assertEquals(48L * (serials.size() + 1), index.capacity());
+        BigInteger previous = BigInteger.valueOf(-1);
+        boolean padded = false;
+        long end = 0;
+        for (int at = 0; at < index.capacity(); at += 48) {
+            byte[] key = new byte[20];
+            index.get(at, key);
+            BigInteger serial = new BigInteger(1, key);
+            assertTrue(serial.compareTo(previous) > 0);
+            previous = serial;
+            assertEquals(serial.equals(REVOKED_SERIAL) || serial.equals(REVOKED_ONLY_SERIAL) ? 1 : 0, index.get(at + 20));
+            long offset = index.getLong(at + 32);
+            int length = index.getInt(at + 40);
+            assertTrue(length > 0);
+            /* never across two segments */
+            assertTrue(offset % segmentSize + length <= segmentSize);
+            padded |= offset > end;
+            end = offset + length;
+        }
+        assertTrue(padded);
+        assertEquals(end, dataSize);
+    }
+
+    @Test
+    public void servesPreSignedResponses() throws Exception {
+        responder.setSegmentSize(1024);
+        responder.refresh(issued, revoked);
+
+        for (BigInteger serial : serials) {
+            SingleResp single = single(responder.respond(request(null, id(serial))), serial);
+            if (serial.equals(REVOKED_SERIAL)) {
+                RevokedStatus status = (RevokedStatus) single.getCertStatus();
+                assertEquals(CRLReason.keyCompromise, status.getRevocationReason());
+            } else {
+                assertNull(single.getCertStatus());
+            }
+        }
+        assertTrue(single(responder.respond(request(null, id(REVOKED_ONLY_SERIAL))), REVOKED_ONLY_SERIAL).getCertStatus() instanceof RevokedStatus);
+        assertEquals(serials.size() + 1, responder.getHits());
+        assertEquals(0, responder.getLiveSigned());
+
+        /* served twice, the same bytes */
+        byte[] request = request(null, id(serials.get(3)));
+        assertArrayEquals(responder.respond(request), responder.respond(request));
+    }
+
+    @Test
+    public void signsLiveWhenNotPreSigned() throws Exception {
+        responder.refresh(issued, revoked);
+
+        /* unknown serial numbers, also beyond 20 bytes */
+        BigInteger unknown = BigInteger.ONE.shiftLeft(64).add(BigInteger.TWO);
+        assertTrue(single(responder.respond(request(null, id(unknown))), unknown).getCertStatus() instanceof UnknownStatus);
+        BigInteger huge = BigInteger.ONE.shiftLeft(170);
+        assertTrue(single(responder.respond(request(null, id(huge))), huge).getCertStatus() instanceof UnknownStatus);
+
+        /* a nonce is echoed, with the status from the index */
+        Extension nonce = new Extension(OCSPObjectIdentifiers.id_pkix_ocsp_nonce, false, new DEROctetString(new byte[16]).getEncoded());
+        byte[] response = responder.respond(request(nonce, id(REVOKED_SERIAL)));
+        assertEquals(nonce, verified(response).getExtension(OCSPObjectIdentifiers.id_pkix_ocsp_nonce));
+        assertTrue(single(response, REVOKED_SERIAL).getCertStatus() instanceof RevokedStatus);
+
+        /* several certificates */
+        SingleResp[] responses = verified(responder.respond(request(null, id(serials.get(0)), id(unknown)))).getResponses();
+        assertEquals(2, responses.length);
+        assertEquals(CertificateStatus.GOOD, responses[0].getCertStatus());
+        assertTrue(responses[1].getCertStatus() instanceof UnknownStatus);
+
+        assertEquals(4, responder.getLiveSigned());
+        assertEquals(0, responder.getHits());
+    }
+
+    @Test
+    public void refreshSwapsTheFiles() throws Exception {
+        responder.refresh(issued, revoked);
+        Path first = onlyFile(".idx");
+        Files.write(issued, List.of("01"), StandardCharsets.US_ASCII);
+        Files.write(revoked, List.of(), StandardCharsets.US_ASCII);
+        assertEquals(1, responder.refresh(issued, revoked));
+        assertFalse(Files.exists(first));
+        assertFalse(first.equals(onlyFile(".idx")));
+        onlyFile(".dat");
+        assertEquals(2, responder.getRefreshes());
+
+        /* gone from the index: signed live as unknown */
+        BigInteger serial = serials.get(3);
+        assertTrue(single(responder.respond(request(null, id(serial))), serial).getCertStatus() instanceof UnknownStatus);
+        assertEquals(1, responder.getLiveSigned());
+    }
+
+    @Test
+    public void rejectsBadRequests() throws Exception {
+        responder.refresh(issued, revoked);
+        assertEquals(OCSPResp.MALFORMED_REQUEST, new OCSPResp(responder.respond(new byte[]{0x30, 0x00})).getStatus());
+        X509CertificateHolder other = certificate("CN=Other CA", keyPair());
+        CertificateID otherId = new CertificateID(new BcDigestCalculatorProvider().get(CertificateID.HASH_SHA1), other, BigInteger.ONE);
+        assertEquals(OCSPResp.UNAUTHORIZED, new OCSPResp(responder.respond(request(null, otherId))).getStatus());
+        Extension longNonce = new Extension(OCSPObjectIdentifiers.id_pkix_ocsp_nonce, false, new DEROctetString(new byte[33]).getEncoded());
+        assertEquals(OCSPResp.MALFORMED_REQUEST, new OCSPResp(responder.respond(request(longNonce, id(BigInteger.ONE)))).getStatus());
+        assertEquals(3, responder.getErrors());
+    }
+
+    private static HttpURLConnection open(InetSocketAddress address, String path, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http", address.getHostString(), address.getPort(), path).openConnection();
+        connection.setRequestMethod(method);
+        return connection;
+    }
+
+    private static byte[] read(HttpURLConnection connection) throws IOException {
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("application/ocsp-response", connection.getContentType());
+        try (InputStream in = connection.getInputStream()) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] post(InetSocketAddress address, byte[] body) throws IOException {
+        HttpURLConnection connection = open(address, "/ocsp", "POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/ocsp-request");
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+        return read(connection);
+    }
+
+    @Test
+    public void servesOverHttp() throws Exception {
+        responder.refresh(issued, revoked);
+        InetSocketAddress address = (InetSocketAddress) responder.serve(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), "/ocsp").getAddress();
+        address = new InetSocketAddress(InetAddress.getLoopbackAddress(), address.getPort());
+
+        BigInteger serial = serials.get(5);
+        byte[] request = request(null, id(serial));
+        assertArrayEquals(responder.respond(request), post(address, request));
+
+        /* GET with the base64 request in the path, its '+', '/' and '=' escaped */
+        String encoded = Base64.getEncoder().encodeToString(request).replace("+", "%2B").replace("/", "%2F").replace("=", "%3D");
+        single(read(open(address, "/ocsp/" + encoded, "GET")), serial);
+        assertEquals(3, responder.getHits());
+
+        assertEquals(OCSPResp.MALFORMED_REQUEST, new OCSPResp(read(open(address, "/ocsp/not*base64", "GET"))).getStatus());
+        assertEquals(405, open(address, "/ocsp", "PUT").getResponseCode());
+
+        HttpURLConnection tooLarge = open(address, "/ocsp", "POST");
+        tooLarge.setDoOutput(true);
+        tooLarge.setFixedLengthStreamingMode(OcspResponder.MAX_REQUEST_SIZE + 1);
+        try (OutputStream out = tooLarge.getOutputStream()) {
+            out.write(new byte[OcspResponder.MAX_REQUEST_SIZE + 1]);
+        }
+        assertEquals(413, tooLarge.getResponseCode());
+    }
+
+    private static Extension nonce(int length) throws Exception {
+        return new Extension(OCSPObjectIdentifiers.id_pkix_ocsp_nonce, false, new DEROctetString(new byte[length]).getEncoded());
+    }
+
+    @Test
+    public void acceptsNoncesUpTo32Bytes() throws Exception {
+        assertTrue(OcspResponder.isValidNonce(nonce(1)));
+        assertTrue(OcspResponder.isValidNonce(nonce(32)));
+        assertFalse(OcspResponder.isValidNonce(nonce(0)));
+        assertFalse(OcspResponder.isValidNonce(nonce(33)));
+        assertFalse(OcspResponder.isValidNonce(nonce(1024)));
+    }
+
+    @Test
+    public void acceptsRawNonces() {
+        /* not an OCTET STRING: the extension value is the nonce itself */
+        byte[] raw = new byte[16];
+        raw[0] = 0x7F;
+        assertTrue(OcspResponder.isValidNonce(new Extension(OCSPObjectIdentifiers.id_pkix_ocsp_nonce, false, raw)));
+        byte[] tooLong = new byte[40];
+        tooLong[0] = 0x7F;
+        assertFalse(OcspResponder.isValidNonce(new Extension(OCSPObjectIdentifiers.id_pkix_ocsp_nonce, false, tooLong)));
+    }
+
+    @Test
+    public void percentDecodingKeepsPlus() {
+        assertEquals("MEowSDBGMEQwQjAJBgUrDgMCGgUABBQ+", OcspResponder.percentDecode("MEowSDBGMEQwQjAJBgUrDgMCGgUABBQ+"));
+        assertEquals("ab+/=", OcspResponder.percentDecode("ab%2B%2f%3D"));
+        assertEquals("a+b", OcspResponder.percentDecode("a+b"));
+    }
+
+    @Test
+    public void percentDecodingRejectsBadEscapes() {
+        for (String encoded : new String[]{"abc%", "abc%2", "%zz", "%2g"}) {
+            try {
+                OcspResponder.percentDecode(encoded);
+                fail("Accepted " + encoded);
+            } catch (IllegalArgumentException ex) {
+                /* expected */
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package civ.kem.algo.ptk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class Bip32PathTest {
+
+    private static final long H = Bip32Path.HARDENED;
+
+    private static void assertInvalid(String pattern) {
+        try {
+            Bip32Path.expand(pattern);
+            fail("Accepted " + pattern);
+        } catch (IllegalArgumentException ex) {
+            /* expected */
+        }
+    }
+
+    @Test
+    public void parsesHardenedNotations() {
+        assertArrayEquals(new long[]{44 | H, 0 | H, 0 | H, 0, 5}, Bip32Path.parse("m/44'/0'/0'/0/5"));
+        assertArrayEquals(new long[]{44 | H, 1 | H, 2 | H}, Bip32Path.parse("m/44h/1H/2'"));
+        assertArrayEquals(new long[]{0x7FFFFFFFL | H, 0x7FFFFFFFL}, Bip32Path.parse("m/2147483647'/2147483647"));
+        assertArrayEquals(new long[0], Bip32Path.parse("m"));
+        assertArrayEquals(new long[]{1}, Bip32Path.parse(" m/1 "));
+    }
+
+    @Test
+    public void formatsRoundTrip() {
+        for (String path : new String[]{"m", "m/0", "m/44'/0'/0'/0/5", "m/2147483647'/0/2147483647"}) {
+            assertEquals(path, Bip32Path.format(Bip32Path.parse(path)));
+        }
+        assertEquals("m/44'/0'/0'/0/5", Bip32Path.format(Bip32Path.parse("m/44h/0H/0'/0/5")));
+        long[] path = Bip32Path.parse("m/44'/0'/0'/0/5");
+        assertEquals("m", Bip32Path.format(path, 0));
+        assertEquals("m/44'/0'", Bip32Path.format(path, 2));
+    }
+
+    @Test
+    public void expandsRanges() {
+        List<long[]> paths = Bip32Path.expand("m/44'/0'/0'/0/0..2");
+        assertEquals(3, paths.size());
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(new long[]{44 | H, 0 | H, 0 | H, 0, i}, paths.get(i));
+        }
+
+        paths = Bip32Path.expand("m/1'..2'/0..1");
+        assertEquals(4, paths.size());
+        assertArrayEquals(new long[]{1 | H, 0}, paths.get(0));
+        assertArrayEquals(new long[]{1 | H, 1}, paths.get(1));
+        assertArrayEquals(new long[]{2 | H, 0}, paths.get(2));
+        assertArrayEquals(new long[]{2 | H, 1}, paths.get(3));
+
+        assertEquals(1, Bip32Path.expand("m/7..7").size());
+    }
+
+    @Test
+    public void parseRejectsRanges() {
+        try {
+            Bip32Path.parse("m/0..0");
+            fail("Accepted a range");
+        } catch (IllegalArgumentException ex) {
+            /* expected */
+        }
+    }
+
+    @Test
+    public void rejectsMalformedPaths() {
+        for (String pattern : new String[]{"", "M/0", "0/1", "m/", "m/1/", "m//1", "m/x", "m/-1", "m/+1", "m/1''",
+            "m/2147483648", "m/2147483648'", "m/5..3", "m/0..1'", "m/0'..1", "m/0..", "m/..3"}) {
+            assertInvalid(pattern);
+        }
+    }
+}
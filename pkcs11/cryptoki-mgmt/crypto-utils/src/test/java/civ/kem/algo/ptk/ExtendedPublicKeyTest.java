@@ -0,0 +1,150 @@
+package civ.kem.algo.ptk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.bouncycastle.crypto.ec.CustomNamedCurves;
+import org.junit.Test;
+
+public class ExtendedPublicKeyTest {
+
+    private static final long H = Bip32Path.HARDENED;
+
+    /* BIP32 test vector 1: m, m/0H, m/0H/1, m/0H/1/2H, m/0H/1/2H/2, m/0H/1/2H/2/1000000000 */
+    private static final String[] VECTOR1 = {
+        "xpub661MyMwAqRbcFtXgS5sYJABqqG9YLmC4Q1Rdap9gSE8NqtwybGhePY2gZ29ESFjqJoCu1Rupje8YtGqsefD265TMg7usUDFdp6W1EGMcet8",
+        "xpub68Gmy5EdvgibQVfPdqkBBCHxA5htiqg55crXYuXoQRKfDBFA1WEjWgP6LHhwBZeNK1VTsfTFUHCdrfp1bgwQ9xv5ski8PX9rL2dZXvgGDnw",
+        "xpub6ASuArnXKPbfEwhqN6e3mwBcDTgzisQN1wXN9BJcM47sSikHjJf3UFHKkNAWbWMiGj7Wf5uMash7SyYq527Hqck2AxYysAA7xmALppuCkwQ",
+        "xpub6D4BDPcP2GT577Vvch3R8wDkScZWzQzMMUm3PWbmWvVJrZwQY4VUNgqFJPMM3No2dFDFGTsxxpG5uJh7n7epu4trkrX7x7DogT5Uv6fcLW5",
+        "xpub6FHa3pjLCk84BayeJxFW2SP4XRrFd1JYnxeLeU8EqN3vDfZmbqBqaGJAyiLjTAwm6ZLRQUMv1ZACTj37sR62cfN7fe5JnJ7dh8zL4fiyLHV",
+        "xpub6H1LXWLaKsWFhvm6RVpEL9P4KfRZSW7abD2ttkWP3SSQvnyA8FSVqNTEcYFgJS2UaFcxupHiYkro49S8yGasTvXEYBVPamhGW6cFJodrTHy"
+    };
+    private static final long[] VECTOR1_PATH = {0 | H, 1, 2 | H, 2, 1000000000};
+
+    /* BIP32 test vector 2: m, m/0, m/0/2147483647H, m/0/2147483647H/1, m/0/2147483647H/1/2147483646H, .../2 */
+    private static final String[] VECTOR2 = {
+        "xpub661MyMwAqRbcFW31YEwpkMuc5THy2PSt5bDMsktWQcFF8syAmRUapSCGu8ED9W6oDMSgv6Zz8idoc4a6mr8BDzTJY47LJhkJ8UB7WEGuduB",
+        "xpub69H7F5d8KSRgmmdJg2KhpAK8SR3DjMwAdkxj3ZuxV27CprR9LgpeyGmXUbC6wb7ERfvrnKZjXoUmmDznezpbZb7ap6r1D3tgFxHmwMkQTPH",
+        "xpub6ASAVgeehLbnwdqV6UKMHVzgqAG8Gr6riv3Fxxpj8ksbH9ebxaEyBLZ85ySDhKiLDBrQSARLq1uNRts8RuJiHjaDMBU4Zn9h8LZNnBC5y4a",
+        "xpub6DF8uhdarytz3FWdA8TvFSvvAh8dP3283MY7p2V4SeE2wyWmG5mg5EwVvmdMVCQcoNJxGoWaU9DCWh89LojfZ537wTfunKau47EL2dhHKon",
+        "xpub6ERApfZwUNrhLCkDtcHTcxd75RbzS1ed54G1LkBUHQVHQKqhMkhgbmJbZRkrgZw4koxb5JaHWkY4ALHY2grBGRjaDMzQLcgJvLJuZZvRcEL",
+        "xpub6FnCn6nSzZAw5Tw7cgR9bi15UV96gLZhjDstkXXxvCLsUXBGXPdSnLFbdpq8p9HmGsApME5hQTZ3emM2rnY5agb9rXpVGyy3bdW6EEgAtqt"
+    };
+    private static final long[] VECTOR2_PATH = {0, 2147483647L | H, 1, 2147483646L | H, 2};
+
+    private static void assertChain(String[] xpubs, long[] path) {
+        for (int depth = 0; depth < xpubs.length; depth++) {
+            ExtendedPublicKey key = ExtendedPublicKey.parse(xpubs[depth]);
+            assertEquals(xpubs[depth], key.serialize());
+            assertEquals(depth, key.getDepth());
+            assertEquals(depth == 0 ? 0 : path[depth - 1], key.getChildNumber());
+            if (depth + 1 < xpubs.length && (path[depth] & H) == 0) {
+                /* CKD-pub reproduces the next key, fingerprint included */
+                assertEquals(xpubs[depth + 1], key.derive(path[depth]).serialize());
+            }
+        }
+    }
+
+    private static void assertRejected(String xpub) {
+        try {
+            ExtendedPublicKey.parse(xpub);
+            fail("Accepted " + xpub);
+        } catch (IllegalArgumentException ex) {
+            /* expected */
+        }
+    }
+
+    @Test
+    public void testVector1() {
+        assertChain(VECTOR1, VECTOR1_PATH);
+        ExtendedPublicKey master = ExtendedPublicKey.parse(VECTOR1[0]);
+        assertEquals(0x3442193E, master.getFingerprint());
+        assertEquals("15mKKb2eos1hWa6tisdPwwDC1a5J1y9nma", ExtendedPublicKey.p2pkhAddress((byte) 0x00, master.getPublicKey()));
+    }
+
+    @Test
+    public void testVector2() {
+        assertChain(VECTOR2, VECTOR2_PATH);
+        ExtendedPublicKey master = ExtendedPublicKey.parse(VECTOR2[0]);
+        assertEquals(0xBD16BEE5, master.getFingerprint());
+    }
+
+    @Test
+    public void addressesMatchDerivedKeys() {
+        ExtendedPublicKey account = ExtendedPublicKey.parse(VECTOR1[2]);
+        List<String> addresses = account.p2pkhAddresses(5, 3);
+        List<byte[]> keys = account.childPublicKeys(5, 3);
+        for (int i = 0; i < 3; i++) {
+            byte[] publicKey = account.derive(5 + i).getPublicKey();
+            assertArrayEquals(publicKey, keys.get(i));
+            assertEquals(ExtendedPublicKey.p2pkhAddress((byte) 0x00, publicKey), addresses.get(i));
+        }
+    }
+
+    @Test
+    public void rejectsHardenedDerivation() {
+        try {
+            ExtendedPublicKey.parse(VECTOR1[0]).derive(H);
+            fail("Derived a hardened child");
+        } catch (IllegalArgumentException ex) {
+            /* expected */
+        }
+    }
+
+    @Test
+    public void rejectsBadChecksum() {
+        String xpub = VECTOR1[0];
+        char last = xpub.charAt(xpub.length() - 1);
+        assertRejected(xpub.substring(0, xpub.length() - 1) + (last == '8' ? '9' : '8'));
+        assertRejected(xpub.substring(0, 20) + (xpub.charAt(20) == 'a' ? 'b' : 'a') + xpub.substring(21));
+        /* not a Base58 character */
+        assertRejected(xpub.substring(0, 30) + '0' + xpub.substring(31));
+    }
+
+    @Test
+    public void rejectsWrongLength() {
+        /* valid Base58Check, but a 21 byte address or a truncated key */
+        assertRejected("15mKKb2eos1hWa6tisdPwwDC1a5J1y9nma");
+        assertRejected(VECTOR1[0].substring(0, VECTOR1[0].length() - 4));
+        assertRejected("");
+        assertRejected("1");
+    }
+
+    @Test
+    public void rejectsPrivateKeys() {
+        try {
+            ExtendedPublicKey.parse("xprv9s21ZrQH143K3QTDL4LXw2F7HEK3wJUD2nW2nRk4stbPy6cq3jPPqjiChkVvvNKmPGJxWUtg6LnF5kejMRNNU3TGtRBeJgk33yuGBxrMPHi");
+            fail("Accepted an xprv");
+        } catch (IllegalArgumentException ex) {
+            /* rejected as private, not for a bad checksum */
+            assertEquals("Extended private keys are not supported", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void compressesTokenPoints() {
+        byte[] compressed = ExtendedPublicKey.parse(VECTOR1[0]).getPublicKey();
+        byte[] uncompressed = CustomNamedCurves.getByName("secp256k1").getCurve().decodePoint(compressed).getEncoded(false);
+        assertArrayEquals(compressed, ExtendedPublicKey.compressedPoint(compressed));
+        assertArrayEquals(compressed, ExtendedPublicKey.compressedPoint(uncompressed));
+
+        byte[] wrapped = new byte[2 + uncompressed.length];
+        wrapped[0] = 0x04;
+        wrapped[1] = (byte) uncompressed.length;
+        System.arraycopy(uncompressed, 0, wrapped, 2, uncompressed.length);
+        assertArrayEquals(compressed, ExtendedPublicKey.compressedPoint(wrapped));
+
+        for (byte[] value : new byte[][]{Arrays.copyOf(compressed, 32), Arrays.copyOf(compressed, 34), Arrays.copyOf(uncompressed, 64), new byte[33]}) {
+            try {
+                ExtendedPublicKey.compressedPoint(value);
+                fail("Accepted a " + value.length + " byte value");
+            } catch (IllegalArgumentException ex) {
+                /* expected */
+            }
+        }
+    }
+}